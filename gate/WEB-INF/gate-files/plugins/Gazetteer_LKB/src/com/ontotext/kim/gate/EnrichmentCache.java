@@ -0,0 +1,190 @@
+package com.ontotext.kim.gate;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded LRU cache of enrichment results, shared by all
+ * <code>SesameEnrichment</code> instances in the JVM. Pooled copies of a
+ * pipeline therefore reuse the results for entities which recur across
+ * documents.<br>
+ * <br>
+ * The results are keyed by the entity URI and a scope, which identifies the
+ * repository and the query template that produced them. Entries older than
+ * the time-to-live are treated as missing. The least recently used entries
+ * are evicted when the cache grows above its maximal size.<br>
+ * All operations are synchronized on the cache; the hit, miss and eviction
+ * counters can be read without locking.
+ */
+class EnrichmentCache {
+
+	private static EnrichmentCache shared;
+
+	/**
+	 * Returns the cache shared in the JVM, creating it if needed. The shared
+	 * cache keeps the largest size and the longest time-to-live requested by
+	 * its callers, so a caller with small limits does not shrink the cache of
+	 * the others; a caller applies its own time-to-live with
+	 * <code>get(scope, inst, ttlMillis)</code>.
+	 * @param maxSize - maximal number of cached results
+	 * @param ttlMillis - time-to-live of a result in milliseconds, 0 or less
+	 * for no expiration
+	 * @return the shared cache
+	 */
+	public static synchronized EnrichmentCache getShared(int maxSize, long ttlMillis) {
+		if (shared == null)
+			shared = new EnrichmentCache(maxSize, ttlMillis);
+		else
+			shared.setLimits(Math.max(shared.maxSize, maxSize),
+					shared.ttlMillis <= 0 || ttlMillis <= 0 ? 0 : Math.max(shared.ttlMillis, ttlMillis));
+		return shared;
+	}
+
+	private static final class Key {
+		private final String scope;
+		private final String inst;
+		private final int hash;
+
+		Key(String scope, String inst) {
+			this.scope = scope;
+			this.inst = inst;
+			this.hash = 31 * scope.hashCode() + inst.hashCode();
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			Key k = (Key) obj;
+			return hash == k.hash && inst.equals(k.inst)
+				&& (scope == k.scope || scope.equals(k.scope));
+		}
+	}
+
+	private static final class CachedResult {
+		final EnrichmentResult result;
+		final long created;
+
+		CachedResult(EnrichmentResult result, long created) {
+			this.result = result;
+			this.created = created;
+		}
+	}
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong expirations = new AtomicLong();
+
+	private volatile int maxSize;
+	private volatile long ttlMillis;
+
+	private final LinkedHashMap<Key, CachedResult> entries = new LinkedHashMap<Key, CachedResult>(1024, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, CachedResult> eldest) {
+			if (size() > maxSize) {
+				evictions.incrementAndGet();
+				return true;
+			}
+			return false;
+		}
+	};
+
+	EnrichmentCache(int maxSize, long ttlMillis) {
+		setLimits(maxSize, ttlMillis);
+	}
+
+	public void setLimits(int maxSize, long ttlMillis) {
+		this.maxSize = Math.max(1, maxSize);
+		this.ttlMillis = ttlMillis;
+	}
+
+	/**
+	 * Looks up the result for an entity.
+	 * @param scope - the repository and query identification
+	 * @param inst - the entity URI
+	 * @return the cached result or <b>null</b> if it is missing or expired
+	 */
+	public EnrichmentResult get(String scope, String inst) {
+		return get(scope, inst, ttlMillis);
+	}
+
+	/**
+	 * Looks up the result for an entity, if it is not older than the given
+	 * time-to-live. An older result is dropped only if it is also older than
+	 * the time-to-live of the cache.
+	 * @param scope - the repository and query identification
+	 * @param inst - the entity URI
+	 * @param ttlMillis - the time-to-live of the caller in milliseconds, 0 or
+	 * less for no expiration
+	 * @return the cached result or <b>null</b> if it is missing or expired
+	 */
+	public EnrichmentResult get(String scope, String inst, long ttlMillis) {
+		Key key = new Key(scope, inst);
+		synchronized (entries) {
+			CachedResult e = entries.get(key);
+			long age = e == null ? 0 : System.currentTimeMillis() - e.created;
+			if (e != null && this.ttlMillis > 0 && age > this.ttlMillis) {
+				entries.remove(key);
+				expirations.incrementAndGet();
+				e = null;
+			}
+			else if (e != null && ttlMillis > 0 && age > ttlMillis) {
+				e = null;
+			}
+			if (e == null) {
+				misses.incrementAndGet();
+				return null;
+			}
+			hits.incrementAndGet();
+			return e.result;
+		}
+	}
+
+	public void put(String scope, String inst, EnrichmentResult result) {
+		put(scope, inst, result, System.currentTimeMillis());
+	}
+
+	/**
+	 * Adds a result produced earlier, e.g. one read from a persistent store.
+	 * @param created - the time the result was produced
+	 */
+	public void put(String scope, String inst, EnrichmentResult result, long created) {
+		CachedResult e = new CachedResult(result, created);
+		Key key = new Key(scope, inst);
+		synchronized (entries) {
+			entries.put(key, e);
+		}
+	}
+
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	public long getHits() {  return hits.get();  }
+	public long getMisses() {  return misses.get();  }
+	public long getEvictions() {  return evictions.get();  }
+	public long getExpirations() {  return expirations.get();  }
+
+	@Override
+	public String toString() {
+		return "Enrichment cache: size=" + size() + "/" + maxSize + " hits=" + hits
+			+ " misses=" + misses + " evictions=" + evictions + " expirations=" + expirations;
+	}
+}
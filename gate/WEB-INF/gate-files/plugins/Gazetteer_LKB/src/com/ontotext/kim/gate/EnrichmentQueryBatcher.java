@@ -0,0 +1,133 @@
+package com.ontotext.kim.gate;
+
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Rewrites the per-entity enrichment query of <code>SesameEnrichment</code>
+ * into a query that serves several entities at once.<br>
+ * <br>
+ * The <code>&lt;%s&gt;</code> placeholder of the template is replaced with the
+ * variable <code>?lkbInst</code>, the variable is added to the projection and
+ * a filter restricting it to the URIs of the batch is added at the end of the
+ * WHERE clause. The filter is a disjunction of <code>sameTerm</code> tests,
+ * because the SPARQL parser of Sesame 2 supports neither <code>VALUES</code>
+ * nor <code>IN</code>.<br>
+ * A <code>LIMIT</code> of the template is multiplied by the batch size and the
+ * original limit is applied to the rows of every entity when the results are
+ * mapped back. An entity with many rows can use up the limit of the whole
+ * batch, so when a batch returns as many rows as its limit, the entities with
+ * fewer rows than the original limit may miss some and are queried one by
+ * one (see <code>isTruncated</code>).<br>
+ * <br>
+ * Templates which cannot be rewritten safely (no <code>&lt;%s&gt;</code>
+ * placeholder, other format specifiers, <code>OFFSET</code>) are not batched.
+ */
+public class EnrichmentQueryBatcher {
+
+	/** The variable which carries the entity URI in the batched query */
+	public static final String INST_VAR = "lkbInst";
+
+	private static final Pattern PLACEHOLDER_PAT = Pattern.compile("<%(?:1\\$)?s>");
+	private static final Pattern FORMAT_PAT = Pattern.compile("%(?!%)");
+	private static final Pattern SELECT_PAT = Pattern.compile(
+			"\\bSELECT\\s+(?:(?:DISTINCT|REDUCED)\\s+)?(\\*)?", Pattern.CASE_INSENSITIVE);
+	private static final Pattern LIMIT_PAT = Pattern.compile("\\bLIMIT\\s+(\\d+)", Pattern.CASE_INSENSITIVE);
+	private static final Pattern OFFSET_PAT = Pattern.compile("\\bOFFSET\\b", Pattern.CASE_INSENSITIVE);
+
+	private final String head;
+	private final String tailBeforeLimit;
+	private final String tailAfterLimit;
+	private final int perEntityLimit;
+
+	private EnrichmentQueryBatcher(String head, String tailBeforeLimit,
+			String tailAfterLimit, int perEntityLimit) {
+		this.head = head;
+		this.tailBeforeLimit = tailBeforeLimit;
+		this.tailAfterLimit = tailAfterLimit;
+		this.perEntityLimit = perEntityLimit;
+	}
+
+	/**
+	 * Prepares a batcher for a query template.
+	 * @param template - the query template as given to the PR
+	 * @return the batcher or <b>null</b> if the template cannot be batched
+	 */
+	public static EnrichmentQueryBatcher create(String template) {
+		if (template == null)
+			return null;
+		Matcher ph = PLACEHOLDER_PAT.matcher(template);
+		if (!ph.find())
+			return null;
+		String q = ph.replaceAll("?" + INST_VAR);
+		if (FORMAT_PAT.matcher(q.replace("%%", "")).find())
+			return null;
+		q = q.replace("%%", "%");
+
+		Matcher sel = SELECT_PAT.matcher(q);
+		if (!sel.find())
+			return null;
+		if (sel.group(1) == null)
+			q = q.substring(0, sel.end()) + "?" + INST_VAR + " " + q.substring(sel.end());
+
+		int whereEnd = q.lastIndexOf('}');
+		if (whereEnd < 0)
+			return null;
+		String modifiers = q.substring(whereEnd + 1);
+		if (OFFSET_PAT.matcher(modifiers).find())
+			return null;
+		String head = q.substring(0, whereEnd);
+		Matcher lim = LIMIT_PAT.matcher(modifiers);
+		if (!lim.find())
+			return new EnrichmentQueryBatcher(head, "}" + modifiers, null, -1);
+		int limit;
+		try {
+			limit = Integer.parseInt(lim.group(1));
+		}
+		catch (NumberFormatException e) {
+			return null;
+		}
+		return new EnrichmentQueryBatcher(head, "}" + modifiers.substring(0, lim.start(1)),
+				modifiers.substring(lim.end(1)), limit);
+	}
+
+	/**
+	 * @return the maximal number of result rows for a single entity or -1 if
+	 * the template has no limit
+	 */
+	public int getPerEntityLimit() {
+		return perEntityLimit;
+	}
+
+	/**
+	 * Checks whether the <code>LIMIT</code> of a batched query may have cut
+	 * the rows of some of its entities.
+	 * @param rows - the number of rows returned by the query of a batch
+	 * @param batchSize - the number of entities of the batch
+	 * @return <b>true</b> if the template has a limit and the batch returned
+	 * as many rows as the limit of the batched query
+	 */
+	public boolean isTruncated(int rows, int batchSize) {
+		return perEntityLimit >= 0 && rows >= (long) perEntityLimit * batchSize;
+	}
+
+	/**
+	 * Builds the query for a batch of entity URIs.
+	 * @param uris - the distinct entity URIs of the batch
+	 * @return the SPARQL query
+	 */
+	public String build(List<String> uris) {
+		StringBuilder sb = new StringBuilder(head.length() + tailBeforeLimit.length() + uris.size() * 64 + 32);
+		sb.append(head).append(" FILTER (");
+		for (int i = 0; i < uris.size(); i++) {
+			if (i > 0)
+				sb.append(" || ");
+			sb.append("sameTerm(?").append(INST_VAR).append(", <").append(uris.get(i)).append(">)");
+		}
+		sb.append(") ").append(tailBeforeLimit);
+		if (tailAfterLimit != null)
+			sb.append((long) perEntityLimit * uris.size()).append(tailAfterLimit);
+		return sb.toString();
+	}
+}
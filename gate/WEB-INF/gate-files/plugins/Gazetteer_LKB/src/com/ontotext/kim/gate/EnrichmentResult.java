@@ -0,0 +1,36 @@
+package com.ontotext.kim.gate;
+
+/**
+ * The outcome of enriching a single entity by <code>SesameEnrichment</code>.
+ * It keeps whether the query returned any rows, which decides the deletion
+ * of annotations when <code>deleteOnNoRelations</code> is set, and the value
+ * of the "connections" feature.
+ */
+public final class EnrichmentResult {
+
+	/** The result of an entity for which the query returned no rows */
+	public static final EnrichmentResult NO_RELATIONS = new EnrichmentResult(false, null);
+
+	private final boolean hasRelations;
+	private final String connections;
+
+	public EnrichmentResult(boolean hasRelations, String connections) {
+		this.hasRelations = hasRelations;
+		this.connections = connections != null && connections.length() > 0 ? connections : null;
+	}
+
+	/**
+	 * @return <b>true</b> if the query returned at least one row
+	 */
+	public boolean hasRelations() {
+		return hasRelations;
+	}
+
+	/**
+	 * @return the comma-separated values of the query results or <b>null</b>
+	 * if there were none
+	 */
+	public String getConnections() {
+		return connections;
+	}
+}
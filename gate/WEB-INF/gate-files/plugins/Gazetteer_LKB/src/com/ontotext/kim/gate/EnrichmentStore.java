@@ -0,0 +1,525 @@
+package com.ontotext.kim.gate;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A persistent store of enrichment results, which keeps the results of
+ * <code>SesameEnrichment</code> across restarts of the application.<br>
+ * <br>
+ * The results of one scope (repository and query template) are kept in two
+ * files in the store directory:<br>
+ *  * <code>enrichment-&lt;SHA-1 of the scope&gt;.log</code> - an append-only log of
+ * records. The header holds the full scope, every record holds the entity
+ * URI, the time the result was produced, the result itself and a CRC32 of the
+ * record. A newer record for the same entity supersedes the older ones;<br>
+ *  * <code>enrichment-&lt;SHA-1 of the scope&gt;.idx</code> - a memory-mapped open
+ * addressing hash table from the 64 bit hash of the entity URI to the offset
+ * of its latest record in the log. The header holds the length of the log
+ * covered by the table.<br>
+ * <br>
+ * On opening, log records which are not covered by the index are added to it
+ * and a torn record at the end of the log is cut off. A missing or corrupt
+ * index is rebuilt from the log, and a log holding more than twice as many
+ * records as entities is compacted. The files are not forced to disk after
+ * every record; a crash may lose the latest results, but not the older ones.<br>
+ * <br>
+ * Stores are shared by all <code>SesameEnrichment</code> instances in the JVM
+ * and must be obtained with <code>open</code> and returned with
+ * <code>release</code>. All operations are synchronized on the store.
+ */
+public class EnrichmentStore {
+
+	private static final Logger log = Logger.getLogger(EnrichmentStore.class);
+
+	private static final int LOG_MAGIC = 0x4C4B454C;
+	private static final int IDX_MAGIC = 0x4C4B4549;
+	private static final int VERSION = 1;
+
+	/** magic, version, slots, entries, records, covered log length */
+	private static final int IDX_HEADER_SIZE = 4 + 4 + 4 + 4 + 4 + 8;
+	private static final int IDX_SLOTS = 8;
+	private static final int IDX_ENTRIES = 12;
+	private static final int IDX_RECORDS = 16;
+	private static final int IDX_COVERED = 20;
+	/** hash of the URI (never 0) and offset of the record in the log */
+	private static final int SLOT_SIZE = 8 + 8;
+	private static final int MIN_SLOTS = 1 << 12;
+	/** length, created, flags, URI length, connections length, CRC */
+	private static final int RECORD_OVERHEAD = 4 + 8 + 1 + 4 + 4 + 4;
+
+	private static final byte HAS_RELATIONS = 1;
+	private static final byte HAS_CONNECTIONS = 2;
+
+	private static final Map<File, EnrichmentStore> openStores = new HashMap<File, EnrichmentStore>();
+
+	/**
+	 * Opens the store of a scope in a directory or returns the store already
+	 * opened in the JVM.
+	 * @param dir - the store directory, created if missing
+	 * @param scope - the repository and query identification
+	 * @return the store, to be returned with <code>release</code>
+	 * @throws IOException - if the store files cannot be opened or created
+	 */
+	public static synchronized EnrichmentStore open(File dir, String scope) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Could not create the enrichment store directory " + dir);
+		File base = new File(dir, "enrichment-" + digest(scope)).getCanonicalFile();
+		EnrichmentStore store = openStores.get(base);
+		if (store == null) {
+			store = new EnrichmentStore(base, scope);
+			openStores.put(base, store);
+		}
+		else if (!store.scope.equals(scope)) {
+			throw new IOException("The enrichment store " + base + " is in use for another query.");
+		}
+		++store.refs;
+		return store;
+	}
+
+	/** Returns a store obtained with <code>open</code>, closing it after its last user */
+	public static synchronized void release(EnrichmentStore store) {
+		if (store == null || --store.refs > 0)
+			return;
+		openStores.remove(store.base);
+		store.close();
+	}
+
+	/** A result read from the store together with the time it was produced */
+	public static final class StoredResult {
+		public final EnrichmentResult result;
+		public final long created;
+
+		StoredResult(EnrichmentResult result, long created) {
+			this.result = result;
+			this.created = created;
+		}
+	}
+
+	/** A decoded log record */
+	private static final class Record {
+		final String inst;
+		final StoredResult stored;
+		final long next;
+
+		Record(String inst, StoredResult stored, long next) {
+			this.inst = inst;
+			this.stored = stored;
+			this.next = next;
+		}
+	}
+
+	private final File base;
+	private final String scope;
+	private int refs = 0;
+
+	private RandomAccessFile logFile;
+	private FileChannel logCh;
+	private long logStart;
+	private long logEnd;
+
+	private RandomAccessFile idxFile;
+	private MappedByteBuffer idx;
+	private int slots;
+	private int entries;
+	private int records;
+
+	private EnrichmentStore(File base, String scope) throws IOException {
+		this.base = base;
+		this.scope = scope;
+		boolean logReset = openLog();
+		openIndex(logReset);
+		if (records > 2 * entries && records > MIN_SLOTS)
+			compact();
+		log.info("Opened enrichment store " + base + " with " + entries + " results.");
+	}
+
+	public String getScope() {
+		return scope;
+	}
+
+	public synchronized int size() {
+		return entries;
+	}
+
+	/**
+	 * Reads the latest result for an entity.
+	 * @param inst - the entity URI
+	 * @return the result or <b>null</b> if the store has no valid record for it
+	 */
+	public synchronized StoredResult get(String inst) {
+		if (idx == null)
+			return null;
+		long hash = hash(inst);
+		for (int slot = firstSlot(hash); ; slot = (slot + 1) & (slots - 1)) {
+			long slotHash = idx.getLong(slotPos(slot));
+			if (slotHash == 0)
+				return null;
+			if (slotHash != hash)
+				continue;
+			try {
+				Record r = readRecord(idx.getLong(slotPos(slot) + 8));
+				if (r != null && r.inst.equals(inst))
+					return r.stored;
+			}
+			catch (IOException e) {
+				log.warn("Could not read from the enrichment store " + base, e);
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Appends a result to the log and points the index to it.
+	 * @param inst - the entity URI
+	 * @param result - the enrichment result
+	 * @param created - the time the result was produced
+	 * @throws IOException - if the result cannot be written
+	 */
+	public synchronized void put(String inst, EnrichmentResult result, long created) throws IOException {
+		if (idx == null)
+			throw new IOException("The enrichment store " + base + " is closed.");
+		long offset = logEnd;
+		ByteBuffer rec = encode(inst, result, created);
+		long pos = offset;
+		while (rec.hasRemaining())
+			pos += logCh.write(rec, pos);
+		logEnd = pos;
+		++records;
+		indexPut(hash(inst), inst, offset);
+		updateIndexHeader();
+	}
+
+	private synchronized void close() {
+		try {
+			if (idx != null)
+				idx.force();
+			if (logCh != null)
+				logCh.force(false);
+		}
+		catch (IOException e) {
+			log.warn("Could not flush the enrichment store " + base, e);
+		}
+		closeQuietly(logFile);
+		closeQuietly(idxFile);
+		idx = null;
+		logCh = null;
+	}
+
+	/**
+	 * Opens the log, starting a new one if it is missing or belongs to another scope.
+	 * @return <b>true</b> if a new log was started
+	 */
+	private boolean openLog() throws IOException {
+		logFile = new RandomAccessFile(new File(base.getPath() + ".log"), "rw");
+		logCh = logFile.getChannel();
+		byte[] scopeBytes = scope.getBytes("UTF-8");
+		logStart = 4 + 4 + 4 + scopeBytes.length;
+		ByteBuffer header = ByteBuffer.allocate((int) logStart);
+		header.putInt(LOG_MAGIC).putInt(VERSION).putInt(scopeBytes.length).put(scopeBytes).flip();
+
+		if (logCh.size() >= logStart) {
+			ByteBuffer existing = ByteBuffer.allocate((int) logStart);
+			readFully(existing, 0);
+			existing.flip();
+			if (existing.equals(header)) {
+				logEnd = logCh.size();
+				return false;
+			}
+		}
+		logCh.truncate(0);
+		while (header.hasRemaining())
+			logCh.write(header, header.position());
+		logEnd = logStart;
+		return true;
+	}
+
+	private void openIndex(boolean logReset) throws IOException {
+		File file = new File(base.getPath() + ".idx");
+		idxFile = new RandomAccessFile(file, "rw");
+		long covered = -1;
+		if (!logReset && idxFile.length() >= IDX_HEADER_SIZE) {
+			idx = idxFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, idxFile.length());
+			slots = idx.getInt(IDX_SLOTS);
+			if (idx.getInt(0) == IDX_MAGIC && idx.getInt(4) == VERSION && slots >= MIN_SLOTS
+					&& Integer.bitCount(slots) == 1
+					&& idxFile.length() == IDX_HEADER_SIZE + (long) slots * SLOT_SIZE) {
+				entries = idx.getInt(IDX_ENTRIES);
+				records = idx.getInt(IDX_RECORDS);
+				covered = idx.getLong(IDX_COVERED);
+			}
+		}
+		if (covered < logStart || covered > logEnd) {
+			if (!logReset)
+				log.info("Rebuilding the index of the enrichment store " + base);
+			createIndex(MIN_SLOTS);
+			covered = logStart;
+		}
+
+		long pos = covered;
+		while (pos < logEnd) {
+			Record r = readRecord(pos);
+			if (r == null)
+				break;
+			++records;
+			indexPut(hash(r.inst), r.inst, pos);
+			pos = r.next;
+		}
+		if (pos < logEnd) {
+			log.warn("Dropping " + (logEnd - pos) + " bytes of an incomplete record from the enrichment store " + base);
+			logCh.truncate(pos);
+			logEnd = pos;
+		}
+		updateIndexHeader();
+	}
+
+	/** Maps an empty index of the given number of slots */
+	private void createIndex(int slotCount) throws IOException {
+		idx = null;
+		idxFile.setLength(0);
+		idxFile.setLength(IDX_HEADER_SIZE + (long) slotCount * SLOT_SIZE);
+		idx = idxFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, idxFile.length());
+		idx.putInt(0, IDX_MAGIC);
+		idx.putInt(4, VERSION);
+		idx.putInt(IDX_SLOTS, slotCount);
+		slots = slotCount;
+		entries = 0;
+		records = 0;
+	}
+
+	private void updateIndexHeader() {
+		idx.putInt(IDX_ENTRIES, entries);
+		idx.putInt(IDX_RECORDS, records);
+		idx.putLong(IDX_COVERED, logEnd);
+	}
+
+	private void indexPut(long hash, String inst, long offset) throws IOException {
+		if ((entries + 1) * 2L > slots)
+			grow();
+		for (int slot = firstSlot(hash); ; slot = (slot + 1) & (slots - 1)) {
+			int pos = slotPos(slot);
+			long slotHash = idx.getLong(pos);
+			if (slotHash == 0) {
+				idx.putLong(pos, hash);
+				idx.putLong(pos + 8, offset);
+				++entries;
+				return;
+			}
+			if (slotHash == hash) {
+				Record r = readRecord(idx.getLong(pos + 8));
+				if (r == null || r.inst.equals(inst)) {
+					idx.putLong(pos + 8, offset);
+					return;
+				}
+			}
+		}
+	}
+
+	/** Doubles the index, keeping the hashes so the log need not be read */
+	private void grow() throws IOException {
+		long[] old = readSlots();
+		int keepRecords = records;
+		createIndex(slots * 2);
+		insertSlots(old);
+		records = keepRecords;
+		updateIndexHeader();
+	}
+
+	private long[] readSlots() {
+		long[] pairs = new long[entries * 2];
+		int n = 0;
+		for (int slot = 0; slot < slots; slot++) {
+			long hash = idx.getLong(slotPos(slot));
+			if (hash != 0) {
+				pairs[n++] = hash;
+				pairs[n++] = idx.getLong(slotPos(slot) + 8);
+			}
+		}
+		return pairs;
+	}
+
+	/** Inserts distinct hash/offset pairs into an empty index */
+	private void insertSlots(long[] pairs) {
+		for (int i = 0; i < pairs.length; i += 2) {
+			int slot = firstSlot(pairs[i]);
+			while (idx.getLong(slotPos(slot)) != 0)
+				slot = (slot + 1) & (slots - 1);
+			idx.putLong(slotPos(slot), pairs[i]);
+			idx.putLong(slotPos(slot) + 8, pairs[i + 1]);
+			++entries;
+		}
+	}
+
+	/** Rewrites the log with the latest record of every entity */
+	private void compact() throws IOException {
+		log.info("Compacting the enrichment store " + base + ": " + records + " records for " + entries + " results.");
+		long[] pairs = readSlots();
+		File logPath = new File(base.getPath() + ".log");
+		File tmpPath = new File(base.getPath() + ".log.tmp");
+		RandomAccessFile tmp = new RandomAccessFile(tmpPath, "rw");
+		try {
+			FileChannel tmpCh = tmp.getChannel();
+			tmpCh.truncate(0);
+			transferFully(0, logStart, tmpCh);
+			long pos = logStart;
+			for (int i = 1; i < pairs.length; i += 2) {
+				long offset = pairs[i];
+				long total = 4 + readInt(offset) + 4;
+				transferFully(offset, total, tmpCh);
+				pairs[i] = pos;
+				pos += total;
+			}
+			tmpCh.force(false);
+		}
+		finally {
+			tmp.close();
+		}
+		closeQuietly(logFile);
+		if (!logPath.delete() || !tmpPath.renameTo(logPath))
+			throw new IOException("Could not replace " + logPath + " with the compacted log.");
+		logFile = new RandomAccessFile(logPath, "rw");
+		logCh = logFile.getChannel();
+		logEnd = logCh.size();
+
+		createIndex(slots);
+		insertSlots(pairs);
+		records = entries;
+		updateIndexHeader();
+	}
+
+	private ByteBuffer encode(String inst, EnrichmentResult result, long created) throws IOException {
+		byte[] instBytes = inst.getBytes("UTF-8");
+		String conn = result.getConnections();
+		byte[] connBytes = conn == null ? new byte[0] : conn.getBytes("UTF-8");
+		byte flags = 0;
+		if (result.hasRelations())
+			flags |= HAS_RELATIONS;
+		if (conn != null)
+			flags |= HAS_CONNECTIONS;
+
+		int len = RECORD_OVERHEAD - 8 + instBytes.length + connBytes.length;
+		ByteBuffer buf = ByteBuffer.allocate(4 + len + 4);
+		buf.putInt(len).putLong(created).put(flags);
+		buf.putInt(instBytes.length).put(instBytes);
+		buf.putInt(connBytes.length).put(connBytes);
+		CRC32 crc = new CRC32();
+		crc.update(buf.array(), 4, len);
+		buf.putInt((int) crc.getValue());
+		buf.flip();
+		return buf;
+	}
+
+	/**
+	 * Reads the record at an offset of the log.
+	 * @return the record or <b>null</b> if it is incomplete or corrupt
+	 */
+	private Record readRecord(long offset) throws IOException {
+		if (offset < logStart || offset + RECORD_OVERHEAD > logEnd)
+			return null;
+		int len = readInt(offset);
+		if (len < RECORD_OVERHEAD - 8 || offset + 4 + len + 4 > logEnd)
+			return null;
+		ByteBuffer buf = ByteBuffer.allocate(len + 4);
+		readFully(buf, offset + 4);
+		buf.flip();
+		CRC32 crc = new CRC32();
+		crc.update(buf.array(), 0, len);
+		if (buf.getInt(len) != (int) crc.getValue())
+			return null;
+
+		long created = buf.getLong();
+		byte flags = buf.get();
+		int instLen = buf.getInt();
+		if (instLen < 0 || instLen > len)
+			return null;
+		String inst = new String(buf.array(), buf.position(), instLen, "UTF-8");
+		buf.position(buf.position() + instLen);
+		int connLen = buf.getInt();
+		if (connLen < 0 || buf.position() + connLen > len)
+			return null;
+		String conn = (flags & HAS_CONNECTIONS) != 0
+			? new String(buf.array(), buf.position(), connLen, "UTF-8") : null;
+		EnrichmentResult result = (flags & HAS_RELATIONS) != 0 || conn != null
+			? new EnrichmentResult((flags & HAS_RELATIONS) != 0, conn)
+			: EnrichmentResult.NO_RELATIONS;
+		return new Record(inst, new StoredResult(result, created), offset + 4 + len + 4);
+	}
+
+	private int readInt(long offset) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(4);
+		readFully(buf, offset);
+		return buf.getInt(0);
+	}
+
+	private void readFully(ByteBuffer buf, long position) throws IOException {
+		while (buf.hasRemaining()) {
+			int n = logCh.read(buf, position);
+			if (n < 0)
+				throw new IOException("Unexpected end of the enrichment store log " + base);
+			position += n;
+		}
+	}
+
+	private void transferFully(long position, long count, FileChannel target) throws IOException {
+		long done = 0;
+		while (done < count) {
+			long n = logCh.transferTo(position + done, count - done, target);
+			if (n <= 0)
+				throw new IOException("Unexpected end of the enrichment store log " + base);
+			done += n;
+		}
+	}
+
+	private int firstSlot(long hash) {
+		return (int) (hash ^ (hash >>> 32)) & (slots - 1);
+	}
+
+	private static int slotPos(int slot) {
+		return IDX_HEADER_SIZE + slot * SLOT_SIZE;
+	}
+
+	/** Hex SHA-1 of the scope, which names the store files */
+	private static String digest(String scope) throws IOException {
+		try {
+			byte[] sha = MessageDigest.getInstance("SHA-1").digest(scope.getBytes("UTF-8"));
+			StringBuilder hex = new StringBuilder(sha.length * 2);
+			for (byte b : sha)
+				hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			return hex.toString();
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 is not supported by the JVM.", e);
+		}
+	}
+
+	/** 64 bit FNV-1a hash of the URI; 0 marks empty slots and is never returned */
+	private static long hash(String inst) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < inst.length(); i++) {
+			h ^= inst.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return h == 0 ? 1 : h;
+	}
+
+	private static void closeQuietly(RandomAccessFile file) {
+		try {
+			if (file != null)
+				file.close();
+		}
+		catch (IOException e) {
+			log.debug("Could not close an enrichment store file.", e);
+		}
+	}
+}
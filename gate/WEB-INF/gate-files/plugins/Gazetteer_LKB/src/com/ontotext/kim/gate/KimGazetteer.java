@@ -1,5 +1,6 @@
 package com.ontotext.kim.gate;
 
+import gate.Annotation;
 import gate.AnnotationSet;
 import gate.Factory;
 import gate.FeatureMap;
@@ -11,8 +12,14 @@ import gate.util.InvalidOffsetException;
 import gate.util.LuckyException;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
@@ -20,13 +27,22 @@ import org.apache.log4j.Logger;
 import com.ontotext.kim.KIMConstants;
 import com.ontotext.kim.client.model.FeatureConstants;
 import com.ontotext.kim.gate.KimLookupParser.AliasLookupDictionary;
-import com.ontotext.kim.gate.KimLookupParser.EntityOccuranceHandler;
+import com.ontotext.kim.gate.KimLookupParser.SourceAwareOccuranceHandler;
 import com.ontotext.kim.model.AliasCacheImpl;
+import com.ontotext.kim.model.DictionaryDelta;
+import com.ontotext.kim.model.DictionaryFeeder;
+import com.ontotext.kim.model.DocumentDictionary;
+import com.ontotext.kim.model.LookupTimings;
+import com.ontotext.kim.model.LookupTimings.Stage;
+import com.ontotext.kim.model.TrieDictionary;
 
 
 /**
  * The Large KB Gazetteer implemented gazetteer lookup over large knowledge bases
- * usually derived from RDF data
+ * usually derived from RDF data.<br>
+ * Several dictionaries can be attached to one gazetteer. They are probed in
+ * a single pass over the document and their lookups are tagged with the
+ * <code>dictionary</code> feature.
  * 
  * @author mnozchev
  */
@@ -34,20 +50,48 @@ public class KimGazetteer extends AbstractLanguageAnalyser {
 	private static final long serialVersionUID = 3380L;
 
     private static Logger log = Logger.getLogger(KimGazetteer.class);
+    
+    /** The feature with the folder name of the dictionary of a lookup, set if there are several dictionaries */
+    public static final String DICTIONARY_FEATURE = "dictionary";
+    /** The lookup engine matching hash-codes of the aliases, see <code>AliasCacheImpl</code> */
+    public static final String HASH_ENGINE = "hash";
+    /** The lookup engine matching the aliases exactly in a trie, see <code>TrieDictionary</code> */
+    public static final String TRIE_ENGINE = "trie";
 	
 	private File dictionaryPath = new File(KIMConstants.KIM_CACHE_PATH);
+	private List<URL> additionalDictionaryPaths;
+	/** The acquired dictionaries, to be released on cleanup */
+	private transient List<File> attachedPaths;
+	/** The names of the attached dictionaries; <b>null</b> if there is a single one */
+	private transient String[] dictionaryNames;
+	private String lookupEngine = HASH_ENGINE;
+	/** Whether the attached dictionaries are <code>TrieDictionary</code> instances */
+	private transient boolean trieAttached;
 	private boolean forceCaseSensitive = false;
+	/** The class name of a <code>DictionaryFeeder</code> of document-specific entities */
+	private String dictionaryFeeder;
+	private FeatureMap dictionaryFeederParameters;
+	private transient DictionaryFeeder feeder;
+	private transient DocumentDictionary documentDictionary;
 
-	private class Annotater implements EntityOccuranceHandler {
+	private class Annotater implements SourceAwareOccuranceHandler {
 
 		public int annotatedEntities = 0;
 		public void processEntityOccurance(int start, int end, String instURI, String classURI) {
+			processEntityOccurance(start, end, instURI, classURI, -1);
+		}
+		
+		public void processEntityOccurance(int start, int end, String instURI, String classURI, int dictionary) {
 
+			long t = LookupTimings.ENABLED ? System.nanoTime() : 0;
 			FeatureMap fm = Factory.newFeatureMap();
 			if (instURI != null) {
 				fm.put(FeatureConstants.INSTANCE, instURI);
 			}
 			fm.put(FeatureConstants.CLASS, classURI);
+			if (dictionaryNames != null && dictionary >= 0) {
+				fm.put(DICTIONARY_FEATURE, dictionaryNames[dictionary]);
+			}
 			try {
 				annotationSet.add(Long.valueOf(start), Long.valueOf(end),
 						KIMConstants.LOOKUP, fm);
@@ -55,6 +99,8 @@ public class KimGazetteer extends AbstractLanguageAnalyser {
 			catch (InvalidOffsetException ioe) {
 				throw new LuckyException(ioe.toString());
 			}
+			if (LookupTimings.ENABLED)
+				LookupTimings.record(Stage.ANNOTATE, t);
 
 			++annotatedEntities;
 
@@ -73,6 +119,10 @@ public class KimGazetteer extends AbstractLanguageAnalyser {
 	protected AnnotationSet annotationSet;
 	private transient KimLookupParser kimParser = null;
 	private String annotationSetName;
+	/** The annotation set with the tokens */
+	private String inputASName;
+	/** The type of the tokens along which the document is split into lexemes; none to use the own lexer */
+	private String tokenAnnotationType;
 
 	/** Does the actual loading and parsing of the lists. This method must be
 	 * called before the gazetteer can be used.
@@ -87,18 +137,87 @@ public class KimGazetteer extends AbstractLanguageAnalyser {
 		// This doesn't match the specification exactly. Will be improved.
 		String caseSens = forceCaseSensitive ? KIMConstants.CASE_SENSITIV : KIMConstants.CASE_INSENSITIV;
 		
-		return init(AliasCacheImpl.getInstance(dictionaryPath, caseSens, getName()));
+		initFeeder(caseSens);
+		List<File> paths = new ArrayList<File>();
+		paths.add(dictionaryPath);
+		if (additionalDictionaryPaths != null) {
+			for (URL url : additionalDictionaryPaths)
+				paths.add(Files.fileFromURL(url));
+		}
+		boolean trie = TRIE_ENGINE.equalsIgnoreCase(lookupEngine);
+		if (!trie && lookupEngine != null && !HASH_ENGINE.equalsIgnoreCase(lookupEngine))
+			throw new ResourceInstantiationException("Unknown lookup engine " + lookupEngine
+					+ ", expected " + HASH_ENGINE + " or " + TRIE_ENGINE);
+		AliasLookupDictionary[] dictionaries = new AliasLookupDictionary[paths.size()];
+		int acquired = 0;
+		try {
+			for (; acquired < dictionaries.length; acquired++) {
+				dictionaries[acquired] = trie ? TrieDictionary.acquire(paths.get(acquired), caseSens)
+						: AliasCacheImpl.acquire(paths.get(acquired), caseSens, this);
+			}
+		}
+		catch (ResourceInstantiationException e) {
+			for (int i = 0; i < acquired; i++)
+				release(paths.get(i), trie);
+			throw e;
+		}
+		attachedPaths = paths;
+		trieAttached = trie;
+		dictionaryNames = null;
+		if (paths.size() > 1) {
+			dictionaryNames = new String[paths.size()];
+			for (int i = 0; i < dictionaryNames.length; i++)
+				dictionaryNames[i] = paths.get(i).getName();
+		}
+		return init(dictionaries);
 	} // Resource init()
 
 	protected gate.Resource init(AliasLookupDictionary outerCache) {
-		this.kimParser = new KimLookupParser(outerCache);
-		return this;
+		return init(new AliasLookupDictionary[] {outerCache});
 	} // Resource init(EntitiesCache outerCache)
 
+	protected gate.Resource init(AliasLookupDictionary[] outerCaches) {
+		this.kimParser = new KimLookupParser(outerCaches);
+		return this;
+	}
+
+	private void initFeeder(String caseSens) throws ResourceInstantiationException {
+		feeder = null;
+		documentDictionary = null;
+		if (dictionaryFeeder == null || dictionaryFeeder.trim().length() == 0)
+			return;
+		try {
+			feeder = (DictionaryFeeder) Class.forName(dictionaryFeeder.trim(), true,
+					KimGazetteer.class.getClassLoader()).newInstance();
+		}
+		catch (Exception e) {
+			throw new ResourceInstantiationException(e);
+		}
+		Map<String, String> params = new HashMap<String, String>();
+		if (dictionaryFeederParameters != null) {
+			for (Map.Entry<Object, Object> e : dictionaryFeederParameters.entrySet())
+				params.put(String.valueOf(e.getKey()), e.getValue() == null ? null : String.valueOf(e.getValue()));
+		}
+		feeder.init(params);
+		documentDictionary = new DocumentDictionary(caseSens);
+		log.info("Document-specific entities are fed by " + dictionaryFeeder);
+	}
+
 	@Override
 	public void cleanup() {		
 		super.cleanup();
-		AliasCacheImpl.releaseCache(dictionaryPath, getName());
+		if (attachedPaths != null) {
+			for (File path : attachedPaths)
+				release(path, trieAttached);
+			attachedPaths = null;
+		}
+	}
+
+	private void release(File path, boolean trie) {
+		if (trie)
+			TrieDictionary.release(path);
+		else
+			AliasCacheImpl.releaseCache(path, this);
 	}
 	
 	@Override
@@ -107,6 +226,28 @@ public class KimGazetteer extends AbstractLanguageAnalyser {
 		init();
 	}
 	
+	/**
+	 * Builds a new version of the dictionary from the RDF database in the
+	 * background. Unlike <code>reInit</code>, the gazetteer keeps working with
+	 * the old version until the new one is ready. The new version is used by
+	 * all gazetteers with the same dictionary path.
+	 */
+	public void reloadDictionary() {
+		if (AliasCacheImpl.reload(dictionaryPath, true) == null)
+			log.warn("The dictionary " + dictionaryPath + " is not loaded, so it cannot be reloaded.");
+	}
+	
+	/**
+	 * Applies the changes of a delta file to the dictionary without
+	 * rebuilding it. The changes are used by all gazetteers with the same
+	 * dictionary path.
+	 * @param deltaFile - a file in the format described in <code>DictionaryDelta</code>
+	 * @throws IOException - if the file cannot be read or the changes cannot be logged
+	 */
+	public void applyDictionaryDelta(File deltaFile) throws IOException {
+		AliasCacheImpl.applyDelta(dictionaryPath, DictionaryDelta.read(deltaFile));
+	}
+	
 	/**
 	 * This method runs the gazetteer. It parses the document and looks-up
 	 * the parsed phrases from the maps, in which the phrases vs. annotations
@@ -136,9 +277,22 @@ public class KimGazetteer extends AbstractLanguageAnalyser {
 		String content = document.getContent().toString();
 
 		Annotater annot = new Annotater();
-		this.kimParser.findLookups(content, annot);
+		DocumentDictionary local = null;
+		if (feeder != null && documentDictionary.begin(feeder, document))
+			local = documentDictionary;
+		try {
+			this.kimParser.findLookups(content, tokenOffsets(), annot, local);
+		}
+		finally {
+			if (local != null)
+				local.end();
+		}
 
 		log.debug(annot.annotatedEntities + " lookup(s) annotated.");
+		if (log.isDebugEnabled() && kimParser.getStartingLexemes() > 0)
+			log.debug(kimParser.getFramesExamined() + " frames examined for " + kimParser.getStartingLexemes()
+					+ " starting lexemes, " + (float) kimParser.getFramesExamined() / kimParser.getStartingLexemes()
+					+ " per lexeme.");
 		fireProcessFinished();
 		if (isInterrupted())
 			fireStatusChanged("Large KB Gazetteer processing interrupted!");
@@ -147,6 +301,34 @@ public class KimGazetteer extends AbstractLanguageAnalyser {
 
 	} // execute ()
 
+	/**
+	 * Extracts the spans of the token annotations in document order.
+	 * @return the offsets as expected by <code>KimLookupParser</code> or
+	 * <b>null</b> if the own lexer of the gazetteer is to be used
+	 */
+	private int[] tokenOffsets() {
+		if (tokenAnnotationType == null || tokenAnnotationType.length() == 0)
+			return null;
+		AnnotationSet input = inputASName == null || inputASName.length() == 0
+			? document.getAnnotations() : document.getAnnotations(inputASName);
+		AnnotationSet tokens = input.get(tokenAnnotationType);
+		if (tokens == null || tokens.isEmpty()) {
+			log.debug("No " + tokenAnnotationType + " annotations, the document is split into lexemes by the gazetteer.");
+			return null;
+		}
+		long[] spans = new long[tokens.size()];
+		int n = 0;
+		for (Annotation token : tokens)
+			spans[n++] = (token.getStartNode().getOffset() << 32) | token.getEndNode().getOffset();
+		Arrays.sort(spans);
+		int[] offsets = new int[2 * n];
+		for (int i = 0; i < n; i++) {
+			offsets[2 * i] = (int) (spans[i] >>> 32);
+			offsets[2 * i + 1] = (int) spans[i];
+		}
+		return offsets;
+	}
+
 	@Override
 	public synchronized void interrupt() {
 		super.interrupt();
@@ -174,6 +356,30 @@ public class KimGazetteer extends AbstractLanguageAnalyser {
 		this.dictionaryPath = Files.fileFromURL(dictironaryPath);
 	} 
 
+	public String getInputASName() {
+		return inputASName;
+	}
+
+	public void setInputASName(String inputASName) {
+		this.inputASName = inputASName;
+	}
+
+	public String getTokenAnnotationType() {
+		return tokenAnnotationType;
+	}
+
+	public void setTokenAnnotationType(String tokenAnnotationType) {
+		this.tokenAnnotationType = tokenAnnotationType;
+	}
+
+	public List<URL> getAdditionalDictionaryPaths() {
+		return additionalDictionaryPaths;
+	}
+
+	public void setAdditionalDictionaryPaths(List<URL> additionalDictionaryPaths) {
+		this.additionalDictionaryPaths = additionalDictionaryPaths;
+	}
+
 	/**
 	 * Sets the AnnotationSet that will be used at the next run for the newly
 	 * produced annotations.
@@ -199,6 +405,30 @@ public class KimGazetteer extends AbstractLanguageAnalyser {
 		return forceCaseSensitive;
 	}	
 
+	public String getLookupEngine() {
+		return lookupEngine;
+	}
+
+	public void setLookupEngine(String lookupEngine) {
+		this.lookupEngine = lookupEngine;
+	}
+
+	public String getDictionaryFeeder() {
+		return dictionaryFeeder;
+	}
+
+	public void setDictionaryFeeder(String dictionaryFeeder) {
+		this.dictionaryFeeder = dictionaryFeeder;
+	}
+
+	public FeatureMap getDictionaryFeederParameters() {
+		return dictionaryFeederParameters;
+	}
+
+	public void setDictionaryFeederParameters(FeatureMap dictionaryFeederParameters) {
+		this.dictionaryFeederParameters = dictionaryFeederParameters;
+	}
+
 
 	private void verifyLoggers(String loggerName) {
 		Logger logger = Logger.getLogger(loggerName);
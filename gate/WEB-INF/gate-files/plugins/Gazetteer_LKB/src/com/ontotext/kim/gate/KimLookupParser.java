@@ -13,9 +13,13 @@ import com.ontotext.kim.model.ParsingFrame;
  * <br>
  * The text processing is performed through the class <code>ParsingFrame</code>
  * .<br>
- * An instance of class <code>AliasCacheImpl</code> is used for dictionary.<br>
+ * An instance of class <code>AliasCacheImpl</code> is used for dictionary.
+ * Several dictionaries can be probed in a single pass over the text; the
+ * text is parsed and hashed once for all of them.<br>
  * The findings are passed to a handler class that implements the interface
  * <code>EntityOccuranceHandler</code>.<br>
+ * A <code>CountingDictionary</code> receives the number of its lookups and
+ * matches after every text.<br>
  * 
  * @author danko
  *
@@ -29,6 +33,19 @@ public class KimLookupParser {
                 String instURI, String classURI);
     }
     
+    /** A handler which also receives the dictionary of every finding */
+    public interface SourceAwareOccuranceHandler extends EntityOccuranceHandler {
+        /**
+         * @param dictionary - the index of the dictionary as passed to the
+         * parser, or -1 for the local dictionary
+         */
+        void processEntityOccurance(int start, int end,
+                String instURI, String classURI, int dictionary);
+    }
+    
+    /** A dictionary probed by the parser. The same ParsingFrame is passed to
+     * all dictionaries, so a dictionary which uses the hash-codes of the
+     * frame sets its own text transformer on it first. */
     public interface AliasLookupDictionary {
         /**
          * Looks up for matches given a ParsingFrame. This is used for
@@ -50,6 +67,49 @@ public class KimLookupParser {
         public boolean canPhraseGrow(ParsingFrame pfm);
     }
     
+    /** A dictionary which may be replaced by a newer version between
+     * documents. The parser looks up a whole document in the version
+     * which is current when the document processing starts. */
+    public interface VersionedDictionary extends AliasLookupDictionary {
+        /**
+         * @return - the current version of the dictionary
+         */
+        public AliasLookupDictionary currentVersion();
+    }
+    
+    /** A dictionary which knows how long its aliases can be. The parser
+     * stops growing the frame at the longest alias which may start at its
+     * first lexeme, even if <code>canPhraseGrow</code> allows more. */
+    public interface BoundedDictionary extends AliasLookupDictionary {
+        /**
+         * @param pfm - a ParsingFrame focused on a single lexeme
+         * @return - the maximal number of lexemes of an alias which starts
+         * with the lexeme of the frame; 0 if no alias starts with it
+         */
+        public int getMaxPhraseLength(ParsingFrame pfm);
+    }
+    
+    /** A dictionary which counts its lookups. The parser reports the counts
+     * of a text once, after the text is parsed. */
+    public interface CountingDictionary extends AliasLookupDictionary {
+        /**
+         * @param frames - the number of frames looked up in the dictionary
+         * @param matches - the number of matches found in it
+         */
+        public void countLookups(int frames, int matches);
+    }
+    
+    /** A dictionary of document-specific entities, which is filled while
+     * the document is parsed. It is probed after the shared dictionary. */
+    public interface LocalDictionary extends AliasLookupDictionary {
+        /**
+         * Called after every parsing step, before the lookup in this
+         * dictionary. Allows the entities relevant to the frame to be added.
+         * @param pfm - the ParsingFrame after the parsing step
+         */
+        public void feed(ParsingFrame pfm);
+    }
+    
     /** This class implements a container to return the results of the
      * Alias Dictionary lookup */
     public static class AliasWrapper {
@@ -64,34 +124,136 @@ public class KimLookupParser {
     	}
     }
 
-    private AliasLookupDictionary aliasDictionary;
+    private AliasLookupDictionary[] aliasDictionaries;
     private boolean interrupted = false;
+    private int startingLexemes;
+    private int framesExamined;
 
     public KimLookupParser(AliasLookupDictionary aliasCache) {
-        this.aliasDictionary = aliasCache;
+        this(new AliasLookupDictionary[] {aliasCache});
+    }
+    
+    /**
+     * @param aliasCaches - the dictionaries probed at every frame, in the
+     * order of their findings at the same frame
+     */
+    public KimLookupParser(AliasLookupDictionary[] aliasCaches) {
+        this.aliasDictionaries = aliasCaches.clone();
     }
     
     public void findLookups(String content, EntityOccuranceHandler entityHandler) {
+        findLookups(content, entityHandler, null);
+    }
+    
+    /**
+     * Finds the lookups of a text in the dictionary and in a local dictionary.
+     * @param content - the text
+     * @param entityHandler - receives the lookups
+     * @param localDictionary - the dictionary of the document-specific
+     * entities or <b>null</b>
+     */
+    public void findLookups(String content, EntityOccuranceHandler entityHandler,
+            LocalDictionary localDictionary) {
+        findLookups(content, null, entityHandler, localDictionary);
+    }
+    
+    /**
+     * Same as <code>findLookups(content, entityHandler, localDictionary)</code>,
+     * but the text is split into lexemes along existing tokens.
+     * @param tokenOffsets - the start and end offsets of the tokens in document
+     * order: start0, end0, start1, end1, ...; <b>null</b> to split the text
+     * with the regular expression of <code>ParsingFrame</code>
+     */
+    public void findLookups(String content, int[] tokenOffsets, EntityOccuranceHandler entityHandler,
+            LocalDictionary localDictionary) {
     	this.interrupted = false;
-        ParsingFrame pfm = new ParsingFrame(content);
+        AliasLookupDictionary[] dictionaries = new AliasLookupDictionary[aliasDictionaries.length];
+        for (int d = 0; d < dictionaries.length; d++) {
+            dictionaries[d] = aliasDictionaries[d];
+            if (dictionaries[d] instanceof VersionedDictionary)
+                dictionaries[d] = ((VersionedDictionary) dictionaries[d]).currentVersion();
+        }
+        SourceAwareOccuranceHandler sourceHandler = entityHandler instanceof SourceAwareOccuranceHandler
+            ? (SourceAwareOccuranceHandler) entityHandler : null;
+        // The dictionaries which may still match the phrase of the frame
+        boolean[] growing = new boolean[dictionaries.length];
+        // The maximal frame length by dictionary, for the current first lexeme
+        int[] limit = new int[dictionaries.length];
+        // The frames looked up and the matches found by dictionary
+        int[] frames = new int[dictionaries.length];
+        int[] matches = new int[dictionaries.length];
+        startingLexemes = 0;
+        framesExamined = 0;
+        ParsingFrame pfm = tokenOffsets != null
+            ? new ParsingFrame(content, tokenOffsets) : new ParsingFrame(content);
         
         log.debug("Time tracing begins");     
         
-        Collection<KimLookupParser.AliasWrapper> currentMatch;
         do {
             if (pfm.parseOne()) {
-                currentMatch = aliasDictionary.lookup(pfm);
-                if (currentMatch != null) {
-                    for (KimLookupParser.AliasWrapper ent : currentMatch) {
-                        entityHandler.processEntityOccurance(ent.start, ent.end, ent.instURI, ent.classURI);
+                if (pfm.getLexemeCount() == 1) {
+                    ++startingLexemes;
+                    for (int d = 0; d < dictionaries.length; d++) {
+                        limit[d] = dictionaries[d] instanceof BoundedDictionary
+                            ? ((BoundedDictionary) dictionaries[d]).getMaxPhraseLength(pfm) : Integer.MAX_VALUE;
+                        growing[d] = limit[d] > 0;
+                    }
+                }
+                for (int d = 0; d < dictionaries.length; d++) {
+                    if (growing[d]) {
+                        ++frames[d];
+                        matches[d] += report(dictionaries[d].lookup(pfm), d, entityHandler, sourceHandler);
                     }
                 }
+                if (localDictionary != null) {
+                    localDictionary.feed(pfm);
+                    report(localDictionary.lookup(pfm), -1, entityHandler, sourceHandler);
+                }
+            }
+            boolean canGrow = false;
+            for (int d = 0; d < dictionaries.length; d++) {
+                if (growing[d]) {
+                    growing[d] = pfm.getLexemeCount() < limit[d] && dictionaries[d].canPhraseGrow(pfm);
+                    canGrow |= growing[d];
+                }
             }
-            if (!aliasDictionary.canPhraseGrow(pfm) || !pfm.frameCanExpand())
+            if (localDictionary != null)
+                canGrow |= localDictionary.canPhraseGrow(pfm);
+            if (!canGrow || !pfm.frameCanExpand())
                 pfm.moveOne();
         } while (pfm.frameCanMove() && !this.interrupted);
+        for (int d = 0; d < dictionaries.length; d++) {
+            framesExamined += frames[d];
+            if (dictionaries[d] instanceof CountingDictionary)
+                ((CountingDictionary) dictionaries[d]).countLookups(frames[d], matches[d]);
+        }
         log.debug("Time tracing ends");       
     }
+    
+    /** @return the number of lexemes at which a frame started during the last <code>findLookups</code> */
+    public int getStartingLexemes() {
+        return startingLexemes;
+    }
+    
+    /** @return the number of frames looked up in the dictionaries during the
+     * last <code>findLookups</code>, not counting the local dictionary */
+    public int getFramesExamined() {
+        return framesExamined;
+    }
+    
+    /** @return the number of reported matches */
+    private static int report(Collection<KimLookupParser.AliasWrapper> currentMatch, int dictionary,
+            EntityOccuranceHandler entityHandler, SourceAwareOccuranceHandler sourceHandler) {
+        if (currentMatch == null)
+            return 0;
+        for (KimLookupParser.AliasWrapper ent : currentMatch) {
+            if (sourceHandler != null)
+                sourceHandler.processEntityOccurance(ent.start, ent.end, ent.instURI, ent.classURI, dictionary);
+            else
+                entityHandler.processEntityOccurance(ent.start, ent.end, ent.instURI, ent.classURI);
+        }
+        return currentMatch.size();
+    }
 
     public boolean isInterrupted() {
         return this.interrupted;
@@ -0,0 +1,132 @@
+package com.ontotext.kim.gate;
+
+import java.io.Reader;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.openrdf.repository.Repository;
+import org.openrdf.repository.RepositoryConnection;
+import org.openrdf.repository.RepositoryException;
+import org.openrdf.repository.sail.SailRepository;
+import org.openrdf.rio.RDFFormat;
+import org.openrdf.sail.memory.MemoryStore;
+
+import com.ontotext.kim.semanticrepository.UnmanagedRepositoryFactory;
+import com.ontotext.kim.util.datastore.PrivateRepositoryFeed;
+
+/**
+ * In-process repositories which <code>SesameEnrichment</code> queries instead
+ * of a remote Sesame server.<br>
+ * <br>
+ * A repository is created either from a Sesame repository configuration, such
+ * as the <code>config.ttl</code> of a dictionary, or from an RDF file loaded
+ * into a memory store. The format of the file is guessed from its extension
+ * and defaults to RDF/XML.<br>
+ * The repositories are shared by all PR instances with the same source, so
+ * the data is loaded once for all pooled copies of a pipeline. The last
+ * <code>release</code> shuts a repository down.
+ */
+class LocalRepositories {
+
+	private static final Logger log = Logger.getLogger(LocalRepositories.class);
+
+	private static final class Shared {
+		final String source;
+		final Repository rep;
+		int refs = 0;
+
+		Shared(String source, Repository rep) {
+			this.source = source;
+			this.rep = rep;
+		}
+	}
+
+	private static final Map<String, Shared> bySource = new HashMap<String, Shared>();
+	private static final Map<Repository, Shared> byRepository = new IdentityHashMap<Repository, Shared>();
+
+	/**
+	 * Identifies the source of a local repository.
+	 * @return the source or <b>null</b> if neither location is given
+	 */
+	public static String getSource(URL config, URL data) {
+		if (config != null)
+			return "config:" + config;
+		if (data != null)
+			return "data:" + data;
+		return null;
+	}
+
+	/**
+	 * Returns the shared repository of a source, creating and initializing it
+	 * if needed. A configuration takes precedence over a data file.
+	 * @param config - a Sesame repository configuration or <b>null</b>
+	 * @param data - an RDF file or <b>null</b>
+	 * @return the initialized repository, to be returned with <code>release</code>
+	 * @throws Exception - if the repository cannot be created or the data cannot be loaded
+	 */
+	public static synchronized Repository acquire(URL config, URL data) throws Exception {
+		String source = getSource(config, data);
+		if (source == null)
+			throw new IllegalArgumentException("Neither a repository configuration nor a data file is given.");
+		Shared shared = bySource.get(source);
+		if (shared == null) {
+			long start = System.currentTimeMillis();
+			Repository rep = config != null ? fromConfig(config) : fromData(data);
+			log.info("Local enrichment repository from " + source + " initialized in "
+					+ (System.currentTimeMillis() - start) + "ms.");
+			shared = new Shared(source, rep);
+			bySource.put(source, shared);
+			byRepository.put(rep, shared);
+		}
+		++shared.refs;
+		return shared.rep;
+	}
+
+	/** Returns a repository obtained with <code>acquire</code>, shutting it down after its last user */
+	public static synchronized void release(Repository rep) {
+		Shared shared = byRepository.get(rep);
+		if (shared == null || --shared.refs > 0)
+			return;
+		bySource.remove(shared.source);
+		byRepository.remove(rep);
+		try {
+			rep.shutDown();
+		}
+		catch (RepositoryException e) {
+			log.error("Could not shut down the local enrichment repository from " + shared.source, e);
+		}
+	}
+
+	private static Repository fromConfig(URL config) throws Exception {
+		Reader configReader = PrivateRepositoryFeed.readConfig(config);
+		try {
+			Repository rep = new UnmanagedRepositoryFactory().createRepository(configReader);
+			rep.initialize();
+			return rep;
+		}
+		finally {
+			IOUtils.closeQuietly(configReader);
+		}
+	}
+
+	private static Repository fromData(URL data) throws Exception {
+		Repository rep = new SailRepository(new MemoryStore());
+		rep.initialize();
+		RepositoryConnection conn = rep.getConnection();
+		boolean loaded = false;
+		try {
+			conn.add(data, data.toString(), RDFFormat.forFileName(data.getPath(), RDFFormat.RDFXML));
+			loaded = true;
+		}
+		finally {
+			conn.close();
+			if (!loaded)
+				rep.shutDown();
+		}
+		return rep;
+	}
+}
@@ -5,14 +5,35 @@ import gate.Resource;
 import gate.creole.AbstractLanguageAnalyser;
 import gate.creole.ExecutionException;
 import gate.creole.ResourceInstantiationException;
+import gate.util.Files;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
+import org.openrdf.model.Value;
 import org.openrdf.query.Binding;
 import org.openrdf.query.BindingSet;
 import org.openrdf.query.MalformedQueryException;
@@ -36,12 +57,36 @@ import org.openrdf.repository.http.HTTPRepository;
  * a comma-separated list of the values mentioned in the query output in the 
  * "connections" feature of the same annotation.
  * 
+ * <p>
+ * Instead of a remote server, the PR can query an in-process repository, created from
+ * <code>localRepositoryConfig</code> (e.g. the <code>config.ttl</code> of a dictionary)
+ * or from an RDF file given as <code>localData</code>. See <code>LocalRepositories</code>.
+ * 
+ * <p>
+ * When <code>batchSize</code> is greater than 1, the distinct URIs of the document
+ * are enriched with one query per batch instead of one query per annotation. See
+ * <code>EnrichmentQueryBatcher</code> for the query templates which support that.
+ * 
+ * <p>
+ * When <code>parallelism</code> is greater than 1 or <code>documentTimeout</code> is
+ * set, the queries run on a bounded pool of worker threads, each with its own
+ * connection. Entities whose queries do not finish before the document deadline are
+ * not enriched - their annotations are kept and marked with the "unenriched" feature.
+ * 
+ * <p>
+ * When <code>storeDirectory</code> is set, the results are also kept on disk (see
+ * <code>EnrichmentStore</code>), so they survive restarts. Stored results older than
+ * <code>cacheTimeToLive</code> are still used, but are queried again in the background.
+ * 
  * @author mnozchev
  *
  */
 public class SesameEnrichment extends AbstractLanguageAnalyser {
 
 	private static final long serialVersionUID = 3650L;
+
+	/** Set on annotations whose entity could not be enriched before the deadline */
+	public static final String UNENRICHED_FEATURE = "unenriched";
 	
 	private RepositoryConnection conn;
 	private Repository rep;
@@ -50,24 +95,51 @@ public class SesameEnrichment extends AbstractLanguageAnalyser {
 	private String inputASName;
 	private Set<String> annTypes = new HashSet<String>(Arrays.asList("Lookup"));
 	private boolean deleteOnNoRelations = true;
+	private int batchSize = 0;
 	private final StringBuilder outputData = new StringBuilder(2000);
 	private String query = 
 		"SELECT ?Person WHERE { " +
 		"?Person <http://dbpedia.org/ontology/birthplace> ?BirthPlace . " +
 		"?BirthPlace <http://www.geonames.org/ontology#parentFeature> <%s> . " +
 		"?Person a <http://sw.opencyc.org/2008/06/10/concept/en/Entertainer> .} LIMIT 100";
+	private EnrichmentQueryBatcher batcher = EnrichmentQueryBatcher.create(query);
+	private int cacheSize = 0;
+	private int cacheTimeToLive = 3600;
+	private EnrichmentCache cache;
+	private String cacheScope;
+	private int parallelism = 1;
+	private int documentTimeout = 0;
+	private ExecutorService executor;
+	private File storeDirectory;
+	private URL localRepositoryConfig;
+	private URL localData;
+	private boolean localRepository = false;
+	private volatile EnrichmentStore store;
+	private ExecutorService revalidator;
+	private final Set<String> revalidating = Collections.synchronizedSet(new HashSet<String>());
+	
+	/** Maximal number of pending background revalidations, further ones are skipped */
+	private static final int REVALIDATION_QUEUE = 64;
 	
 	private static final Logger log = Logger.getLogger(SesameEnrichment.class);
 	
 	@Override
 	public Resource init() throws ResourceInstantiationException {
 		try {
-			rep = new HTTPRepository(server, repositoryId);
+			localRepository = LocalRepositories.getSource(localRepositoryConfig, localData) != null;
+			if (localRepository)
+				rep = LocalRepositories.acquire(localRepositoryConfig, localData);
+			else
+				rep = new HTTPRepository(server, repositoryId);
 			conn = rep.getConnection();
 		}
-		catch (RepositoryException e) {
+		catch (Exception e) {
 			throw new ResourceInstantiationException(e);
 		}
+		if (cacheSize > 0) {
+			cache = EnrichmentCache.getShared(cacheSize, cacheTimeToLive * 1000L);
+		}
+		updateCacheScope();
 		return this;
 	}
 
@@ -76,33 +148,335 @@ public class SesameEnrichment extends AbstractLanguageAnalyser {
 		AnnotationSet input = document.getAnnotations(inputASName);
 		Set<gate.Annotation> deathRow = new HashSet<gate.Annotation>();
 		
+		Map<String, List<gate.Annotation>> annsByInst = groupByInstance(input);
+		Map<String, EnrichmentResult> results = new HashMap<String, EnrichmentResult>();
+		List<String> missing = new ArrayList<String>(annsByInst.size());
+		List<String> stale = new ArrayList<String>();
+		EnrichmentStore currentStore = openStore();
+		for (String inst : annsByInst.keySet()) {
+			EnrichmentResult cached = (cache != null) ? cache.get(cacheScope, inst, cacheTimeToLive * 1000L) : null;
+			if (cached == null && currentStore != null)
+				cached = loadStored(currentStore, inst, stale);
+			if (cached != null)
+				results.put(inst, cached);
+			else
+				missing.add(inst);
+		}
+		
+		boolean batched = batchSize > 1 && batcher != null;
+		if (!stale.isEmpty())
+			revalidate(stale, batched);
+		if (batchSize > 1 && !batched)
+			log.debug("The query cannot be batched, running one query per entity: " + query);
+		Set<String> timedOut = new HashSet<String>();
+		if (executor == null && (parallelism > 1 || documentTimeout > 0)) {
+			executor = Executors.newFixedThreadPool(Math.max(1, parallelism), new WorkerFactory());
+		}
+		if (executor != null) {
+			queryAsync(missing, batched, results, timedOut);
+		}
+		else if (batched) {
+			queryBatched(conn, missing, results);
+		}
+		else {
+			querySingle(conn, missing, results, outputData);
+		}
+		
+		for (Map.Entry<String, List<gate.Annotation>> ent : annsByInst.entrySet()) {
+			EnrichmentResult res = results.get(ent.getKey());
+			if (res == null) {
+				// No result means the query failed or timed out, so the annotations are kept
+				if (timedOut.contains(ent.getKey())) {
+					for (gate.Annotation ann : ent.getValue())
+						ann.getFeatures().put(UNENRICHED_FEATURE, "timeout");
+				}
+				continue;
+			}
+			for (gate.Annotation ann : ent.getValue()) {
+				if (!res.hasRelations() && deleteOnNoRelations) {
+					deathRow.add(ann);
+				}
+				if (res.getConnections() != null) {
+					ann.getFeatures().put("connections", res.getConnections());
+				}
+			}
+		}
+		
+		if (deleteOnNoRelations) {
+			input.removeAll(deathRow);
+		}
+		if (cache != null && log.isDebugEnabled()) {
+			log.debug(cache);
+		}
+		if (!timedOut.isEmpty()) {
+			log.warn(String.format("%d of %d entities in document [%s] were not enriched within %d ms",
+					timedOut.size(), annsByInst.size(), document.getName(), documentTimeout));
+		}
+	}
+
+	private Map<String, List<gate.Annotation>> groupByInstance(AnnotationSet input) {
+		Map<String, List<gate.Annotation>> annsByInst = new LinkedHashMap<String, List<gate.Annotation>>();
 		for (gate.Annotation ann : input.get(annTypes)) {
 			Object instFeature = ann.getFeatures().get("inst");
 			if (!(instFeature instanceof String))
 				continue;
-			String instQuery = String.format(query, instFeature);
+			List<gate.Annotation> anns = annsByInst.get(instFeature);
+			if (anns == null) {
+				anns = new ArrayList<gate.Annotation>(2);
+				annsByInst.put((String) instFeature, anns);
+			}
+			anns.add(ann);
+		}
+		return annsByInst;
+	}
+
+	private void storeResult(String inst, EnrichmentResult res, Map<String, EnrichmentResult> results) {
+		results.put(inst, res);
+		if (cache != null) {
+			cache.put(cacheScope, inst, res);
+		}
+		EnrichmentStore currentStore = store;
+		if (currentStore != null && currentStore.getScope().equals(cacheScope)) {
+			try {
+				currentStore.put(inst, res, System.currentTimeMillis());
+			}
+			catch (IOException e) {
+				log.warn("Could not save the enrichment of " + inst, e);
+			}
+		}
+	}
+
+	/**
+	 * Returns the persistent store of the current repository and query,
+	 * reopening it if the query has changed since the last document.
+	 * @return the store or <b>null</b> if no store directory is set or the
+	 * store cannot be opened
+	 */
+	private synchronized EnrichmentStore openStore() {
+		if (storeDirectory == null)
+			return null;
+		if (store != null && store.getScope().equals(cacheScope))
+			return store;
+		EnrichmentStore.release(store);
+		store = null;
+		try {
+			store = EnrichmentStore.open(storeDirectory, cacheScope);
+		}
+		catch (IOException e) {
+			log.warn("Could not open the enrichment store in " + storeDirectory, e);
+		}
+		return store;
+	}
+
+	/** Reads a stored result, noting it in <code>stale</code> if it has to be queried again */
+	private EnrichmentResult loadStored(EnrichmentStore currentStore, String inst, List<String> stale) {
+		EnrichmentStore.StoredResult stored = currentStore.get(inst);
+		if (stored == null)
+			return null;
+		if (cacheTimeToLive > 0 && System.currentTimeMillis() - stored.created > cacheTimeToLive * 1000L)
+			stale.add(inst);
+		else if (cache != null)
+			cache.put(cacheScope, inst, stored.result, stored.created);
+		return stored.result;
+	}
+
+	/**
+	 * Queries stale entities again in the background. The new results replace
+	 * the stored ones; entities which are already being revalidated are skipped.
+	 */
+	private void revalidate(List<String> uris, boolean batched) {
+		final List<String> pending = new ArrayList<String>(uris.size());
+		for (String inst : uris) {
+			if (revalidating.add(inst))
+				pending.add(inst);
+		}
+		if (pending.isEmpty())
+			return;
+		final EnrichmentTask task = new EnrichmentTask(pending, batched);
+		try {
+			getRevalidator().execute(new Runnable() {
+				public void run() {
+					try {
+						task.call();
+					}
+					catch (Exception e) {
+						log.warn("Could not revalidate " + pending.size() + " stored enrichment results", e);
+					}
+					finally {
+						revalidating.removeAll(pending);
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			log.debug("Too many pending revalidations, skipping " + pending.size() + " entities.");
+			revalidating.removeAll(pending);
+		}
+	}
+
+	private synchronized ExecutorService getRevalidator() {
+		if (revalidator == null) {
+			revalidator = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(REVALIDATION_QUEUE), new WorkerFactory());
+		}
+		return revalidator;
+	}
+
+	/**
+	 * Splits the entities in units of work (one entity or one batch) and runs them
+	 * on the worker pool. Waits for the units until the document deadline; the
+	 * entities of the units which did not finish in time are added to <code>timedOut</code>.
+	 */
+	private void queryAsync(List<String> uris, boolean batched,
+			Map<String, EnrichmentResult> results, Set<String> timedOut) {
+		int unit = batched ? batchSize : 1;
+		List<List<String>> units = new ArrayList<List<String>>();
+		List<Future<Map<String, EnrichmentResult>>> futures = new ArrayList<Future<Map<String, EnrichmentResult>>>();
+		for (int from = 0; from < uris.size(); from += unit) {
+			List<String> part = uris.subList(from, Math.min(from + unit, uris.size()));
+			units.add(part);
+			futures.add(executor.submit(new EnrichmentTask(part, batched)));
+		}
+		
+		long deadline = documentTimeout > 0 ? System.currentTimeMillis() + documentTimeout : 0;
+		boolean interrupted = false;
+		for (int i = 0; i < futures.size(); i++) {
+			Future<Map<String, EnrichmentResult>> f = futures.get(i);
+			try {
+				if (interrupted)
+					throw new TimeoutException();
+				Map<String, EnrichmentResult> part = deadline > 0
+					? f.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)
+					: f.get();
+				results.putAll(part);
+			}
+			catch (TimeoutException e) {
+				f.cancel(true);
+				timedOut.addAll(units.get(i));
+			}
+			catch (InterruptedException e) {
+				interrupted = true;
+				f.cancel(true);
+				timedOut.addAll(units.get(i));
+			}
+			catch (java.util.concurrent.ExecutionException e) {
+				log.warn(String.format("Could not enrich %d entities", units.get(i).size()), e.getCause());
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	/** Seconds for the repository to spend on a query, 0 for no limit */
+	private int maxQueryTime() {
+		return documentTimeout > 0 ? (documentTimeout + 999) / 1000 : 0;
+	}
+
+	private void querySingle(RepositoryConnection conn, List<String> uris,
+			Map<String, EnrichmentResult> results, StringBuilder outputData) {
+		for (String inst : uris) {
+			if (Thread.currentThread().isInterrupted())
+				return;
+			String instQuery = String.format(query, inst);
 			try {
 				outputData.setLength(0);
 				TupleQuery tq = conn.prepareTupleQuery(QueryLanguage.SPARQL, instQuery);
+				tq.setMaxQueryTime(maxQueryTime());
 				TupleQueryResult tqr = tq.evaluate();	
-				if (!tqr.hasNext() && deleteOnNoRelations) {
-					deathRow.add(ann);
-				}
+				boolean hasRelations = tqr.hasNext();
 				populateResults(outputData, tqr);
-				if (outputData.length() > 0) {
-					ann.getFeatures().put("connections", outputData.toString());
-				}
+				storeResult(inst, new EnrichmentResult(hasRelations, outputData.toString()), results);
 			} catch (MalformedQueryException e) {
-				log.warn(String.format("Created invalid query [%s] for entity [%s] (in brackets). Parser reported: %s", instQuery, instFeature, e.getMessage()));
+				log.warn(String.format("Created invalid query [%s] for entity [%s] (in brackets). Parser reported: %s", instQuery, inst, e.getMessage()));
 			} catch (Exception e) {
-				log.warn(String.format("Error executing query [%s] for entity [%s] (in brackets)", instQuery, instFeature), e);
+				log.warn(String.format("Error executing query [%s] for entity [%s] (in brackets)", instQuery, inst), e);
 			}			
 		}
-		
-		if (deleteOnNoRelations) {
-			input.removeAll(deathRow);
+	}
+
+	private void queryBatched(RepositoryConnection conn, List<String> uris,
+			Map<String, EnrichmentResult> results) {
+		for (int from = 0; from < uris.size(); from += batchSize) {
+			if (Thread.currentThread().isInterrupted())
+				return;
+			List<String> batch = uris.subList(from, Math.min(from + batchSize, uris.size()));
+			String batchQuery = batcher.build(batch);
+			Map<String, StringBuilder> batchResults = new HashMap<String, StringBuilder>();
+			Map<String, Integer> rowCounts = new HashMap<String, Integer>();
+			int rows;
+			try {
+				TupleQuery tq = conn.prepareTupleQuery(QueryLanguage.SPARQL, batchQuery);
+				tq.setMaxQueryTime(maxQueryTime());
+				rows = populateBatchResults(tq.evaluate(), batchResults, rowCounts);
+			} catch (MalformedQueryException e) {
+				log.warn(String.format("Created invalid query [%s] for %d entities. Parser reported: %s", batchQuery, batch.size(), e.getMessage()));
+				continue;
+			} catch (Exception e) {
+				log.warn(String.format("Error executing query [%s] for %d entities", batchQuery, batch.size()), e);
+				continue;
+			}
+			
+			boolean truncated = batcher.isTruncated(rows, batch.size());
+			List<String> incomplete = new ArrayList<String>();
+			for (String inst : batch) {
+				Integer instRows = rowCounts.get(inst);
+				if (truncated && (instRows == null || instRows < batcher.getPerEntityLimit())) {
+					// The limit of the batch may have cut the rows of the entity
+					incomplete.add(inst);
+					continue;
+				}
+				StringBuilder data = batchResults.get(inst);
+				storeResult(inst, data == null ? EnrichmentResult.NO_RELATIONS
+						: new EnrichmentResult(true, data.toString()), results);
+			}
+			if (!incomplete.isEmpty()) {
+				log.debug(String.format("The batch reached its limit, querying %d of %d entities one by one",
+						incomplete.size(), batch.size()));
+				querySingle(conn, incomplete, results, new StringBuilder(2000));
+			}
 		}
-		
+	}
+
+	/**
+	 * Groups the rows of a batched query by the entity URI. Every entity with
+	 * at least one row gets an entry, even if its rows have no other values.
+	 * @param results - receives the values of the rows of every entity
+	 * @param rowCounts - receives the number of rows of every entity
+	 * @return the number of rows of the query
+	 */
+	private int populateBatchResults(TupleQueryResult tqr, Map<String, StringBuilder> results,
+			Map<String, Integer> rowCounts) throws QueryEvaluationException {
+		int limit = batcher.getPerEntityLimit();
+		int total = 0;
+		try {
+			while (tqr.hasNext()) {
+				BindingSet bs = tqr.next();
+				++total;
+				Value instValue = bs.getValue(EnrichmentQueryBatcher.INST_VAR);
+				if (instValue == null)
+					continue;
+				String inst = instValue.stringValue();
+				Integer rows = rowCounts.get(inst);
+				rows = rows == null ? 1 : rows + 1;
+				rowCounts.put(inst, rows);
+				StringBuilder data = results.get(inst);
+				if (data == null) {
+					data = new StringBuilder();
+					results.put(inst, data);
+				}
+				if (limit >= 0 && rows > limit)
+					continue;
+				for (Object val : bs) {
+					Binding b = (Binding) val;
+					if (!EnrichmentQueryBatcher.INST_VAR.equals(b.getName()))
+						data.append(b.getValue().stringValue()).append(",");
+				}
+			}
+		}
+		finally {
+			tqr.close();
+		}
+		return total;
 	}
 
 	private void populateResults(StringBuilder outputData, TupleQueryResult tqr)
@@ -119,6 +493,43 @@ public class SesameEnrichment extends AbstractLanguageAnalyser {
 		}
 	}
 	
+	/** Enriches a unit of entities on a connection of its own */
+	private class EnrichmentTask implements Callable<Map<String, EnrichmentResult>> {
+		private final List<String> uris;
+		private final boolean batched;
+		
+		EnrichmentTask(List<String> uris, boolean batched) {
+			this.uris = uris;
+			this.batched = batched;
+		}
+		
+		public Map<String, EnrichmentResult> call() throws RepositoryException {
+			Map<String, EnrichmentResult> results = new HashMap<String, EnrichmentResult>();
+			RepositoryConnection taskConn = rep.getConnection();
+			try {
+				if (batched)
+					queryBatched(taskConn, uris, results);
+				else
+					querySingle(taskConn, uris, results, new StringBuilder(2000));
+			}
+			finally {
+				taskConn.close();
+			}
+			return results;
+		}
+	}
+	
+	/** Daemon worker threads, so a query hanging on the repository does not keep GATE alive */
+	private static class WorkerFactory implements ThreadFactory {
+		private static final AtomicInteger count = new AtomicInteger();
+		
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "SesameEnrichment-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+	
 	@Override
 	public void reInit() throws ResourceInstantiationException {
 		cleanup();
@@ -127,15 +538,29 @@ public class SesameEnrichment extends AbstractLanguageAnalyser {
 	
 	@Override
 	public synchronized void cleanup() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+		if (revalidator != null) {
+			revalidator.shutdownNow();
+			revalidator = null;
+		}
+		EnrichmentStore.release(store);
+		store = null;
 		try {
 			if (conn != null) {
 				conn.close();
 				conn = null;
 			}
 			if (rep != null) {
-				rep.shutDown();
+				if (localRepository)
+					LocalRepositories.release(rep);
+				else
+					rep.shutDown();
 				rep = null;
 			}
+			cache = null;
 		}
 		catch (RepositoryException e) {
 			log.error("Could not close connection.", e);
@@ -176,6 +601,16 @@ public class SesameEnrichment extends AbstractLanguageAnalyser {
 
 	public void setQuery(String query) {
 		this.query = query.replace("\\", "");
+		this.batcher = EnrichmentQueryBatcher.create(this.query);
+		updateCacheScope();
+	}
+
+	/** Cached results are valid only for the same repository and query */
+	private void updateCacheScope() {
+		String source = LocalRepositories.getSource(localRepositoryConfig, localData);
+		if (source == null)
+			source = server + "\n" + repositoryId;
+		this.cacheScope = source + "\n" + query;
 	}
 
 	public String getQuery() {
@@ -191,6 +626,77 @@ public class SesameEnrichment extends AbstractLanguageAnalyser {
 		return deleteOnNoRelations;
 	}	
 	
+	public void setBatchSize(Integer batchSize) {
+		this.batchSize = batchSize != null ? batchSize : 0;
+	}
+
+	public Integer getBatchSize() {
+		return batchSize;
+	}
+
+	public void setCacheSize(Integer cacheSize) {
+		this.cacheSize = cacheSize != null ? cacheSize : 0;
+	}
+
+	public Integer getCacheSize() {
+		return cacheSize;
+	}
+
+	public void setCacheTimeToLive(Integer cacheTimeToLive) {
+		if (cacheTimeToLive != null)
+			this.cacheTimeToLive = cacheTimeToLive;
+	}
+
+	public Integer getCacheTimeToLive() {
+		return cacheTimeToLive;
+	}
+
+	public void setParallelism(Integer parallelism) {
+		this.parallelism = parallelism != null ? parallelism : 1;
+	}
+
+	public Integer getParallelism() {
+		return parallelism;
+	}
+
+	public void setDocumentTimeout(Integer documentTimeout) {
+		this.documentTimeout = documentTimeout != null ? documentTimeout : 0;
+	}
+
+	public Integer getDocumentTimeout() {
+		return documentTimeout;
+	}
+
+	public void setStoreDirectory(URL storeDirectory) {
+		this.storeDirectory = storeDirectory != null ? Files.fileFromURL(storeDirectory) : null;
+	}
+
+	public URL getLocalRepositoryConfig() {
+		return localRepositoryConfig;
+	}
+
+	public void setLocalRepositoryConfig(URL localRepositoryConfig) {
+		this.localRepositoryConfig = localRepositoryConfig;
+	}
+
+	public URL getLocalData() {
+		return localData;
+	}
+
+	public void setLocalData(URL localData) {
+		this.localData = localData;
+	}
+
+	public URL getStoreDirectory() {
+		if (storeDirectory == null)
+			return null;
+		try {
+			return storeDirectory.toURI().toURL();
+		} catch (MalformedURLException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
 	public String getVersion() {
 		return this.getClass().getPackage().getImplementationVersion();		
 	}
@@ -2,16 +2,30 @@ package com.ontotext.kim.model;
 
 import gate.creole.ResourceInstantiationException;
 import gate.util.profile.Profiler;
+import gnu.trove.TIntArrayList;
 import gnu.trove.TIntHashSet;
+import gnu.trove.TIntIntHashMap;
+import gnu.trove.TObjectIntHashMap;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Serializable;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
 import java.rmi.RemoteException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
 import org.apache.commons.collections.Transformer;
 import org.apache.commons.io.FileUtils;
@@ -26,8 +40,13 @@ import com.ontotext.kim.client.semanticrepository.QueryResultListener;
 import com.ontotext.kim.client.semanticrepository.QueryResultListener.Feed;
 import com.ontotext.kim.gate.KimLookupParser;
 import com.ontotext.kim.gate.KimLookupParser.AliasLookupDictionary;
+import com.ontotext.kim.gate.KimLookupParser.BoundedDictionary;
+import com.ontotext.kim.gate.KimLookupParser.CountingDictionary;
+import com.ontotext.kim.gate.KimLookupParser.VersionedDictionary;
+import com.ontotext.kim.model.LookupTimings.Stage;
 import com.ontotext.kim.util.ListReader;
 import com.ontotext.kim.util.StringTransformations;
+import com.ontotext.kim.util.datastore.PrivateRepositoryFeed;
 
 
 /**
@@ -38,7 +57,9 @@ import com.ontotext.kim.util.StringTransformations;
  * the presence of known Aliases.<br>
  * The aliases are not stored as plain text but as couple of hash codes.
  * The storage is implemented by the couple of classes <code>HashedAlias</code>
- * and <code>HashRegister</code>. Because of this specific - before storing
+ * and <code>HashRegister</code>. The instance URIs of the aliases are kept
+ * once in a <code>LocalNamePool</code> and the aliases refer to them by
+ * identifier. Because of this specific - before storing
  * of an Alias and also before checking a text fragment - they both must
  * be pre-processed. The pre-processing is implemented in couple of classes.
  * The class <code>AliasTextTransformer</code> does preliminary text
@@ -46,12 +67,35 @@ import com.ontotext.kim.util.StringTransformations;
  * normalization and hash-codes calculation.<br>
  * <br>
  * An instance of the <code>AliasCacheImpl</code> class is obtained through
- * a synchronized factory method.
+ * a factory method, which loads every dictionary path once. Different
+ * dictionaries are loaded concurrently, callers for a path which is being
+ * loaded wait for the same load. Clients are counted by identity and a
+ * dictionary is dropped when its last client releases it. Dictionaries
+ * obtained with <code>acquire</code> may also be unloaded while idle or over
+ * the memory budget and are loaded again from their binary image on demand.
+ * A new version of a dictionary can be built in the background with
+ * <code>reload</code> and replaces the old one without interrupting its
+ * clients.<br>
+ * <br>
+ * Small changes are applied to a loaded dictionary with
+ * <code>applyDelta</code>. They are kept in a <code>DictionaryOverlay</code>
+ * over the base structures and are appended to a delta log in the dictionary
+ * folder, which is replayed when the dictionary is loaded from its binary
+ * image. <code>compact</code> folds the changes into a new binary image.<br>
+ * <br>
+ * The binary image is a <code>SegmentedImage</code>. A dictionary loaded
+ * from it reads the alias register segment by segment, as the lookups
+ * touch the segments and in the background, so it is ready for use as
+ * soon as its core structures are read.<br>
+ * <br>
+ * With the <code>lkb.gazetteer.aliasIndex</code> property an
+ * <code>AliasIndex</code> of the original aliases is built as well, which
+ * <code>complete</code> searches by prefix.
  * 
  * @author danko
  *
  */
-public class AliasCacheImpl implements AliasLookupDictionary {
+public class AliasCacheImpl implements BoundedDictionary, CountingDictionary {
 
     protected static Logger log = Logger.getLogger(AliasCacheImpl.class);
     private static DataFeedFactory feedFactory = new DataFeedFactory();
@@ -66,9 +110,27 @@ public class AliasCacheImpl implements AliasLookupDictionary {
 	 * <code>aliasPrefixes</code> set. (For details see
 	 * <code>ParsingFrame</code>) */
 	protected TIntHashSet aliasPrefixes;
-	/** Additional register which allows fast checking if a given Entity's
-	 * aliases has been stored in the alias register. */
-	protected HashRegister aliasInstRegister;
+	/** The maximal number of lexemes of an alias */
+	protected int maxAliasLexemes;
+	/** The maximal number of lexemes of the aliases by the <b>Alias-Hash-1</b>
+	 * of their first lexeme. It stops the expansion of the frame earlier than
+	 * the <code>aliasPrefixes</code> set, whose hash-codes may collide. */
+	protected TIntIntHashMap maxLexemesByFirst;
+	/** The short instance URIs of the aliases in the alias register. The
+	 * <code>instID</code> of an alias is the identifier of its instance
+	 * in this pool. */
+	protected LocalNamePool instNames;
+	/** The identifiers given to the short instance URIs while the alias
+	 * register is filled and the URIs by identifier. They are replaced by
+	 * the identifiers of <code>instNames</code> when the loading is over. */
+	private TObjectIntHashMap loadingInstIds;
+	private ArrayList<String> loadingInstNames;
+	/** The sorted index of the alias texts for prefix search, <b>null</b>
+	 * if the dictionary was built without it */
+	protected AliasIndex aliasIndex;
+	/** Collects the aliases of the index while the dictionary is loaded
+	 * from the data feed, <b>null</b> if no index is built */
+	private AliasIndex.Builder loadingIndex;
 	/** Array used for encoding/decoding the instance URI's name-spaces */
 	protected ArrayList<String> instNS;
 	/** Array used for encoding/decoding the semantic class URIs */
@@ -79,6 +141,21 @@ public class AliasCacheImpl implements AliasLookupDictionary {
 
 	/** The general case sensitivity selector of the Alias cache */
 	private String caseSensitivity;
+	/** The text normalization of the aliases and of the looked up frames */
+	private Transformer transformer;
+	/** The folder of the dictionary, where the binary image and the delta log are kept */
+	private File dictionaryPath;
+	/** The changes applied since the base structures were built */
+	private volatile DictionaryOverlay overlay = DictionaryOverlay.EMPTY;
+	/** The compacted copy which replaced this instance; later changes are applied to it. Guarded by <code>this</code>. */
+	private AliasCacheImpl compactedInto;
+	/** Where this instance was loaded from, how long it took and when it was done */
+	private String loadSource;
+	private long loadMillis;
+	private long loadedAt;
+	/** The frames looked up in this instance and the matches found */
+	private final AtomicLong lookupCount = new AtomicLong();
+	private final AtomicLong matchCount = new AtomicLong();
 
 	protected AliasCacheImpl (String caseSensitive) {
 		this.caseSensitivity = caseSensitive;
@@ -90,59 +167,715 @@ public class AliasCacheImpl implements AliasLookupDictionary {
 	private static Map<File, LoadedCache> aliasDictionaries = new HashMap<File, LoadedCache>();
 	private static Object instanceLock = new Object();
 	
+	/** Seconds without lookups after which a dictionary is unloaded. 0 disables idle unloading. */
+	public static final String IDLE_TIMEOUT_PROPERTY = "lkb.gazetteer.idleTimeout";
+	/** Megabytes of estimated dictionary memory above which the least recently used dictionaries are unloaded. 0 for no limit. */
+	public static final String MEMORY_BUDGET_PROPERTY = "lkb.gazetteer.memoryBudget";
+	/** Number of applied changes after which a dictionary is compacted. 0 disables automatic compaction. */
+	public static final String COMPACT_AFTER_PROPERTY = "lkb.gazetteer.compactAfter";
+	private static final int DEFAULT_COMPACT_AFTER = 50000;
+	/** Number of threads which assign the instance identifiers of the aliases after a dictionary is loaded from the RDF database or compacted. The number of processors by default. */
+	public static final String LOAD_THREADS_PROPERTY = "lkb.gazetteer.loadThreads";
+	/** Number of segments of the alias register in the binary image, rounded up to a power of two. 256 by default. */
+	public static final String IMAGE_SEGMENTS_PROPERTY = "lkb.gazetteer.imageSegments";
+	private static final int DEFAULT_IMAGE_SEGMENTS = 256;
+	/** Whether the segments of the binary image are read on first use. <b>true</b> by default; <b>false</b> reads them all on load. */
+	public static final String LAZY_SEGMENTS_PROPERTY = "lkb.gazetteer.lazySegments";
+	/** Whether a background thread reads the segments not yet used after a lazy load. <b>true</b> by default. */
+	public static final String PREFETCH_SEGMENTS_PROPERTY = "lkb.gazetteer.prefetchSegments";
+	/** Whether to build an <code>AliasIndex</code> for prefix search when a dictionary is loaded from the data feed. <b>false</b> by default. */
+	public static final String ALIAS_INDEX_PROPERTY = "lkb.gazetteer.aliasIndex";
+	private static final String IMAGE_NAME = "kim.trusted.entities.cache";
+	private static final String DELTA_LOG_NAME = "kim.trusted.entities.delta";
+	private static final long MAX_CHECK_PERIOD = 60 * 1000;
+	private static Timer unloadTimer;
+	
 	public static AliasCacheImpl getInstance() throws ResourceInstantiationException {
 		String caseSens = System.getProperty("com.ontotext.kim.KIMConstants.ENTITY_CASE_TYPE", KIMConstants.CASE_INSENSITIV);
 		return getInstance(new File(KIMConstants.KIM_CACHE_PATH), caseSens, "<unknown>");
 	}
 	
+	/** A dictionary path with its clients and its current load. Guarded by <code>instanceLock</code>. */
 	private static class LoadedCache {
-		public AliasCacheImpl cache;
-		public List<String> clients = new LinkedList<String>();
+		final File dictionaryPath;
+		final String caseSens;
+		final DictionaryHandle handle = new DictionaryHandle(this);
+		/** The current load, <b>null</b> while the dictionary is unloaded */
+		FutureTask<AliasCacheImpl> loader;
+		/** The loaded dictionary, <b>null</b> while it is unloaded or loading */
+		volatile AliasCacheImpl cache;
+		/** Number of acquisitions by client identity */
+		final Map<Object, Integer> clients = new IdentityHashMap<Object, Integer>();
+		/** Number of acquisitions through <code>getInstance</code>, which prevent unloading */
+		final Map<Object, Integer> pins = new IdentityHashMap<Object, Integer>();
+		/** Incremented on every lookup through the handle; a changed value means recent use */
+		volatile int uses = 0;
+		int usesAtLastCheck = 0;
+		long lastUsed;
+		/** The background build of a new version, <b>null</b> if none is running */
+		FutureTask<AliasCacheImpl> pendingReload;
+		/** The name of the MBean of the dictionary, <b>null</b> if it is not registered */
+		ObjectName mbeanName;
+		
+		LoadedCache(File dictionaryPath, String caseSens) {
+			this.dictionaryPath = dictionaryPath;
+			this.caseSens = caseSens;
+		}
+		
+		FutureTask<AliasCacheImpl> newLoader() {
+			loader = new FutureTask<AliasCacheImpl>(new Callable<AliasCacheImpl>() {
+				public AliasCacheImpl call() throws ResourceInstantiationException {
+					AliasCacheImpl loaded = createInstance(dictionaryPath, caseSens);
+					synchronized(instanceLock) {
+						lastUsed = System.currentTimeMillis();
+						cache = loaded;
+					}
+					return loaded;
+				}
+			});
+			return loader;
+		}
+	}
+	
+	/**
+	 * The dictionary as seen by clients obtained with <code>acquire</code>.
+	 * It delegates to the current version of the loaded dictionary and loads
+	 * it again if it has been unloaded since the last lookup.
+	 */
+	private static class DictionaryHandle implements VersionedDictionary {
+		private final LoadedCache lc;
+		
+		DictionaryHandle(LoadedCache lc) {
+			this.lc = lc;
+		}
+		
+		public Collection<KimLookupParser.AliasWrapper> lookup(ParsingFrame pfm) {
+			return resident().lookup(pfm);
+		}
+		
+		public boolean canPhraseGrow(ParsingFrame pfm) {
+			return resident().canPhraseGrow(pfm);
+		}
+		
+		public AliasLookupDictionary currentVersion() {
+			return resident();
+		}
+		
+		private AliasCacheImpl resident() {
+			lc.uses++;
+			AliasCacheImpl c = lc.cache;
+			if (c != null)
+				return c;
+			log.info("Loading the unloaded dictionary " + lc.dictionaryPath + " on demand.");
+			try {
+				return load(lc);
+			}
+			catch (ResourceInstantiationException e) {
+				throw new KIMRuntimeException("Could not reload the dictionary " + lc.dictionaryPath, e);
+			}
+		}
+	}
+	
+	/** The MBean of a dictionary path. It reads the current version without loading it. */
+	private static class DictionaryInfo implements DictionaryInfoMBean {
+		/** The number of classes of the size distributions */
+		private static final int DISTRIBUTION_CLASSES = 11;
+		/** The heap of a <code>HashedAlias</code> */
+		private static final int ALIAS_BYTES = 32;
+		/** The typical heap per entry of the trove set and map, which are at most half full */
+		private static final int INT_SET_ENTRY_BYTES = 10;
+		private static final int INT_MAP_ENTRY_BYTES = 20;
+		
+		private final LoadedCache lc;
+		
+		DictionaryInfo(LoadedCache lc) {
+			this.lc = lc;
+		}
+		
+		public String getDictionaryPath() {
+			return lc.dictionaryPath.getPath();
+		}
+		
+		public String getCaseSensitivity() {
+			return lc.caseSens;
+		}
+		
+		public boolean isLoaded() {
+			return lc.cache != null;
+		}
+		
+		public int getClientCount() {
+			synchronized(instanceLock) {
+				return lc.clients.size();
+			}
+		}
+		
+		public String getLoadSource() {
+			AliasCacheImpl c = lc.cache;
+			return c == null ? null : c.loadSource;
+		}
+		
+		public long getLoadTimeMillis() {
+			AliasCacheImpl c = lc.cache;
+			return c == null ? 0 : c.loadMillis;
+		}
+		
+		public Date getLoadedAt() {
+			AliasCacheImpl c = lc.cache;
+			return c == null ? null : new Date(c.loadedAt);
+		}
+		
+		public int getAliasCount() {
+			AliasCacheImpl c = lc.cache;
+			return c == null ? 0 : c.getAliasCount();
+		}
+		
+		public int getInstanceCount() {
+			AliasCacheImpl c = lc.cache;
+			return c == null ? 0 : c.getEntityCount();
+		}
+		
+		public int getClassCount() {
+			AliasCacheImpl c = lc.cache;
+			if (c == null)
+				return 0;
+			synchronized (c) {
+				return c.classCache.size();
+			}
+		}
+		
+		public int getNamespaceCount() {
+			AliasCacheImpl c = lc.cache;
+			if (c == null)
+				return 0;
+			synchronized (c) {
+				return c.instNS.size();
+			}
+		}
+		
+		public int getPrefixCount() {
+			AliasCacheImpl c = lc.cache;
+			return c == null ? 0 : c.aliasPrefixes.size() + c.overlay.addedPrefixes.size();
+		}
+		
+		public int getMaxAliasLexemes() {
+			AliasCacheImpl c = lc.cache;
+			return c == null ? 0 : c.getMaxAliasLexemes();
+		}
+		
+		public int getChangeCount() {
+			AliasCacheImpl c = lc.cache;
+			return c == null ? 0 : c.overlay.getChangeCount();
+		}
+		
+		public int getSegmentCount() {
+			AliasCacheImpl c = lc.cache;
+			return c != null && c.aliasRegister instanceof SegmentedRegister
+				? ((SegmentedRegister) c.aliasRegister).getSegmentCount() : 0;
+		}
+		
+		public int getLoadedSegmentCount() {
+			AliasCacheImpl c = lc.cache;
+			return c != null && c.aliasRegister instanceof SegmentedRegister
+				? ((SegmentedRegister) c.aliasRegister).getLoadedSegmentCount() : 0;
+		}
+		
+		public int[] getBucketSizeDistribution() {
+			AliasCacheImpl c = lc.cache;
+			return c == null ? new int[0] : c.aliasRegister.getBucketSizeDistribution(DISTRIBUTION_CLASSES);
+		}
+		
+		public int[] getAliasesPerHashDistribution() {
+			AliasCacheImpl c = lc.cache;
+			return c == null ? new int[0] : c.aliasRegister.getPackageSizeDistribution(DISTRIBUTION_CLASSES);
+		}
+		
+		public long getAliasRegisterBytes() {
+			AliasCacheImpl c = lc.cache;
+			return c == null ? 0 : c.aliasRegister.getEstimatedBytes(ALIAS_BYTES);
+		}
+		
+		public long getPrefixSetBytes() {
+			AliasCacheImpl c = lc.cache;
+			return c == null ? 0 : (long) INT_SET_ENTRY_BYTES * c.aliasPrefixes.size();
+		}
+		
+		public long getFirstLexemeMapBytes() {
+			AliasCacheImpl c = lc.cache;
+			return c == null ? 0 : (long) INT_MAP_ENTRY_BYTES * c.maxLexemesByFirst.size();
+		}
+		
+		public long getInstanceNameBytes() {
+			AliasCacheImpl c = lc.cache;
+			return c == null ? 0 : c.instNames.getEstimatedBytes();
+		}
+		
+		public long getNamespaceAndClassBytes() {
+			AliasCacheImpl c = lc.cache;
+			if (c == null)
+				return 0;
+			long bytes = 0;
+			synchronized (c) {
+				for (String s : c.instNS)
+					bytes += 44 + 2L * s.length();
+				for (String s : c.classCache)
+					bytes += 44 + 2L * s.length();
+			}
+			return bytes;
+		}
+		
+		public long getAliasIndexBytes() {
+			AliasCacheImpl c = lc.cache;
+			return c == null || c.aliasIndex == null ? 0 : c.aliasIndex.getEstimatedBytes();
+		}
+		
+		public long getChangeBytes() {
+			AliasCacheImpl c = lc.cache;
+			if (c == null)
+				return 0;
+			DictionaryOverlay ov = c.overlay;
+			return (long) (ALIAS_BYTES + 16) * ov.getAddedCount() + 112L * ov.getAddedInstanceCount()
+				+ (long) INT_SET_ENTRY_BYTES * ov.addedPrefixes.size();
+		}
+		
+		public long getEstimatedBytes() {
+			return getAliasRegisterBytes() + getPrefixSetBytes() + getFirstLexemeMapBytes()
+				+ getInstanceNameBytes() + getNamespaceAndClassBytes() + getAliasIndexBytes() + getChangeBytes();
+		}
+		
+		public long getLookupCount() {
+			AliasCacheImpl c = lc.cache;
+			return c == null ? 0 : c.lookupCount.get();
+		}
+		
+		public long getMatchCount() {
+			AliasCacheImpl c = lc.cache;
+			return c == null ? 0 : c.matchCount.get();
+		}
 	}
 	
 	/**
 	 * A static method for generation/access to the one and only instance
-	 * of the alias cache
+	 * of the alias cache for a dictionary path. The first caller for a path
+	 * loads the dictionary without holding the global lock; the other
+	 * callers for that path wait for the load to complete.<br>
+	 * The returned dictionary stays loaded until the client releases it.
 	 * @param dictionaryPath 
 	 * @param caseSens 
+	 * @param client - the client, identified by reference, which must be
+	 * passed to <code>releaseCache</code> 
 	 * @return - the instance of the cache
 	 * @throws ResourceInstantiationException
 	 */
-	public static AliasCacheImpl getInstance(File dictionaryPath, String caseSens, String clientId) throws ResourceInstantiationException {
+	public static AliasCacheImpl getInstance(File dictionaryPath, String caseSens, Object client) throws ResourceInstantiationException {
+		LoadedCache lc = register(dictionaryPath, caseSens, client, true);
+		try {
+			return load(lc);
+		}
+		catch (ResourceInstantiationException e) {
+			releaseCache(dictionaryPath, client);
+			throw e;
+		}
+	}
+	
+	/**
+	 * Like <code>getInstance</code>, but the returned dictionary may be
+	 * unloaded while it is idle or over the memory budget (see
+	 * <code>IDLE_TIMEOUT_PROPERTY</code> and <code>MEMORY_BUDGET_PROPERTY</code>).
+	 * It is loaded again from its binary image on the next lookup.
+	 * @param dictionaryPath 
+	 * @param caseSens 
+	 * @param client - the client, identified by reference, which must be
+	 * passed to <code>releaseCache</code> 
+	 * @return - the dictionary, already loaded
+	 * @throws ResourceInstantiationException
+	 */
+	public static AliasLookupDictionary acquire(File dictionaryPath, String caseSens, Object client) throws ResourceInstantiationException {
+		LoadedCache lc = register(dictionaryPath, caseSens, client, false);
+		try {
+			load(lc);
+		}
+		catch (ResourceInstantiationException e) {
+			releaseCache(dictionaryPath, client);
+			throw e;
+		}
+		return lc.handle;
+	}
+
+	private static LoadedCache register(File dictionaryPath, String caseSens, Object client, boolean pin) {
 		synchronized(instanceLock) {
-			if ( !aliasDictionaries.containsKey(dictionaryPath)) {     
-				LoadedCache lc = new LoadedCache();
-				lc.cache = createInstance(dictionaryPath, caseSens);
+			LoadedCache lc = aliasDictionaries.get(dictionaryPath);
+			if (lc == null) {     
+				lc = new LoadedCache(dictionaryPath, caseSens);
 				aliasDictionaries.put(dictionaryPath, lc);
+				registerMBean(lc);
 			}
-		}		
-		LoadedCache lc = aliasDictionaries.get(dictionaryPath);
-		lc.clients.add(clientId);
-		return lc.cache;
+			increment(lc.clients, client);
+			if (pin)
+				increment(lc.pins, client);
+			scheduleUnloading();
+			return lc;
+		}
+	}
+
+	/** Registers the <code>DictionaryInfoMBean</code> of a new entry. Called while holding <code>instanceLock</code>. */
+	private static void registerMBean(LoadedCache lc) {
+		try {
+			ObjectName name = new ObjectName("com.ontotext.kim:type=Dictionary,path="
+					+ ObjectName.quote(lc.dictionaryPath.getPath()));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(
+					new StandardMBean(new DictionaryInfo(lc), DictionaryInfoMBean.class), name);
+			lc.mbeanName = name;
+		}
+		catch (Exception e) {
+			log.warn("Could not register the MBean of the dictionary " + lc.dictionaryPath, e);
+		}
 	}
 
-	public static void releaseCache(File dictionaryPath, String clientId) {
+	/** Unregisters the MBean of a dropped entry. Called while holding <code>instanceLock</code>. */
+	private static void unregisterMBean(LoadedCache lc) {
+		if (lc.mbeanName == null)
+			return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(lc.mbeanName);
+		}
+		catch (Exception e) {
+			log.warn("Could not unregister the MBean of the dictionary " + lc.dictionaryPath, e);
+		}
+		lc.mbeanName = null;
+	}
+
+	/** Waits for the dictionary of an entry, loading it if it is not loaded or being loaded */
+	private static AliasCacheImpl load(LoadedCache lc) throws ResourceInstantiationException {
+		FutureTask<AliasCacheImpl> loader;
+		boolean loadHere = false;
+		synchronized(instanceLock) {
+			loader = lc.loader;
+			if (loader == null) {
+				loader = lc.newLoader();
+				loadHere = true;
+			}
+		}
+		if (loadHere) {
+			loader.run();
+			unloadDictionaries();
+		}
+		
+		try {
+			return loader.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ResourceInstantiationException(e);
+		}
+		catch (ExecutionException e) {
+			// Forget the failed load, so that the next client tries again
+			synchronized(instanceLock) {
+				if (lc.loader == loader)
+					lc.loader = null;
+			}
+			Throwable cause = e.getCause();
+			if (cause instanceof ResourceInstantiationException)
+				throw (ResourceInstantiationException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new ResourceInstantiationException((Exception) cause);
+		}
+	}
+
+	/**
+	 * Releases an acquisition of a dictionary. The dictionary is dropped
+	 * after all its clients have released it.
+	 * @param dictionaryPath - the path passed on acquisition
+	 * @param client - the client passed on acquisition
+	 */
+	public static void releaseCache(File dictionaryPath, Object client) {
 		synchronized(instanceLock) {
 			LoadedCache lc = aliasDictionaries.get(dictionaryPath);
 			if (lc == null)
 				return;
-			lc.clients.remove(clientId);
-			if (lc.clients.isEmpty())
+			if (!decrement(lc.clients, client))
+				return;
+			decrement(lc.pins, client);
+			if (lc.clients.isEmpty()) {
 				aliasDictionaries.remove(dictionaryPath);
+				lc.cache = null;
+				lc.loader = null;
+				unregisterMBean(lc);
+			}
 			else {
-				log.info("The cache for " + dictionaryPath + " will not be unloaded or reloaded because some clients remain: " + lc.clients);
+				log.info("The cache for " + dictionaryPath + " will not be unloaded or reloaded because " + lc.clients.size() + " clients remain.");
 			}
 		}		
 	}
+
+	/**
+	 * Builds a new version of a loaded dictionary in the background and swaps
+	 * it in for all clients obtained with <code>acquire</code> when it is
+	 * ready. Until then the clients use the old version; documents which are
+	 * being processed during the swap finish with the old version. Clients
+	 * obtained with <code>getInstance</code> keep the instance they hold.<br>
+	 * Both versions are in memory while the new one is built. If the build
+	 * fails, the old version stays in use.
+	 * @param dictionaryPath - the path of a dictionary in use
+	 * @param rebuild - <b>true</b> to build the new version from the RDF
+	 * database, ignoring the binary image and the tuple snapshot;
+	 * <b>false</b> to load it from the binary image if there is one
+	 * @return the pending build, or <b>null</b> if the dictionary is not in use.
+	 * If a build is already running, it is returned instead of starting another.
+	 */
+	public static Future<AliasCacheImpl> reload(final File dictionaryPath, final boolean rebuild) {
+		return startBuild(dictionaryPath, "reload", new VersionBuilder() {
+			public AliasCacheImpl build(LoadedCache lc) throws ResourceInstantiationException {
+				return createInstance(dictionaryPath, lc.caseSens, rebuild);
+			}
+		});
+	}
+
+	/**
+	 * Folds the changes applied to a dictionary in use into a new version of
+	 * its base structures, in the background. The new version is saved as the
+	 * binary image and the delta log is cleared; it is then swapped in like
+	 * on <code>reload</code>. Changes applied while the new version is built
+	 * are carried over to it.
+	 * @param dictionaryPath - the path of a dictionary in use
+	 * @return the pending build, or <b>null</b> if the dictionary is not in use.
+	 * If a build is already running, it is returned instead of starting another.
+	 */
+	public static Future<AliasCacheImpl> compact(File dictionaryPath) {
+		return startBuild(dictionaryPath, "compaction", new VersionBuilder() {
+			public AliasCacheImpl build(LoadedCache lc) throws ResourceInstantiationException {
+				try {
+					return load(lc).compact();
+				}
+				catch (IOException e) {
+					throw new ResourceInstantiationException(e);
+				}
+			}
+		});
+	}
+
+	/** Builds a new version of a dictionary in use */
+	private interface VersionBuilder {
+		AliasCacheImpl build(LoadedCache lc) throws ResourceInstantiationException;
+	}
+
+	private static Future<AliasCacheImpl> startBuild(final File dictionaryPath, String kind, final VersionBuilder builder) {
+		final LoadedCache lc;
+		final FutureTask<AliasCacheImpl> build;
+		synchronized(instanceLock) {
+			lc = aliasDictionaries.get(dictionaryPath);
+			if (lc == null)
+				return null;
+			if (lc.pendingReload != null)
+				return lc.pendingReload;
+			build = new FutureTask<AliasCacheImpl>(new Callable<AliasCacheImpl>() {
+				public AliasCacheImpl call() throws ResourceInstantiationException {
+					try {
+						long start = System.currentTimeMillis();
+						AliasCacheImpl built = builder.build(lc);
+						swapIn(lc, built);
+						log.info("A new version of " + dictionaryPath + " was built in "
+								+ (System.currentTimeMillis() - start) + "ms and is now in use.");
+						return built;
+					}
+					catch (ResourceInstantiationException e) {
+						log.error("Could not build a new version of " + dictionaryPath + ", the old one remains in use.", e);
+						throw e;
+					}
+					finally {
+						synchronized(instanceLock) {
+							lc.pendingReload = null;
+						}
+					}
+				}
+			});
+			lc.pendingReload = build;
+		}
+		Thread buildThread = new Thread(build, "LKB dictionary " + kind + " " + dictionaryPath.getName());
+		buildThread.setDaemon(true);
+		buildThread.start();
+		return build;
+	}
+
+	/**
+	 * Applies changes to a dictionary. If the dictionary is in use, the
+	 * changes take effect for the documents processed after this call;
+	 * documents being processed may or may not see them. The changes are
+	 * also appended to the delta log of the dictionary, so they survive a
+	 * restart as long as the dictionary is loaded from its binary image.
+	 * A rebuild from the RDF database clears the log, so the changes must be
+	 * made in the database as well.<br>
+	 * The dictionary is compacted in the background after
+	 * <code>COMPACT_AFTER_PROPERTY</code> changes.
+	 * @param dictionaryPath - the dictionary folder
+	 * @param delta - the changes
+	 * @throws IOException - if the changes cannot be written to the delta log;
+	 * they are not applied then
+	 */
+	public static void applyDelta(File dictionaryPath, DictionaryDelta delta) throws IOException {
+		LoadedCache lc;
+		synchronized(instanceLock) {
+			lc = aliasDictionaries.get(dictionaryPath);
+		}
+		if (lc == null) {
+			FileUtils.forceMkdir(dictionaryPath);
+			appendDeltaLog(deltaLog(dictionaryPath), delta);
+			log.info(delta.size() + " changes logged for " + dictionaryPath + ", which is not in use.");
+			return;
+		}
+		AliasCacheImpl cache;
+		try {
+			cache = load(lc);
+		}
+		catch (ResourceInstantiationException e) {
+			IOException ioe = new IOException("Could not load the dictionary " + dictionaryPath);
+			ioe.initCause(e);
+			throw ioe;
+		}
+		int changes = cache.apply(delta);
+		int compactAfter = Integer.getInteger(COMPACT_AFTER_PROPERTY, DEFAULT_COMPACT_AFTER);
+		if (compactAfter > 0 && changes >= compactAfter)
+			compact(dictionaryPath);
+	}
+
+	private static void swapIn(LoadedCache lc, final AliasCacheImpl built) {
+		FutureTask<AliasCacheImpl> done = new FutureTask<AliasCacheImpl>(new Callable<AliasCacheImpl>() {
+			public AliasCacheImpl call() {
+				return built;
+			}
+		});
+		done.run();
+		synchronized(instanceLock) {
+			lc.loader = done;
+			lc.cache = built;
+			lc.lastUsed = System.currentTimeMillis();
+		}
+	}
+
+	private static void increment(Map<Object, Integer> counts, Object client) {
+		Integer count = counts.get(client);
+		counts.put(client, count == null ? 1 : count + 1);
+	}
+
+	private static boolean decrement(Map<Object, Integer> counts, Object client) {
+		Integer count = counts.get(client);
+		if (count == null)
+			return false;
+		if (count > 1)
+			counts.put(client, count - 1);
+		else
+			counts.remove(client);
+		return true;
+	}
+
+	/** Starts the periodic check for idle dictionaries if unloading is enabled */
+	private static void scheduleUnloading() {
+		long idleSeconds = Long.getLong(IDLE_TIMEOUT_PROPERTY, 0);
+		if (unloadTimer != null || (idleSeconds <= 0 && Long.getLong(MEMORY_BUDGET_PROPERTY, 0) <= 0))
+			return;
+		long period = idleSeconds > 0 ? Math.min(MAX_CHECK_PERIOD, Math.max(1000, idleSeconds * 500)) : MAX_CHECK_PERIOD;
+		unloadTimer = new Timer("LKB dictionary unloading", true);
+		unloadTimer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				unloadDictionaries();
+			}
+		}, period, period);
+	}
+
+	/**
+	 * Unloads the dictionaries which have been idle for longer than the idle
+	 * timeout and then, while the loaded dictionaries exceed the memory budget,
+	 * the least recently used ones. Dictionaries obtained with
+	 * <code>getInstance</code> and the most recently used dictionary are kept.
+	 */
+	private static void unloadDictionaries() {
+		long idleMillis = Long.getLong(IDLE_TIMEOUT_PROPERTY, 0) * 1000;
+		long budget = Long.getLong(MEMORY_BUDGET_PROPERTY, 0) * 1024 * 1024;
+		if (idleMillis <= 0 && budget <= 0)
+			return;
+		long now = System.currentTimeMillis();
+		synchronized(instanceLock) {
+			List<LoadedCache> candidates = new ArrayList<LoadedCache>();
+			long total = 0;
+			for (LoadedCache lc : aliasDictionaries.values()) {
+				AliasCacheImpl c = lc.cache;
+				if (c == null)
+					continue;
+				int uses = lc.uses;
+				if (uses != lc.usesAtLastCheck) {
+					lc.usesAtLastCheck = uses;
+					lc.lastUsed = now;
+				}
+				total += c.getEstimatedBytes();
+				if (lc.pins.isEmpty())
+					candidates.add(lc);
+			}
+			Collections.sort(candidates, new Comparator<LoadedCache>() {
+				public int compare(LoadedCache a, LoadedCache b) {
+					return a.lastUsed < b.lastUsed ? -1 : (a.lastUsed == b.lastUsed ? 0 : 1);
+				}
+			});
+			for (int i = 0; i < candidates.size(); i++) {
+				LoadedCache lc = candidates.get(i);
+				boolean idle = idleMillis > 0 && now - lc.lastUsed >= idleMillis;
+				boolean overBudget = budget > 0 && total > budget && i < candidates.size() - 1;
+				if (!idle && !overBudget)
+					continue;
+				long bytes = lc.cache.getEstimatedBytes();
+				lc.cache = null;
+				lc.loader = null;
+				total -= bytes;
+				log.info("Unloaded the " + (idle ? "idle" : "least recently used") + " dictionary " + lc.dictionaryPath
+						+ " (about " + (bytes >> 20) + "MB).");
+			}
+			if (budget > 0 && total > budget)
+				log.warn("The loaded dictionaries take about " + (total >> 20) + "MB, more than the budget of " + (budget >> 20) + "MB.");
+		}
+	}
 	
 	public static AliasCacheImpl createInstance(File dictionaryPath, String caseSens)
 			throws ResourceInstantiationException {
+		return createInstance(dictionaryPath, caseSens, false);
+	}
+	
+	/**
+	 * Creates a dictionary instance.
+	 * @param dictionaryPath - the dictionary folder
+	 * @param caseSens - the case sensitivity of the dictionary
+	 * @param rebuild - whether to query the RDF database even if there is a
+	 * binary image or a tuple snapshot of the dictionary
+	 */
+	public static AliasCacheImpl createInstance(File dictionaryPath, String caseSens, boolean rebuild)
+			throws ResourceInstantiationException {
 		AliasCacheImpl aliasCacheInstance = new AliasCacheImpl(caseSens);
+		if (rebuild)
+			PrivateRepositoryFeed.discardTupleSnapshot(dictionaryPath);
 		Feed feed = feedFactory.createFeed(dictionaryPath);
 		Set<String> ignoreList = ListReader.fromFile(KIMConstants.KIM_GAZETEER_IGNORE_LIST_PATH,log);
 		
 		try {											
-			aliasCacheInstance.initCache(ignoreList, feed, dictionaryPath);
+			aliasCacheInstance.initCache(ignoreList, feed, dictionaryPath, rebuild);
+		} catch (RemoteException e) {
+			throw new ResourceInstantiationException(e);
+		}
+		return aliasCacheInstance;
+	}
+	
+	/**
+	 * Creates a dictionary instance from the given data feed instead of the
+	 * RDF database of the dictionary folder. The binary image in the folder
+	 * is replaced. Used to build dictionaries of generated data.
+	 * @param dictionaryPath - the dictionary folder
+	 * @param caseSens - the case sensitivity of the dictionary
+	 * @param dataFeed - the rows of alias, instance URI and class URI
+	 */
+	public static AliasCacheImpl createInstance(File dictionaryPath, String caseSens, Feed dataFeed)
+			throws ResourceInstantiationException {
+		AliasCacheImpl aliasCacheInstance = new AliasCacheImpl(caseSens);
+		try {
+			aliasCacheInstance.initCache(null, dataFeed, dictionaryPath, true);
 		} catch (RemoteException e) {
 			throw new ResourceInstantiationException(e);
 		}
@@ -165,7 +898,7 @@ public class AliasCacheImpl implements AliasLookupDictionary {
 		if (alias==null || alias.trim().length() == 0)
 			return false;
 
-		alias = (String) ParsingFrame.frameTT.transform(alias);
+		alias = (String) transformer.transform(alias);
 		if (aliasToIgnore.exists(alias.hashCode(), alias)) {
 			log.info("'" + alias
 					+ "' ignored, because it was found in the ignore list.");
@@ -175,24 +908,53 @@ public class AliasCacheImpl implements AliasLookupDictionary {
 		return true;
 	}
 
-	/** This class is used in deserialization process to initialize the
-	 * <code>aliasInstRegister</code> register */
-	private static class InstanceRegisterLoader
-	implements HashRegister.ContentProcessor {
-		HashRegister instRegister;
-		public InstanceRegisterLoader(HashRegister register) {
-			instRegister = register;
+	/** This class is used to replace the instance identifiers of the
+	 * <code>HashedAlias</code> instances in the alias register, one
+	 * partition of the register per thread */
+	private static class InstanceIdRemapper
+	implements HashRegister.ContentTransformer, HashRegister.PartitionProcessor {
+		final int[] newIds;
+		public InstanceIdRemapper(int[] newIds) {
+			this.newIds = newIds;
 		}
-		public void process(Object[] elements) {
-			if (elements != null) {
-				for (int i=0; i<elements.length; i++) {
-					String shortInst = ((HashedAlias) elements[i]).shortInstURI;
-					instRegister.add(shortInst.hashCode(), shortInst);
-				}
-			}
+		public Serializable transform(int hashValue, Serializable element) {
+			HashedAlias ha = (HashedAlias) element;
+			return new HashedAlias(ha.aliasHash2, ha.prefLen, ha.suffLen,
+					newIds[ha.instID], ha.classID);
+		}
+		public void process(HashRegister.Partition partition) {
+			partition.transformContent(this);
 		}
 	}
 
+	/** Builds a new version of a dictionary in use when a segment of its
+	 * image turns out to be corrupt. The image is flagged by then, so the
+	 * new version is built from the data feed. */
+	private static class ImageRepair implements Runnable {
+		final File dictionaryPath;
+		ImageRepair(File dictionaryPath) {
+			this.dictionaryPath = dictionaryPath;
+		}
+		public void run() {
+			if (reload(dictionaryPath, false) != null)
+				log.warn("Building a new version of " + dictionaryPath + " because its image is corrupt.");
+			else
+				log.warn("The image of " + dictionaryPath + " is corrupt; it will be built again on the next load.");
+		}
+	}
+
+	/** @return the number of threads of the bulk operations over a loaded dictionary */
+	private static int loadThreads() {
+		return Math.max(1, Integer.getInteger(LOAD_THREADS_PROPERTY, Runtime.getRuntime().availableProcessors()));
+	}
+
+	/** @return the threads of the bulk operations over a loaded dictionary,
+	 * <b>null</b> to use only the calling thread */
+	private static ExecutorService newLoadExecutor() {
+		int threads = loadThreads();
+		return threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+	}
+
 	/** This is a blank initialization method. It creates the structure of a new
 	 * Alias cache without filling it with content. This code is separated from 
 	 * the data filling from the semantic repository - for class extension
@@ -202,14 +964,19 @@ public class AliasCacheImpl implements AliasLookupDictionary {
 	protected void initBlankCache(Collection<String> ignoreAliases) {
 		aliasRegister = new HashRegister();
 		aliasPrefixes = new TIntHashSet();
-		aliasInstRegister = new HashRegister();
+		maxAliasLexemes = 0;
+		maxLexemesByFirst = new TIntIntHashMap();
+		instNames = LocalNamePool.EMPTY;
+		aliasIndex = null;
+		loadingIndex = Boolean.getBoolean(ALIAS_INDEX_PROPERTY) ? new AliasIndex.Builder() : null;
+		loadingInstIds = new TObjectIntHashMap();
+		loadingInstNames = new ArrayList<String>();
 		instNS = new ArrayList<String>();
 		classCache = new ArrayList<String>();
 
-		// Create a TextTransformer instance for Alias text normalization
-		Transformer tt = new AliasTextTransformer(
-				caseSensitivity.equals(KIMConstants.CASE_INSENSITIV));
-		ParsingFrame.frameTT = tt;
+		// The TextTransformer for Alias text normalization of this cache
+		Transformer tt = AliasTextTransformer.forCaseSensitivity(caseSensitivity);
+		transformer = tt;
 		aliasToIgnore = new HashRegister();
 		if (ignoreAliases != null) {
 			for (String alias : ignoreAliases) {
@@ -238,6 +1005,17 @@ public class AliasCacheImpl implements AliasLookupDictionary {
 	 */
 	protected void initCache(
 			Collection<String> ignoreAliases, QueryResultListener.Feed dataFeed, File dictionaryPath) throws RemoteException {
+		initCache(ignoreAliases, dataFeed, dictionaryPath, false);
+	}
+
+	/** Same as <code>initCache(ignoreAliases, dataFeed, dictionaryPath)</code>,
+	 * but can skip the serialization source.
+	 * @param ignoreImage - if <b>true</b>, the data is always collected from the
+	 * semantic repository and the serialization file is replaced. 
+	 */
+	protected void initCache(Collection<String> ignoreAliases, QueryResultListener.Feed dataFeed,
+			File dictionaryPath, boolean ignoreImage) throws RemoteException {
+		long start = System.currentTimeMillis();
 		Profiler pro = new Profiler();
 		pro.enableGCCalling(false);
 		pro.printToSystemOut(true);
@@ -245,8 +1023,9 @@ public class AliasCacheImpl implements AliasLookupDictionary {
 		pro.checkPoint("start loading");
 
 		initBlankCache(ignoreAliases);
+		this.dictionaryPath = dictionaryPath;
 
-		File fileTCache = new File(dictionaryPath, "kim.trusted.entities.cache").getAbsoluteFile();
+		File fileTCache = new File(dictionaryPath, IMAGE_NAME).getAbsoluteFile();
 		File flagTCache = new File(dictionaryPath, fileTCache.getName() + ".flag");
 
 		try {
@@ -257,25 +1036,41 @@ public class AliasCacheImpl implements AliasLookupDictionary {
 		}
 
 		boolean flagTLoaded = false;
-		if (!flagTCache.exists() && fileTCache.exists()) {
+		if (!ignoreImage && !flagTCache.exists() && fileTCache.exists()) {
 		    log.info("Loading of trusted entities from "
 					+ fileTCache);
 
 			try {
-				ObjectInputStream ois = new ObjectInputStream(
-						new FileInputStream(fileTCache));
-				Object[] res = (Object[]) ois.readObject();
-				ois.close();
-				aliasRegister = (HashRegister) res[0];
-				aliasPrefixes = (TIntHashSet) res[1];
-				instNS = (ArrayList<String>) res[2];
-				classCache = (ArrayList<String>) res[3];
-
-
-				aliasInstRegister = new HashRegister();
-				// The exactly same Entity InstURI strings are reused
-				aliasRegister.processContent(
-						new InstanceRegisterLoader(aliasInstRegister));				
+				// Images written before the segments are not accepted by open
+				SegmentedImage image = SegmentedImage.open(fileTCache);
+				Object[] res = (Object[]) image.getCore();
+				SegmentedRegister register = new SegmentedRegister(image);
+				// Nothing is kept until the image is read completely, so a
+				// failure leaves the blank structures for the data feed
+				TIntHashSet prefixes = (TIntHashSet) res[0];
+				ArrayList<String> namespaces = (ArrayList<String>) res[1];
+				ArrayList<String> classes = (ArrayList<String>) res[2];
+				Integer maxLexemes = (Integer) res[3];
+				TIntIntHashMap maxByFirst = (TIntIntHashMap) res[4];
+				LocalNamePool names = (LocalNamePool) res[5];
+				AliasIndex index = (AliasIndex) res[6];
+				if (Boolean.valueOf(System.getProperty(LAZY_SEGMENTS_PROPERTY, "true")))
+					log.info(register.getSegmentCount() + " segments will be read on first use.");
+				else
+					register.loadAll();
+				aliasPrefixes = prefixes;
+				instNS = namespaces;
+				classCache = classes;
+				maxAliasLexemes = maxLexemes;
+				maxLexemesByFirst = maxByFirst;
+				instNames = names;
+				aliasIndex = index;
+				if (aliasIndex == null && loadingIndex != null)
+					log.warn("The image has no alias index; rebuild the dictionary to search it by prefix.");
+				loadingIndex = null;
+				aliasRegister = register;
+				loadingInstIds = null;
+				loadingInstNames = null;
 				flagTLoaded = true;
 				log.info(aliasRegister.getElementsCount() + " elements loaded.");
 			} catch (Exception e) {
@@ -285,31 +1080,50 @@ public class AliasCacheImpl implements AliasLookupDictionary {
 			}
 		}
 
-		if (!flagTLoaded) {
+		if (flagTLoaded) {
+			replayDeltaLog();
+			SegmentedRegister register = (SegmentedRegister) aliasRegister;
+			register.setRepair(new ImageRepair(dictionaryPath));
+			if (register.getLoadedSegmentCount() < register.getSegmentCount()
+					&& Boolean.valueOf(System.getProperty(PREFETCH_SEGMENTS_PROPERTY, "true")))
+				register.startPrefetch();
+		}
+		else {
 			loadTrustedMaps(dataFeed);
+			poolInstanceNames();
 
 			try {
-				flagTCache.createNewFile();
-				if (fileTCache.exists())
-					fileTCache.delete();
-
-				ObjectOutputStream oos = new ObjectOutputStream(
-						new FileOutputStream(fileTCache));
-				oos.writeObject(
-						new Object[]{aliasRegister, aliasPrefixes,
-								instNS, classCache});
-				oos.close();
-				flagTCache.delete();
+				saveImage();
+				// The database already reflects the logged changes
+				deltaLog(dictionaryPath).delete();
 			} catch (Exception ex) {
 			    log.error("Saving of trusted entities to "
 						+ fileTCache + " failed.", ex);
 			}
 		}
 
+		loadSource = flagTLoaded ? "binary image" : "data feed";
+		loadedAt = System.currentTimeMillis();
+		loadMillis = loadedAt - start;
 		log.info("Aliases were loaded");
 		pro.checkPoint("cache loaded");
 	}
 
+	/** Writes the base structures as the binary image of the dictionary */
+	private void saveImage() throws IOException {
+		File fileTCache = new File(dictionaryPath, IMAGE_NAME).getAbsoluteFile();
+		File flagTCache = new File(dictionaryPath, fileTCache.getName() + ".flag");
+		flagTCache.createNewFile();
+		if (fileTCache.exists())
+			fileTCache.delete();
+
+		// The image which is replaced may still be mapped; a new file keeps it valid
+		SegmentedImage.write(fileTCache, aliasRegister,
+				new Object[]{aliasPrefixes, instNS, classCache, maxAliasLexemes, maxLexemesByFirst, instNames, aliasIndex},
+				Integer.getInteger(IMAGE_SEGMENTS_PROPERTY, DEFAULT_IMAGE_SEGMENTS));
+		flagTCache.delete();
+	}
+
 	private void ensureCachePath(File cachePath) throws IOException {
 		if (cachePath.exists() && !cachePath.isDirectory())
 			FileUtils.forceDelete(cachePath);
@@ -389,54 +1203,6 @@ public class AliasCacheImpl implements AliasLookupDictionary {
 	}
 
 
-	//=========================================================================
-	// Alias Cache: Statistics Collection section
-	//=========================================================================
-	/** The class is used to collect timing data for profiling purposes */
-	public static class Stats {
-		private static boolean doStats = false;
-		private static final String[] statNames = {
-			"AA_PrefixStore",
-			"AA_URIStringReuse",
-			"AA_InstUriRegisterInsert",
-			"AA_AliasRegisterInsert",
-			"AL_PreParsing",
-			"AL_GetByAliasHash1",
-			"AL_FilterByAliasHash2",
-			"PF_MakeFrame",
-			"PF_Find",
-			"PF_RecalcFrame",
-			"PF_MakeFrameSnapshot"
-		};
-
-		private static long[] statTimes = new long[statNames.length];
-
-		public static void restartStats() {
-			doStats = true;
-			Arrays.fill(statTimes, 0);
-		}
-		public static void stopStats() {  doStats = false;  }
-		public static boolean doStats() {  return doStats;  }
-		private static long curr;
-		private static long last;
-		public static void markIt(int index) {
-			if (doStats) {
-				curr = System.currentTimeMillis();
-				long duration = curr-last;
-				if (index >= 0 && index < statTimes.length)
-					statTimes[index] += duration;
-				last = curr;
-			}
-		}
-		public static void dumpStats() {
-			for (int i=0; i<statNames.length; i++)
-				if (statTimes[i] > 0)
-					System.out.println(
-							"  " + statNames[i] + " = " + statTimes[i] + "ms.");
-		}
-	}
-
-
 	//=========================================================================
 	// Alias Cache: Population section
 	//=========================================================================
@@ -458,10 +1224,15 @@ public class AliasCacheImpl implements AliasLookupDictionary {
 			return;
 
 		String[] enriched = aliasEnrichment(alias);
+		boolean added = false;
 		for (int i=0; i< enriched.length; i++) {
-			if (verifyAlias(enriched[i]))
+			if (verifyAlias(enriched[i])) {
 				simpleAddAlias(instURI, classURI, enriched[i]);
+				added = true;
+			}
 		}
+		if (added && loadingIndex != null)
+			loadingIndex.add(alias, loadingInstanceId(packNS(instURI)), packClass(classURI));
 	}
 
 	/** This method performs the standard alias enrichment. It covers
@@ -471,6 +1242,12 @@ public class AliasCacheImpl implements AliasLookupDictionary {
 	 * representation of the related to the Alias - Entity.
 	 */
 	private String[] aliasEnrichment(String alias) {
+		return aliasEnrichment(alias, caseSensitivity);
+	}
+
+	/** Same as <code>aliasEnrichment(alias)</code> for a dictionary with
+	 * the given case sensitivity. */
+	static String[] aliasEnrichment(String alias, String caseSensitivity) {
 		HashSet<String> aliases = new HashSet<String>();
 		aliases.add(alias);
 		String[] tmp;
@@ -507,40 +1284,86 @@ public class AliasCacheImpl implements AliasLookupDictionary {
 		String shortInstURI = packNS(instURI);
 
 		// Calculate different hash values related with the alias
-		ParsingFrame pfm = new ParsingFrame(alias);
-		do {
-			if (pfm.parseOne() && pfm.frameCanExpand()) {
-				// Add the aliases prefixes to the alias prefix register
-				Stats.markIt(-1);
-				aliasPrefixes.add(pfm.getAliasHash1());
-				Stats.markIt(0);
-			}
-		} while (pfm.frameCanExpand());
-
-		// Add the corresponding instURI in the Entity instance URI register
-		String oldURI = null;
-
-		// Re-usage of the same string for EntityURI for all its Aliases
-		// is expected to save 10% to 15% of the memory
-		oldURI = (String) aliasInstRegister.get(
-				shortInstURI.hashCode(), shortInstURI);
-
-		Stats.markIt(1);
-
-		if (oldURI != null)
-			shortInstURI = oldURI;
-		else
-			aliasInstRegister.add(shortInstURI.hashCode(), shortInstURI);
-		Stats.markIt(2);
+		int[] firstLexeme = new int[1];
+		ParsingFrame pfm = parseAlias(alias, transformer, aliasPrefixes, firstLexeme);
+		maxAliasLexemes = Math.max(maxAliasLexemes, pfm.getLexemeCount());
+		recordLength(maxLexemesByFirst, firstLexeme[0], pfm.getLexemeCount());
 
 		// Add the alias in the alias register
 		aliasRegister.add(
 				pfm.getAliasHash1(),
 				new HashedAlias(pfm.getAliasHash2(),
 						pfm.getPrefixLen(), pfm.getSuffixLen(),
-						shortInstURI,
+						loadingInstanceId(shortInstURI),
 						packClass(classURI)));
-		Stats.markIt(3);
+	}
+
+	/** @return the identifier given to an instance until the name pool is built */
+	private int loadingInstanceId(String shortInstURI) {
+		if (loadingInstIds == null)
+			throw new IllegalStateException("The dictionary is loaded, use applyDelta to add aliases.");
+		if (!loadingInstIds.containsKey(shortInstURI)) {
+			loadingInstIds.put(shortInstURI, loadingInstNames.size());
+			loadingInstNames.add(shortInstURI);
+		}
+		return loadingInstIds.get(shortInstURI);
+	}
+
+	/** Builds the name pool of the instances of the loaded aliases and
+	 * replaces the identifiers given to them while loading by their
+	 * identifiers in the pool. */
+	private void poolInstanceNames() {
+		long start = System.currentTimeMillis();
+		int partitions = 8 * loadThreads();
+		ExecutorService executor = newLoadExecutor();
+		try {
+			int[] newIds = new int[loadingInstNames.size()];
+			instNames = LocalNamePool.build(loadingInstNames, newIds, executor, partitions);
+			loadingInstIds = null;
+			loadingInstNames = null;
+			aliasRegister.processPartitions(new InstanceIdRemapper(newIds), executor, partitions);
+			if (loadingIndex != null) {
+				aliasIndex = loadingIndex.build(newIds, executor, partitions);
+				loadingIndex = null;
+				log.info(aliasIndex.getAliasCount() + " aliases indexed in " + aliasIndex.getEstimatedBytes() + " bytes.");
+			}
+		}
+		finally {
+			if (executor != null)
+				executor.shutdown();
+		}
+		log.info(instNames.size() + " instance URIs pooled in " + instNames.getEstimatedBytes() + " bytes in "
+				+ (System.currentTimeMillis() - start) + "ms.");
+	}
+
+	/** Calculates the hash values of an alias.
+	 * @param alias - the string of the alias
+	 * @param tt - the text transformation of the dictionary
+	 * @param prefixes - the set where the hash-codes of the alias prefixes
+	 * are added
+	 * @param firstLexeme - receives the <b>Alias-Hash-1</b> of the first
+	 * lexeme of the alias at index 0; may be <b>null</b>
+	 * @return the frame of the whole alias
+	 */
+	private static ParsingFrame parseAlias(String alias, Transformer tt, TIntHashSet prefixes, int[] firstLexeme) {
+		ParsingFrame pfm = new ParsingFrame(alias);
+		pfm.setTextTransformer(tt);
+		do {
+			boolean parsed = pfm.parseOne();
+			if (parsed && firstLexeme != null && pfm.getLexemeCount() == 1)
+				firstLexeme[0] = pfm.getAliasHash1();
+			if (parsed && pfm.frameCanExpand()) {
+				// Add the aliases prefixes to the alias prefix register
+				prefixes.add(pfm.getAliasHash1());
+			}
+		} while (pfm.frameCanExpand());
+		return pfm;
+	}
+
+	/** Raises the maximal lexeme count recorded for a first lexeme */
+	static void recordLength(TIntIntHashMap maxLexemes, int firstLexeme, int lexemes) {
+		if (maxLexemes.get(firstLexeme) < lexemes)
+			maxLexemes.put(firstLexeme, lexemes);
 	}
 
 
@@ -557,7 +1380,14 @@ public class AliasCacheImpl implements AliasLookupDictionary {
 	public ArrayList<KimLookupParser.AliasWrapper> lookup(String alias) {
 		ParsingFrame pfm = new ParsingFrame(alias);
 		pfm.parseAll();
-		return lookup(pfm, true);
+		ArrayList<KimLookupParser.AliasWrapper> res = lookup(pfm, true);
+		countLookups(1, res.size());
+		return res;
+	}
+
+	public void countLookups(int frames, int matches) {
+		lookupCount.addAndGet(frames);
+		matchCount.addAndGet(matches);
 	}
 
 	public Collection<KimLookupParser.AliasWrapper> lookup(ParsingFrame pfm) {
@@ -565,49 +1395,408 @@ public class AliasCacheImpl implements AliasLookupDictionary {
 	}
 	private ArrayList<KimLookupParser.AliasWrapper> lookup(
 			ParsingFrame pfm, boolean exactlySame) {
-		Stats.markIt(-1);
+		long t = LookupTimings.ENABLED ? System.nanoTime() : 0;
 		ArrayList<KimLookupParser.AliasWrapper> res = new ArrayList<KimLookupParser.AliasWrapper>();
 
-		Object[] tmp = aliasRegister.get(pfm.getAliasHash1());
-		Stats.markIt(5);
-		if (tmp == null || tmp.length==0)
+		DictionaryOverlay ov = overlay;
+		pfm.setTextTransformer(transformer);
+		int hash1 = pfm.getAliasHash1();
+		Object[] tmp = aliasRegister.get(hash1);
+		HashedAlias[] added = ov.getAdded(hash1);
+		if (LookupTimings.ENABLED)
+			t = LookupTimings.record(Stage.HASH1_LOOKUP, t);
+		if ((tmp == null || tmp.length==0) && added == null)
 			return res;
 
-		for (int i=0; i<tmp.length; i++) {
-			HashedAlias ha = (HashedAlias)tmp[i];
-			if (!exactlySame) {
-				pfm.setNewPrefSufLen(ha.prefLen, ha.suffLen);
-			}
-			if (pfm.getAliasHash2() == ha.aliasHash2) {
-				res.add(new KimLookupParser.AliasWrapper(
-						unpackNS(ha.shortInstURI),
-						unpackClass(ha.classID),
-						pfm.getAliasStart(), pfm.getAliasEnd()));
+		if (tmp != null) {
+			boolean filter = ov.hasRemovals();
+			for (int i=0; i<tmp.length; i++) {
+				HashedAlias ha = (HashedAlias)tmp[i];
+				if (!filter || !ov.hides(hash1, ha))
+					match(pfm, ha, exactlySame, ov, res);
 			}
 		}
-		Stats.markIt(6);
+		if (added != null) {
+			for (int i=0; i<added.length; i++)
+				match(pfm, added[i], exactlySame, ov, res);
+		}
+		if (LookupTimings.ENABLED)
+			LookupTimings.record(Stage.HASH2_FILTER, t);
 
 		return res;
 	}
 
+	private void match(ParsingFrame pfm, HashedAlias ha, boolean exactlySame,
+			DictionaryOverlay ov, ArrayList<KimLookupParser.AliasWrapper> res) {
+		if (!exactlySame) {
+			pfm.setNewPrefSufLen(ha.prefLen, ha.suffLen);
+		}
+		if (pfm.getAliasHash2() == ha.aliasHash2) {
+			res.add(new KimLookupParser.AliasWrapper(
+					unpackNS(instanceName(ov, ha.instID)),
+					unpackClass(ha.classID),
+					pfm.getAliasStart(), pfm.getAliasEnd()));
+		}
+	}
+
 	public boolean canPhraseGrow(ParsingFrame pfm) {
-		return aliasPrefixes.contains(pfm.getAliasHash1());
+		pfm.setTextTransformer(transformer);
+		int hash1 = pfm.getAliasHash1();
+		return aliasPrefixes.contains(hash1) || overlay.addedPrefixes.contains(hash1);
+	}
+	public int getMaxPhraseLength(ParsingFrame pfm) {
+		pfm.setTextTransformer(transformer);
+		int hash1 = pfm.getAliasHash1();
+		return Math.max(maxLexemesByFirst.get(hash1), overlay.addedMaxLexemes.get(hash1));
+	}
+	/** @return the maximal number of lexemes of an alias, including the added ones */
+	public int getMaxAliasLexemes() {
+		int max = maxAliasLexemes;
+		for (int lexemes : overlay.addedMaxLexemes.getValues())
+			max = Math.max(max, lexemes);
+		return max;
 	}
 	public boolean isTrustedEntityURI(String instURI) {
-		String shortURI = packNS(instURI);
-		return aliasInstRegister.exists(shortURI.hashCode(), shortURI);
+		DictionaryOverlay ov = overlay;
+		int instID = instanceId(ov, packNS(instURI));
+		if (instID < 0)
+			return false;
+		if (ov.addsInstance(instID))
+			return true;
+		if (ov.removesInstance(instID))
+			return false;
+		return instID < instNames.size();
 	}
+	/** @return the number of entities; removed entities are counted until the next compaction */
 	public int getEntityCount() {
-		return aliasInstRegister.getElementsCount();
+		return instNames.size() + overlay.getAddedInstanceCount();
 	}
+	/** @return the number of aliases; removed aliases are counted until the next compaction */
 	public int getAliasCount() {
-		return aliasRegister.getElementsCount();
+		return aliasRegister.getElementsCount() + overlay.getAddedCount();
+	}
+	/**
+	 * A rough estimate of the heap taken by the dictionary, from the
+	 * typical sizes of an alias record, an instance URI added by a change
+	 * and a prefix hash, and the size of the name pool.
+	 * @return the estimated size in bytes
+	 */
+	public long getEstimatedBytes() {
+		DictionaryOverlay ov = overlay;
+		return 48L * (aliasRegister.getElementsCount() + ov.getAddedCount())
+			+ instNames.getEstimatedBytes() + 112L * ov.getAddedInstanceCount()
+			+ 10L * (aliasPrefixes.size() + ov.addedPrefixes.size())
+			+ (aliasIndex == null ? 0 : aliasIndex.getEstimatedBytes());
+	}
+
+	/** @return whether the dictionary was built with an <code>AliasIndex</code> */
+	public boolean hasAliasIndex() {
+		return aliasIndex != null;
+	}
+
+	/**
+	 * Finds the aliases which start with a prefix, in the
+	 * <code>AliasIndex</code> of the dictionary. The case and the
+	 * differences in white space are ignored. The aliases removed by
+	 * changes are left out; the added ones are not found.
+	 * @param prefix - the start of the aliases
+	 * @param limit - the maximal number of completions
+	 * @return the completions, the shortest first
+	 * @throws IllegalStateException - if the dictionary has no index
+	 */
+	public List<AliasIndex.Completion> complete(String prefix, int limit) {
+		AliasIndex index = aliasIndex;
+		if (index == null)
+			throw new IllegalStateException("The dictionary " + dictionaryPath
+					+ " was built without an alias index. Set " + ALIAS_INDEX_PROPERTY + " and rebuild it.");
+		return index.complete(prefix, limit, new IndexResolver(overlay));
+	}
+
+	/** Resolves the entries of the alias index through an overlay */
+	private class IndexResolver implements AliasIndex.Resolver {
+		private final DictionaryOverlay ov;
+
+		IndexResolver(DictionaryOverlay ov) {
+			this.ov = ov;
+		}
+
+		public boolean accept(String alias, int instID, int classID) {
+			if (!ov.hasRemovals())
+				return true;
+			ParsingFrame pfm = parseAlias(alias, transformer, new TIntHashSet(), null);
+			return !ov.hides(pfm.getAliasHash1(), new HashedAlias(pfm.getAliasHash2(),
+					pfm.getPrefixLen(), pfm.getSuffixLen(), instID, classID));
+		}
+
+		public String instanceURI(int instID) {
+			return unpackNS(instanceName(ov, instID));
+		}
+
+		public String classURI(int classID) {
+			return unpackClass(classID);
+		}
+	}
+
+
+	//=========================================================================
+	// Alias Cache: Incremental Changes section
+	//=========================================================================
+	/** Applies a delta to this dictionary, or to the compacted copy which replaced it
+	 * @return the number of changes in the overlay of the dictionary
+	 */
+	private int apply(DictionaryDelta delta) throws IOException {
+		AliasCacheImpl target;
+		synchronized (this) {
+			target = compactedInto;
+			if (target == null) {
+				appendDeltaLog(deltaLog(dictionaryPath), delta);
+				applyToOverlay(delta);
+				return overlay.getChangeCount();
+			}
+		}
+		return target.apply(delta);
+	}
+
+	/** Applies a delta to a copy of the overlay and publishes the copy.
+	 * Called while holding the lock of this instance or before it is published. */
+	private void applyToOverlay(DictionaryDelta delta) {
+		DictionaryOverlay next = new DictionaryOverlay(overlay);
+		for (DictionaryDelta.Change c : delta.getChanges()) {
+			switch (c.kind) {
+			case ADD_LABEL:
+				if (c.label != null)
+					addToOverlay(next, c.instURI, c.classURI, c.label);
+				break;
+			case REMOVE_LABEL:
+				if (c.label != null)
+					removeFromOverlay(next, c.instURI, c.label);
+				break;
+			case REMOVE_INSTANCE:
+				int instID = instanceId(next, packNS(c.instURI));
+				if (instID >= 0)
+					next.removeInstance(instID);
+				break;
+			case REMOVE_CLASS:
+				int classID = classCache.indexOf(c.classURI);
+				if (classID >= 0)
+					next.removeClass(classID);
+				break;
+			}
+		}
+		next.countChanges(delta);
+		overlay = next;
+	}
+
+	/** Adds the same alias variants as <code>addAlias</code>, without class priority checks */
+	private void addToOverlay(DictionaryOverlay next, String instURI, String classURI, String label) {
+		String shortInstURI = packNS(instURI);
+		int instID = instanceId(next, shortInstURI);
+		if (instID < 0)
+			instID = instNames.size() + next.addName(shortInstURI);
+		int classID = packClass(classURI);
+		for (String alias : aliasEnrichment(label)) {
+			if (!verifyAlias(alias))
+				continue;
+			TIntHashSet prefixes = new TIntHashSet();
+			int[] firstLexeme = new int[1];
+			ParsingFrame pfm = parseAlias(alias, transformer, prefixes, firstLexeme);
+			HashedAlias ha = new HashedAlias(pfm.getAliasHash2(),
+					pfm.getPrefixLen(), pfm.getSuffixLen(), instID, classID);
+			next.add(pfm.getAliasHash1(), ha, prefixes.toArray(), firstLexeme[0], pfm.getLexemeCount(),
+					baseContains(pfm.getAliasHash1(), ha));
+		}
+	}
+
+	private void removeFromOverlay(DictionaryOverlay next, String instURI, String label) {
+		int instID = instanceId(next, packNS(instURI));
+		if (instID < 0)
+			return;
+		for (String alias : aliasEnrichment(label)) {
+			ParsingFrame pfm = parseAlias(alias, transformer, new TIntHashSet(), null);
+			next.removeLabel(pfm.getAliasHash1(), pfm.getAliasHash2(), instID);
+		}
+	}
+
+	/** Checks whether the alias register contains an alias equal to the given one and of the same class */
+	private boolean baseContains(int hash1, HashedAlias ha) {
+		Object[] tmp = aliasRegister.get(hash1);
+		if (tmp == null)
+			return false;
+		for (Object o : tmp) {
+			if (ha.equals(o) && ((HashedAlias) o).classID == ha.classID)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Builds a copy with the changes of the overlay folded into the base
+	 * structures, saves it as the binary image and clears the delta log.
+	 * The changes applied in the meantime are carried over to the copy and
+	 * later ones are forwarded to it.<br>
+	 * The prefixes of the removed aliases are kept; they only cause some
+	 * needless attempts to expand the parsing frame.
+	 */
+	private AliasCacheImpl compact() throws IOException {
+		long start = System.currentTimeMillis();
+		final AliasCacheImpl copy = new AliasCacheImpl(caseSensitivity);
+		final DictionaryOverlay snapshot;
+		synchronized (this) {
+			snapshot = overlay;
+			copy.instNS = new ArrayList<String>(instNS);
+			copy.classCache = new ArrayList<String>(classCache);
+		}
+		copy.dictionaryPath = dictionaryPath;
+		copy.aliasToIgnore = aliasToIgnore;
+		copy.transformer = transformer;
+		copy.aliasPrefixes = (TIntHashSet) aliasPrefixes.clone();
+		copy.aliasPrefixes.addAll(snapshot.addedPrefixes.toArray());
+		copy.maxAliasLexemes = getMaxAliasLexemes();
+		copy.maxLexemesByFirst = (TIntIntHashMap) maxLexemesByFirst.clone();
+		int[] keys = snapshot.addedMaxLexemes.keys();
+		for (int i=0; i<keys.length; i++)
+			recordLength(copy.maxLexemesByFirst, keys[i], snapshot.addedMaxLexemes.get(keys[i]));
+		copy.aliasRegister = new HashRegister();
+		aliasRegister.processContent(new HashRegister.HashedContentProcessor() {
+			public void process(int hashValue, Object[] elements) {
+				if (elements == null)
+					return;
+				for (int i=0; i<elements.length; i++) {
+					if (!snapshot.hides(hashValue, (HashedAlias) elements[i]))
+						copy.aliasRegister.add(hashValue, (HashedAlias) elements[i]);
+				}
+			}
+		});
+		for (Map.Entry<Integer, HashedAlias[]> e : snapshot.getAdded().entrySet()) {
+			for (HashedAlias ha : e.getValue())
+				copy.aliasRegister.add(e.getKey(), ha);
+		}
+		// A new name pool of the instances which still have aliases
+		int partitions = 8 * loadThreads();
+		ExecutorService executor = newLoadExecutor();
+		try {
+			final boolean[] used = new boolean[instNames.size() + snapshot.getNameCount()];
+			final HashRegister.ContentProcessor marker = new HashRegister.ContentProcessor() {
+				public void process(Object[] elements) {
+					if (elements != null) {
+						for (int i=0; i<elements.length; i++)
+							used[((HashedAlias) elements[i]).instID] = true;
+					}
+				}
+			};
+			copy.aliasRegister.processPartitions(new HashRegister.PartitionProcessor() {
+				public void process(HashRegister.Partition partition) {
+					partition.processContent(marker);
+				}
+			}, executor, partitions);
+			TIntArrayList oldIds = new TIntArrayList();
+			List<String> names = new ArrayList<String>();
+			for (int i=0; i<used.length; i++) {
+				if (used[i]) {
+					oldIds.add(i);
+					names.add(instanceName(snapshot, i));
+				}
+			}
+			int[] ids = new int[names.size()];
+			copy.instNames = LocalNamePool.build(names, ids, executor, partitions);
+			int[] newIds = new int[used.length];
+			for (int i=0; i<ids.length; i++)
+				newIds[oldIds.get(i)] = ids[i];
+			copy.aliasRegister.processPartitions(new InstanceIdRemapper(newIds), executor, partitions);
+			if (aliasIndex != null) {
+				// The instances without aliases are dropped from the index
+				int[] indexIds = new int[instNames.size()];
+				for (int i=0; i<indexIds.length; i++)
+					indexIds[i] = used[i] ? newIds[i] : -1;
+				copy.aliasIndex = aliasIndex.remap(indexIds, new IndexResolver(snapshot));
+			}
+		}
+		finally {
+			if (executor != null)
+				executor.shutdown();
+		}
+		copy.saveImage();
+
+		synchronized (this) {
+			List<DictionaryDelta> later = overlay.history.subList(
+					snapshot.history.size(), overlay.history.size());
+			copy.rewriteDeltaLog(later);
+			for (DictionaryDelta delta : later)
+				copy.applyToOverlay(delta);
+			compactedInto = copy;
+		}
+		copy.loadSource = "compaction";
+		copy.loadedAt = System.currentTimeMillis();
+		copy.loadMillis = copy.loadedAt - start;
+		log.info(snapshot.getChangeCount() + " changes were compacted into " + dictionaryPath + " in "
+				+ (System.currentTimeMillis() - start) + "ms.");
+		return copy;
+	}
+
+	/** Applies the delta log of the dictionary, if there is one */
+	private void replayDeltaLog() {
+		File deltaLog = deltaLog(dictionaryPath);
+		if (!deltaLog.exists())
+			return;
+		try {
+			DictionaryDelta delta = DictionaryDelta.read(deltaLog);
+			applyToOverlay(delta);
+			log.info(delta.size() + " changes replayed from " + deltaLog);
+		}
+		catch (IOException e) {
+			log.error("Could not replay the changes from " + deltaLog, e);
+		}
+	}
+
+	/** Replaces the delta log with the given deltas */
+	private void rewriteDeltaLog(List<DictionaryDelta> deltas) throws IOException {
+		File deltaLog = deltaLog(dictionaryPath);
+		File tmp = new File(dictionaryPath, DELTA_LOG_NAME + ".tmp");
+		tmp.delete();
+		for (DictionaryDelta delta : deltas)
+			appendDeltaLog(tmp, delta);
+		deltaLog.delete();
+		if (tmp.exists() && !tmp.renameTo(deltaLog))
+			throw new IOException("Could not replace " + deltaLog);
+	}
+
+	private static File deltaLog(File dictionaryPath) {
+		return new File(dictionaryPath, DELTA_LOG_NAME);
+	}
+
+	/** Appends a delta to a log and forces it to the disk */
+	private static void appendDeltaLog(File file, DictionaryDelta delta) throws IOException {
+		FileOutputStream fos = new FileOutputStream(file, true);
+		try {
+			Writer out = new OutputStreamWriter(fos, "UTF-8");
+			delta.write(out);
+			out.flush();
+			fos.getFD().sync();
+		}
+		finally {
+			fos.close();
+		}
 	}
 
 
 	//=========================================================================
 	// Alias Cache: URI Pack/Unpack tools
 	//=========================================================================
+	/** @return the identifier of a short instance URI in the name pool or
+	 * among the names kept by the overlay; -1 if it has none */
+	private int instanceId(DictionaryOverlay ov, String shortInstURI) {
+		int id = instNames.indexOf(shortInstURI);
+		if (id < 0) {
+			id = ov.nameIndex(shortInstURI);
+			if (id >= 0)
+				id += instNames.size();
+		}
+		return id;
+	}
+	private String instanceName(DictionaryOverlay ov, int instID) {
+		int pooled = instNames.size();
+		return instID < pooled ? instNames.get(instID) : ov.getName(instID - pooled);
+	}
 	private String packNS(String fullURI) {
 		String ns, ln;
 		try {
@@ -0,0 +1,258 @@
+package com.ontotext.kim.model;
+
+import gnu.trove.TIntArrayList;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * A sorted index of the aliases of a dictionary, which finds the aliases
+ * starting with a prefix, e.g. for type-ahead search.<br>
+ * <br>
+ * The aliases are kept in a <code>LocalNamePool</code> as keys of their
+ * normalized form (lower case, single spaces) and their original text, so
+ * they are front-coded and sorted by the normalized form. Every key has the
+ * instance and class identifiers of the aliases with that text. A prefix is
+ * found by binary search over the blocks of the pool and the aliases are
+ * read in sorted order from there, so a query decodes a few blocks
+ * regardless of the size of the dictionary. The shortest completions come
+ * first, as they sort before their own extensions.<br>
+ * The index is built with the dictionary from the data feed and is kept in
+ * its binary image; the changes applied to a loaded dictionary do not add
+ * aliases to it.
+ *
+ * @author danko
+ */
+public class AliasIndex implements Serializable {
+	private static final long serialVersionUID = 4900L;
+
+	/** Separates the normalized form of an alias from its text in a key.
+	 * It sorts before every other character, so the keys are sorted by
+	 * the normalized form first. */
+	private static final char SEPARATOR = '\u0000';
+
+	/** The keys of the aliases */
+	private final LocalNamePool keys;
+	/** The first entry of every key, followed by the number of entries */
+	private final int[] entryStart;
+	private final int[] instIDs;
+	private final int[] classIDs;
+
+	private AliasIndex(LocalNamePool keys, int[] entryStart, int[] instIDs, int[] classIDs) {
+		this.keys = keys;
+		this.entryStart = entryStart;
+		this.instIDs = instIDs;
+		this.classIDs = classIDs;
+	}
+
+	/** Decides which entries of the index are found and gives their URIs */
+	public interface Resolver {
+		/** @return whether the alias of the instance and class is still in the dictionary */
+		boolean accept(String alias, int instID, int classID);
+		String instanceURI(int instID);
+		String classURI(int classID);
+	}
+
+	/** An alias which starts with the searched prefix */
+	public static class Completion {
+		public final String alias;
+		public final String instURI;
+		public final String classURI;
+
+		public Completion(String alias, String instURI, String classURI) {
+			this.alias = alias;
+			this.instURI = instURI;
+			this.classURI = classURI;
+		}
+
+		@Override
+		public String toString() {
+			return alias + " " + instURI + " " + classURI;
+		}
+	}
+
+	/** Collects the aliases of a dictionary while it is loaded */
+	public static class Builder {
+		private final ArrayList<String> aliases = new ArrayList<String>();
+		private final TIntArrayList instIDs = new TIntArrayList();
+		private final TIntArrayList classIDs = new TIntArrayList();
+
+		/**
+		 * @param alias - the text of the alias
+		 * @param instID - the identifier of its instance while loading
+		 * @param classID - the identifier of its class
+		 */
+		public void add(String alias, int instID, int classID) {
+			String normalized = normalize(alias, true);
+			if (normalized.length() == 0)
+				return;
+			aliases.add(normalized + SEPARATOR + alias);
+			instIDs.add(instID);
+			classIDs.add(classID);
+		}
+
+		/**
+		 * Sorts and encodes the collected aliases.
+		 * @param newInstIds - the final identifiers of the instances by the
+		 * identifiers given to <code>add</code>
+		 * @param executor - the threads which sort the aliases; <b>null</b>
+		 * to sort them in the calling thread
+		 * @param partitions - the number of partitions of the sort
+		 * @return the index
+		 */
+		public AliasIndex build(int[] newInstIds, ExecutorService executor, int partitions) {
+			int n = aliases.size();
+			int[] ids = new int[n];
+			LocalNamePool keys = LocalNamePool.build(aliases, ids, executor, partitions);
+			aliases.clear();
+			int[] inst = new int[n];
+			for (int i=0; i<n; i++)
+				inst[i] = newInstIds[instIDs.get(i)];
+			return sort(keys, ids, inst, classIDs.toNativeArray());
+		}
+	}
+
+	/** Groups the entries by key and drops the repeated ones */
+	private static AliasIndex sort(LocalNamePool keys, int[] keyIds, int[] inst, int[] cls) {
+		int[] start = new int[keys.size() + 1];
+		for (int i=0; i<keyIds.length; i++)
+			start[keyIds[i] + 1]++;
+		for (int k=0; k<keys.size(); k++)
+			start[k + 1] += start[k];
+		int[] fill = new int[keys.size()];
+		int[] sortedInst = new int[keyIds.length];
+		int[] sortedCls = new int[keyIds.length];
+		for (int i=0; i<keyIds.length; i++) {
+			int pos = start[keyIds[i]] + fill[keyIds[i]]++;
+			sortedInst[pos] = inst[i];
+			sortedCls[pos] = cls[i];
+		}
+		// Keep the first of the equal entries of every key
+		TIntArrayList outInst = new TIntArrayList(keyIds.length);
+		TIntArrayList outCls = new TIntArrayList(keyIds.length);
+		int[] outStart = new int[keys.size() + 1];
+		for (int k=0; k<keys.size(); k++) {
+			outStart[k] = outInst.size();
+			for (int i=start[k]; i<start[k + 1]; i++) {
+				boolean repeated = false;
+				for (int j=outStart[k]; j<outInst.size() && !repeated; j++)
+					repeated = outInst.get(j) == sortedInst[i] && outCls.get(j) == sortedCls[i];
+				if (!repeated) {
+					outInst.add(sortedInst[i]);
+					outCls.add(sortedCls[i]);
+				}
+			}
+		}
+		outStart[keys.size()] = outInst.size();
+		return new AliasIndex(keys, outStart, outInst.toNativeArray(), outCls.toNativeArray());
+	}
+
+	/**
+	 * Makes a copy for new instance identifiers, e.g. after a compaction.
+	 * @param newInstIds - the new identifier by the current one; -1 drops
+	 * the entries of the instance
+	 * @param resolver - drops the entries it does not accept; its URIs
+	 * are not used
+	 * @return the copy
+	 */
+	public AliasIndex remap(int[] newInstIds, Resolver resolver) {
+		TIntArrayList keyIds = new TIntArrayList();
+		TIntArrayList inst = new TIntArrayList();
+		TIntArrayList cls = new TIntArrayList();
+		List<String> kept = new ArrayList<String>();
+		for (int k=0; k<keys.size(); k++) {
+			String key = keys.get(k);
+			String alias = key.substring(key.indexOf(SEPARATOR) + 1);
+			int keyId = -1;
+			for (int i=entryStart[k]; i<entryStart[k + 1]; i++) {
+				int newId = newInstIds[instIDs[i]];
+				if (newId < 0 || !resolver.accept(alias, instIDs[i], classIDs[i]))
+					continue;
+				if (keyId < 0) {
+					keyId = kept.size();
+					kept.add(key);
+				}
+				keyIds.add(keyId);
+				inst.add(newId);
+				cls.add(classIDs[i]);
+			}
+		}
+		int[] ids = new int[kept.size()];
+		LocalNamePool pool = LocalNamePool.build(kept, ids, null, 1);
+		int[] newKeyIds = keyIds.toNativeArray();
+		for (int i=0; i<newKeyIds.length; i++)
+			newKeyIds[i] = ids[newKeyIds[i]];
+		return sort(pool, newKeyIds, inst.toNativeArray(), cls.toNativeArray());
+	}
+
+	/**
+	 * Finds the aliases which start with a prefix, ignoring the case and
+	 * the differences in white space.
+	 * @param prefix - the start of the aliases
+	 * @param limit - the maximal number of completions
+	 * @param resolver - filters the entries and gives their URIs
+	 * @return the completions in the order of their normalized form
+	 */
+	public List<Completion> complete(String prefix, int limit, Resolver resolver) {
+		List<Completion> res = new ArrayList<Completion>();
+		String normalized = normalize(prefix, false);
+		if (normalized.length() == 0 || limit <= 0)
+			return res;
+		for (int k=keys.ceiling(normalized); k<keys.size() && res.size() < limit; k++) {
+			String key = keys.get(k);
+			if (!key.startsWith(normalized))
+				break;
+			String alias = key.substring(key.indexOf(SEPARATOR) + 1);
+			for (int i=entryStart[k]; i<entryStart[k + 1] && res.size() < limit; i++) {
+				if (resolver.accept(alias, instIDs[i], classIDs[i]))
+					res.add(new Completion(alias, resolver.instanceURI(instIDs[i]),
+							resolver.classURI(classIDs[i])));
+			}
+		}
+		return res;
+	}
+
+	/** @return the number of distinct aliases */
+	public int getAliasCount() {
+		return keys.size();
+	}
+
+	/** @return the number of aliases with their instances and classes */
+	public int getEntryCount() {
+		return instIDs.length;
+	}
+
+	/** @return the bytes of the keys and of the identifier arrays */
+	public long getEstimatedBytes() {
+		return keys.getEstimatedBytes() + 4L * (entryStart.length + instIDs.length + classIDs.length) + 48;
+	}
+
+	/**
+	 * Turns the text to lower case and every run of white space and
+	 * control characters to a single space.
+	 * @param text - an alias or a prefix
+	 * @param trimEnd - whether to drop a space at the end; a prefix keeps
+	 * it, as it stands for the end of a word
+	 * @return the normalized text
+	 */
+	static String normalize(String text, boolean trimEnd) {
+		StringBuilder sb = new StringBuilder(text.length());
+		boolean space = false;
+		for (int i=0; i<text.length(); i++) {
+			char c = text.charAt(i);
+			if (c <= ' ' || Character.isWhitespace(c)) {
+				space = sb.length() > 0;
+				continue;
+			}
+			if (space)
+				sb.append(' ');
+			space = false;
+			sb.append(Character.toLowerCase(c));
+		}
+		if (space && !trimEnd)
+			sb.append(' ');
+		return sb.toString();
+	}
+}
@@ -2,6 +2,8 @@ package com.ontotext.kim.model;
 
 import org.apache.commons.collections.Transformer;
 
+import com.ontotext.kim.KIMConstants;
+
 /**
  * This class implements specific text normalization logic used by the class
  * <code>ParsingFrame</code>. It is intended to remove insignificant specifics
@@ -11,12 +13,26 @@ import org.apache.commons.collections.Transformer;
  *  - The case of letters (only in case-insensitive mode).<br>
  *  <br>
  *  This class is left open for addition of other normalization procedures
- *  if such need arises.
+ *  if such need arises.<br>
+ *  The instances are stateless, so the dictionaries with the same case
+ *  sensitivity share one from <code>forCaseSensitivity</code>.
  *  
  * @author danko
  *
  */
 public class AliasTextTransformer implements Transformer {
+    private static final AliasTextTransformer CASE_INSENSITIVE = new AliasTextTransformer(true);
+    private static final AliasTextTransformer CASE_SENSITIVE = new AliasTextTransformer(false);
+    
+    /**
+     * @param caseSensitivity - one of the case sensitivity constants of
+     * <code>KIMConstants</code>
+     * @return the shared transformer of a dictionary with the given case sensitivity
+     */
+    public static AliasTextTransformer forCaseSensitivity(String caseSensitivity) {
+        return KIMConstants.CASE_INSENSITIV.equals(caseSensitivity) ? CASE_INSENSITIVE : CASE_SENSITIVE;
+    }
+    
     private final boolean toLower;
     private boolean isWs(char c) { return Character.isWhitespace(c); }
     private boolean isUc(char c) {  return Character.isUpperCase(c); }
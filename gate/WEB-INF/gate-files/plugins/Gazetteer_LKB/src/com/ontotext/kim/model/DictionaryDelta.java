@@ -0,0 +1,153 @@
+package com.ontotext.kim.model;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * A set of changes to a dictionary, which can be applied to a loaded
+ * <code>AliasCacheImpl</code> without rebuilding it.<br>
+ * <br>
+ * The text form has one change per line, with tab-separated fields:<br>
+ * <code>+ instURI classURI label</code> - adds a label of an instance;<br>
+ * <code>- instURI label</code> - removes a label of an instance;<br>
+ * <code>-instance instURI</code> - removes an instance with all its labels;<br>
+ * <code>-class classURI</code> - removes the labels of all instances of a class.<br>
+ * The label is the last field and is taken up to the end of the line. Empty
+ * lines and lines starting with <code>#</code> are ignored.
+ */
+public class DictionaryDelta {
+
+	public enum Kind {
+		ADD_LABEL("+"), REMOVE_LABEL("-"), REMOVE_INSTANCE("-instance"), REMOVE_CLASS("-class");
+
+		private final String mark;
+
+		Kind(String mark) {
+			this.mark = mark;
+		}
+	}
+
+	/** A single change; the fields which do not apply to its kind are <b>null</b> */
+	public static class Change {
+		public final Kind kind;
+		public final String instURI;
+		public final String classURI;
+		public final String label;
+
+		Change(Kind kind, String instURI, String classURI, String label) {
+			this.kind = kind;
+			this.instURI = instURI;
+			this.classURI = classURI;
+			this.label = label;
+		}
+	}
+
+	private final List<Change> changes = new ArrayList<Change>();
+
+	public DictionaryDelta addLabel(String instURI, String classURI, String label) {
+		changes.add(new Change(Kind.ADD_LABEL, instURI, classURI, label));
+		return this;
+	}
+
+	public DictionaryDelta removeLabel(String instURI, String label) {
+		changes.add(new Change(Kind.REMOVE_LABEL, instURI, null, label));
+		return this;
+	}
+
+	public DictionaryDelta removeInstance(String instURI) {
+		changes.add(new Change(Kind.REMOVE_INSTANCE, instURI, null, null));
+		return this;
+	}
+
+	public DictionaryDelta removeClass(String classURI) {
+		changes.add(new Change(Kind.REMOVE_CLASS, null, classURI, null));
+		return this;
+	}
+
+	public List<Change> getChanges() {
+		return Collections.unmodifiableList(changes);
+	}
+
+	public int size() {
+		return changes.size();
+	}
+
+	/**
+	 * Reads a delta in the text form from a UTF-8 file.
+	 * @param file - the delta file
+	 * @return the delta
+	 * @throws IOException - if the file cannot be read or has an invalid line
+	 */
+	public static DictionaryDelta read(File file) throws IOException {
+		Reader in = new InputStreamReader(new FileInputStream(file), "UTF-8");
+		try {
+			return read(in);
+		}
+		finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	/**
+	 * Reads a delta in the text form.
+	 * @param in - the source of the delta, not closed by this method
+	 * @return the delta
+	 * @throws IOException - if the source cannot be read or has an invalid line
+	 */
+	public static DictionaryDelta read(Reader in) throws IOException {
+		DictionaryDelta delta = new DictionaryDelta();
+		BufferedReader reader = new BufferedReader(in);
+		String line;
+		int lineNo = 0;
+		while ((line = reader.readLine()) != null) {
+			++lineNo;
+			if (line.trim().length() == 0 || line.startsWith("#"))
+				continue;
+			String[] f = line.split("\t", 4);
+			Kind kind = null;
+			for (Kind k : Kind.values()) {
+				if (k.mark.equals(f[0]))
+					kind = k;
+			}
+			if (kind == Kind.ADD_LABEL && f.length == 4)
+				delta.addLabel(f[1], f[2], f[3]);
+			else if (kind == Kind.REMOVE_LABEL && f.length >= 3)
+				delta.removeLabel(f[1], line.substring(f[0].length() + f[1].length() + 2));
+			else if (kind == Kind.REMOVE_INSTANCE && f.length == 2)
+				delta.removeInstance(f[1]);
+			else if (kind == Kind.REMOVE_CLASS && f.length == 2)
+				delta.removeClass(f[1]);
+			else
+				throw new IOException("Invalid dictionary delta at line " + lineNo + ": " + line);
+		}
+		return delta;
+	}
+
+	/**
+	 * Writes the delta in the text form.
+	 * @param out - the destination, not closed by this method
+	 * @throws IOException - if writing fails
+	 */
+	public void write(Writer out) throws IOException {
+		for (Change c : changes) {
+			out.write(c.kind.mark);
+			switch (c.kind) {
+			case ADD_LABEL:  out.write("\t" + c.instURI + "\t" + c.classURI + "\t" + c.label);  break;
+			case REMOVE_LABEL:  out.write("\t" + c.instURI + "\t" + c.label);  break;
+			case REMOVE_INSTANCE:  out.write("\t" + c.instURI);  break;
+			case REMOVE_CLASS:  out.write("\t" + c.classURI);  break;
+			}
+			out.write("\n");
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package com.ontotext.kim.model;
+
+import java.util.Date;
+
+/**
+ * The JMX view of a dictionary in use, registered by <code>AliasCacheImpl</code>
+ * under <code>com.ontotext.kim:type=Dictionary,path=<i>folder</i></code>
+ * while the dictionary has clients. While the dictionary is unloaded the
+ * counts are 0 and the distributions are empty; reading the attributes does
+ * not load it, nor the unread segments of its image. The counts include the
+ * applied changes.
+ */
+public interface DictionaryInfoMBean {
+
+	String getDictionaryPath();
+
+	String getCaseSensitivity();
+
+	/** @return whether the dictionary is in memory */
+	boolean isLoaded();
+
+	/** @return the number of acquisitions which have not been released */
+	int getClientCount();
+
+	/** @return where the current version was loaded from: the binary image,
+	 * the data feed or a compaction */
+	String getLoadSource();
+
+	/** @return the milliseconds it took to load or build the current version */
+	long getLoadTimeMillis();
+
+	/** @return when the current version was loaded */
+	Date getLoadedAt();
+
+	int getAliasCount();
+
+	int getInstanceCount();
+
+	int getClassCount();
+
+	int getNamespaceCount();
+
+	/** @return the number of hash-codes in the prefix set */
+	int getPrefixCount();
+
+	int getMaxAliasLexemes();
+
+	/** @return the number of changes applied since the last compaction */
+	int getChangeCount();
+
+	/** @return the number of segments of the image the alias register is
+	 * read from; 0 if the register was built in memory */
+	int getSegmentCount();
+
+	/** @return the number of segments which are read; the distributions
+	 * and the size of the alias register cover only these */
+	int getLoadedSegmentCount();
+
+	/** @return the number of slots of the register with 0, 1, 2... hash-codes;
+	 * the last element counts the slots with that many or more */
+	int[] getBucketSizeDistribution();
+
+	/** @return the number of <b>Alias-Hash-1</b> codes with 0, 1, 2... aliases;
+	 * the last element counts the codes with that many aliases or more */
+	int[] getAliasesPerHashDistribution();
+
+	/** @return the estimated heap of the alias register with the aliases */
+	long getAliasRegisterBytes();
+
+	/** @return the estimated heap of the prefix set */
+	long getPrefixSetBytes();
+
+	/** @return the estimated heap of the maximal lexeme counts by first lexeme */
+	long getFirstLexemeMapBytes();
+
+	/** @return the heap of the instance name pool */
+	long getInstanceNameBytes();
+
+	/** @return the estimated heap of the name-space and class tables */
+	long getNamespaceAndClassBytes();
+
+	/** @return the heap of the alias index; 0 if there is none */
+	long getAliasIndexBytes();
+
+	/** @return the estimated heap of the applied changes */
+	long getChangeBytes();
+
+	/** @return the sum of the estimates of all structures */
+	long getEstimatedBytes();
+
+	/** @return the number of frames looked up in the current version */
+	long getLookupCount();
+
+	/** @return the number of matches found in the current version */
+	long getMatchCount();
+}
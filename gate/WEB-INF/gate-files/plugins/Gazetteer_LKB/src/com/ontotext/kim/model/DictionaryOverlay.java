@@ -0,0 +1,243 @@
+package com.ontotext.kim.model;
+
+import gnu.trove.TIntHashSet;
+import gnu.trove.TIntIntHashMap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The changes applied to an <code>AliasCacheImpl</code> since it was built,
+ * kept apart from its base structures, which support no removal.<br>
+ * <br>
+ * Added aliases are stored by <b>Alias-Hash-1</b> like in the alias register,
+ * together with the hash-codes of their prefixes. Removals are kept as
+ * tombstones which hide the matching aliases of the base structures; they
+ * also drop the matching added aliases directly.<br>
+ * Instances are referred to by the identifiers of the aliases. The short
+ * instance URIs which are not in the name pool of the base structures are
+ * kept by the overlay; their identifiers follow those of the pool.<br>
+ * An overlay is not modified after it is published to the readers of the
+ * dictionary. Changes are made on a copy, which then replaces it.
+ */
+class DictionaryOverlay {
+
+	static final DictionaryOverlay EMPTY = new DictionaryOverlay();
+
+	/** The added aliases by Alias-Hash-1 */
+	private final Map<Integer, HashedAlias[]> added;
+	/** The hash-codes of the prefixes of the added aliases */
+	final TIntHashSet addedPrefixes;
+	/** The maximal lexeme count of the added aliases by the Alias-Hash-1 of their first lexeme */
+	final TIntIntHashMap addedMaxLexemes;
+	/** The number of added aliases by instance identifier */
+	private final TIntIntHashMap addedInstances;
+	/** The instance identifiers of removed labels by Alias-Hash-1 and Alias-Hash-2 */
+	private final Map<Long, TIntHashSet> removedLabels;
+	private final TIntHashSet removedInstances;
+	/** The short instance URIs missing from the name pool, by identifier minus the pool size */
+	private final List<String> names;
+	private final Map<String, Integer> nameIds;
+	private final TIntHashSet removedClasses;
+	/** The deltas applied so far, in order */
+	final List<DictionaryDelta> history;
+	private int addedCount;
+	private int changeCount;
+
+	private DictionaryOverlay() {
+		added = new HashMap<Integer, HashedAlias[]>();
+		addedPrefixes = new TIntHashSet();
+		addedMaxLexemes = new TIntIntHashMap();
+		addedInstances = new TIntIntHashMap();
+		removedLabels = new HashMap<Long, TIntHashSet>();
+		removedInstances = new TIntHashSet();
+		names = new ArrayList<String>();
+		nameIds = new HashMap<String, Integer>();
+		removedClasses = new TIntHashSet();
+		history = new ArrayList<DictionaryDelta>();
+	}
+
+	/** Creates a copy to be changed and published instead of the given overlay */
+	DictionaryOverlay(DictionaryOverlay from) {
+		added = new HashMap<Integer, HashedAlias[]>(from.added);
+		addedPrefixes = (TIntHashSet) from.addedPrefixes.clone();
+		addedMaxLexemes = (TIntIntHashMap) from.addedMaxLexemes.clone();
+		addedInstances = (TIntIntHashMap) from.addedInstances.clone();
+		removedLabels = new HashMap<Long, TIntHashSet>(from.removedLabels.size());
+		for (Map.Entry<Long, TIntHashSet> e : from.removedLabels.entrySet())
+			removedLabels.put(e.getKey(), (TIntHashSet) e.getValue().clone());
+		removedInstances = (TIntHashSet) from.removedInstances.clone();
+		names = new ArrayList<String>(from.names);
+		nameIds = new HashMap<String, Integer>(from.nameIds);
+		removedClasses = (TIntHashSet) from.removedClasses.clone();
+		history = new ArrayList<DictionaryDelta>(from.history);
+		addedCount = from.addedCount;
+		changeCount = from.changeCount;
+	}
+
+	/** @return the added aliases with the given Alias-Hash-1 or <b>null</b> */
+	HashedAlias[] getAdded(int hash1) {
+		return added.get(hash1);
+	}
+
+	Map<Integer, HashedAlias[]> getAdded() {
+		return added;
+	}
+
+	/** @return whether an alias of the base structures is removed */
+	boolean hides(int hash1, HashedAlias ha) {
+		if (removedInstances.contains(ha.instID) || removedClasses.contains(ha.classID))
+			return true;
+		TIntHashSet insts = removedLabels.get(labelKey(hash1, ha.aliasHash2));
+		return insts != null && insts.contains(ha.instID);
+	}
+
+	boolean hasRemovals() {
+		return !removedLabels.isEmpty() || !removedInstances.isEmpty() || !removedClasses.isEmpty();
+	}
+
+	/** @return whether the overlay adds aliases of an instance */
+	boolean addsInstance(int instID) {
+		return addedInstances.containsKey(instID);
+	}
+
+	boolean removesInstance(int instID) {
+		return removedInstances.contains(instID);
+	}
+
+	/** @return the index of a short instance URI among the names of the overlay or -1 */
+	int nameIndex(String shortInstURI) {
+		Integer index = nameIds.get(shortInstURI);
+		return index == null ? -1 : index;
+	}
+
+	/** Keeps a short instance URI which is not in the name pool
+	 * @return its index among the names of the overlay */
+	int addName(String shortInstURI) {
+		int index = nameIndex(shortInstURI);
+		if (index < 0) {
+			index = names.size();
+			names.add(shortInstURI);
+			nameIds.put(shortInstURI, index);
+		}
+		return index;
+	}
+
+	String getName(int index) {
+		return names.get(index);
+	}
+
+	int getNameCount() {
+		return names.size();
+	}
+
+	int getAddedCount() {
+		return addedCount;
+	}
+
+	int getAddedInstanceCount() {
+		return addedInstances.size();
+	}
+
+	/** @return the number of changes applied, used to decide on compaction */
+	int getChangeCount() {
+		return changeCount;
+	}
+
+	void countChanges(DictionaryDelta delta) {
+		history.add(delta);
+		changeCount += delta.size();
+	}
+
+	/**
+	 * Adds an alias, unless an equal alias of the same class is already added
+	 * or is visible in the base structures. An earlier removal of the same
+	 * label of the instance is cancelled.
+	 * @param hash1 - the Alias-Hash-1 of the alias
+	 * @param ha - the alias
+	 * @param prefixes - the hash-codes of the prefixes of the alias
+	 * @param firstLexeme - the Alias-Hash-1 of the first lexeme of the alias
+	 * @param lexemes - the number of lexemes of the alias
+	 * @param inBase - whether the base structures contain an equal alias of the same class
+	 */
+	void add(int hash1, HashedAlias ha, int[] prefixes, int firstLexeme, int lexemes, boolean inBase) {
+		Long key = labelKey(hash1, ha.aliasHash2);
+		TIntHashSet insts = removedLabels.get(key);
+		if (insts != null && insts.remove(ha.instID) && insts.isEmpty())
+			removedLabels.remove(key);
+		if (inBase && !hides(hash1, ha))
+			return;
+		HashedAlias[] old = added.get(hash1);
+		int n = old == null ? 0 : old.length;
+		for (int i = 0; i < n; i++) {
+			if (old[i].equals(ha) && old[i].classID == ha.classID)
+				return;
+		}
+		HashedAlias[] arr = new HashedAlias[n + 1];
+		if (old != null)
+			System.arraycopy(old, 0, arr, 0, n);
+		arr[n] = ha;
+		added.put(hash1, arr);
+		addedPrefixes.addAll(prefixes);
+		AliasCacheImpl.recordLength(addedMaxLexemes, firstLexeme, lexemes);
+		if (!addedInstances.adjustValue(ha.instID, 1))
+			addedInstances.put(ha.instID, 1);
+		++addedCount;
+	}
+
+	void removeLabel(int hash1, int hash2, int instID) {
+		Long key = labelKey(hash1, hash2);
+		TIntHashSet insts = removedLabels.get(key);
+		if (insts == null) {
+			insts = new TIntHashSet();
+			removedLabels.put(key, insts);
+		}
+		insts.add(instID);
+		HashedAlias[] old = added.get(hash1);
+		if (old != null)
+			dropAdded(hash1, old, hash2, instID, -1);
+	}
+
+	void removeInstance(int instID) {
+		removedInstances.add(instID);
+		if (addedInstances.containsKey(instID)) {
+			for (Map.Entry<Integer, HashedAlias[]> e : new ArrayList<Map.Entry<Integer, HashedAlias[]>>(added.entrySet()))
+				dropAdded(e.getKey(), e.getValue(), null, instID, -1);
+		}
+	}
+
+	void removeClass(int classID) {
+		removedClasses.add(classID);
+		for (Map.Entry<Integer, HashedAlias[]> e : new ArrayList<Map.Entry<Integer, HashedAlias[]>>(added.entrySet()))
+			dropAdded(e.getKey(), e.getValue(), null, -1, classID);
+	}
+
+	/** Drops the added aliases of a hash which match all given criteria; <b>null</b> and -1 match any */
+	private void dropAdded(int hash1, HashedAlias[] old, Integer hash2, int instID, int classID) {
+		List<HashedAlias> kept = new ArrayList<HashedAlias>(old.length);
+		for (HashedAlias ha : old) {
+			boolean match = (hash2 == null || ha.aliasHash2 == hash2)
+					&& (instID < 0 || ha.instID == instID)
+					&& (classID < 0 || ha.classID == classID);
+			if (!match) {
+				kept.add(ha);
+				continue;
+			}
+			--addedCount;
+			if (addedInstances.get(ha.instID) <= 1)
+				addedInstances.remove(ha.instID);
+			else
+				addedInstances.adjustValue(ha.instID, -1);
+		}
+		if (kept.isEmpty())
+			added.remove(hash1);
+		else if (kept.size() < old.length)
+			added.put(hash1, kept.toArray(new HashedAlias[kept.size()]));
+	}
+
+	private static Long labelKey(int hash1, int hash2) {
+		return ((long) hash1 << 32) | (hash2 & 0xffffffffL);
+	}
+}
@@ -0,0 +1,304 @@
+package com.ontotext.kim.model;
+
+import gate.Document;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.collections.Transformer;
+
+import com.ontotext.kim.gate.KimLookupParser;
+import com.ontotext.kim.gate.KimLookupParser.LocalDictionary;
+
+/**
+ * A small dictionary of document-specific entities, which a
+ * <code>DictionaryFeeder</code> fills while a document is parsed. It is
+ * probed together with the shared dictionary of the gazetteer.<br>
+ * <br>
+ * The aliases are hashed like in <code>AliasCacheImpl</code>, but they are
+ * kept in parallel primitive arrays with chained buckets instead of
+ * <code>HashRegister</code> objects. The arrays form an arena which is reused
+ * for every document: starting a document only advances a generation stamp,
+ * so the per-document cost does not depend on the size of the previous
+ * document. An arena which has grown over <code>RETAINED_CAPACITY</code>
+ * aliases is released at the end of the document.<br>
+ * The ignore list and the class priorities of the shared dictionary are not
+ * applied. An instance is used by one gazetteer and is not thread-safe.
+ */
+public class DocumentDictionary implements LocalDictionary, DictionaryFeeder.EntityListener {
+
+	private static final int INITIAL_CAPACITY = 64;
+	private static final int RETAINED_CAPACITY = 1 << 16;
+
+	private final String caseSensitivity;
+	private final Transformer transformer;
+
+	private DictionaryFeeder feeder;
+	private Document document;
+
+	/** The generation of the current document; slots stamped with another one are empty */
+	private int generation = 1;
+
+	/** The first alias of every bucket plus one, valid if the bucket is stamped */
+	private int[] buckets;
+	private int[] bucketGen;
+	/** The aliases: hash-codes, prefix/suffix lengths, string ids and the next alias in the bucket */
+	private int[] hash1;
+	private int[] hash2;
+	private byte[] prefLen;
+	private byte[] suffLen;
+	private int[] inst;
+	private int[] cls;
+	private int[] next;
+	private int count;
+
+	/** Open addressing set of the hash-codes of the alias prefixes */
+	private int[] prefixes;
+	private int[] prefixGen;
+	private int prefixCount;
+
+	/** The URIs of the current document, stored once */
+	private final List<String> strings = new ArrayList<String>();
+	private final Map<String, Integer> stringIds = new HashMap<String, Integer>();
+
+	public DocumentDictionary(String caseSensitivity) {
+		this.caseSensitivity = caseSensitivity;
+		this.transformer = AliasTextTransformer.forCaseSensitivity(caseSensitivity);
+		allocate(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * Starts a local feed session for a document.
+	 * @param feeder - the feeder of the document-specific entities
+	 * @param document - the document to be processed
+	 * @return <b>false</b> if the feeder does not support local dictionaries
+	 * for the document; the session is not started then
+	 */
+	public boolean begin(DictionaryFeeder feeder, Document document) {
+		clear();
+		if (!feeder.localFeedInit(document))
+			return false;
+		this.feeder = feeder;
+		this.document = document;
+		return true;
+	}
+
+	/** Ends the local feed session and clears the dictionary */
+	public void end() {
+		DictionaryFeeder f = feeder;
+		Document d = document;
+		feeder = null;
+		document = null;
+		if (hash1.length > RETAINED_CAPACITY)
+			allocate(INITIAL_CAPACITY);
+		clear();
+		if (f != null)
+			f.localFeedEnd(d);
+	}
+
+	public void feed(ParsingFrame pfm) {
+		if (feeder != null)
+			feeder.localFeedNeeded(document, pfm, this);
+	}
+
+	public void addEntity(String instUri, String classUri, String aliasLabel) {
+		if (aliasLabel == null)
+			return;
+		int instId = stringId(instUri);
+		int classId = stringId(classUri);
+		for (String alias : AliasCacheImpl.aliasEnrichment(aliasLabel, caseSensitivity)) {
+			if (alias.trim().length() == 0)
+				continue;
+			ParsingFrame pfm = new ParsingFrame(alias);
+			pfm.setTextTransformer(transformer);
+			do {
+				if (pfm.parseOne() && pfm.frameCanExpand())
+					addPrefix(pfm.getAliasHash1());
+			} while (pfm.frameCanExpand());
+			add(pfm.getAliasHash1(), pfm.getAliasHash2(), pfm.getPrefixLen(), pfm.getSuffixLen(), instId, classId);
+		}
+	}
+
+	public Collection<KimLookupParser.AliasWrapper> lookup(ParsingFrame pfm) {
+		if (count == 0)
+			return Collections.emptyList();
+		pfm.setTextTransformer(transformer);
+		int h1 = pfm.getAliasHash1();
+		int b = bucket(h1, buckets.length);
+		if (bucketGen[b] != generation)
+			return Collections.emptyList();
+		List<KimLookupParser.AliasWrapper> res = null;
+		for (int i = buckets[b] - 1; i >= 0; i = next[i] - 1) {
+			if (hash1[i] != h1)
+				continue;
+			pfm.setNewPrefSufLen(prefLen[i], suffLen[i]);
+			if (pfm.getAliasHash2() == hash2[i]) {
+				if (res == null)
+					res = new ArrayList<KimLookupParser.AliasWrapper>(2);
+				res.add(new KimLookupParser.AliasWrapper(strings.get(inst[i]), strings.get(cls[i]),
+						pfm.getAliasStart(), pfm.getAliasEnd()));
+			}
+		}
+		return res != null ? res : Collections.<KimLookupParser.AliasWrapper>emptyList();
+	}
+
+	public boolean canPhraseGrow(ParsingFrame pfm) {
+		if (prefixCount == 0)
+			return false;
+		pfm.setTextTransformer(transformer);
+		int h = pfm.getAliasHash1();
+		int mask = prefixes.length - 1;
+		for (int p = mix(h) & mask; prefixGen[p] == generation; p = (p + 1) & mask) {
+			if (prefixes[p] == h)
+				return true;
+		}
+		return false;
+	}
+
+	/** @return the number of aliases of the current document */
+	public int size() {
+		return count;
+	}
+
+	private void add(int h1, int h2, int pref, int suff, int instId, int classId) {
+		if (pref > 127 || suff > 127)
+			return;
+		int b = bucket(h1, buckets.length);
+		if (bucketGen[b] == generation) {
+			for (int i = buckets[b] - 1; i >= 0; i = next[i] - 1) {
+				if (hash1[i] == h1 && hash2[i] == h2 && prefLen[i] == pref && suffLen[i] == suff
+						&& inst[i] == instId && cls[i] == classId)
+					return;
+			}
+		}
+		if (count == hash1.length)
+			growAliases();
+		int i = count++;
+		hash1[i] = h1;
+		hash2[i] = h2;
+		prefLen[i] = (byte) pref;
+		suffLen[i] = (byte) suff;
+		inst[i] = instId;
+		cls[i] = classId;
+		link(i);
+		if (count > buckets.length * 3 / 4)
+			rehashBuckets(buckets.length * 2);
+	}
+
+	private void link(int i) {
+		int b = bucket(hash1[i], buckets.length);
+		if (bucketGen[b] != generation) {
+			bucketGen[b] = generation;
+			buckets[b] = 0;
+		}
+		next[i] = buckets[b];
+		buckets[b] = i + 1;
+	}
+
+	private void addPrefix(int h) {
+		int mask = prefixes.length - 1;
+		int p = mix(h) & mask;
+		for (; prefixGen[p] == generation; p = (p + 1) & mask) {
+			if (prefixes[p] == h)
+				return;
+		}
+		prefixes[p] = h;
+		prefixGen[p] = generation;
+		if (++prefixCount > prefixes.length * 3 / 4)
+			rehashPrefixes(prefixes.length * 2);
+	}
+
+	private int stringId(String s) {
+		Integer id = stringIds.get(s);
+		if (id == null) {
+			id = strings.size();
+			strings.add(s);
+			stringIds.put(s, id);
+		}
+		return id;
+	}
+
+	private void allocate(int capacity) {
+		buckets = new int[capacity];
+		bucketGen = new int[capacity];
+		hash1 = new int[capacity];
+		hash2 = new int[capacity];
+		prefLen = new byte[capacity];
+		suffLen = new byte[capacity];
+		inst = new int[capacity];
+		cls = new int[capacity];
+		next = new int[capacity];
+		prefixes = new int[capacity];
+		prefixGen = new int[capacity];
+		count = 0;
+		prefixCount = 0;
+	}
+
+	/** Empties the arena by moving to the next generation */
+	private void clear() {
+		count = 0;
+		prefixCount = 0;
+		strings.clear();
+		stringIds.clear();
+		if (++generation == 0) {
+			Arrays.fill(bucketGen, 0);
+			Arrays.fill(prefixGen, 0);
+			generation = 1;
+		}
+	}
+
+	private void growAliases() {
+		int capacity = hash1.length * 2;
+		hash1 = copy(hash1, capacity);
+		hash2 = copy(hash2, capacity);
+		inst = copy(inst, capacity);
+		cls = copy(cls, capacity);
+		next = copy(next, capacity);
+		byte[] p = new byte[capacity];
+		System.arraycopy(prefLen, 0, p, 0, count);
+		prefLen = p;
+		byte[] s = new byte[capacity];
+		System.arraycopy(suffLen, 0, s, 0, count);
+		suffLen = s;
+	}
+
+	private void rehashBuckets(int size) {
+		buckets = new int[size];
+		bucketGen = new int[size];
+		for (int i = 0; i < count; i++)
+			link(i);
+	}
+
+	private void rehashPrefixes(int size) {
+		int[] oldPrefixes = prefixes;
+		int[] oldGen = prefixGen;
+		prefixes = new int[size];
+		prefixGen = new int[size];
+		prefixCount = 0;
+		for (int p = 0; p < oldPrefixes.length; p++) {
+			if (oldGen[p] == generation)
+				addPrefix(oldPrefixes[p]);
+		}
+	}
+
+	private static int[] copy(int[] a, int capacity) {
+		int[] b = new int[capacity];
+		System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
+
+	private static int bucket(int h, int size) {
+		return mix(h) & (size - 1);
+	}
+
+	/** Spreads the bits of a String hash-code over the low bits used for indexing */
+	private static int mix(int h) {
+		h ^= (h >>> 20) ^ (h >>> 12);
+		return h ^ (h >>> 7) ^ (h >>> 4);
+	}
+}
@@ -2,8 +2,12 @@ package com.ontotext.kim.model;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 
 import org.apache.commons.collections.comparators.NullComparator;
 
@@ -266,6 +270,19 @@ public class HashRegister implements Serializable {
             return ((i >= 0)? elements[i]: null);
         }
         
+		/** @return the number of stored elements */
+		int size() {
+            if (elementHolder == null)
+                return 0;
+            if (!(elementHolder instanceof Object[]))
+                return 1;
+            Object[] eList = (Object[]) elementHolder;
+            int i = eList.length;
+            while (i>0 && eList[i-1] == null)
+                i--;
+            return i;
+		}
+
 		/** Returns the stored elements as an object array
 		 * @return array with all stored elements
 		 */
@@ -594,17 +611,158 @@ public class HashRegister implements Serializable {
 	 * @param cProc - <code>ContentProcessor</code> implementation;
 	 */
 	public void processContent(ContentProcessor cProc) {
-	    for (int main_i=0; main_i<mainReg.length; main_i++) {
-	        if (mainReg[main_i] == null)  continue;
-	        if (mainReg[main_i] instanceof HashElement)
-	            cProc.process(((HashElement)mainReg[main_i]).getElements());
-	        else {
-	            HashElement[] subReg = (HashElement[]) mainReg[main_i];
-                for (int i=0; i<subReg.length; i++)
-                    cProc.process(subReg[i].getElements());
+	    new Partition(mainReg, 0, mainReg.length).processContent(cProc);
+	}
+
+	/** A variant of <code>ContentProcessor</code> which also receives the
+	 * hash-code value of the elements. */
+	public interface HashedContentProcessor {
+	    public void process(int hashValue, Object[] elements);
+	}
+
+	/** Same as <code>processContent(ContentProcessor)</code>, but passes
+	 * also the hash-code value of every package of elements.
+	 * @param cProc - <code>HashedContentProcessor</code> implementation;
+	 */
+	public void processContent(HashedContentProcessor cProc) {
+	    new Partition(mainReg, 0, mainReg.length).processContent(cProc);
+	}
+
+	/** An interface for replacing the stored elements by external logic.
+	 * It must be used together with the method <code>transformContent</code>. */
+	public interface ContentTransformer {
+	    /**
+	     * @param hashValue - the hash-code value of the element
+	     * @param element - a stored element
+	     * @return the element to store instead; it must not be <b>null</b>
+	     */
+	    public Serializable transform(int hashValue, Serializable element);
+	}
+
+	/** Replaces every stored element by the result of the given
+	 * <code>ContentTransformer</code> under the same hash-code value.
+	 * The packages of <code>Comparable</code> elements are sorted again.
+	 * The register must not be used by other threads meanwhile.
+	 * @param cTrans - <code>ContentTransformer</code> implementation;
+	 */
+	public void transformContent(ContentTransformer cTrans) {
+	    new Partition(mainReg, 0, mainReg.length).transformContent(cTrans);
+	}
+
+	/** A range of the main-register. The partitions of a register do not
+	 * share any <code>HashElement</code>, so they can be processed or
+	 * transformed by different threads while the register is not changed. */
+	public static class Partition {
+	    private final Object[] reg;
+	    private final int from;
+	    private final int to;
+
+	    Partition(Object[] reg, int from, int to) {
+	        this.reg = reg;
+	        this.from = from;
+	        this.to = to;
+	    }
+
+	    /** Same as <code>HashRegister.processContent(ContentProcessor)</code>
+	     * for the elements of the partition */
+	    public void processContent(ContentProcessor cProc) {
+	        for (int main_i=from; main_i<to; main_i++) {
+	            if (reg[main_i] == null)  continue;
+	            if (reg[main_i] instanceof HashElement)
+	                cProc.process(((HashElement)reg[main_i]).getElements());
+	            else {
+	                HashElement[] subReg = (HashElement[]) reg[main_i];
+	                for (int i=0; i<subReg.length; i++)
+	                    cProc.process(subReg[i].getElements());
+	            }
+	        }
+	    }
+
+	    /** Same as <code>HashRegister.processContent(HashedContentProcessor)</code>
+	     * for the elements of the partition */
+	    public void processContent(HashedContentProcessor cProc) {
+	        for (int main_i=from; main_i<to; main_i++) {
+	            if (reg[main_i] == null)  continue;
+	            if (reg[main_i] instanceof HashElement) {
+	                HashElement he = (HashElement) reg[main_i];
+	                cProc.process(he.subRegHash, he.getElements());
+	            }
+	            else {
+	                HashElement[] subReg = (HashElement[]) reg[main_i];
+	                for (int i=0; i<subReg.length; i++)
+	                    cProc.process(subReg[i].subRegHash, subReg[i].getElements());
+	            }
+	        }
+	    }
+
+	    /** Same as <code>HashRegister.transformContent</code> for the
+	     * elements of the partition */
+	    public void transformContent(ContentTransformer cTrans) {
+	        for (int main_i=from; main_i<to; main_i++) {
+	            if (reg[main_i] == null)  continue;
+	            if (reg[main_i] instanceof HashElement)
+	                transformElements((HashElement) reg[main_i], cTrans);
+	            else {
+	                HashElement[] subReg = (HashElement[]) reg[main_i];
+	                for (int i=0; i<subReg.length; i++)
+	                    transformElements(subReg[i], cTrans);
+	            }
 	        }
 	    }
 	}
+
+	/** A task which is run for every partition of a register by the method
+	 * <code>processPartitions</code>. It is called by several threads at
+	 * once, each with its own partition. */
+	public interface PartitionProcessor {
+	    public void process(Partition partition);
+	}
+
+	/** Splits the main-register in consecutive ranges of equal length and
+	 * passes them to a <code>PartitionProcessor</code> in parallel. Returns
+	 * when all partitions are processed. The register must not be changed
+	 * meanwhile.
+	 * @param pProc - <code>PartitionProcessor</code> implementation;
+	 * @param executor - the threads which process the partitions;
+	 * <b>null</b> to process them one after the other in the calling thread
+	 * @param count - the number of partitions; more partitions than threads
+	 * even out the differences in the content of the ranges
+	 */
+	public void processPartitions(final PartitionProcessor pProc,
+	        ExecutorService executor, int count) {
+	    Object[] reg = mainReg;
+	    count = Math.max(1, Math.min(count, reg.length));
+	    List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(count);
+	    for (int k=0; k<count; k++) {
+	        final Partition partition = new Partition(reg,
+	                (int) ((long) reg.length * k / count),
+	                (int) ((long) reg.length * (k + 1) / count));
+	        tasks.add(new Callable<Object>() {
+	            public Object call() {
+	                pProc.process(partition);
+	                return null;
+	            }
+	        });
+	    }
+	    ParallelTasks.invokeAll(executor, tasks);
+	}
+
+	private static void transformElements(HashElement he, ContentTransformer cTrans) {
+	    if (he.elementHolder == null)
+	        return;
+	    if (!(he.elementHolder instanceof Object[])) {
+	        he.elementHolder = cTrans.transform(he.subRegHash, he.elementHolder);
+	        return;
+	    }
+	    Object[] eList = (Object[]) he.elementHolder;
+	    int n = 0;
+	    while (n < eList.length && eList[n] != null) {
+	        eList[n] = cTrans.transform(he.subRegHash, (Serializable) eList[n]);
+	        n++;
+	    }
+	    if (eList instanceof Comparable[])
+	        Arrays.sort((Comparable[]) eList, 0, n, HashElement.nsc);
+	}
 		
 	//==================================================
 	// Content Inspection methods for profiling purposes
@@ -639,27 +797,87 @@ public class HashRegister implements Serializable {
 	}
 
 	public void printDistribution() {
-		int[] bucketSize = new int[11];
-		
-		for (int i=0; i<bucketSize.length; i++)  bucketSize[i] = 0;
-		
-		for (int i=0; i<mainReg.length; i++) {
-			if ( mainReg[i] == null)
-				bucketSize[0]++;
-			else if (mainReg[i] instanceof HashElement)
-				bucketSize[1]++;
-			else {
-				int size = ((HashElement[])mainReg[i]).length;
-				if (size >= bucketSize.length) size = bucketSize.length-1;
-				bucketSize[size]++;
-			}
-		}
+		int[] bucketSize = getBucketSizeDistribution(11);
 		System.out.println("Distribution of buckets by sizes for HashRegister with" +
 				"MRSize="+mainReg.length+" Elements="+hashesCount);
         System.out.println("ForSize BucketCount");
 		for (int i=0; i<bucketSize.length; i++)
 			System.out.println(i + "    " + bucketSize[i]);
 	}
+
+	/**
+	 * Counts the slots of the main-register by the number of hash-codes
+	 * stored in them.
+	 * @param classes - the length of the result; its last element counts
+	 * the slots with that many hash-codes or more
+	 * @return the number of slots with 0, 1, 2... hash-codes
+	 */
+	public int[] getBucketSizeDistribution(int classes) {
+		int[] bucketSize = new int[classes];
+		synchronized (mainRegLock) {
+			for (int i=0; i<mainReg.length; i++) {
+				int size = 0;
+				if (mainReg[i] instanceof HashElement)
+					size = 1;
+				else if (mainReg[i] != null)
+					size = ((HashElement[])mainReg[i]).length;
+				bucketSize[Math.min(size, classes-1)]++;
+			}
+		}
+		return bucketSize;
+	}
+
+	/**
+	 * Counts the hash-codes by the number of elements stored with them.
+	 * @param classes - the length of the result; its last element counts
+	 * the hash-codes with that many elements or more
+	 * @return the number of hash-codes with 0, 1, 2... elements
+	 */
+	public int[] getPackageSizeDistribution(int classes) {
+		int[] packageSize = new int[classes];
+		synchronized (mainRegLock) {
+			for (int i=0; i<mainReg.length; i++) {
+				if (mainReg[i] instanceof HashElement)
+					packageSize[Math.min(((HashElement) mainReg[i]).size(), classes-1)]++;
+				else if (mainReg[i] != null) {
+					for (HashElement he : (HashElement[]) mainReg[i])
+						packageSize[Math.min(he.size(), classes-1)]++;
+				}
+			}
+		}
+		return packageSize;
+	}
+
+	/**
+	 * Estimates the heap taken by the register, assuming 4-byte references
+	 * and 16-byte object and array headers.
+	 * @param elementBytes - the size of a stored element
+	 * @return the estimated size in bytes
+	 */
+	public long getEstimatedBytes(int elementBytes) {
+		long bytes;
+		synchronized (mainRegLock) {
+			bytes = 16L + 4L * mainReg.length;
+			for (int i=0; i<mainReg.length; i++) {
+				if (mainReg[i] instanceof HashElement)
+					bytes += getEstimatedBytes((HashElement) mainReg[i], elementBytes);
+				else if (mainReg[i] != null) {
+					HashElement[] subReg = (HashElement[]) mainReg[i];
+					bytes += 16L + 4L * subReg.length;
+					for (HashElement he : subReg)
+						bytes += getEstimatedBytes(he, elementBytes);
+				}
+			}
+		}
+		return bytes;
+	}
+
+	private static long getEstimatedBytes(HashElement he, int elementBytes) {
+		long bytes = 24L + (long) elementBytes * he.size();
+		if (he.elementHolder instanceof Object[])
+			bytes += 16L + 4L * ((Object[]) he.elementHolder).length;
+		return bytes;
+	}
 	
     //==================================================
     // Serialization / Deserialization handling 
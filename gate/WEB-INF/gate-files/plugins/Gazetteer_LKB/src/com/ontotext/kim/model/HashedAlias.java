@@ -34,13 +34,15 @@ import java.io.Serializable;
  * <code>ParsingFrame.setNewPrefSufLen</code><br>
  * Last two members of the class <code>HashedAlias</code> are the instance
  * and the semantic class identifiers of the Entity corresponding to the Alias.
- * They are stored in packed form to save memory.
+ * They are stored in packed form to save memory: the instance identifier
+ * refers to the instance URI in the <code>LocalNamePool</code> of the
+ * dictionary.
  * 
  * @author danko
  *
  */
 public class HashedAlias implements Serializable, Comparable<HashedAlias> {
-    private static final long serialVersionUID = 4500L;
+    private static final long serialVersionUID = 4600L;
 
     //===========================
     // Hashed alias - data fields 
@@ -56,8 +58,8 @@ public class HashedAlias implements Serializable, Comparable<HashedAlias> {
     // Properties of the related Entity
     /** The internal class identifier of the Entity */
     public final int classID;
-    /** The compressed instance URI of the Entity*/
-    public final String shortInstURI;
+    /** The internal instance identifier of the Entity */
+    public final int instID;
     
     /**
      * This constructor initializes all final fields of the class and checks
@@ -65,11 +67,11 @@ public class HashedAlias implements Serializable, Comparable<HashedAlias> {
      * @param aliasHash2 - the hash-code value derived from the plain Alias text
      * @param prefLen - the size of the non-alpha-numeric prefix of the Alias
      * @param suffLen - the size of the non-alpha-numeric suffix of the Alias
-     * @param shortInstURI - the compressed instance identifier
+     * @param instID - the encoded instance identifier
      * @param classID - the encoded semantic class identifier
      */
     public HashedAlias(int aliasHash2, int prefLen, int suffLen,
-            String shortInstURI, int classID) {
+            int instID, int classID) {
         if (prefLen > 127 || suffLen > 127 )
             throw new RuntimeException("Cannot create HashedAlias with" +
             		"symbolic prefix/suffix longer than 127!");
@@ -77,7 +79,7 @@ public class HashedAlias implements Serializable, Comparable<HashedAlias> {
         this.prefLen = (byte) prefLen;
         this.suffLen = (byte) suffLen;
         this.classID = classID;
-        this.shortInstURI = shortInstURI;
+        this.instID = instID;
     }
 
     public int compareTo(HashedAlias o) {
@@ -87,19 +89,8 @@ public class HashedAlias implements Serializable, Comparable<HashedAlias> {
                 && this.aliasHash2 < o.aliasHash2) return -1;
         else if (this.prefLen == o.prefLen && this.suffLen == o.suffLen
                 && this.aliasHash2 == o.aliasHash2) {
-            // Here null is considered the smallest possible string value 
-            if (this.shortInstURI == null) {
-                if (o.shortInstURI == null)
-                    return 0;
-                else
-                    return -1;
-            }
-            else {
-                if (o.shortInstURI == null)
-                    return 1;
-                else
-                    return this.shortInstURI.compareTo(o.shortInstURI);
-            }
+            if (this.instID < o.instID)  return -1;
+            else if (this.instID == o.instID)  return 0;
         }
         return 1;
     }
@@ -110,16 +101,13 @@ public class HashedAlias implements Serializable, Comparable<HashedAlias> {
         HashedAlias he = (HashedAlias) obj;
         
         return (he.aliasHash2 == this.aliasHash2) && (he.prefLen == this.prefLen)
-                && (he.suffLen == this.suffLen) &&
-                ( (he.shortInstURI==null)?
-                        (this.shortInstURI == null):
-                            (he.shortInstURI.equals(this.shortInstURI)));
+                && (he.suffLen == this.suffLen) && (he.instID == this.instID);
     }
     
     @Override
     public String toString() {
         return "(" + this.prefLen + "<"+ this.aliasHash2 +">" + this.suffLen + ")"+
-        this.shortInstURI;
+        this.instID;
     }
     
 }
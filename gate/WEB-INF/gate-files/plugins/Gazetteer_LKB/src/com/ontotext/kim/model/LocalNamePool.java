@@ -0,0 +1,359 @@
+package com.ontotext.kim.model;
+
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * An immutable pool of distinct strings, referenced by int identifiers.<br>
+ * <br>
+ * The strings are sorted by their UTF-8 bytes and stored front-coded in a
+ * single byte array: they are split in blocks of <code>BLOCK_SIZE</code>
+ * strings, the first string of a block is stored whole and every other one
+ * as the length of the prefix it shares with the previous string followed
+ * by the rest of its bytes. The identifier of a string is its position in
+ * the sorted order.<br>
+ * The instance URIs of a dictionary share long name-space prefixes and
+ * differ mostly in their endings, so the pool takes a small part of the heap
+ * of separate <code>String</code> objects. In return a string is decoded on
+ * every <code>get</code> and is searched by binary search over the blocks.
+ *
+ * @author danko
+ */
+public class LocalNamePool implements Serializable {
+	private static final long serialVersionUID = 4600L;
+
+	/** The number of strings in a block. The search decodes up to that many strings. */
+	static final int BLOCK_SIZE = 16;
+	/** The minimal number of strings sorted by a thread of a parallel build */
+	private static final int MIN_PARTITION = 10000;
+
+	/** Orders UTF-8 byte sequences like the code points they encode */
+	private static final Comparator<byte[]> BYTES_ORDER = new Comparator<byte[]>() {
+		public int compare(byte[] a, byte[] b) {
+			return LocalNamePool.compare(a, a.length, b, b.length);
+		}
+	};
+
+	public static final LocalNamePool EMPTY = new LocalNamePool(new byte[0], new int[0], 0);
+
+	/** The front-coded strings: shared prefix length and suffix length as
+	 * variable-length integers, followed by the suffix */
+	private final byte[] data;
+	/** The offset in <code>data</code> of the first string of every block */
+	private final int[] blockOffsets;
+	private final int size;
+
+	private LocalNamePool(byte[] data, int[] blockOffsets, int size) {
+		this.data = data;
+		this.blockOffsets = blockOffsets;
+		this.size = size;
+	}
+
+	/**
+	 * Builds a pool of the given strings; duplicates are stored once.
+	 * @param strings - the strings of the pool
+	 * @return the pool
+	 */
+	public static LocalNamePool build(Collection<String> strings) {
+		return build(new ArrayList<String>(strings), null, null, 1);
+	}
+
+	/**
+	 * Builds a pool of the given strings and finds their identifiers. The
+	 * strings are split in partitions, which are encoded and sorted in
+	 * parallel and then merged.
+	 * @param strings - the strings of the pool; duplicates are stored once
+	 * @param ids - receives the identifier of every string at its index in
+	 * <code>strings</code>; may be <b>null</b>
+	 * @param executor - the threads which sort the partitions; <b>null</b>
+	 * to sort them in the calling thread
+	 * @param partitions - the number of partitions
+	 * @return the pool
+	 */
+	public static LocalNamePool build(final List<String> strings, int[] ids,
+			ExecutorService executor, int partitions) {
+		final int n = strings.size();
+		partitions = Math.max(1, Math.min(partitions, n / MIN_PARTITION));
+		final Entry[][] runs = new Entry[partitions][];
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(partitions);
+		for (int k = 0; k < partitions; k++) {
+			final int run = k;
+			final int from = (int) ((long) n * k / partitions);
+			final int to = (int) ((long) n * (k + 1) / partitions);
+			tasks.add(new Callable<Object>() {
+				public Object call() {
+					Entry[] entries = new Entry[to - from];
+					for (int i = from; i < to; i++)
+						entries[i - from] = new Entry(utf8(strings.get(i)), i);
+					Arrays.sort(entries, ENTRY_ORDER);
+					runs[run] = entries;
+					return null;
+				}
+			});
+		}
+		ParallelTasks.invokeAll(executor, tasks);
+
+		// Merge the sorted partitions
+		PriorityQueue<Cursor> heads = new PriorityQueue<Cursor>(partitions);
+		for (Entry[] entries : runs) {
+			if (entries.length > 0)
+				heads.add(new Cursor(entries));
+		}
+		Output out = new Output(Math.max(16, n * 8));
+		int[] blockOffsets = new int[(n + BLOCK_SIZE - 1) / BLOCK_SIZE];
+		byte[] previous = null;
+		int size = 0;
+		while (!heads.isEmpty()) {
+			Cursor head = heads.poll();
+			Entry e = head.entries[head.pos++];
+			if (head.pos < head.entries.length)
+				heads.add(head);
+			byte[] s = e.bytes;
+			if (previous != null && BYTES_ORDER.compare(previous, s) == 0) {
+				if (ids != null)
+					ids[e.index] = size - 1;
+				continue;
+			}
+			if (ids != null)
+				ids[e.index] = size;
+			int shared = 0;
+			if (size % BLOCK_SIZE == 0) {
+				blockOffsets[size / BLOCK_SIZE] = out.length;
+			}
+			else {
+				int max = Math.min(previous.length, s.length);
+				while (shared < max && previous[shared] == s[shared])
+					shared++;
+			}
+			out.writeVInt(shared);
+			out.writeVInt(s.length - shared);
+			out.write(s, shared, s.length - shared);
+			previous = s;
+			size++;
+		}
+		int blocks = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		return new LocalNamePool(out.toByteArray(),
+				blocks == blockOffsets.length ? blockOffsets : copyOf(blockOffsets, blocks), size);
+	}
+
+	/** @return the number of strings in the pool */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @param id - the identifier of a string, 0 to <code>size() - 1</code>
+	 * @return the string
+	 */
+	public String get(int id) {
+		if (id < 0 || id >= size)
+			throw new IndexOutOfBoundsException("No string " + id + " in a pool of " + size);
+		Decoder d = new Decoder(id / BLOCK_SIZE);
+		for (int i = id % BLOCK_SIZE; i >= 0; i--)
+			d.next();
+		return d.string();
+	}
+
+	/**
+	 * @param s - a string
+	 * @return the identifier of the string or -1 if it is not in the pool
+	 */
+	public int indexOf(String s) {
+		int id = ceiling(s);
+		return id < size && get(id).equals(s) ? id : -1;
+	}
+
+	/**
+	 * @param s - a string
+	 * @return the identifier of the first string of the pool which is not
+	 * less than the given one, <code>size()</code> if there is none. The
+	 * strings which start with a prefix follow its ceiling.
+	 */
+	public int ceiling(String s) {
+		if (size == 0)
+			return 0;
+		byte[] key = utf8(s);
+		// The last block whose first string is not greater than the key
+		int low = 0;
+		int high = blockOffsets.length - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			Decoder d = new Decoder(mid);
+			d.next();
+			if (d.compareTo(key) <= 0)
+				low = mid;
+			else
+				high = mid - 1;
+		}
+		Decoder d = new Decoder(low);
+		int end = Math.min(size, (low + 1) * BLOCK_SIZE);
+		for (int id = low * BLOCK_SIZE; id < end; id++) {
+			d.next();
+			if (d.compareTo(key) >= 0)
+				return id;
+		}
+		return end;
+	}
+
+	/** @return the number of bytes of the front-coded strings and the block offsets */
+	public long getEstimatedBytes() {
+		return data.length + 4L * blockOffsets.length + 48;
+	}
+
+	/** A string of the pool being built and its index in the input */
+	private static class Entry {
+		final byte[] bytes;
+		final int index;
+
+		Entry(byte[] bytes, int index) {
+			this.bytes = bytes;
+			this.index = index;
+		}
+	}
+
+	private static final Comparator<Entry> ENTRY_ORDER = new Comparator<Entry>() {
+		public int compare(Entry a, Entry b) {
+			return BYTES_ORDER.compare(a.bytes, b.bytes);
+		}
+	};
+
+	/** The next entry of a sorted partition in the merge */
+	private static class Cursor implements Comparable<Cursor> {
+		final Entry[] entries;
+		int pos;
+
+		Cursor(Entry[] entries) {
+			this.entries = entries;
+		}
+
+		public int compareTo(Cursor o) {
+			return ENTRY_ORDER.compare(entries[pos], o.entries[o.pos]);
+		}
+	}
+
+	/** Reads the strings of a block one after the other */
+	private class Decoder {
+		private int pos;
+		private byte[] current = new byte[32];
+		private int length;
+
+		Decoder(int block) {
+			pos = blockOffsets[block];
+		}
+
+		void next() {
+			int shared = readVInt();
+			int suffix = readVInt();
+			length = shared + suffix;
+			if (length > current.length) {
+				byte[] grown = new byte[Math.max(length, current.length * 2)];
+				System.arraycopy(current, 0, grown, 0, shared);
+				current = grown;
+			}
+			System.arraycopy(data, pos, current, shared, suffix);
+			pos += suffix;
+		}
+
+		int compareTo(byte[] key) {
+			return compare(current, length, key, key.length);
+		}
+
+		String string() {
+			try {
+				return new String(current, 0, length, "UTF-8");
+			}
+			catch (UnsupportedEncodingException e) {
+				throw new IllegalStateException(e.getMessage());
+			}
+		}
+
+		private int readVInt() {
+			int value = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = data[pos++];
+				value |= (b & 0x7f) << shift;
+				shift += 7;
+			} while (b < 0);
+			return value;
+		}
+	}
+
+	/** Compares byte sequences as unsigned values, which keeps the order of the code points */
+	private static int compare(byte[] a, int aLength, byte[] b, int bLength) {
+		int n = Math.min(aLength, bLength);
+		for (int i = 0; i < n; i++) {
+			int c = (a[i] & 0xff) - (b[i] & 0xff);
+			if (c != 0)
+				return c;
+		}
+		return aLength - bLength;
+	}
+
+	private static byte[] utf8(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e.getMessage());
+		}
+	}
+
+	private static int[] copyOf(int[] a, int length) {
+		int[] copy = new int[length];
+		System.arraycopy(a, 0, copy, 0, length);
+		return copy;
+	}
+
+	/** A growing byte array */
+	private static class Output {
+		byte[] bytes;
+		int length;
+
+		Output(int capacity) {
+			bytes = new byte[capacity];
+		}
+
+		void writeVInt(int value) {
+			while ((value & ~0x7f) != 0) {
+				writeByte((value & 0x7f) | 0x80);
+				value >>>= 7;
+			}
+			writeByte(value);
+		}
+
+		void write(byte[] b, int offset, int count) {
+			ensure(count);
+			System.arraycopy(b, offset, bytes, length, count);
+			length += count;
+		}
+
+		private void writeByte(int b) {
+			ensure(1);
+			bytes[length++] = (byte) b;
+		}
+
+		private void ensure(int count) {
+			if (length + count > bytes.length) {
+				byte[] grown = new byte[Math.max(length + count, bytes.length * 2)];
+				System.arraycopy(bytes, 0, grown, 0, length);
+				bytes = grown;
+			}
+		}
+
+		byte[] toByteArray() {
+			byte[] result = new byte[length];
+			System.arraycopy(bytes, 0, result, 0, length);
+			return result;
+		}
+	}
+}
@@ -0,0 +1,297 @@
+package com.ontotext.kim.model;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Nanosecond timings of the stages of the dictionary lookup, collected per
+ * thread and aggregated on demand.<br>
+ * <br>
+ * The timings are collected only if the JVM is started with the system
+ * property <code>lkb.gazetteer.timings=true</code>. Every timed block is
+ * guarded by the constant <code>ENABLED</code>, so otherwise the JIT removes
+ * the guarded code and the lookup does not read the clock at all.<br>
+ * Every thread records into its own histograms, so concurrent gazetteers
+ * do not contend and do not mix their intervals. A histogram has four
+ * buckets per power of two of nanoseconds, so the reported percentiles
+ * are the upper bounds of their buckets, at most 25% above the true value.
+ * The histograms are read without locking; a snapshot taken while threads
+ * record may miss their latest intervals. The histograms of the threads
+ * which ended are added to a retired total and dropped, whenever a thread
+ * records its first interval or the timings are read, so short-lived
+ * threads do not keep their histograms.<br>
+ * When enabled, the timings are registered as an MBean under
+ * <code>OBJECT_NAME</code>.
+ *
+ * @author danko
+ */
+public final class LookupTimings implements LookupTimingsMBean {
+
+	private static Logger log = Logger.getLogger(LookupTimings.class);
+
+	/** The timed stages of the lookup */
+	public enum Stage {
+		/** Splitting a text into lexemes and growing the frame over them */
+		LEX,
+		/** Finding the candidate aliases of a frame: its Alias-Hash-1 in the
+		 * register, or the walk of the trie */
+		HASH1_LOOKUP,
+		/** Matching the candidates to the text of the frame: their
+		 * Alias-Hash-2, or their text in the trie */
+		HASH2_FILTER,
+		/** Creating the annotation of a found entity */
+		ANNOTATE
+	}
+
+	/** Whether to collect the timings. <b>false</b> by default. */
+	public static final String ENABLED_PROPERTY = "lkb.gazetteer.timings";
+	public static final boolean ENABLED = Boolean.getBoolean(ENABLED_PROPERTY);
+	public static final String OBJECT_NAME = "com.ontotext.kim:type=LookupTimings";
+
+	private static final Stage[] STAGES = Stage.values();
+	/** The bits after the highest one which select the bucket within a power of two */
+	private static final int SUB_BITS = 2;
+	private static final int BUCKETS = 64 << SUB_BITS;
+	/** The histogram elements after the buckets */
+	private static final int TOTAL = BUCKETS;
+	private static final int MAX = BUCKETS + 1;
+
+	/** The histograms of the live threads which recorded a timing; the
+	 * list and <code>retired</code> are guarded by the list */
+	private static final List<ThreadHistograms> histograms = new ArrayList<ThreadHistograms>();
+	/** The sum of the histograms of the threads which ended */
+	private static final long[][] retired = new long[STAGES.length][BUCKETS + 2];
+	private static final ThreadLocal<long[][]> threadHistograms = new ThreadLocal<long[][]>() {
+		protected long[][] initialValue() {
+			ThreadHistograms h = new ThreadHistograms(Thread.currentThread());
+			synchronized (histograms) {
+				retireEnded();
+				histograms.add(h);
+			}
+			return h.stages;
+		}
+	};
+
+	/** The histograms of a thread, kept while the thread is alive */
+	private static class ThreadHistograms {
+		final WeakReference<Thread> thread;
+		final long[][] stages = new long[STAGES.length][BUCKETS + 2];
+
+		ThreadHistograms(Thread thread) {
+			this.thread = new WeakReference<Thread>(thread);
+		}
+
+		boolean ended() {
+			Thread t = thread.get();
+			return t == null || !t.isAlive();
+		}
+	}
+
+	static {
+		if (ENABLED) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().registerMBean(
+						new LookupTimings(), new ObjectName(OBJECT_NAME));
+			}
+			catch (Exception e) {
+				log.warn("Could not register the lookup timings as " + OBJECT_NAME, e);
+			}
+		}
+	}
+
+	private LookupTimings() {
+	}
+
+	/**
+	 * Records the interval of a stage in the histogram of the current thread.
+	 * Call only if <code>ENABLED</code>.
+	 * @param stage - the stage
+	 * @param start - the <code>System.nanoTime()</code> at which the stage started
+	 * @return the current <code>System.nanoTime()</code>, the start of the next stage
+	 */
+	public static long record(Stage stage, long start) {
+		long now = System.nanoTime();
+		long nanos = Math.max(0, now - start);
+		long[] h = threadHistograms.get()[stage.ordinal()];
+		h[bucket(nanos)]++;
+		h[TOTAL] += nanos;
+		if (nanos > h[MAX])
+			h[MAX] = nanos;
+		return now;
+	}
+
+	private static int bucket(long nanos) {
+		if (nanos < (1 << SUB_BITS))
+			return (int) nanos;
+		int high = 63 - Long.numberOfLeadingZeros(nanos);
+		int sub = (int) (nanos >>> (high - SUB_BITS)) & ((1 << SUB_BITS) - 1);
+		return ((high - SUB_BITS + 1) << SUB_BITS) + sub;
+	}
+
+	/** @return the smallest interval of a bucket */
+	private static long lowerBound(int bucket) {
+		if (bucket < (1 << SUB_BITS))
+			return bucket;
+		int high = (bucket >> SUB_BITS) - 1 + SUB_BITS;
+		long sub = bucket & ((1 << SUB_BITS) - 1);
+		return ((1L << SUB_BITS) + sub) << (high - SUB_BITS);
+	}
+
+	private static void add(long[] sum, long[] s) {
+		for (int i = 0; i < BUCKETS; i++)
+			sum[i] += s[i];
+		sum[TOTAL] += s[TOTAL];
+		sum[MAX] = Math.max(sum[MAX], s[MAX]);
+	}
+
+	/** Adds the histograms of the ended threads to the retired total and
+	 * drops them. Call with the lock of <code>histograms</code>. */
+	private static void retireEnded() {
+		for (Iterator<ThreadHistograms> it = histograms.iterator(); it.hasNext();) {
+			ThreadHistograms h = it.next();
+			// The end of a thread makes its last intervals visible
+			if (h.ended()) {
+				for (int i = 0; i < STAGES.length; i++)
+					add(retired[i], h.stages[i]);
+				it.remove();
+			}
+		}
+	}
+
+	/** @return the sum of the histograms of all threads for a stage */
+	private static long[] aggregate(Stage stage) {
+		long[] sum = new long[BUCKETS + 2];
+		synchronized (histograms) {
+			retireEnded();
+			add(sum, retired[stage.ordinal()]);
+			for (ThreadHistograms h : histograms)
+				add(sum, h.stages[stage.ordinal()]);
+		}
+		return sum;
+	}
+
+	/** @return the number of live threads whose histograms are kept */
+	public static int threadCount() {
+		synchronized (histograms) {
+			retireEnded();
+			return histograms.size();
+		}
+	}
+
+	private static long count(long[] h) {
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++)
+			count += h[i];
+		return count;
+	}
+
+	/** @return the upper bound of the bucket of the given percentile; 0 if nothing is recorded */
+	private static long percentile(long[] h, double percent) {
+		long count = count(h);
+		if (count == 0)
+			return 0;
+		long rank = (long) Math.ceil(count * percent / 100);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += h[i];
+			if (seen >= rank && h[i] > 0)
+				return Math.min(h[MAX], lowerBound(i + 1) - 1);
+		}
+		return h[MAX];
+	}
+
+	//=========================================================================
+	// MBean section
+	//=========================================================================
+	public boolean isEnabled() {
+		return ENABLED;
+	}
+
+	public String[] getStages() {
+		String[] names = new String[STAGES.length];
+		for (int i = 0; i < STAGES.length; i++)
+			names[i] = STAGES[i].name();
+		return names;
+	}
+
+	public long[] getCounts() {
+		long[] values = new long[STAGES.length];
+		for (int i = 0; i < STAGES.length; i++)
+			values[i] = count(aggregate(STAGES[i]));
+		return values;
+	}
+
+	public long[] getTotalNanos() {
+		long[] values = new long[STAGES.length];
+		for (int i = 0; i < STAGES.length; i++)
+			values[i] = aggregate(STAGES[i])[TOTAL];
+		return values;
+	}
+
+	public long[] getMedianNanos() {
+		return getPercentileNanos(50);
+	}
+
+	public long[] getPercentile99Nanos() {
+		return getPercentileNanos(99);
+	}
+
+	public long[] getMaxNanos() {
+		long[] values = new long[STAGES.length];
+		for (int i = 0; i < STAGES.length; i++)
+			values[i] = aggregate(STAGES[i])[MAX];
+		return values;
+	}
+
+	public long[] getPercentileNanos(double percent) {
+		long[] values = new long[STAGES.length];
+		for (int i = 0; i < STAGES.length; i++)
+			values[i] = percentile(aggregate(STAGES[i]), percent);
+		return values;
+	}
+
+	public String getSummary() {
+		return summary();
+	}
+
+	public int getThreadCount() {
+		return threadCount();
+	}
+
+	public void reset() {
+		synchronized (histograms) {
+			retireEnded();
+			for (long[] s : retired)
+				Arrays.fill(s, 0);
+			for (ThreadHistograms h : histograms) {
+				for (long[] s : h.stages)
+					Arrays.fill(s, 0);
+			}
+		}
+	}
+
+	/** @return a line per stage with its count, total, mean, median, 99th
+	 * percentile and maximum */
+	public static String summary() {
+		StringBuilder sb = new StringBuilder();
+		for (Stage stage : STAGES) {
+			long[] h = aggregate(stage);
+			long count = count(h);
+			sb.append(stage.name()).append(": ").append(count).append(" intervals, ")
+				.append(h[TOTAL] / 1000000).append("ms total, mean ")
+				.append(count == 0 ? 0 : h[TOTAL] / count).append("ns, median ")
+				.append(percentile(h, 50)).append("ns, 99% ")
+				.append(percentile(h, 99)).append("ns, max ")
+				.append(h[MAX]).append("ns\n");
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,41 @@
+package com.ontotext.kim.model;
+
+/**
+ * The JMX view of <code>LookupTimings</code>. The array attributes have an
+ * element per stage, in the order of <code>getStages()</code>.
+ */
+public interface LookupTimingsMBean {
+
+	/** @return whether the timings are collected */
+	boolean isEnabled();
+
+	/** @return the names of the timed stages */
+	String[] getStages();
+
+	/** @return the number of recorded intervals per stage */
+	long[] getCounts();
+
+	/** @return the sum of the recorded intervals per stage, in nanoseconds */
+	long[] getTotalNanos();
+
+	long[] getMedianNanos();
+
+	long[] getPercentile99Nanos();
+
+	long[] getMaxNanos();
+
+	/**
+	 * @param percent - the percentile, 0 to 100
+	 * @return the percentile of the intervals per stage, in nanoseconds
+	 */
+	long[] getPercentileNanos(double percent);
+
+	/** @return the timings of all stages as text */
+	String getSummary();
+
+	/** @return the number of live threads whose histograms are kept */
+	int getThreadCount();
+
+	/** Discards the recorded intervals */
+	void reset();
+}
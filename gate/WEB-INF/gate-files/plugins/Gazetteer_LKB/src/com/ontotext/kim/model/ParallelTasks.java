@@ -0,0 +1,63 @@
+package com.ontotext.kim.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.ontotext.kim.client.KIMRuntimeException;
+
+/**
+ * Runs the parts of a bulk operation over the dictionary structures, such as
+ * the partitions of a <code>HashRegister</code>, and waits for all of them.
+ */
+final class ParallelTasks {
+
+	private ParallelTasks() {
+	}
+
+	/**
+	 * @param executor - the threads which run the tasks; <b>null</b> to run
+	 * them one after the other in the calling thread
+	 * @param tasks - the tasks
+	 * @throws KIMRuntimeException - if a task fails or the calling thread
+	 * is interrupted; an unchecked exception of a task is thrown as is
+	 */
+	static void invokeAll(ExecutorService executor, List<Callable<Object>> tasks) {
+		List<Future<Object>> futures = new ArrayList<Future<Object>>(tasks.size());
+		try {
+			if (executor == null) {
+				for (Callable<Object> task : tasks)
+					task.call();
+				return;
+			}
+			futures = executor.invokeAll(tasks);
+			for (Future<Object> f : futures)
+				f.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new KIMRuntimeException("Interrupted while waiting for a parallel task.", e);
+		}
+		catch (ExecutionException e) {
+			throw unchecked(e.getCause());
+		}
+		catch (Exception e) {
+			throw unchecked(e);
+		}
+		finally {
+			for (Future<Object> f : futures)
+				f.cancel(true);
+		}
+	}
+
+	private static RuntimeException unchecked(Throwable t) {
+		if (t instanceof Error)
+			throw (Error) t;
+		if (t instanceof RuntimeException)
+			return (RuntimeException) t;
+		return new KIMRuntimeException("A parallel task failed.", t);
+	}
+}
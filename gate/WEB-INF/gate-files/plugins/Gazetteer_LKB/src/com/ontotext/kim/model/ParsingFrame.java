@@ -1,13 +1,14 @@
 package com.ontotext.kim.model;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.apache.commons.collections.Transformer;
 import org.apache.commons.collections.TransformerUtils;
 
-import com.ontotext.kim.model.AliasCacheImpl.Stats;
+import com.ontotext.kim.model.LookupTimings.Stage;
 
 
 /**
@@ -35,12 +36,16 @@ import com.ontotext.kim.model.AliasCacheImpl.Stats;
  * lexeme.<br>
  * The class has retrieval methods that get the current frame offset and
  * the lengths of the three parts. There are dedicated methods for calculation
- * of the two Hash Codes specific to a Hashed Alias.
+ * of the two Hash Codes specific to a Hashed Alias.<br>
+ * The lexemes of the frame are exposed as a <code>DictionaryFeeder.ANLList</code>.<br>
+ * The text transformation applied before the hash-code calculation belongs
+ * to the dictionary which uses the hash-codes, see
+ * <code>setTextTransformer</code>.
  * 
  * @author danko
  *
  */
-public class ParsingFrame {
+public class ParsingFrame implements DictionaryFeeder.ANLList {
 	
 	public static final boolean SPLIT_AT_SMALL_TO_CAPITAL_CASE_CHANGE = false;
 	//================================================
@@ -64,8 +69,6 @@ public class ParsingFrame {
 	 *  the H1 hash value of the <code>HashAlias</code> */
 	private static final String H1_DELIMITER = "^";
 
-	public static Transformer frameTT = TransformerUtils.nopTransformer();
-
 	//================================================
 	// ParsingFrame: Parse result buffering
 	//================================================
@@ -106,6 +109,7 @@ public class ParsingFrame {
 	private final String source;
 	private String normalizedAlias = "";
 	private int lexemeCount = 0;
+	private Transformer transformer = TransformerUtils.nopTransformer();
 
 	//================================================
 	// ParsingFrame: class constructor
@@ -117,7 +121,7 @@ public class ParsingFrame {
 	 * <code>ParsingFrame</code> class
 	 */
 	public ParsingFrame (String source) {
-		Stats.markIt(-1);
+		long started = LookupTimings.ENABLED ? System.nanoTime() : 0;
 		this.source = source;
 		Matcher lexMatcher = LEXEME_MATCH_PAT.matcher(source);
 		int lastSuff = -1;
@@ -133,7 +137,122 @@ public class ParsingFrame {
 			lastSuff = lexMatcher.end(2) - lexMatcher.start(2);
 		}
 
-		Stats.markIt(7);
+		if (LookupTimings.ENABLED)
+			LookupTimings.record(Stage.LEX, started);
+	}
+
+	/** This constructor fills the parsing buffer from the spans of tokens
+	 * found by another component (e.g. a GATE tokeniser) instead of the
+	 * regular expression. Within every token the ANLs are the maximal runs of
+	 * digits or letters, as matched by <code>LEXEME_MATCH_PAT</code>, so the
+	 * hash codes agree with those of the dictionary aliases. Text outside the
+	 * tokens is treated as non-alpha-numeric context; text covered by more
+	 * than one token is parsed once.
+	 * @param source - the String to be processed through the
+	 * <code>ParsingFrame</code> class
+	 * @param tokenOffsets - the start and end offsets of the tokens:
+	 * start0, end0, start1, end1, ...; sorted by start here if needed
+	 */
+	public ParsingFrame (String source, int[] tokenOffsets) {
+		long started = LookupTimings.ENABLED ? System.nanoTime() : 0;
+		this.source = source;
+		tokenOffsets = inDocumentOrder(tokenOffsets);
+		int lastSuff = -1;
+		int lexStart = -1;
+		int lexEnd = -1;
+		int covered = 0;
+		for (int t = 0; t + 1 < tokenOffsets.length; t += 2) {
+			int i = Math.max(tokenOffsets[t], covered);
+			int end = Math.min(tokenOffsets[t + 1], source.length());
+			while (i < end) {
+				int kind = lexemeKind(source.charAt(i));
+				if (kind == 0) {
+					i++;
+					continue;
+				}
+				int j = i + 1;
+				while (j < end && lexemeKind(source.charAt(j)) == kind
+						&& !(SPLIT_AT_SMALL_TO_CAPITAL_CASE_CHANGE
+								&& Character.isLowerCase(source.charAt(j - 1))
+								&& Character.isUpperCase(source.charAt(j))))
+					j++;
+				if (lexStart >= 0)
+					lastSuff = addLexeme(lastSuff, lexStart, lexEnd, i);
+				lexStart = i;
+				lexEnd = j;
+				i = j;
+			}
+			covered = Math.max(covered, end);
+		}
+		if (lexStart >= 0)
+			addLexeme(lastSuff, lexStart, lexEnd, source.length());
+
+		if (LookupTimings.ENABLED)
+			LookupTimings.record(Stage.LEX, started);
+	}
+
+	/** @return the token offsets sorted by start, the given array if they already are */
+	private static int[] inDocumentOrder(int[] tokenOffsets) {
+		int n = tokenOffsets.length / 2;
+		int t = 1;
+		while (t < n && tokenOffsets[2 * t] >= tokenOffsets[2 * t - 2])
+			t++;
+		if (t >= n)
+			return tokenOffsets;
+		long[] spans = new long[n];
+		for (int i = 0; i < n; i++)
+			spans[i] = ((long) tokenOffsets[2 * i] << 32) | (tokenOffsets[2 * i + 1] & 0xffffffffL);
+		Arrays.sort(spans);
+		int[] sorted = new int[2 * n];
+		for (int i = 0; i < n; i++) {
+			sorted[2 * i] = (int) (spans[i] >> 32);
+			sorted[2 * i + 1] = (int) spans[i];
+		}
+		return sorted;
+	}
+
+	/** Adds an ANL to the parsing buffer.
+	 * @param lastSuff - the suffix length of the previous ANL or -1 for the first one
+	 * @param start - the ANL start offset
+	 * @param end - the ANL end offset
+	 * @param next - the start offset of the next ANL or the source length
+	 * @return the suffix length of the added ANL
+	 */
+	private int addLexeme(int lastSuff, int start, int end, int next) {
+		if (lastSuff < 0)
+			lastSuff = start;
+		parsingBuffer.add( new ParsingBufferElement(
+				lastSuff,
+				end - start,
+				next - end,
+				source.substring(start, end),
+				start - lastSuff));
+		return next - end;
+	}
+
+	/** @return 1 for a digit, 2 for a letter and 0 for any other character
+	 * in the sense of <code>LEXEME_MATCH_PAT</code> */
+	private static int lexemeKind(char c) {
+		if (c >= '0' && c <= '9')
+			return 1;
+		if (Character.isUpperCase(c) || Character.isLowerCase(c))
+			return 2;
+		return 0;
+	}
+
+	/** Sets the text transformation applied before the hash-code
+	 * calculation. A dictionary sets its own transformation before it uses
+	 * the hash-codes, so one frame can be looked up in dictionaries with
+	 * different case sensitivity. The hash-codes are recalculated only when
+	 * the transformation changes.
+	 * @param tt - the text transformation of the dictionary
+	 */
+	public void setTextTransformer(Transformer tt) {
+		if (tt != transformer) {
+			transformer = tt;
+			aliasHash1 = 0;
+			aliasHash2 = 0;
+		}
 	}
 
 	//================================================
@@ -190,7 +309,7 @@ public class ParsingFrame {
 	public boolean parseOne() {
 		if (!frameCanMove())  return false;
 
-		Stats.markIt(-1);
+		long started = LookupTimings.ENABLED ? System.nanoTime() : 0;
 		ParsingBufferElement pbe = EMPTY_ELEMENT;
 		boolean oneParsed = false;
 		if (restartIx >= 0) {
@@ -210,9 +329,7 @@ public class ParsingFrame {
 			pbe = parsingBuffer.get(parsingIx);
 			lexemeCount++;
 		}
-		Stats.markIt(8);
 
-		Stats.markIt(-1);
 		if (restartIx >= 0) {
 			prefix = pbe.pref;
 			middle = pbe.midd;
@@ -230,7 +347,8 @@ public class ParsingFrame {
 		restartIx = -1;
 
 		resetLAD();
-		Stats.markIt(9);
+		if (LookupTimings.ENABLED)
+			LookupTimings.record(Stage.LEX, started);
 
 		return oneParsed;
 	}
@@ -263,27 +381,27 @@ public class ParsingFrame {
 	// ParsingFrame: Extraction of frame state metrics
 	//==================================================
 	/** Retrieves the <code>HashedAlias</code> related Hash-Code-1. It is 
-	 * calculated over the normalized form of the underlying text. A text
-	 * transformation with externally provided transformation logic is 
+	 * calculated over the normalized form of the underlying text. The text
+	 * transformation set with <code>setTextTransformer</code> is
 	 * performed prior to hash-code calculation.
 	 * @return - the value of the hash-code.
 	 */
 	public int getAliasHash1() {
 		checkValid();
 		if (aliasHash1==0)
-			aliasHash1 = frameTT.transform(normalizedAlias).hashCode(); 
+			aliasHash1 = transformer.transform(normalizedAlias).hashCode(); 
 		return aliasHash1;
 	}
 	/** Retrieves the <code>HashedAlias</code> related Hash-Code-2. It is 
-	 * calculated over the plain underlying text. A text
-	 * transformation with externally provided transformation logic is 
+	 * calculated over the plain underlying text. The text
+	 * transformation set with <code>setTextTransformer</code> is
 	 * performed prior to hash-code calculation.
 	 * @return - the value of the hash-code.
 	 */
 	public int getAliasHash2() {
 		checkValid();
 		if (aliasHash2==0)
-			aliasHash2 = frameTT.transform(source.substring(
+			aliasHash2 = transformer.transform(source.substring(
 					aliasOffset1, aliasOffset2)).hashCode();
 		return aliasHash2;
 	}
@@ -311,10 +429,29 @@ public class ParsingFrame {
 	 * @return frame text length
 	 */
 	public int getLength() { checkValid(); return aliasOffset2-aliasOffset1; }
+	/** Retrieves the text corresponding to the current frame
+	 * @return frame text, without text transformation
+	 */
+	public String getAliasText() { checkValid(); return source.substring(aliasOffset1, aliasOffset2); }
+	/** Retrieves the position of the first ANL of the frame among all ANLs
+	 * of the input text
+	 * @return first ANL index
+	 */
+	public int getFirstLexemeIndex() { checkValid(); return frameIx; }
 	/** Retrieves the count of ANLs in the frame
 	 * @return ANL count
 	 */
 	public int getLexemeCount() { checkValid(); return lexemeCount; }
+	/** Retrieves the i-th ANL of the frame
+	 * @param i - position within the frame, from 0 to getLexemeCount()-1
+	 * @return the text of the ANL
+	 */
+	public String getLexeme(int i) {
+		checkValid();
+		if (i < 0 || i >= lexemeCount)
+			throw new IndexOutOfBoundsException("Lexeme " + i + " of " + lexemeCount);
+		return parsingBuffer.get(frameIx + i).middTxt;
+	}
 
 	private void checkValid() {
 		if (restartIx >= 0)
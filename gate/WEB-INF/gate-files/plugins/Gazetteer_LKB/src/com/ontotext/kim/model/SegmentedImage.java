@@ -0,0 +1,337 @@
+package com.ontotext.kim.model;
+
+import gnu.trove.TIntArrayList;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * The binary image of a dictionary, with the alias register split in
+ * segments by ranges of <b>Alias-Hash-1</b>.<br>
+ * <br>
+ * The file holds a header, the core section, the segments and a table of
+ * the sections at its end:<br>
+ * - the core is the serialized form of the small structures of the
+ * dictionary, which every lookup needs;<br>
+ * - a segment holds the aliases of a range of <b>Alias-Hash-1</b> codes,
+ * multiplied by an odd constant to even out the segments, as a sequence of
+ * hash-codes, each followed by the number of its aliases and their fields;<br>
+ * - the table has the offset, length and CRC-32 of every section.<br>
+ * <code>open</code> reads the header, the table and the core and maps every
+ * segment separately, without reading it. <code>readSegment</code> checks
+ * the checksum of a segment and decodes it in a <code>HashRegister</code>,
+ * so the operating system pages in only the segments which are read.
+ *
+ * @author danko
+ */
+public class SegmentedImage {
+
+	private static final int MAGIC = 0x4C4B4253;
+	private static final int VERSION = 1;
+	/** The largest number of segments */
+	public static final int MAX_SEGMENTS = 1 << 16;
+	/** Spreads the hash-codes of short aliases, which differ in their lower
+	 * bits, over the segments; an odd factor keeps the codes distinct */
+	private static final int SPREAD = 0x9E3779B9;
+
+	private final File file;
+	private final Object core;
+	private final int shift;
+	private final int aliasCount;
+	private final long[] checksums;
+	private final int[] hashCounts;
+	/** The mapped segments; an element is released when the segment is read */
+	private final MappedByteBuffer[] maps;
+
+	private SegmentedImage(File file, Object core, int segmentCount, int aliasCount,
+			long[] checksums, int[] hashCounts, MappedByteBuffer[] maps) {
+		this.file = file;
+		this.core = core;
+		this.shift = 32 - Integer.numberOfTrailingZeros(segmentCount);
+		this.aliasCount = aliasCount;
+		this.checksums = checksums;
+		this.hashCounts = hashCounts;
+		this.maps = maps;
+	}
+
+	/** @return the smallest power of two not less than the requested
+	 * number of segments, within 1 and <code>MAX_SEGMENTS</code> */
+	public static int segmentCount(int requested) {
+		int count = 1;
+		while (count < requested && count < MAX_SEGMENTS)
+			count <<= 1;
+		return count;
+	}
+
+	/**
+	 * Writes a register of <code>HashedAlias</code> elements with the core
+	 * structures of its dictionary.
+	 * @param file - the image file; it is overwritten
+	 * @param register - the alias register
+	 * @param core - the other structures of the dictionary
+	 * @param segments - the requested number of segments; it is rounded up
+	 * to a power of two
+	 * @throws IOException - on failure to write the file
+	 */
+	public static void write(File file, HashRegister register, Serializable core,
+			int segments) throws IOException {
+		final int segmentCount = segmentCount(segments);
+		final int shift = 32 - Integer.numberOfTrailingZeros(segmentCount);
+		// The hash-codes of every segment
+		final TIntArrayList[] hashes = new TIntArrayList[segmentCount];
+		for (int i=0; i<segmentCount; i++)
+			hashes[i] = new TIntArrayList();
+		register.processContent(new HashRegister.HashedContentProcessor() {
+			public void process(int hashValue, Object[] elements) {
+				if (elements != null && elements.length > 0)
+					hashes[segmentOf(hashValue, shift)].add(hashValue);
+			}
+		});
+
+		long[] offsets = new long[segmentCount + 1];
+		long[] lengths = new long[segmentCount + 1];
+		long[] checksums = new long[segmentCount + 1];
+		int[] hashCounts = new int[segmentCount];
+		FileOutputStream fos = new FileOutputStream(file);
+		try {
+			FileChannel channel = fos.getChannel();
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(segmentCount);
+			out.writeInt(register.getElementsCount());
+
+			// The core is the section after the segments in the table
+			CRC32 crc = new CRC32();
+			out.flush();
+			offsets[segmentCount] = channel.position();
+			ObjectOutputStream oos = new ObjectOutputStream(
+					new CheckedOutputStream(new KeptOpenStream(out), crc));
+			oos.writeObject(core);
+			oos.close();
+			out.flush();
+			lengths[segmentCount] = channel.position() - offsets[segmentCount];
+			checksums[segmentCount] = crc.getValue();
+
+			for (int i=0; i<segmentCount; i++) {
+				crc = new CRC32();
+				offsets[i] = channel.position();
+				DataOutputStream seg = new DataOutputStream(new BufferedOutputStream(
+						new CheckedOutputStream(new KeptOpenStream(out), crc), 1 << 16));
+				int[] segHashes = hashes[i].toNativeArray();
+				hashes[i] = null;
+				hashCounts[i] = segHashes.length;
+				for (int hash : segHashes) {
+					Object[] elements = register.get(hash);
+					seg.writeInt(hash);
+					seg.writeInt(elements.length);
+					for (Object o : elements) {
+						HashedAlias ha = (HashedAlias) o;
+						seg.writeInt(ha.aliasHash2);
+						seg.writeByte(ha.prefLen);
+						seg.writeByte(ha.suffLen);
+						seg.writeInt(ha.instID);
+						seg.writeInt(ha.classID);
+					}
+				}
+				seg.flush();
+				out.flush();
+				lengths[i] = channel.position() - offsets[i];
+				checksums[i] = crc.getValue();
+			}
+
+			// The table and its offset end the file
+			long tableOffset = channel.position();
+			for (int i=0; i<=segmentCount; i++) {
+				out.writeLong(offsets[i]);
+				out.writeLong(lengths[i]);
+				out.writeLong(checksums[i]);
+				out.writeInt(i < segmentCount ? hashCounts[i] : 0);
+			}
+			out.writeLong(tableOffset);
+			out.flush();
+		}
+		finally {
+			fos.close();
+		}
+	}
+
+	/**
+	 * Opens an image: reads and checks its core and maps its segments.
+	 * @param file - the image file
+	 * @return the opened image
+	 * @throws IOException - if the file cannot be read, is not an image or
+	 * its core is corrupt
+	 */
+	public static SegmentedImage open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			if (raf.length() < 24 || raf.readInt() != MAGIC)
+				throw new IOException(file + " is not a segmented dictionary image.");
+			int version = raf.readInt();
+			if (version != VERSION)
+				throw new IOException(file + " has unknown image version " + version + ".");
+			int segmentCount = raf.readInt();
+			int aliasCount = raf.readInt();
+			if (segmentCount < 1 || segmentCount > MAX_SEGMENTS
+					|| Integer.bitCount(segmentCount) != 1)
+				throw new IOException(file + " has an invalid number of segments " + segmentCount + ".");
+
+			raf.seek(raf.length() - 8);
+			raf.seek(raf.readLong());
+			long[] offsets = new long[segmentCount + 1];
+			long[] lengths = new long[segmentCount + 1];
+			long[] checksums = new long[segmentCount + 1];
+			int[] hashCounts = new int[segmentCount];
+			for (int i=0; i<=segmentCount; i++) {
+				offsets[i] = raf.readLong();
+				lengths[i] = raf.readLong();
+				checksums[i] = raf.readLong();
+				int hashCount = raf.readInt();
+				if (i < segmentCount)
+					hashCounts[i] = hashCount;
+				if (offsets[i] < 0 || lengths[i] < 0 || offsets[i] + lengths[i] > raf.length()
+						|| lengths[i] > Integer.MAX_VALUE)
+					throw new IOException(file + " has an invalid section table.");
+			}
+
+			FileChannel channel = raf.getChannel();
+			byte[] coreBytes = new byte[(int) lengths[segmentCount]];
+			raf.seek(offsets[segmentCount]);
+			raf.readFully(coreBytes);
+			CRC32 crc = new CRC32();
+			crc.update(coreBytes);
+			if (crc.getValue() != checksums[segmentCount])
+				throw new IOException("The core of " + file + " is corrupt.");
+			Object core;
+			ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(coreBytes));
+			try {
+				core = ois.readObject();
+			}
+			catch (ClassNotFoundException e) {
+				throw (IOException) new IOException("The core of " + file + " cannot be read.").initCause(e);
+			}
+			finally {
+				ois.close();
+			}
+
+			MappedByteBuffer[] maps = new MappedByteBuffer[segmentCount];
+			for (int i=0; i<segmentCount; i++)
+				maps[i] = channel.map(FileChannel.MapMode.READ_ONLY, offsets[i], lengths[i]);
+			return new SegmentedImage(file, core, segmentCount, aliasCount,
+					checksums, hashCounts, maps);
+		}
+		finally {
+			// The mappings stay valid after the file is closed
+			raf.close();
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/** @return the core structures given to <code>write</code> */
+	public Object getCore() {
+		return core;
+	}
+
+	public int getSegmentCount() {
+		return maps.length;
+	}
+
+	/** @return the number of aliases in all segments */
+	public int getAliasCount() {
+		return aliasCount;
+	}
+
+	/** @return the index of the segment of an <b>Alias-Hash-1</b> code */
+	public int segmentOf(int hashValue) {
+		return segmentOf(hashValue, shift);
+	}
+
+	private static int segmentOf(int hashValue, int shift) {
+		return shift == 32 ? 0 : (hashValue * SPREAD) >>> shift;
+	}
+
+	/**
+	 * Checks the checksum of a segment and decodes its aliases. A segment
+	 * is read once; its mapping is released afterwards.
+	 * @param i - the index of the segment
+	 * @return a register with the aliases of the segment
+	 * @throws IOException - if the segment is corrupt
+	 * @throws IllegalStateException - if the segment has already been read
+	 */
+	public HashRegister readSegment(int i) throws IOException {
+		ByteBuffer map;
+		synchronized (maps) {
+			map = maps[i];
+		}
+		if (map == null)
+			throw new IllegalStateException("Segment " + i + " of " + file + " has already been read.");
+		ByteBuffer buf = map.duplicate();
+		CRC32 crc = new CRC32();
+		byte[] chunk = new byte[1 << 16];
+		while (buf.hasRemaining()) {
+			int n = Math.min(chunk.length, buf.remaining());
+			buf.get(chunk, 0, n);
+			crc.update(chunk, 0, n);
+		}
+		if (crc.getValue() != checksums[i])
+			throw new IOException("Segment " + i + " of " + file + " is corrupt.");
+
+		buf = map.duplicate();
+		int hashCount = hashCounts[i];
+		HashRegister register = new HashRegister(
+				Math.max(HashRegister.initialSize, hashCount * 100 / 75 + 1), true);
+		try {
+			while (buf.hasRemaining()) {
+				int hash = buf.getInt();
+				int count = buf.getInt();
+				for (int k=0; k<count; k++) {
+					int aliasHash2 = buf.getInt();
+					byte prefLen = buf.get();
+					byte suffLen = buf.get();
+					int instID = buf.getInt();
+					int classID = buf.getInt();
+					register.add(hash, new HashedAlias(aliasHash2, prefLen, suffLen, instID, classID));
+				}
+			}
+		}
+		catch (RuntimeException e) {
+			throw (IOException) new IOException("Segment " + i + " of " + file + " cannot be decoded.").initCause(e);
+		}
+		synchronized (maps) {
+			maps[i] = null;
+		}
+		return register;
+	}
+
+	/** An output stream which flushes its target on close instead of closing it */
+	private static class KeptOpenStream extends FilterOutputStream {
+		KeptOpenStream(OutputStream out) {
+			super(out);
+		}
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+		}
+		public void close() throws IOException {
+			flush();
+		}
+	}
+}
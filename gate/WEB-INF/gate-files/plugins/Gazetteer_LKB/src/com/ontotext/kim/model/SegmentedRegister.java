@@ -0,0 +1,283 @@
+package com.ontotext.kim.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.log4j.Logger;
+
+import com.ontotext.kim.client.KIMRuntimeException;
+
+/**
+ * A read-only alias register whose content stays in the segments of a
+ * <code>SegmentedImage</code> until it is needed.<br>
+ * <br>
+ * Every segment is decoded in a <code>HashRegister</code> of its own the
+ * first time a hash-code of its range is looked up, so a dictionary can
+ * serve lookups as soon as the core of its image is read. The bulk
+ * operations read all segments first. The prefetcher started by
+ * <code>startPrefetch</code> reads the remaining segments in the background
+ * while the register is in use.<br>
+ * A segment whose checksum does not match cannot be used. The lookups which
+ * touch it find nothing and the image is flagged, so the next load of the
+ * dictionary builds it again. The repair action set with
+ * <code>setRepair</code> is run on the first corrupt segment, to build a new
+ * version of the dictionary without waiting for a restart. The bulk
+ * operations fail on a corrupt segment.
+ *
+ * @author danko
+ */
+public class SegmentedRegister extends HashRegister {
+	private static final long serialVersionUID = 4800L;
+
+	private static Logger log = Logger.getLogger(SegmentedRegister.class);
+
+	private final transient SegmentedImage image;
+	/** The read segments, <b>null</b> until a segment is read */
+	private final transient AtomicReferenceArray<HashRegister> segments;
+	/** The locks which keep two threads from reading the same segment */
+	private final transient Object[] segmentLocks;
+	/** Stands for a corrupt segment, so its lookups find nothing */
+	private final transient HashRegister corruptSegment = new HashRegister(1, false);
+	private final transient AtomicBoolean corrupt = new AtomicBoolean(false);
+	private transient volatile Runnable repair;
+
+	public SegmentedRegister(SegmentedImage image) {
+		super(1, false);
+		this.image = image;
+		segments = new AtomicReferenceArray<HashRegister>(image.getSegmentCount());
+		segmentLocks = new Object[image.getSegmentCount()];
+		for (int i=0; i<segmentLocks.length; i++)
+			segmentLocks[i] = new Object();
+	}
+
+	public int getSegmentCount() {
+		return segments.length();
+	}
+
+	/** @return the number of segments which are read */
+	public int getLoadedSegmentCount() {
+		int loaded = 0;
+		for (int i=0; i<segments.length(); i++) {
+			if (segments.get(i) != null)
+				loaded++;
+		}
+		return loaded;
+	}
+
+	/**
+	 * Sets the action which builds a new version of the dictionary when a
+	 * corrupt segment is found. It is run once, by the thread which found it.
+	 */
+	public void setRepair(Runnable repair) {
+		this.repair = repair;
+	}
+
+	/** @return whether a corrupt segment was found */
+	public boolean isCorrupt() {
+		return corrupt.get();
+	}
+
+	/**
+	 * @param i - the index of a segment
+	 * @return the segment, read from the image if needed; an empty one if
+	 * it is corrupt
+	 */
+	private HashRegister segment(int i) {
+		HashRegister seg = segments.get(i);
+		if (seg != null)
+			return seg;
+		synchronized (segmentLocks[i]) {
+			seg = segments.get(i);
+			if (seg != null)
+				return seg;
+			try {
+				seg = image.readSegment(i);
+			}
+			catch (IOException e) {
+				log.error("Segment " + i + " of " + image.getFile() + " is corrupt, its aliases are not found"
+						+ " until the dictionary is built again.", e);
+				seg = corruptSegment;
+			}
+			segments.set(i, seg);
+		}
+		// The repair is started outside the lock of the segment
+		if (seg == corruptSegment)
+			repairImage();
+		return seg;
+	}
+
+	/**
+	 * @param i - the index of a segment
+	 * @return the segment, read from the image if needed
+	 * @throws KIMRuntimeException - if the segment is corrupt
+	 */
+	private HashRegister wholeSegment(int i) {
+		HashRegister seg = segment(i);
+		if (seg == corruptSegment)
+			throw new KIMRuntimeException("Could not read segment " + i + " of the dictionary image " + image.getFile());
+		return seg;
+	}
+
+	/** Flags the image and starts the repair action, on the first corrupt segment */
+	private void repairImage() {
+		if (!corrupt.compareAndSet(false, true))
+			return;
+		invalidateImage();
+		Runnable r = repair;
+		if (r != null)
+			r.run();
+	}
+
+	/** Flags the image, so that it is not loaded again */
+	private void invalidateImage() {
+		File flag = new File(image.getFile().getPath() + ".flag");
+		try {
+			flag.createNewFile();
+		}
+		catch (IOException e) {
+			log.warn("Could not flag the corrupt image " + image.getFile(), e);
+		}
+	}
+
+	/**
+	 * Reads all segments which are not read yet.
+	 * @throws KIMRuntimeException - if a segment is corrupt
+	 */
+	public void loadAll() {
+		for (int i=0; i<segments.length(); i++)
+			wholeSegment(i);
+	}
+
+	/**
+	 * Starts a low-priority daemon thread which reads the segments not
+	 * touched by the lookups. The thread stops when all segments are read,
+	 * when a segment is corrupt or when the register is discarded.
+	 */
+	public void startPrefetch() {
+		final WeakReference<SegmentedRegister> ref = new WeakReference<SegmentedRegister>(this);
+		final int count = segments.length();
+		final File file = image.getFile();
+		Thread prefetcher = new Thread("Prefetch of " + file) {
+			public void run() {
+				long start = System.currentTimeMillis();
+				for (int i=0; i<count; i++) {
+					SegmentedRegister register = ref.get();
+					if (register == null)
+						return;
+					register.segment(i);
+					if (register.isCorrupt()) {
+						log.error("Prefetch of " + file + " stopped at a corrupt segment.");
+						return;
+					}
+				}
+				log.info("All segments of " + file + " were read in "
+						+ (System.currentTimeMillis() - start) + "ms.");
+			}
+		};
+		prefetcher.setDaemon(true);
+		prefetcher.setPriority(Thread.MIN_PRIORITY);
+		prefetcher.start();
+	}
+
+	//=========================================================================
+	// HashRegister section
+	//=========================================================================
+	/** The register is read-only */
+	public void add(int hashValue, Serializable element) {
+		throw new UnsupportedOperationException("A segmented register is read-only.");
+	}
+
+	public boolean resizeMainReg() {
+		return false;
+	}
+
+	public Object[] get(int hashValue) {
+		return segment(image.segmentOf(hashValue)).get(hashValue);
+	}
+
+	public Object get(int hashValue, Object element) {
+		return segment(image.segmentOf(hashValue)).get(hashValue, element);
+	}
+
+	public boolean exists(int hashValue) {
+		return segment(image.segmentOf(hashValue)).exists(hashValue);
+	}
+
+	public boolean exists(int hashValue, Object element) {
+		return segment(image.segmentOf(hashValue)).exists(hashValue, element);
+	}
+
+	/** @return the number of aliases in all segments, read or not */
+	public int getElementsCount() {
+		return image.getAliasCount();
+	}
+
+	public void processContent(ContentProcessor cProc) {
+		for (int i=0; i<segments.length(); i++)
+			wholeSegment(i).processContent(cProc);
+	}
+
+	public void processContent(HashedContentProcessor cProc) {
+		for (int i=0; i<segments.length(); i++)
+			wholeSegment(i).processContent(cProc);
+	}
+
+	public void transformContent(ContentTransformer cTrans) {
+		for (int i=0; i<segments.length(); i++)
+			wholeSegment(i).transformContent(cTrans);
+	}
+
+	/** Processes the segments one after the other, each split in partitions */
+	public void processPartitions(PartitionProcessor pProc, ExecutorService executor, int count) {
+		int perSegment = Math.max(1, count / segments.length());
+		for (int i=0; i<segments.length(); i++)
+			wholeSegment(i).processPartitions(pProc, executor, perSegment);
+	}
+
+	/** Same as <code>HashRegister.getBucketSizeDistribution</code>, over the read segments */
+	public int[] getBucketSizeDistribution(int classes) {
+		int[] sum = new int[classes];
+		for (int i=0; i<segments.length(); i++) {
+			HashRegister seg = segments.get(i);
+			if (seg != null)
+				add(sum, seg.getBucketSizeDistribution(classes));
+		}
+		return sum;
+	}
+
+	/** Same as <code>HashRegister.getPackageSizeDistribution</code>, over the read segments */
+	public int[] getPackageSizeDistribution(int classes) {
+		int[] sum = new int[classes];
+		for (int i=0; i<segments.length(); i++) {
+			HashRegister seg = segments.get(i);
+			if (seg != null)
+				add(sum, seg.getPackageSizeDistribution(classes));
+		}
+		return sum;
+	}
+
+	/** Same as <code>HashRegister.getEstimatedBytes</code>, over the read segments */
+	public long getEstimatedBytes(int elementBytes) {
+		long bytes = 0;
+		for (int i=0; i<segments.length(); i++) {
+			HashRegister seg = segments.get(i);
+			if (seg != null)
+				bytes += seg.getEstimatedBytes(elementBytes);
+		}
+		return bytes;
+	}
+
+	private static void add(int[] sum, int[] values) {
+		for (int i=0; i<sum.length; i++)
+			sum[i] += values[i];
+	}
+
+	private void writeObject(java.io.ObjectOutputStream out) throws IOException {
+		throw new java.io.NotSerializableException("A segmented register is saved with SegmentedImage.");
+	}
+}
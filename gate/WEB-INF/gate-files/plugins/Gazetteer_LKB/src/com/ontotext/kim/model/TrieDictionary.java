@@ -0,0 +1,612 @@
+package com.ontotext.kim.model;
+
+import gate.creole.ResourceInstantiationException;
+import gnu.trove.TLongIntHashMap;
+import gnu.trove.TObjectIntHashMap;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.commons.collections.Transformer;
+import org.apache.log4j.Logger;
+
+import com.ontotext.kim.KIMConstants;
+import com.ontotext.kim.client.query.KIMQueryException;
+import com.ontotext.kim.client.semanticrepository.QueryResultListener.Feed;
+import com.ontotext.kim.gate.KimLookupParser;
+import com.ontotext.kim.gate.KimLookupParser.BoundedDictionary;
+import com.ontotext.kim.model.LookupTimings.Stage;
+import com.ontotext.kim.util.ListReader;
+
+/**
+ * A dictionary which matches the aliases exactly, as an alternative to the
+ * hash-codes of <code>AliasCacheImpl</code>.<br>
+ * <br>
+ * Every lexeme of the aliases is normalized with the text transformer of the
+ * dictionary and interned into an int id. The aliases are paths of lexeme ids
+ * in a trie, which is stored as a double-array: the child of slot
+ * <code>s</code> by lexeme <code>c</code> is the slot <code>base[s] + c</code>,
+ * provided that the <code>check</code> of that slot points back to
+ * <code>s</code>. The aliases which end at a slot keep the lengths of their
+ * non-alpha-numeric prefix and suffix and their transformed text, which is
+ * compared with the text of the frame instead of a hash-code. Their instance
+ * URIs are kept in a <code>LocalNamePool</code>.<br>
+ * The parser grows the frame one lexeme at a time, so the slot of the last
+ * frame of every thread is kept and the trie is walked once per starting
+ * lexeme. A frame which does not continue the last one is walked from the
+ * root.<br>
+ * <br>
+ * The dictionary is filled through a <code>Builder</code> or from the data
+ * feed of a dictionary folder. It has no binary image, delta log or class
+ * priorities. Once built, it is not modified and can be shared by concurrent
+ * parsers.
+ */
+public class TrieDictionary implements BoundedDictionary {
+
+	private static final Logger log = Logger.getLogger(TrieDictionary.class);
+
+	/** The base of a slot without children */
+	private static final int LEAF = Integer.MIN_VALUE;
+
+	private final Transformer transformer;
+	/** The ids of the transformed lexemes, starting from 1 */
+	private final TObjectIntHashMap lexemeIds;
+	private final int[] base;
+	/** The slot of the parent plus one; 0 for a free slot */
+	private final int[] check;
+	/** The index of the aliases ending at a slot in <code>aliasStart</code> plus one; 0 for none */
+	private final int[] terminal;
+	private final int[] aliasStart;
+	/** The aliases: prefix/suffix lengths, transformed text, instance and class ids */
+	private final byte[] prefLen;
+	private final byte[] suffLen;
+	private final String[] text;
+	private final int[] inst;
+	private final int[] cls;
+	private final LocalNamePool instances;
+	private final String[] classes;
+	private final int maxLexemes;
+	private final int nodeCount;
+
+	/** The slot of the last frame looked up by a thread. The frame is weakly
+	 * referenced, so a pooled thread does not keep its last document alive. */
+	private static class Cursor {
+		WeakReference<ParsingFrame> frame = new WeakReference<ParsingFrame>(null);
+		int first;
+		int lexemes;
+		int slot;
+	}
+
+	private final ThreadLocal<Cursor> cursor = new ThreadLocal<Cursor>() {
+		@Override
+		protected Cursor initialValue() {
+			return new Cursor();
+		}
+	};
+
+	private TrieDictionary(Builder b, int[] base, int[] check, int[] terminal, int[] aliasStart, int nodeCount) {
+		this.transformer = b.transformer;
+		this.lexemeIds = b.lexemeIds;
+		this.base = base;
+		this.check = check;
+		this.terminal = terminal;
+		this.aliasStart = aliasStart;
+		this.nodeCount = nodeCount;
+		this.maxLexemes = b.maxLexemes;
+		instances = LocalNamePool.build(b.instances);
+		int[] instIds = new int[b.instances.size()];
+		for (int i = 0; i < instIds.length; i++)
+			instIds[i] = instances.indexOf(b.instances.get(i));
+		int n = b.aliases.size();
+		prefLen = new byte[n];
+		suffLen = new byte[n];
+		text = new String[n];
+		inst = new int[n];
+		cls = new int[n];
+		for (int i = 0; i < n; i++) {
+			Builder.Alias a = b.aliases.get(i);
+			prefLen[i] = a.pref;
+			suffLen[i] = a.suff;
+			text[i] = a.text;
+			inst[i] = instIds[a.inst];
+			cls[i] = a.cls;
+		}
+		classes = b.classes.toArray(new String[b.classes.size()]);
+	}
+
+	//=========================================================================
+	// Trie Dictionary: Retrieval section
+	//=========================================================================
+	public Collection<KimLookupParser.AliasWrapper> lookup(ParsingFrame pfm) {
+		long t = LookupTimings.ENABLED ? System.nanoTime() : 0;
+		int s = slot(pfm);
+		if (LookupTimings.ENABLED)
+			t = LookupTimings.record(Stage.HASH1_LOOKUP, t);
+		if (s < 0 || terminal[s] == 0)
+			return Collections.emptyList();
+		int k = terminal[s] - 1;
+		List<KimLookupParser.AliasWrapper> res = null;
+		int pref = -1;
+		int suff = -1;
+		String frameText = null;
+		for (int i = aliasStart[k]; i < aliasStart[k + 1]; i++) {
+			if (prefLen[i] != pref || suffLen[i] != suff) {
+				pref = prefLen[i];
+				suff = suffLen[i];
+				pfm.setNewPrefSufLen(pref, suff);
+				frameText = (String) transformer.transform(pfm.getAliasText());
+			}
+			if (frameText.equals(text[i])) {
+				if (res == null)
+					res = new ArrayList<KimLookupParser.AliasWrapper>(2);
+				res.add(new KimLookupParser.AliasWrapper(instances.get(inst[i]), classes[cls[i]],
+						pfm.getAliasStart(), pfm.getAliasEnd()));
+			}
+		}
+		if (LookupTimings.ENABLED)
+			LookupTimings.record(Stage.HASH2_FILTER, t);
+		return res != null ? res : Collections.<KimLookupParser.AliasWrapper>emptyList();
+	}
+
+	public boolean canPhraseGrow(ParsingFrame pfm) {
+		int s = slot(pfm);
+		return s >= 0 && base[s] != LEAF;
+	}
+
+	public int getMaxPhraseLength(ParsingFrame pfm) {
+		return slot(pfm) < 0 ? 0 : maxLexemes;
+	}
+
+	/** @return the slot of the lexemes of the frame or -1 if no alias starts with them */
+	private int slot(ParsingFrame pfm) {
+		Cursor c = cursor.get();
+		int n = pfm.getLexemeCount();
+		int first = pfm.getFirstLexemeIndex();
+		if (c.frame.get() == pfm && c.first == first) {
+			if (c.lexemes == n)
+				return c.slot;
+			if (c.lexemes == n - 1) {
+				c.slot = child(c.slot, pfm.getLexeme(n - 1));
+				c.lexemes = n;
+				return c.slot;
+			}
+		}
+		int s = 0;
+		for (int i = 0; i < n && s >= 0; i++)
+			s = child(s, pfm.getLexeme(i));
+		if (c.frame.get() != pfm)
+			c.frame = new WeakReference<ParsingFrame>(pfm);
+		c.first = first;
+		c.lexemes = n;
+		c.slot = s;
+		return s;
+	}
+
+	private int child(int s, String lexeme) {
+		if (s < 0 || base[s] == LEAF)
+			return -1;
+		int id = lexemeIds.get(transformer.transform(lexeme));
+		if (id == 0)
+			return -1;
+		int t = base[s] + id;
+		return t >= 0 && t < check.length && check[t] == s + 1 ? t : -1;
+	}
+
+	/** @return the number of aliases, after enrichment */
+	public int getAliasCount() {
+		return text.length;
+	}
+
+	/** @return the number of entities */
+	public int getEntityCount() {
+		return instances.size();
+	}
+
+	/** @return the number of distinct lexemes */
+	public int getLexemeCount() {
+		return lexemeIds.size();
+	}
+
+	/** @return the number of trie nodes, including the root */
+	public int getNodeCount() {
+		return nodeCount;
+	}
+
+	/** @return the length of the double-array, at least the number of nodes */
+	public int getSlotCount() {
+		return check.length;
+	}
+
+	//=========================================================================
+	// Trie Dictionary: Instance Generation section
+	//=========================================================================
+	private static class Shared {
+		/** Builds the dictionary once; the other callers wait for it */
+		final FutureTask<TrieDictionary> loader;
+		int refs = 0;
+
+		Shared(FutureTask<TrieDictionary> loader) {
+			this.loader = loader;
+		}
+	}
+
+	private static final Map<File, Shared> byPath = new HashMap<File, Shared>();
+
+	/**
+	 * Returns the dictionary of a folder, building it on the first call.
+	 * The dictionary is shared by all callers with the same folder until the
+	 * last one calls <code>release</code>. It is built by the first caller
+	 * without holding a lock, so dictionaries of other folders can be
+	 * acquired meanwhile; the other callers of the same folder wait for it.
+	 * @param dictionaryPath - the dictionary folder
+	 * @param caseSens - the case sensitivity of the dictionary
+	 * @return the dictionary
+	 * @throws ResourceInstantiationException - if the data cannot be loaded
+	 */
+	public static TrieDictionary acquire(final File dictionaryPath, final String caseSens)
+			throws ResourceInstantiationException {
+		Shared shared;
+		boolean loadHere = false;
+		synchronized (byPath) {
+			shared = byPath.get(dictionaryPath);
+			if (shared == null) {
+				shared = new Shared(new FutureTask<TrieDictionary>(new Callable<TrieDictionary>() {
+					public TrieDictionary call() throws ResourceInstantiationException {
+						return createInstance(dictionaryPath, caseSens);
+					}
+				}));
+				byPath.put(dictionaryPath, shared);
+				loadHere = true;
+			}
+			++shared.refs;
+		}
+		if (loadHere)
+			shared.loader.run();
+
+		try {
+			return shared.loader.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			drop(dictionaryPath, shared, false);
+			throw new ResourceInstantiationException(e);
+		}
+		catch (ExecutionException e) {
+			// Forget the failed build, so that the next caller tries again
+			drop(dictionaryPath, shared, true);
+			Throwable cause = e.getCause();
+			if (cause instanceof ResourceInstantiationException)
+				throw (ResourceInstantiationException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new ResourceInstantiationException((Exception) cause);
+		}
+	}
+
+	/** Returns a dictionary obtained with <code>acquire</code>, dropping it after its last user */
+	public static void release(File dictionaryPath) {
+		synchronized (byPath) {
+			Shared shared = byPath.get(dictionaryPath);
+			if (shared != null)
+				drop(dictionaryPath, shared, false);
+		}
+	}
+
+	/** Gives up a reference to a shared dictionary, removing it after the last one or if its build failed */
+	private static void drop(File dictionaryPath, Shared shared, boolean failed) {
+		synchronized (byPath) {
+			if ((--shared.refs <= 0 || failed) && byPath.get(dictionaryPath) == shared)
+				byPath.remove(dictionaryPath);
+		}
+	}
+
+	/**
+	 * Builds a dictionary from the data feed of a dictionary folder, which
+	 * replays the tuple snapshot of the folder if there is a valid one.
+	 * @param dictionaryPath - the dictionary folder
+	 * @param caseSens - the case sensitivity of the dictionary
+	 * @return the dictionary
+	 * @throws ResourceInstantiationException - if the data cannot be loaded
+	 */
+	public static TrieDictionary createInstance(File dictionaryPath, String caseSens)
+			throws ResourceInstantiationException {
+		long start = System.currentTimeMillis();
+		final Builder builder = new Builder(caseSens,
+				ListReader.fromFile(KIMConstants.KIM_GAZETEER_IGNORE_LIST_PATH, log));
+		Feed feed = new DataFeedFactory().createFeed(dictionaryPath);
+		try {
+			feed.feedTo(new EntitiesQueryListener() {
+				@Override
+				protected void addEntity(String instUri, String classUri, String aliasLabel) {
+					builder.addAlias(instUri, classUri, aliasLabel);
+				}
+			});
+		}
+		catch (KIMQueryException e) {
+			throw new ResourceInstantiationException(e);
+		}
+		TrieDictionary dictionary = builder.build();
+		log.info("Trie dictionary " + dictionaryPath + " built in " + (System.currentTimeMillis() - start)
+				+ "ms: " + dictionary.getAliasCount() + " aliases, " + dictionary.getLexemeCount() + " lexemes, "
+				+ dictionary.getNodeCount() + " nodes in " + dictionary.getSlotCount() + " slots.");
+		return dictionary;
+	}
+
+	//=========================================================================
+	// Trie Dictionary: Population section
+	//=========================================================================
+	/** Collects the aliases of a dictionary and lays out its double-array */
+	public static class Builder {
+
+		private static class Alias {
+			final int node;
+			final byte pref;
+			final byte suff;
+			final String text;
+			final int inst;
+			final int cls;
+
+			Alias(int node, int pref, int suff, String text, int inst, int cls) {
+				this.node = node;
+				this.pref = (byte) pref;
+				this.suff = (byte) suff;
+				this.text = text;
+				this.inst = inst;
+				this.cls = cls;
+			}
+
+			@Override
+			public boolean equals(Object o) {
+				if (!(o instanceof Alias))
+					return false;
+				Alias a = (Alias) o;
+				return node == a.node && pref == a.pref && suff == a.suff && inst == a.inst && cls == a.cls
+						&& text.equals(a.text);
+			}
+
+			@Override
+			public int hashCode() {
+				return ((node * 31 + inst) * 31 + cls) * 31 + text.hashCode();
+			}
+		}
+
+		private final String caseSensitivity;
+		private final Transformer transformer;
+		private final Set<String> ignored = new HashSet<String>();
+		private final TObjectIntHashMap lexemeIds = new TObjectIntHashMap();
+		/** The child node by parent node and lexeme id, as <code>parent << 32 | lexeme</code> */
+		private final TLongIntHashMap edges = new TLongIntHashMap();
+		private int nodeCount = 1;
+		private int maxLexemes = 0;
+		private final List<Alias> aliases = new ArrayList<Alias>();
+		private final Set<Alias> added = new HashSet<Alias>();
+		private final List<String> instances = new ArrayList<String>();
+		private final Map<String, Integer> instanceIds = new HashMap<String, Integer>();
+		private final List<String> classes = new ArrayList<String>();
+		private final Map<String, Integer> classIds = new HashMap<String, Integer>();
+
+		/**
+		 * @param caseSensitivity - the case sensitivity of the dictionary
+		 * @param ignoreAliases - aliases which are not added; may be <b>null</b>
+		 */
+		public Builder(String caseSensitivity, Collection<String> ignoreAliases) {
+			this.caseSensitivity = caseSensitivity;
+			this.transformer = AliasTextTransformer.forCaseSensitivity(caseSensitivity);
+			if (ignoreAliases != null) {
+				for (String alias : ignoreAliases) {
+					String ignore = (String) transformer.transform(alias);
+					ignored.add(ignore);
+					if (caseSensitivity.equals(KIMConstants.CASE_SENSITIV_ALLUPPER))
+						ignored.add(ignore.toUpperCase());
+				}
+			}
+		}
+
+		/** Adds an alias with the same enrichment as <code>AliasCacheImpl.addAlias</code> */
+		public void addAlias(String instURI, String classURI, String alias) {
+			if (alias == null)
+				return;
+			int instId = id(instURI, instances, instanceIds);
+			int classId = id(classURI, classes, classIds);
+			for (String variant : AliasCacheImpl.aliasEnrichment(alias, caseSensitivity))
+				addVariant(variant, instId, classId);
+		}
+
+		private void addVariant(String alias, int instId, int classId) {
+			if (alias.trim().length() == 0 || ignored.contains(transformer.transform(alias)))
+				return;
+			ParsingFrame pfm = new ParsingFrame(alias);
+			pfm.parseAll();
+			int lexemes = pfm.getLexemeCount();
+			if (lexemes == 0 || pfm.getPrefixLen() > 127 || pfm.getSuffixLen() > 127)
+				return;
+			int node = 0;
+			for (int i = 0; i < lexemes; i++) {
+				String lexeme = (String) transformer.transform(pfm.getLexeme(i));
+				int lexemeId = lexemeIds.get(lexeme);
+				if (lexemeId == 0) {
+					lexemeId = lexemeIds.size() + 1;
+					lexemeIds.put(lexeme, lexemeId);
+				}
+				long edge = ((long) node << 32) | lexemeId;
+				int child = edges.get(edge);
+				if (child == 0) {
+					child = nodeCount++;
+					edges.put(edge, child);
+				}
+				node = child;
+			}
+			Alias a = new Alias(node, pfm.getPrefixLen(), pfm.getSuffixLen(),
+					(String) transformer.transform(pfm.getAliasText()), instId, classId);
+			if (added.add(a)) {
+				aliases.add(a);
+				maxLexemes = Math.max(maxLexemes, lexemes);
+			}
+		}
+
+		private static int id(String s, List<String> strings, Map<String, Integer> ids) {
+			Integer id = ids.get(s);
+			if (id == null) {
+				id = strings.size();
+				strings.add(s);
+				ids.put(s, id);
+			}
+			return id;
+		}
+
+		/**
+		 * Lays out the trie in a double-array, breadth first. The children
+		 * of a node are placed at the first free slots which fit all of them.
+		 * @return the dictionary; the builder must not be used afterwards
+		 */
+		public TrieDictionary build() {
+			added.clear();
+			long[] keys = edges.keys();
+			Arrays.sort(keys);
+			// The edges of every node are keys[edgeStart[node]] to keys[edgeStart[node + 1] - 1]
+			int[] edgeStart = new int[nodeCount + 1];
+			for (long key : keys)
+				++edgeStart[(int) (key >>> 32) + 1];
+			for (int i = 0; i < nodeCount; i++)
+				edgeStart[i + 1] += edgeStart[i];
+
+			DoubleArray da = new DoubleArray(nodeCount + lexemeIds.size() + 1);
+			int[] slotOf = new int[nodeCount];
+			int[] queue = new int[nodeCount];
+			int head = 0;
+			int tail = 1;
+			da.check[0] = -1;
+			while (head < tail) {
+				int node = queue[head++];
+				int slot = slotOf[node];
+				int from = edgeStart[node];
+				int to = edgeStart[node + 1];
+				if (from == to) {
+					da.base[slot] = LEAF;
+					continue;
+				}
+				int b = da.findBase(keys, from, to);
+				da.base[slot] = b;
+				for (int e = from; e < to; e++) {
+					int t = b + (int) keys[e];
+					da.occupy(t, slot + 1);
+					int child = edges.get(keys[e]);
+					slotOf[child] = t;
+					queue[tail++] = child;
+				}
+			}
+
+			Collections.sort(aliases, new Comparator<Alias>() {
+				public int compare(Alias a, Alias b) {
+					if (a.node != b.node)
+						return a.node < b.node ? -1 : 1;
+					if (a.pref != b.pref)
+						return a.pref - b.pref;
+					return a.suff - b.suff;
+				}
+			});
+			int size = da.size();
+			int[] terminal = new int[size];
+			int[] starts = new int[aliases.size() + 1];
+			int terminals = 0;
+			for (int i = 0; i < aliases.size(); i++) {
+				int node = aliases.get(i).node;
+				if (i == 0 || aliases.get(i - 1).node != node) {
+					starts[terminals] = i;
+					terminal[slotOf[node]] = ++terminals;
+				}
+			}
+			starts[terminals] = aliases.size();
+			int[] aliasStart = new int[terminals + 1];
+			System.arraycopy(starts, 0, aliasStart, 0, terminals + 1);
+			return new TrieDictionary(this, da.trim(da.base, size), da.trim(da.check, size),
+					terminal, aliasStart, nodeCount);
+		}
+	}
+
+	/** The growing arrays of a double-array under construction */
+	private static class DoubleArray {
+		int[] base;
+		int[] check;
+		/** For an occupied slot, a following slot from which to look for a
+		 * free one; the chains are shortened on every search */
+		private int[] skip;
+		private int used = 1;
+
+		DoubleArray(int capacity) {
+			base = new int[capacity];
+			check = new int[capacity];
+			skip = new int[capacity];
+			skip[0] = 1;
+		}
+
+		/** @return the smallest base for which the slots of all lexemes of the edges are free */
+		int findBase(long[] keys, int from, int to) {
+			int first = (int) keys[from];
+			for (int p = nextFree(1); ; p = nextFree(p + 1)) {
+				int b = p - first;
+				boolean fits = true;
+				for (int e = from + 1; e < to && fits; e++) {
+					int t = b + (int) keys[e];
+					ensure(t + 1);
+					fits = check[t] == 0;
+				}
+				if (fits)
+					return b;
+			}
+		}
+
+		void occupy(int slot, int parent) {
+			ensure(slot + 1);
+			check[slot] = parent;
+			skip[slot] = slot + 1;
+			used = Math.max(used, slot + 1);
+		}
+
+		int size() {
+			return used;
+		}
+
+		/** @return the first free slot from <code>p</code> on */
+		private int nextFree(int p) {
+			int free = p;
+			while (free < check.length && check[free] != 0)
+				free = skip[free];
+			ensure(free + 1);
+			while (p != free && check[p] != 0) {
+				int next = skip[p];
+				skip[p] = free;
+				p = next;
+			}
+			return free;
+		}
+
+		private void ensure(int capacity) {
+			if (capacity <= check.length)
+				return;
+			int n = Math.max(capacity, check.length + (check.length >> 1));
+			base = trim(base, n);
+			check = trim(check, n);
+			skip = trim(skip, n);
+		}
+
+		int[] trim(int[] a, int size) {
+			int[] b = new int[size];
+			System.arraycopy(a, 0, b, 0, Math.min(a.length, size));
+			return b;
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package com.ontotext.kim.test;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.ontotext.kim.model.AliasIndex;
+
+public class AliasIndexTest extends TestCase {
+
+	/** Gives the identifiers as URIs and accepts all entries but those of instance 9 */
+	private static final AliasIndex.Resolver RESOLVER = new AliasIndex.Resolver() {
+		public boolean accept(String alias, int instID, int classID) {
+			return instID != 9;
+		}
+		public String instanceURI(int instID) {
+			return "i" + instID;
+		}
+		public String classURI(int classID) {
+			return "c" + classID;
+		}
+	};
+
+	private static AliasIndex build() {
+		AliasIndex.Builder builder = new AliasIndex.Builder();
+		builder.add("New York", 0, 0);
+		builder.add("New  York", 0, 0);
+		builder.add("new york", 1, 1);
+		builder.add("New York Times", 2, 2);
+		builder.add("Newark", 3, 0);
+		builder.add("Paris", 4, 0);
+		builder.add("Paris Hilton", 5, 3);
+		builder.add("Paris", 9, 0);
+		builder.add("  ", 6, 0);
+		// The loading identifiers are mapped to the final ones
+		return builder.build(new int[] { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9 }, null, 1);
+	}
+
+	private static String toString(List<AliasIndex.Completion> completions) {
+		StringBuilder sb = new StringBuilder();
+		for (AliasIndex.Completion c : completions)
+			sb.append(c.alias).append('/').append(c.instURI).append('/').append(c.classURI).append(';');
+		return sb.toString();
+	}
+
+	public void testCompletionsAreSortedAndShortestFirst() {
+		AliasIndex index = build();
+		assertEquals("New  York/i0/c0;New York/i0/c0;new york/i1/c1;New York Times/i2/c2;Newark/i3/c0;",
+				toString(index.complete("new", 10, RESOLVER)));
+		assertEquals("New  York/i0/c0;New York/i0/c0;", toString(index.complete("NEW", 2, RESOLVER)));
+		assertEquals("Paris/i4/c0;Paris Hilton/i5/c3;", toString(index.complete(" paris", 10, RESOLVER)));
+		assertEquals(7, index.getAliasCount());
+	}
+
+	public void testTrailingSpaceEndsTheWord() {
+		AliasIndex index = build();
+		assertEquals("New York Times/i2/c2;", toString(index.complete("new  york ", 10, RESOLVER)));
+		assertEquals("", toString(index.complete("newy", 10, RESOLVER)));
+		assertEquals("", toString(index.complete("", 10, RESOLVER)));
+		assertEquals("", toString(index.complete("zzz", 10, RESOLVER)));
+	}
+
+	public void testRemapDropsInstances() {
+		AliasIndex index = build().remap(new int[] { 10, -1, 12, 13, -1, 15, 16, 17, 18, 19 }, RESOLVER);
+		assertEquals("New  York/i10/c0;New York/i10/c0;New York Times/i12/c2;Newark/i13/c0;",
+				toString(index.complete("new", 10, RESOLVER)));
+		assertEquals("Paris Hilton/i15/c3;", toString(index.complete("paris", 10, RESOLVER)));
+	}
+}
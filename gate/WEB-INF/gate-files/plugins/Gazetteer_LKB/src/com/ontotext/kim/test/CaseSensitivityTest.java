@@ -0,0 +1,98 @@
+package com.ontotext.kim.test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.openrdf.model.impl.LiteralImpl;
+import org.openrdf.model.impl.URIImpl;
+
+import com.ontotext.kim.KIMConstants;
+import com.ontotext.kim.client.KIMRuntimeException;
+import com.ontotext.kim.client.semanticrepository.QueryResultListener;
+import com.ontotext.kim.gate.KimLookupParser;
+import com.ontotext.kim.gate.KimLookupParser.AliasLookupDictionary;
+import com.ontotext.kim.model.AliasCacheImpl;
+import com.ontotext.kim.model.DocumentDictionary;
+
+public class CaseSensitivityTest extends TestCase {
+
+	private static final String TEXT = "NEW YORK and New York";
+
+	private final List<File> dirs = new ArrayList<File>();
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (File dir : dirs)
+			FileUtils.deleteDirectory(dir);
+	}
+
+	/** The matches of one parser over both dictionaries, as index:text */
+	private static List<String> findLookups(AliasLookupDictionary sensitive, AliasLookupDictionary insensitive) {
+		final List<String> found = new ArrayList<String>();
+		KimLookupParser parser = new KimLookupParser(new AliasLookupDictionary[] {sensitive, insensitive});
+		parser.findLookups(TEXT, new KimLookupParser.SourceAwareOccuranceHandler() {
+			public void processEntityOccurance(int start, int end, String instURI, String classURI) {
+				processEntityOccurance(start, end, instURI, classURI, -1);
+			}
+			public void processEntityOccurance(int start, int end, String instURI, String classURI, int dictionary) {
+				found.add(dictionary + ":" + TEXT.substring(start, end));
+			}
+		});
+		return found;
+	}
+
+	private static void assertBothMatch(List<String> found) {
+		assertEquals(found.toString(), 3, found.size());
+		assertTrue(found.contains("0:New York"));
+		assertTrue(found.contains("1:NEW YORK"));
+		assertTrue(found.contains("1:New York"));
+	}
+
+	/** Builds a dictionary of a single alias and writes its image to a new folder */
+	private AliasCacheImpl createCache(String caseSensitivity) throws Exception {
+		File dir = File.createTempFile("case", "sensitivity").getAbsoluteFile();
+		dir.delete();
+		assertTrue(dir.mkdir());
+		dirs.add(dir);
+		return AliasCacheImpl.createInstance(dir, caseSensitivity, new QueryResultListener.Feed() {
+			public void feedTo(QueryResultListener listener) {
+				try {
+					listener.startTableQueryResult();
+					listener.startTuple();
+					listener.tupleValue(new LiteralImpl("New York"));
+					listener.tupleValue(new URIImpl("urn:NY"));
+					listener.tupleValue(new URIImpl("urn:City"));
+					listener.endTuple();
+					listener.endTableQueryResult();
+				}
+				catch (Exception e) {
+					throw new KIMRuntimeException("Could not feed the dictionary.", e);
+				}
+			}
+		});
+	}
+
+	public void testDictionariesKeepTheirOwnCaseSensitivity() {
+		DocumentDictionary sensitive = new DocumentDictionary(KIMConstants.CASE_SENSITIV);
+		sensitive.addEntity("urn:NY", "urn:City", "New York");
+		DocumentDictionary insensitive = new DocumentDictionary(KIMConstants.CASE_INSENSITIV);
+		insensitive.addEntity("urn:NY", "urn:City", "New York");
+		assertBothMatch(findLookups(sensitive, insensitive));
+	}
+
+	public void testCachesKeepTheirOwnCaseSensitivity() throws Exception {
+		// the insensitive cache is built last, so it would win a shared transformer
+		AliasCacheImpl sensitive = createCache(KIMConstants.CASE_SENSITIV);
+		AliasCacheImpl insensitive = createCache(KIMConstants.CASE_INSENSITIV);
+		assertBothMatch(findLookups(sensitive, insensitive));
+
+		// and the other way round
+		insensitive = createCache(KIMConstants.CASE_INSENSITIV);
+		sensitive = createCache(KIMConstants.CASE_SENSITIV);
+		assertBothMatch(findLookups(sensitive, insensitive));
+	}
+}
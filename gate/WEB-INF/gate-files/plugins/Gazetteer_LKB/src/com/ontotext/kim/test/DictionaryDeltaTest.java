@@ -0,0 +1,232 @@
+package com.ontotext.kim.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.openrdf.model.impl.LiteralImpl;
+import org.openrdf.model.impl.URIImpl;
+
+import com.ontotext.kim.KIMConstants;
+import com.ontotext.kim.client.KIMRuntimeException;
+import com.ontotext.kim.client.semanticrepository.QueryResultListener;
+import com.ontotext.kim.gate.KimLookupParser;
+import com.ontotext.kim.gate.KimLookupParser.AliasLookupDictionary;
+import com.ontotext.kim.gate.KimLookupParser.VersionedDictionary;
+import com.ontotext.kim.model.AliasCacheImpl;
+import com.ontotext.kim.model.DictionaryDelta;
+
+public class DictionaryDeltaTest extends TestCase {
+
+	private static final String NS = "http://www.ontotext.com/kim/2006/05/wkb#";
+	private static final String CITY = "http://proton.semanticweb.org/2006/05/protonu#City";
+	private static final String PERSON = "http://proton.semanticweb.org/2006/05/protont#Person";
+	private static final String DELTA_LOG = "kim.trusted.entities.delta";
+
+	/** Alias, instance and class of the base dictionary */
+	private static final String[][] ROWS = {
+		{ "New York", NS + "City_T.1", CITY },
+		{ "Paris", NS + "City_T.2", CITY },
+		{ "Sofia", NS + "City_T.3", CITY },
+		{ "Paris Hilton", NS + "Person_T.1", PERSON },
+		{ "Hilton", NS + "Person_T.1", PERSON },
+	};
+
+	private File dir;
+	private Object client;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = File.createTempFile("dictionary", "delta").getAbsoluteFile();
+		dir.delete();
+		assertTrue(dir.mkdir());
+		AliasCacheImpl.createInstance(dir, KIMConstants.CASE_INSENSITIV, new QueryResultListener.Feed() {
+			public void feedTo(QueryResultListener listener) {
+				try {
+					listener.startTableQueryResult();
+					for (String[] row : ROWS) {
+						listener.startTuple();
+						listener.tupleValue(new LiteralImpl(row[0]));
+						listener.tupleValue(new URIImpl(row[1]));
+						listener.tupleValue(new URIImpl(row[2]));
+						listener.endTuple();
+					}
+					listener.endTableQueryResult();
+				}
+				catch (Exception e) {
+					throw new KIMRuntimeException("Could not feed the dictionary.", e);
+				}
+			}
+		});
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		if (client != null)
+			AliasCacheImpl.releaseCache(dir, client);
+		FileUtils.deleteDirectory(dir);
+	}
+
+	/** Loads the dictionary from its image and the delta log, for the test only */
+	private AliasCacheImpl loadImage() throws Exception {
+		return AliasCacheImpl.createInstance(dir, KIMConstants.CASE_INSENSITIV);
+	}
+
+	/** Acquires the dictionary, so the changes are applied to it in memory */
+	private VersionedDictionary acquire() throws Exception {
+		client = new Object();
+		AliasLookupDictionary handle = AliasCacheImpl.acquire(dir, KIMConstants.CASE_INSENSITIV, client);
+		return (VersionedDictionary) handle;
+	}
+
+	private static AliasCacheImpl current(VersionedDictionary handle) {
+		return (AliasCacheImpl) handle.currentVersion();
+	}
+
+	/** The local names of the instances of an alias, with their classes */
+	private static Set<String> lookup(AliasCacheImpl dict, String alias) {
+		Set<String> found = new TreeSet<String>();
+		for (KimLookupParser.AliasWrapper w : dict.lookup(alias))
+			found.add(w.instURI.substring(NS.length()) + " " + w.classURI.substring(w.classURI.indexOf('#') + 1));
+		return found;
+	}
+
+	private static void assertLookup(AliasCacheImpl dict, String alias, String... expected) {
+		Set<String> found = lookup(dict, alias);
+		assertEquals(alias, new TreeSet<String>(Arrays.asList(expected)), found);
+	}
+
+	private static DictionaryDelta sampleDelta() {
+		return new DictionaryDelta()
+				.addLabel(NS + "City_T.1", CITY, "Big Apple")
+				.addLabel(NS + "City_T.4", CITY, "New York")
+				.removeLabel(NS + "City_T.2", "Paris")
+				.removeClass(PERSON);
+	}
+
+	private static void assertSampleApplied(AliasCacheImpl dict) {
+		assertLookup(dict, "Big Apple", "City_T.1 City");
+		assertLookup(dict, "New York", "City_T.1 City", "City_T.4 City");
+		assertLookup(dict, "Paris");
+		assertLookup(dict, "Paris Hilton");
+		assertLookup(dict, "Hilton");
+		assertTrue(dict.isTrustedEntityURI(NS + "City_T.4"));
+	}
+
+	public void testTextFormRoundTrip() throws IOException {
+		DictionaryDelta delta = new DictionaryDelta()
+				.addLabel(NS + "City_T.1", CITY, "Z\u00fcrich\tam See")
+				.removeLabel(NS + "City_T.2", "\u6771\u4eac")
+				.removeInstance(NS + "City_T.3")
+				.removeClass(PERSON);
+		StringWriter out = new StringWriter();
+		delta.write(out);
+
+		DictionaryDelta read = DictionaryDelta.read(new StringReader("# comment\n\n" + out));
+		assertEquals(delta.size(), read.size());
+		List<DictionaryDelta.Change> expected = delta.getChanges();
+		List<DictionaryDelta.Change> actual = read.getChanges();
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(expected.get(i).kind, actual.get(i).kind);
+			assertEquals(expected.get(i).instURI, actual.get(i).instURI);
+			assertEquals(expected.get(i).classURI, actual.get(i).classURI);
+			assertEquals(expected.get(i).label, actual.get(i).label);
+		}
+		StringWriter again = new StringWriter();
+		read.write(again);
+		assertEquals(out.toString(), again.toString());
+	}
+
+	public void testInvalidLinesAreRejected() {
+		String[] invalid = { "+\turn:a\turn:c", "-instance", "-class\turn:c\textra", "*\turn:a" };
+		for (String line : invalid) {
+			try {
+				DictionaryDelta.read(new StringReader(line + "\n"));
+				fail("accepted " + line);
+			}
+			catch (IOException e) {
+				assertTrue(e.getMessage().contains("line 1"));
+			}
+		}
+	}
+
+	public void testChangesHideAndAddAliases() throws Exception {
+		VersionedDictionary handle = acquire();
+		AliasCacheImpl.applyDelta(dir, sampleDelta());
+		assertSampleApplied(current(handle));
+		assertLookup(current(handle), "Sofia", "City_T.3 City");
+
+		// removing an instance drops its added aliases as well
+		AliasCacheImpl.applyDelta(dir, new DictionaryDelta().removeInstance(NS + "City_T.1"));
+		assertLookup(current(handle), "Big Apple");
+		assertLookup(current(handle), "New York", "City_T.4 City");
+
+		// adding a removed label again cancels the removal
+		AliasCacheImpl.applyDelta(dir, new DictionaryDelta().addLabel(NS + "City_T.2", CITY, "Paris"));
+		assertLookup(current(handle), "Paris", "City_T.2 City");
+	}
+
+	public void testDeltaLogIsReplayed() throws Exception {
+		// not in use, so the changes are only logged
+		AliasCacheImpl.applyDelta(dir, sampleDelta());
+		assertTrue(new File(dir, DELTA_LOG).exists());
+		assertSampleApplied(loadImage());
+
+		VersionedDictionary handle = acquire();
+		assertSampleApplied(current(handle));
+		AliasCacheImpl.applyDelta(dir, new DictionaryDelta().removeLabel(NS + "City_T.3", "Sofia"));
+		assertLookup(current(handle), "Sofia");
+
+		AliasCacheImpl replayed = loadImage();
+		assertSampleApplied(replayed);
+		assertLookup(replayed, "Sofia");
+	}
+
+	public void testCompactionFoldsTheChanges() throws Exception {
+		VersionedDictionary handle = acquire();
+		AliasCacheImpl.applyDelta(dir, sampleDelta());
+		int aliases = current(handle).getAliasCount();
+
+		AliasCacheImpl compacted = AliasCacheImpl.compact(dir).get();
+		assertSame(compacted, current(handle));
+		assertSampleApplied(compacted);
+		// the removed aliases are no longer counted
+		assertTrue(compacted.getAliasCount() < aliases);
+		assertFalse(new File(dir, DELTA_LOG).exists());
+
+		// the image holds the changes without a log
+		assertSampleApplied(loadImage());
+
+		AliasCacheImpl.applyDelta(dir, new DictionaryDelta().removeLabel(NS + "City_T.3", "Sofia"));
+		assertLookup(current(handle), "Sofia");
+		AliasCacheImpl replayed = loadImage();
+		assertSampleApplied(replayed);
+		assertLookup(replayed, "Sofia");
+	}
+
+	public void testChangesDuringCompactionAreCarriedOver() throws Exception {
+		VersionedDictionary handle = acquire();
+		AliasCacheImpl.applyDelta(dir, sampleDelta());
+
+		Future<AliasCacheImpl> compaction = AliasCacheImpl.compact(dir);
+		// whether these reach the old version or the compacted one, none may be lost
+		for (int i = 0; i < 50; i++)
+			AliasCacheImpl.applyDelta(dir, new DictionaryDelta().addLabel(NS + "City_T." + (100 + i), CITY, "Town " + i));
+		AliasCacheImpl compacted = compaction.get();
+
+		for (AliasCacheImpl dict : new AliasCacheImpl[] { compacted, current(handle), loadImage() }) {
+			assertSampleApplied(dict);
+			for (int i = 0; i < 50; i++)
+				assertLookup(dict, "Town " + i, "City_T." + (100 + i) + " City");
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package com.ontotext.kim.test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.openrdf.query.parser.sparql.SPARQLParser;
+
+import com.ontotext.kim.gate.EnrichmentQueryBatcher;
+
+public class EnrichmentQueryBatcherTest extends TestCase {
+
+	private static final List<String> URIS = Arrays.asList("http://ex.org/a", "http://ex.org/b");
+
+	private static void assertParses(String query) throws Exception {
+		new SPARQLParser().parseQuery(query, null);
+	}
+
+	public void testPlaceholderBecomesAFilteredVariable() throws Exception {
+		EnrichmentQueryBatcher batcher = EnrichmentQueryBatcher.create(
+				"SELECT ?p WHERE { ?p <http://ex.org/near> <%s> . }");
+		String query = batcher.build(URIS);
+		assertEquals("SELECT ?lkbInst ?p WHERE { ?p <http://ex.org/near> ?lkbInst .  FILTER ("
+				+ "sameTerm(?lkbInst, <http://ex.org/a>) || sameTerm(?lkbInst, <http://ex.org/b>)) }", query);
+		assertEquals(-1, batcher.getPerEntityLimit());
+		assertFalse(batcher.isTruncated(1000, 2));
+		assertParses(query);
+	}
+
+	public void testSelectAllKeepsTheProjection() throws Exception {
+		EnrichmentQueryBatcher batcher = EnrichmentQueryBatcher.create(
+				"select distinct * where { ?p <http://ex.org/near> <%1$s> } order by ?p");
+		String query = batcher.build(URIS.subList(0, 1));
+		assertEquals("select distinct * where { ?p <http://ex.org/near> ?lkbInst  FILTER ("
+				+ "sameTerm(?lkbInst, <http://ex.org/a>)) } order by ?p", query);
+		assertParses(query);
+	}
+
+	public void testLimitIsMultipliedByTheBatchSize() throws Exception {
+		EnrichmentQueryBatcher batcher = EnrichmentQueryBatcher.create(
+				"SELECT ?p WHERE { ?p <http://ex.org/near> <%s> . FILTER regex(str(?p), \"100%%\") } LIMIT 3");
+		String query = batcher.build(URIS);
+		assertTrue(query, query.endsWith(") } LIMIT 6"));
+		assertTrue(query, query.contains("\"100%\""));
+		assertEquals(3, batcher.getPerEntityLimit());
+		assertParses(query);
+	}
+
+	public void testFullBatchIsTruncated() {
+		EnrichmentQueryBatcher batcher = EnrichmentQueryBatcher.create(
+				"SELECT ?p WHERE { ?p <http://ex.org/near> <%s> } LIMIT 3");
+		assertFalse(batcher.isTruncated(5, 2));
+		assertTrue(batcher.isTruncated(6, 2));
+		assertTrue(batcher.isTruncated(3, 1));
+	}
+
+	public void testUnsafeTemplatesAreNotBatched() {
+		assertNull(EnrichmentQueryBatcher.create(null));
+		assertNull(EnrichmentQueryBatcher.create("SELECT ?p WHERE { ?p ?r <http://ex.org/a> }"));
+		assertNull(EnrichmentQueryBatcher.create("SELECT ?p WHERE { ?p ?r <%s> } LIMIT 3 OFFSET 3"));
+		assertNull(EnrichmentQueryBatcher.create("SELECT ?p WHERE { ?p ?r <%s> . ?p ?q \"%d\" }"));
+		assertNull(EnrichmentQueryBatcher.create("ASK { ?p ?r <%s> }"));
+	}
+}
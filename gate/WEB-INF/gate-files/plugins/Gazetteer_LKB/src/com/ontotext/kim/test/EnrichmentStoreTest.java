@@ -0,0 +1,210 @@
+package com.ontotext.kim.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import com.ontotext.kim.gate.EnrichmentResult;
+import com.ontotext.kim.gate.EnrichmentStore;
+
+public class EnrichmentStoreTest extends TestCase {
+
+	private static final String SCOPE = "http://localhost:8080/openrdf-sesame/repositories/kb\nSELECT ?x WHERE { <%s> ?p ?x }";
+	private static final String INST = "http://www.ontotext.com/kim/2006/05/wkb#City_T.";
+	/** Slots of a new index, which holds at most half as many entries */
+	private static final int MIN_SLOTS = 1 << 12;
+
+	private File dir;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = File.createTempFile("enrichment", "store");
+		dir.delete();
+		assertTrue(dir.mkdir());
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		FileUtils.deleteDirectory(dir);
+	}
+
+	private static EnrichmentResult result(int i) {
+		switch (i % 3) {
+		case 0:
+			return EnrichmentResult.NO_RELATIONS;
+		case 1:
+			return new EnrichmentResult(true, null);
+		default:
+			return new EnrichmentResult(true, "Country_T." + i + ",Region_T." + i);
+		}
+	}
+
+	private static void assertStored(EnrichmentStore store, int i, long created) {
+		EnrichmentStore.StoredResult stored = store.get(INST + i);
+		assertNotNull("no result for " + i, stored);
+		assertEquals(created, stored.created);
+		assertEquals(result(i).hasRelations(), stored.result.hasRelations());
+		assertEquals(result(i).getConnections(), stored.result.getConnections());
+	}
+
+	private File storeFile(String ext) {
+		File[] files = dir.listFiles();
+		for (File f : files) {
+			if (f.getName().endsWith(ext))
+				return f;
+		}
+		fail("no " + ext + " file in " + dir);
+		return null;
+	}
+
+	private void putAll(int count, long created) throws IOException {
+		EnrichmentStore store = EnrichmentStore.open(dir, SCOPE);
+		try {
+			for (int i = 0; i < count; i++)
+				store.put(INST + i, result(i), created + i);
+		}
+		finally {
+			EnrichmentStore.release(store);
+		}
+	}
+
+	private void assertAll(int count, long created) throws IOException {
+		EnrichmentStore store = EnrichmentStore.open(dir, SCOPE);
+		try {
+			assertEquals(count, store.size());
+			for (int i = 0; i < count; i++)
+				assertStored(store, i, created + i);
+			assertNull(store.get(INST + count));
+		}
+		finally {
+			EnrichmentStore.release(store);
+		}
+	}
+
+	public void testReopenKeepsResults() throws IOException {
+		putAll(10, 1000);
+		assertAll(10, 1000);
+	}
+
+	public void testLatestResultWins() throws IOException {
+		putAll(10, 1000);
+		putAll(10, 2000);
+		assertAll(10, 2000);
+	}
+
+	public void testTornRecordIsCutOff() throws IOException {
+		putAll(5, 1000);
+		File logFile = storeFile(".log");
+		long complete = logFile.length();
+
+		// a record whose length promises more than was written
+		RandomAccessFile raf = new RandomAccessFile(logFile, "rw");
+		try {
+			raf.seek(complete);
+			raf.writeInt(100);
+			raf.writeLong(3000);
+			raf.write(1);
+		}
+		finally {
+			raf.close();
+		}
+
+		assertAll(5, 1000);
+		assertEquals(complete, logFile.length());
+		putAll(6, 4000);
+		assertAll(6, 4000);
+	}
+
+	public void testGrowsPastMinSlots() throws IOException {
+		int count = MIN_SLOTS + 100;
+		putAll(count, 1000);
+		assertTrue(storeFile(".idx").length() > (long) MIN_SLOTS * 2 * 16);
+		assertAll(count, 1000);
+	}
+
+	public void testCorruptIndexIsRebuilt() throws IOException {
+		putAll(50, 1000);
+		File idxFile = storeFile(".idx");
+		RandomAccessFile raf = new RandomAccessFile(idxFile, "rw");
+		try {
+			raf.writeInt(0);
+		}
+		finally {
+			raf.close();
+		}
+		assertAll(50, 1000);
+
+		raf = new RandomAccessFile(idxFile, "rw");
+		try {
+			raf.setLength(100);
+		}
+		finally {
+			raf.close();
+		}
+		assertAll(50, 1000);
+	}
+
+	public void testMissingIndexIsRebuilt() throws IOException {
+		putAll(50, 1000);
+		assertTrue(storeFile(".idx").delete());
+		assertAll(50, 1000);
+	}
+
+	public void testCompactionKeepsLatestResults() throws IOException {
+		// more than MIN_SLOTS records and more than twice as many as entities
+		EnrichmentStore store = EnrichmentStore.open(dir, SCOPE);
+		try {
+			for (int round = 0; round < 50; round++) {
+				for (int i = 0; i < 100; i++)
+					store.put(INST + i, result(i), round * 1000 + i);
+			}
+		}
+		finally {
+			EnrichmentStore.release(store);
+		}
+		File logFile = storeFile(".log");
+		long full = logFile.length();
+
+		assertAll(100, 49000);
+		long compacted = logFile.length();
+		assertTrue(compacted * 40 < full);
+
+		putAll(100, 60000);
+		assertAll(100, 60000);
+		assertTrue(logFile.length() < 3 * compacted);
+	}
+
+	public void testScopesWithTheSameHashCodeAreKeptApart() throws IOException {
+		// "Aa" and "BB" have the same String.hashCode()
+		EnrichmentStore aa = EnrichmentStore.open(dir, SCOPE + "Aa");
+		EnrichmentStore bb = EnrichmentStore.open(dir, SCOPE + "BB");
+		try {
+			assertEquals((SCOPE + "Aa").hashCode(), (SCOPE + "BB").hashCode());
+			aa.put(INST + 2, result(2), 1000);
+			bb.put(INST + 1, result(1), 2000);
+		}
+		finally {
+			EnrichmentStore.release(aa);
+			EnrichmentStore.release(bb);
+		}
+
+		aa = EnrichmentStore.open(dir, SCOPE + "Aa");
+		bb = EnrichmentStore.open(dir, SCOPE + "BB");
+		try {
+			assertEquals(1, aa.size());
+			assertEquals(1, bb.size());
+			assertStored(aa, 2, 1000);
+			assertNull(aa.get(INST + 1));
+			assertStored(bb, 1, 2000);
+			assertNull(bb.get(INST + 2));
+		}
+		finally {
+			EnrichmentStore.release(aa);
+			EnrichmentStore.release(bb);
+		}
+	}
+}
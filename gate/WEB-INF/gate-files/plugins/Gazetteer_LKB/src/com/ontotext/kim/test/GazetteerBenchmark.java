@@ -0,0 +1,407 @@
+package com.ontotext.kim.test;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import com.ontotext.kim.KIMConstants;
+import com.ontotext.kim.gate.KimLookupParser;
+import com.ontotext.kim.gate.KimLookupParser.AliasLookupDictionary;
+import com.ontotext.kim.model.AliasCacheImpl;
+import com.ontotext.kim.model.HashRegister;
+import com.ontotext.kim.model.LookupTimings;
+import com.ontotext.kim.model.ParsingFrame;
+import com.ontotext.kim.model.TrieDictionary;
+
+/**
+ * Measures the gazetteer on a <code>SyntheticDictionary</code>, so that a
+ * change of the engines can be measured the same way on any machine.<br>
+ * Usage: <code>GazetteerBenchmark [-aliases n] [-lexemes w1,w2,...]
+ * [-classes n] [-namespaces n] [-documents n] [-words n] [-aliasShare x]
+ * [-warmup n] [-rounds n] [-seed n] [-engine hash|trie|both]
+ * [-caseSensitive] [-dir folder] [-verbose] [benchmark...]</code><br>
+ * <code>-lexemes</code> gives the relative frequency of aliases of 1, 2, 3...
+ * lexemes. The benchmarks are:
+ * <ul>
+ * <li><b>build</b> - the time to build a dictionary; for the hash engine
+ * also the time to load its binary image</li>
+ * <li><b>memory</b> - the heap taken per alias</li>
+ * <li><b>frame</b> - lexemes parsed and hashed by <code>ParsingFrame</code>
+ * per second, without a dictionary</li>
+ * <li><b>register</b> - <code>HashRegister</code> probes per second, half
+ * of them misses</li>
+ * <li><b>lookup</b> - aliases looked up per second, through
+ * <code>AliasCacheImpl.lookup(String)</code> or a frame for the trie</li>
+ * <li><b>scan</b> - the document throughput of
+ * <code>KimLookupParser.findLookups</code></li>
+ * </ul>
+ * All benchmarks run when none is named. Every benchmark runs the warm-up
+ * rounds, which are not reported, and then the measured rounds; the mean,
+ * standard deviation, minimum and maximum of the rounds are printed. The
+ * logging is turned off, unless <code>-verbose</code> is given. With
+ * <code>-Dlkb.gazetteer.timings=true</code> the <code>LookupTimings</code>
+ * of all rounds are printed at the end.
+ */
+public class GazetteerBenchmark {
+
+	private static final List<String> BENCHMARKS = Arrays.asList(
+			"build", "memory", "frame", "register", "lookup", "scan");
+
+	/** A measured operation. Returns the amount of work done in a round, in
+	 * the units of the score */
+	private interface Round {
+		double run() throws Exception;
+	}
+
+	private int aliasCount = 100000;
+	private int[] lexemeWeights = { 40, 35, 15, 7, 3 };
+	private int classCount = 50;
+	private int namespaceCount = 5;
+	private int documentCount = 50;
+	private int documentWords = 2000;
+	private double aliasShare = 0.2;
+	private int warmup = 3;
+	private int rounds = 5;
+	private long seed = 42;
+	private String engine = "both";
+	private String caseSens = KIMConstants.CASE_INSENSITIV;
+	private File dir;
+
+	private SyntheticDictionary dictionary;
+	private List<String> documents;
+	private long documentChars;
+	private AliasCacheImpl hash;
+	private TrieDictionary trie;
+	/** Keeps the results of the measured code alive */
+	private long sink;
+
+	public static void main(String[] args) throws Exception {
+		GazetteerBenchmark b = new GazetteerBenchmark();
+		List<String> selected = new ArrayList<String>();
+		boolean verbose = false;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-aliases"))
+				b.aliasCount = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-lexemes"))
+				b.lexemeWeights = parseWeights(args[++i]);
+			else if (args[i].equals("-classes"))
+				b.classCount = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-namespaces"))
+				b.namespaceCount = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-documents"))
+				b.documentCount = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-words"))
+				b.documentWords = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-aliasShare"))
+				b.aliasShare = Double.parseDouble(args[++i]);
+			else if (args[i].equals("-warmup"))
+				b.warmup = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-rounds"))
+				b.rounds = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-seed"))
+				b.seed = Long.parseLong(args[++i]);
+			else if (args[i].equals("-engine"))
+				b.engine = args[++i];
+			else if (args[i].equals("-caseSensitive"))
+				b.caseSens = KIMConstants.CASE_SENSITIV;
+			else if (args[i].equals("-dir"))
+				b.dir = new File(args[++i]);
+			else if (args[i].equals("-verbose"))
+				verbose = true;
+			else if (BENCHMARKS.contains(args[i]))
+				selected.add(args[i]);
+			else {
+				System.err.println("Unknown option or benchmark " + args[i] + "; the benchmarks are " + BENCHMARKS);
+				return;
+			}
+		}
+		if (selected.isEmpty())
+			selected.addAll(BENCHMARKS);
+		if (!verbose)
+			Logger.getRootLogger().setLevel(Level.OFF);
+		b.run(selected);
+		System.exit(0);
+	}
+
+	private static int[] parseWeights(String s) {
+		String[] parts = s.split(",");
+		int[] weights = new int[parts.length];
+		for (int i = 0; i < parts.length; i++)
+			weights[i] = Integer.parseInt(parts[i].trim());
+		return weights;
+	}
+
+	private void run(List<String> selected) throws Exception {
+		boolean temporary = dir == null;
+		if (temporary) {
+			dir = File.createTempFile("lkb-benchmark", "");
+			dir.delete();
+		}
+		try {
+			long start = System.nanoTime();
+			dictionary = new SyntheticDictionary(seed, aliasCount, lexemeWeights, classCount, namespaceCount);
+			Random random = new Random(seed);
+			documents = new ArrayList<String>(documentCount);
+			for (int i = 0; i < documentCount; i++) {
+				String text = dictionary.generateText(random, documentWords, aliasShare);
+				documents.add(text);
+				documentChars += text.length();
+			}
+			System.out.println("generated " + dictionary.getAliasCount() + " aliases of "
+					+ dictionary.getInstanceCount() + " instances, lexeme weights " + Arrays.toString(lexemeWeights)
+					+ ", " + classCount + " classes, " + namespaceCount + " name-spaces and "
+					+ documentCount + " documents of " + documentChars + " characters in "
+					+ (System.nanoTime() - start) / 1000000 + "ms");
+
+			for (String name : selected) {
+				if (name.equals("build"))
+					benchmarkBuild();
+				else if (name.equals("memory"))
+					benchmarkMemory();
+				else if (name.equals("frame"))
+					benchmarkFrame();
+				else if (name.equals("register"))
+					benchmarkRegister();
+				else if (name.equals("lookup"))
+					benchmarkLookup();
+				else if (name.equals("scan"))
+					benchmarkScan();
+			}
+			if (LookupTimings.ENABLED)
+				System.out.print("lookup stage timings of all rounds:\n" + LookupTimings.summary());
+			System.out.println("(sink " + sink + ")");
+		}
+		finally {
+			if (temporary)
+				FileUtils.deleteDirectory(dir);
+		}
+	}
+
+	private boolean hashEngine() {
+		return !engine.equals("trie");
+	}
+
+	private boolean trieEngine() {
+		return !engine.equals("hash");
+	}
+
+	private AliasCacheImpl hash() throws Exception {
+		if (hash == null)
+			hash = AliasCacheImpl.createInstance(dir, caseSens, dictionary);
+		return hash;
+	}
+
+	private TrieDictionary trie() {
+		if (trie == null) {
+			TrieDictionary.Builder builder = new TrieDictionary.Builder(caseSens, null);
+			dictionary.addTo(builder);
+			trie = builder.build();
+		}
+		return trie;
+	}
+
+	private void benchmarkBuild() throws Exception {
+		if (hashEngine()) {
+			measure("build", "hash", "aliases/s", new Round() {
+				public double run() throws Exception {
+					hash = AliasCacheImpl.createInstance(dir, caseSens, dictionary);
+					return hash.getAliasCount();
+				}
+			});
+			measure("build", "hash image", "aliases/s", new Round() {
+				public double run() throws Exception {
+					AliasCacheImpl loaded = AliasCacheImpl.createInstance(dir, caseSens);
+					return loaded.getAliasCount();
+				}
+			});
+		}
+		if (trieEngine()) {
+			measure("build", "trie", "aliases/s", new Round() {
+				public double run() {
+					trie = null;
+					return trie().getAliasCount();
+				}
+			});
+		}
+	}
+
+	private void benchmarkMemory() throws Exception {
+		hash = null;
+		trie = null;
+		if (hashEngine()) {
+			long before = usedHeap();
+			AliasCacheImpl built = hash();
+			long used = usedHeap() - before;
+			report("memory", "hash", used, built.getAliasCount());
+			System.out.println("  estimated " + built.getEstimatedBytes() / built.getAliasCount() + " bytes/alias");
+		}
+		if (trieEngine()) {
+			long before = usedHeap();
+			TrieDictionary built = trie();
+			long used = usedHeap() - before;
+			report("memory", "trie", used, built.getAliasCount());
+		}
+	}
+
+	private void report(String benchmark, String engine, long bytes, int aliases) {
+		System.out.println(benchmark + " " + engine + ": " + bytes / aliases + " bytes/alias, "
+				+ (bytes >> 10) + "KB for " + aliases + " aliases");
+	}
+
+	/** @return the heap taken by live objects */
+	private static long usedHeap() throws InterruptedException {
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		long used = Long.MAX_VALUE;
+		// Repeat until the collection frees nothing more
+		for (int i = 0; i < 10; i++) {
+			System.gc();
+			Thread.sleep(100);
+			long now = memory.getHeapMemoryUsage().getUsed();
+			if (now >= used)
+				break;
+			used = now;
+		}
+		return used;
+	}
+
+	private void benchmarkFrame() throws Exception {
+		measure("frame", "", "lexemes/s", new Round() {
+			public double run() {
+				long lexemes = 0;
+				for (String text : documents) {
+					ParsingFrame pfm = new ParsingFrame(text);
+					do {
+						if (pfm.parseOne()) {
+							if (pfm.getLexemeCount() == 1)
+								lexemes++;
+							sink += pfm.getAliasHash1() + pfm.getAliasHash2();
+						}
+						// Grow the frame to the longest generated alias
+						if (pfm.getLexemeCount() >= lexemeWeights.length || !pfm.frameCanExpand())
+							pfm.moveOne();
+					} while (pfm.frameCanMove());
+				}
+				return lexemes;
+			}
+		});
+	}
+
+	private void benchmarkRegister() throws Exception {
+		final HashRegister register = new HashRegister();
+		final int[] probes = new int[2 * dictionary.getAliasCount()];
+		Random random = new Random(seed);
+		for (int i = 0; i < dictionary.getAliasCount(); i++) {
+			ParsingFrame pfm = new ParsingFrame(dictionary.getAlias(i));
+			pfm.parseAll();
+			int h = pfm.getAliasHash1();
+			register.add(h, Integer.valueOf(i));
+			probes[2 * i] = h;
+			probes[2 * i + 1] = random.nextInt();
+		}
+		measure("register", "", "probes/s", new Round() {
+			public double run() {
+				for (int h : probes) {
+					Object[] found = register.get(h);
+					if (found != null)
+						sink += found.length;
+				}
+				return probes.length;
+			}
+		});
+	}
+
+	private void benchmarkLookup() throws Exception {
+		final String[] aliases = new String[Math.min(100000, dictionary.getAliasCount())];
+		Random random = new Random(seed);
+		for (int i = 0; i < aliases.length; i++)
+			aliases[i] = dictionary.getAlias(random.nextInt(dictionary.getAliasCount()));
+		if (hashEngine()) {
+			final AliasCacheImpl dict = hash();
+			measure("lookup", "hash", "lookups/s", new Round() {
+				public double run() {
+					for (String alias : aliases)
+						sink += dict.lookup(alias).size();
+					return aliases.length;
+				}
+			});
+		}
+		if (trieEngine()) {
+			final TrieDictionary dict = trie();
+			measure("lookup", "trie", "lookups/s", new Round() {
+				public double run() {
+					for (String alias : aliases) {
+						ParsingFrame pfm = new ParsingFrame(alias);
+						pfm.parseAll();
+						sink += dict.lookup(pfm).size();
+					}
+					return aliases.length;
+				}
+			});
+		}
+	}
+
+	private void benchmarkScan() throws Exception {
+		if (hashEngine())
+			scan("hash", hash());
+		if (trieEngine())
+			scan("trie", trie());
+	}
+
+	private void scan(String name, AliasLookupDictionary dict) throws Exception {
+		final KimLookupParser parser = new KimLookupParser(dict);
+		final long[] lookups = new long[1];
+		final KimLookupParser.EntityOccuranceHandler handler = new KimLookupParser.EntityOccuranceHandler() {
+			public void processEntityOccurance(int start, int end, String instURI, String classURI) {
+				lookups[0]++;
+			}
+		};
+		measure("scan", name, "KB/s", new Round() {
+			public double run() {
+				lookups[0] = 0;
+				for (String text : documents)
+					parser.findLookups(text, handler);
+				sink += lookups[0];
+				return documentChars / 1024.0;
+			}
+		});
+		System.out.println("  " + lookups[0] / documents.size() + " lookups per document");
+	}
+
+	/** Runs the warm-up and measured rounds and prints the scores */
+	private void measure(String benchmark, String variant, String unit, Round round) throws Exception {
+		for (int r = 0; r < warmup; r++)
+			round.run();
+		double[] scores = new double[rounds];
+		for (int r = 0; r < rounds; r++) {
+			long start = System.nanoTime();
+			double work = round.run();
+			scores[r] = work * 1e9 / Math.max(1, System.nanoTime() - start);
+		}
+		double mean = 0;
+		double min = Double.MAX_VALUE;
+		double max = 0;
+		for (double s : scores) {
+			mean += s / rounds;
+			min = Math.min(min, s);
+			max = Math.max(max, s);
+		}
+		double variance = 0;
+		for (double s : scores)
+			variance += (s - mean) * (s - mean) / Math.max(1, rounds - 1);
+		System.out.println(benchmark + (variant.length() > 0 ? " " + variant : "") + ": "
+				+ format(mean) + " +- " + format(Math.sqrt(variance)) + " " + unit
+				+ " (min " + format(min) + ", max " + format(max) + ", " + rounds + " rounds)");
+	}
+
+	private static String format(double d) {
+		return d >= 100 ? String.valueOf(Math.round(d)) : String.valueOf(Math.round(d * 100) / 100.0);
+	}
+}
@@ -0,0 +1,73 @@
+package com.ontotext.kim.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import junit.framework.TestCase;
+
+import com.ontotext.kim.model.LocalNamePool;
+
+public class LocalNamePoolTest extends TestCase {
+
+	public void testIdentifiersFollowTheSortedOrder() {
+		LocalNamePool pool = LocalNamePool.build(Arrays.asList("0:Paris", "0:New_York", "1:Paris", "0:Paris"));
+		assertEquals(3, pool.size());
+		assertEquals("0:New_York", pool.get(0));
+		assertEquals("0:Paris", pool.get(1));
+		assertEquals("1:Paris", pool.get(2));
+		assertEquals(1, pool.indexOf("0:Paris"));
+		assertEquals(-1, pool.indexOf("0:Pari"));
+		assertEquals(-1, pool.indexOf("2:Paris"));
+		assertEquals(-1, LocalNamePool.EMPTY.indexOf("0:Paris"));
+	}
+
+	public void testCeilingStartsThePrefixRange() {
+		List<String> names = new ArrayList<String>();
+		for (int i = 0; i < 100; i++)
+			names.add("2:Entity_" + i);
+		LocalNamePool pool = LocalNamePool.build(names);
+		assertEquals(0, pool.ceiling("1:"));
+		assertEquals(0, pool.ceiling("2:Entity_"));
+		assertEquals("2:Entity_5", pool.get(pool.ceiling("2:Entity_4a")));
+		assertEquals("2:Entity_51", pool.get(pool.ceiling("2:Entity_50a")));
+		assertEquals(pool.size(), pool.ceiling("3:"));
+		assertEquals(0, LocalNamePool.EMPTY.ceiling("2:"));
+	}
+
+	public void testManyBlocksAndNonAsciiNames() {
+		List<String> names = new ArrayList<String>();
+		for (int i = 0; i < 1000; i++)
+			names.add("3:Entity_" + i);
+		names.add("3:Z\u00fcrich");
+		names.add("3:\u6771\u4eac");
+		names.add("3:");
+		LocalNamePool pool = LocalNamePool.build(names);
+		assertEquals(names.size(), pool.size());
+		for (String name : names)
+			assertEquals(name, pool.get(pool.indexOf(name)));
+		assertEquals(-1, pool.indexOf("3:Entity_1000"));
+		assertEquals(-1, pool.indexOf("4:"));
+		assertTrue(pool.getEstimatedBytes() < 8 * names.size());
+	}
+
+	public void testParallelBuildFindsTheIdentifiers() {
+		List<String> names = new ArrayList<String>();
+		for (int i = 0; i < 50000; i++)
+			names.add((i % 7) + ":Entity_" + (i * 7919 % 30011));
+		int[] ids = new int[names.size()];
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		LocalNamePool pool;
+		try {
+			pool = LocalNamePool.build(names, ids, executor, 5);
+		}
+		finally {
+			executor.shutdown();
+		}
+		assertEquals(LocalNamePool.build(names).size(), pool.size());
+		for (int i = 0; i < ids.length; i++)
+			assertEquals(names.get(i), pool.get(ids[i]));
+	}
+}
@@ -0,0 +1,138 @@
+package com.ontotext.kim.test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+
+import com.ontotext.kim.KIMConstants;
+import com.ontotext.kim.gate.KimLookupParser;
+import com.ontotext.kim.gate.KimLookupParser.AliasLookupDictionary;
+import com.ontotext.kim.model.AliasCacheImpl;
+import com.ontotext.kim.model.TrieDictionary;
+
+/**
+ * Compares the two lookup engines on the same dictionary: the hash-codes of
+ * <code>AliasCacheImpl</code> and the trie of <code>TrieDictionary</code>.<br>
+ * Usage: <code>LookupEngineBenchmark [-rounds n] [-caseSensitive]
+ * dictionaryFolder textFileOrFolder...</code><br>
+ * Prints the load times, then for every round the time to look up all texts,
+ * the number of lookups and the frames examined per starting lexeme. After
+ * the last round the lookups found by only one engine are counted; those of
+ * the hash engine alone are hash-code collisions.
+ */
+public class LookupEngineBenchmark {
+
+	private static class Run {
+		long nanos;
+		long lookups;
+		long frames;
+		long startingLexemes;
+		final List<Set<String>> found = new ArrayList<Set<String>>();
+	}
+
+	public static void main(String[] args) throws Exception {
+		int rounds = 5;
+		String caseSens = KIMConstants.CASE_INSENSITIV;
+		List<String> paths = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-rounds"))
+				rounds = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-caseSensitive"))
+				caseSens = KIMConstants.CASE_SENSITIV;
+			else
+				paths.add(args[i]);
+		}
+		if (paths.size() < 2) {
+			System.err.println("Usage: LookupEngineBenchmark [-rounds n] [-caseSensitive] dictionaryFolder textFileOrFolder...");
+			return;
+		}
+		File dictionaryPath = new File(paths.get(0));
+		List<String> texts = new ArrayList<String>();
+		for (String path : paths.subList(1, paths.size()))
+			readTexts(new File(path), texts);
+
+		long start = System.currentTimeMillis();
+		AliasCacheImpl hash = AliasCacheImpl.createInstance(dictionaryPath, caseSens);
+		System.out.println("hash engine loaded in " + (System.currentTimeMillis() - start) + "ms, "
+				+ hash.getAliasCount() + " aliases");
+		start = System.currentTimeMillis();
+		TrieDictionary trie = TrieDictionary.createInstance(dictionaryPath, caseSens);
+		System.out.println("trie engine loaded in " + (System.currentTimeMillis() - start) + "ms, "
+				+ trie.getAliasCount() + " aliases, " + trie.getLexemeCount() + " lexemes, "
+				+ trie.getNodeCount() + " nodes in " + trie.getSlotCount() + " slots");
+
+		Run hashRun = null;
+		Run trieRun = null;
+		for (int r = 1; r <= rounds; r++) {
+			boolean last = r == rounds;
+			hashRun = run(hash, texts, last);
+			trieRun = run(trie, texts, last);
+			print(r, "hash", hashRun);
+			print(r, "trie", trieRun);
+		}
+		if (hashRun != null) {
+			int onlyHash = 0;
+			int onlyTrie = 0;
+			for (int i = 0; i < texts.size(); i++) {
+				Set<String> h = hashRun.found.get(i);
+				Set<String> t = trieRun.found.get(i);
+				for (String s : h) {
+					if (!t.contains(s))
+						onlyHash++;
+				}
+				for (String s : t) {
+					if (!h.contains(s))
+						onlyTrie++;
+				}
+			}
+			System.out.println("lookups found only by the hash engine: " + onlyHash + ", only by the trie engine: " + onlyTrie);
+		}
+	}
+
+	private static void readTexts(File path, List<String> texts) throws Exception {
+		if (path.isDirectory()) {
+			File[] files = path.listFiles();
+			Arrays.sort(files);
+			for (File f : files) {
+				if (f.isFile())
+					texts.add(FileUtils.readFileToString(f, "UTF-8"));
+			}
+		}
+		else {
+			texts.add(FileUtils.readFileToString(path, "UTF-8"));
+		}
+	}
+
+	private static Run run(AliasLookupDictionary dictionary, List<String> texts, final boolean collect) {
+		final Run run = new Run();
+		KimLookupParser parser = new KimLookupParser(dictionary);
+		for (String text : texts) {
+			final Set<String> found = new HashSet<String>();
+			long start = System.nanoTime();
+			parser.findLookups(text, new KimLookupParser.EntityOccuranceHandler() {
+				public void processEntityOccurance(int start, int end, String instURI, String classURI) {
+					++run.lookups;
+					if (collect)
+						found.add(start + ":" + end + " " + instURI + " " + classURI);
+				}
+			});
+			run.nanos += System.nanoTime() - start;
+			run.frames += parser.getFramesExamined();
+			run.startingLexemes += parser.getStartingLexemes();
+			if (collect)
+				run.found.add(found);
+		}
+		return run;
+	}
+
+	private static void print(int round, String engine, Run run) {
+		System.out.println("round " + round + " " + engine + ": " + run.nanos / 1000000 + "ms, "
+				+ run.lookups + " lookups, "
+				+ (run.startingLexemes == 0 ? 0 : (float) run.frames / run.startingLexemes) + " frames per lexeme");
+	}
+}
@@ -0,0 +1,39 @@
+package com.ontotext.kim.test;
+
+import junit.framework.TestCase;
+
+import com.ontotext.kim.model.LookupTimings;
+import com.ontotext.kim.model.LookupTimings.Stage;
+
+public class LookupTimingsTest extends TestCase {
+
+	/** @return the number of intervals of a stage, read from the summary */
+	private static long count(Stage stage) {
+		String summary = LookupTimings.summary();
+		int start = summary.indexOf(stage.name() + ": ") + stage.name().length() + 2;
+		return Long.parseLong(summary.substring(start, summary.indexOf(' ', start)));
+	}
+
+	public void testEndedThreadsAreRetired() throws InterruptedException {
+		long before = count(Stage.LEX);
+		int threads = 200;
+		for (int i = 0; i < threads; i++) {
+			Thread t = new Thread() {
+				public void run() {
+					long start = System.nanoTime();
+					for (int k = 0; k < 3; k++)
+						start = LookupTimings.record(Stage.LEX, start);
+				}
+			};
+			t.start();
+			t.join();
+		}
+		// the intervals of the ended threads are kept, their histograms are not
+		assertEquals(before + 3 * threads, count(Stage.LEX));
+		assertEquals(0, LookupTimings.threadCount());
+
+		LookupTimings.record(Stage.ANNOTATE, System.nanoTime());
+		assertEquals(1, LookupTimings.threadCount());
+		assertEquals(before + 3 * threads, count(Stage.LEX));
+	}
+}
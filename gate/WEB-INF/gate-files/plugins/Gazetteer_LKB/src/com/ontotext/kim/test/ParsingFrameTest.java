@@ -0,0 +1,182 @@
+package com.ontotext.kim.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.ontotext.kim.KIMConstants;
+import com.ontotext.kim.model.AliasTextTransformer;
+import com.ontotext.kim.model.ParsingFrame;
+
+/**
+ * Checks that a frame parsed along token offsets gives the same lexemes,
+ * lengths and hash-codes as a frame parsed with the regular expression, for
+ * tokens which do not split the lexemes.
+ */
+public class ParsingFrameTest extends TestCase {
+
+	/** Letters, digits, white space, punctuation and characters which are neither */
+	private static final String ALPHABET = "aeiouNYKxz0123456789     \t\n,.;-'()&/\u00e9\u00c9\u00df\u6771\u4eac ";
+
+	private static final String[] TEXTS = {
+		"",
+		"...",
+		"a",
+		"New York",
+		"  The New York Times, NY. ",
+		"(Sofia)--Plovdiv 2009.",
+		"AT&T; Acme Corp.\n\tZ\u00fcrich \u6771\u4eac-Tower 42b",
+	};
+
+	private static boolean alphaNumeric(char c) {
+		return (c >= '0' && c <= '9') || Character.isUpperCase(c) || Character.isLowerCase(c);
+	}
+
+	private static int kind(char c) {
+		return c >= '0' && c <= '9' ? 1 : alphaNumeric(c) ? 2 : 0;
+	}
+
+	/** @return whether a token may start or end at an offset without splitting a lexeme */
+	private static boolean canSplit(String text, int i) {
+		return i == 0 || i == text.length() || kind(text.charAt(i - 1)) != kind(text.charAt(i))
+				|| kind(text.charAt(i)) == 0;
+	}
+
+	private static int[] toArray(List<int[]> tokens) {
+		int[] offsets = new int[tokens.size() * 2];
+		for (int i = 0; i < tokens.size(); i++) {
+			offsets[2 * i] = tokens.get(i)[0];
+			offsets[2 * i + 1] = tokens.get(i)[1];
+		}
+		return offsets;
+	}
+
+	private static List<int[]> whitespaceTokens(String text) {
+		List<int[]> tokens = new ArrayList<int[]>();
+		int start = -1;
+		for (int i = 0; i <= text.length(); i++) {
+			boolean space = i == text.length() || Character.isWhitespace(text.charAt(i));
+			if (space && start >= 0) {
+				tokens.add(new int[] { start, i });
+				start = -1;
+			}
+			else if (!space && start < 0) {
+				start = i;
+			}
+		}
+		return tokens;
+	}
+
+	/** Tokens cut at random offsets which split no lexeme, many of them inside
+	 * punctuation; some pieces without lexemes are left out */
+	private static List<int[]> randomTokens(String text, Random random) {
+		List<int[]> tokens = new ArrayList<int[]>();
+		int start = 0;
+		for (int i = 1; i <= text.length(); i++) {
+			if (i < text.length() && (!canSplit(text, i) || random.nextInt(3) > 0))
+				continue;
+			boolean hasLexeme = false;
+			for (int k = start; k < i; k++)
+				hasLexeme |= alphaNumeric(text.charAt(k));
+			if (hasLexeme || random.nextBoolean())
+				tokens.add(new int[] { start, i });
+			start = i;
+		}
+		return tokens;
+	}
+
+	/** Makes some tokens cover the following ones as well, then shuffles them */
+	private static List<int[]> overlapAndShuffle(List<int[]> tokens, Random random) {
+		List<int[]> result = new ArrayList<int[]>();
+		for (int i = 0; i < tokens.size(); i++) {
+			result.add(tokens.get(i));
+			if (i + 1 < tokens.size() && random.nextInt(3) == 0) {
+				int last = Math.min(tokens.size() - 1, i + 1 + random.nextInt(2));
+				result.add(new int[] { tokens.get(i)[0], tokens.get(last)[1] });
+			}
+		}
+		Collections.shuffle(result, random);
+		return result;
+	}
+
+	private static void assertSameFrame(String message, ParsingFrame expected, ParsingFrame actual) {
+		assertEquals(message, expected.getFirstLexemeIndex(), actual.getFirstLexemeIndex());
+		assertEquals(message, expected.getLexemeCount(), actual.getLexemeCount());
+		for (int i = 0; i < expected.getLexemeCount(); i++)
+			assertEquals(message, expected.getLexeme(i), actual.getLexeme(i));
+		assertEquals(message, expected.getPrefixLen(), actual.getPrefixLen());
+		assertEquals(message, expected.getMiddleLen(), actual.getMiddleLen());
+		assertEquals(message, expected.getSuffixLen(), actual.getSuffixLen());
+		assertEquals(message, expected.getAliasStart(), actual.getAliasStart());
+		assertEquals(message, expected.getAliasEnd(), actual.getAliasEnd());
+		assertEquals(message, expected.getAliasHash1(), actual.getAliasHash1());
+		assertEquals(message, expected.getAliasHash2(), actual.getAliasHash2());
+		// the hash-codes of the frame without its punctuation, as the dictionaries try them
+		expected.setNewPrefSufLen(0, 0);
+		actual.setNewPrefSufLen(0, 0);
+		assertEquals(message, expected.getAliasHash2(), actual.getAliasHash2());
+		assertEquals(message, expected.getAliasText(), actual.getAliasText());
+	}
+
+	/** Walks all frames of both parsers, as <code>KimLookupParser</code> does */
+	private static void assertSameFrames(String text, int[] tokenOffsets) {
+		String message = "'" + text + "' with tokens " + Arrays.toString(tokenOffsets);
+		ParsingFrame expected = new ParsingFrame(text);
+		ParsingFrame actual = new ParsingFrame(text, tokenOffsets);
+		expected.setTextTransformer(AliasTextTransformer.forCaseSensitivity(KIMConstants.CASE_INSENSITIV));
+		actual.setTextTransformer(AliasTextTransformer.forCaseSensitivity(KIMConstants.CASE_INSENSITIV));
+		do {
+			boolean parsed = expected.parseOne();
+			assertEquals(message, parsed, actual.parseOne());
+			if (parsed)
+				assertSameFrame(message, expected, actual);
+			assertEquals(message, expected.frameCanExpand(), actual.frameCanExpand());
+			if (!expected.frameCanExpand()) {
+				expected.moveOne();
+				actual.moveOne();
+			}
+			assertEquals(message, expected.frameCanMove(), actual.frameCanMove());
+		} while (expected.frameCanMove());
+	}
+
+	private static void assertAllTokenizations(String text, Random random) {
+		assertSameFrames(text, new int[] { 0, text.length() });
+		List<int[]> byWhitespace = whitespaceTokens(text);
+		assertSameFrames(text, toArray(byWhitespace));
+		assertSameFrames(text, toArray(overlapAndShuffle(byWhitespace, random)));
+		List<int[]> cut = randomTokens(text, random);
+		assertSameFrames(text, toArray(cut));
+		assertSameFrames(text, toArray(overlapAndShuffle(cut, random)));
+	}
+
+	public void testFixedTexts() {
+		Random random = new Random(7);
+		for (String text : TEXTS) {
+			for (int round = 0; round < 20; round++)
+				assertAllTokenizations(text, random);
+		}
+	}
+
+	public void testRandomTexts() {
+		Random random = new Random(42);
+		for (int round = 0; round < 2000; round++) {
+			StringBuilder text = new StringBuilder();
+			int length = random.nextInt(60);
+			for (int i = 0; i < length; i++)
+				text.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+			assertAllTokenizations(text.toString(), random);
+		}
+	}
+
+	public void testTokensInsidePunctuation() {
+		String text = "Acme Corp.,, (NY)";
+		// cut between the two commas and inside the parenthesis run
+		assertSameFrames(text, new int[] { 0, 4, 5, 11, 11, 14, 14, 17 });
+		// the same, unsorted and overlapping
+		assertSameFrames(text, new int[] { 11, 17, 5, 11, 0, 4, 0, 12, 14, 16 });
+	}
+}
@@ -0,0 +1,111 @@
+package com.ontotext.kim.test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.openrdf.model.URI;
+import org.openrdf.model.impl.LiteralImpl;
+import org.openrdf.model.impl.URIImpl;
+import org.openrdf.model.vocabulary.RDF;
+import org.openrdf.model.vocabulary.RDFS;
+import org.openrdf.repository.Repository;
+import org.openrdf.repository.RepositoryConnection;
+import org.openrdf.repository.sail.SailRepository;
+import org.openrdf.sail.memory.MemoryStore;
+
+import com.ontotext.kim.semanticrepository.SimpleTableListener;
+import com.ontotext.kim.util.datastore.PartitionedRepositoryFeed;
+
+public class PartitionedRepositoryFeedTest extends TestCase {
+
+	/** The query of the sample dictionary */
+	private static final String QUERY =
+		"prefix rdfs: <http://www.w3.org/2000/01/rdf-schema#>\n"
+		+ "SELECT ?la ?entity ?cl\n"
+		+ "WHERE {\n"
+		+ "   ?entity rdfs:label ?la .\n"
+		+ "   ?entity a ?cl .\n"
+		+ "   ?cl rdfs:subClassOf rdfs:Class .\n"
+		+ "   OPTIONAL\n"
+		+ "   {\n"
+		+ "       ?sc rdfs:subClassOf ?cl.\n"
+		+ "       ?entity a ?sc .\n"
+		+ "       filter(?cl != ?sc)\n"
+		+ "   }\n"
+		+ "   filter (!bound(?sc) && isURI(?cl))\n"
+		+ "}";
+
+	private static class RowCollector extends SimpleTableListener {
+		final List<String> rows = new ArrayList<String>();
+		RowCollector() {
+			super(3);
+		}
+		public void endTuple() throws IOException {
+			rows.add(row[0] + "|" + row[1] + "|" + row[2]);
+		}
+	}
+
+	private Repository rep;
+
+	@Override
+	protected void setUp() throws Exception {
+		rep = new SailRepository(new MemoryStore());
+		rep.initialize();
+		RepositoryConnection conn = rep.getConnection();
+		try {
+			String ns = "http://example.org/";
+			URI[] classes = new URI[3];
+			for (int c = 0; c < classes.length; c++) {
+				classes[c] = new URIImpl(ns + "Class" + c);
+				conn.add(classes[c], RDFS.SUBCLASSOF, RDFS.CLASS);
+			}
+			// Class2 is more specific than Class1, so the entities of both give only Class2
+			conn.add(classes[2], RDFS.SUBCLASSOF, classes[1]);
+			// The URIs end with digits, letters and other characters
+			String[] endings = { "", "x", "Z", "_", "-", "/", "%C3", "\u00e9", "\u6771", "." };
+			for (int i = 0; i < 400; i++) {
+				URI entity = new URIImpl(ns + "Entity" + i + endings[i % endings.length]);
+				conn.add(entity, RDFS.LABEL, new LiteralImpl("Entity " + i));
+				if (i % 3 == 0)
+					conn.add(entity, RDFS.LABEL, new LiteralImpl("E" + i));
+				conn.add(entity, RDF.TYPE, classes[i % 2]);
+				if (i % 5 == 0)
+					conn.add(entity, RDF.TYPE, classes[2]);
+			}
+		}
+		finally {
+			conn.close();
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		rep.shutDown();
+	}
+
+	private List<String> feed(int partitions) throws Exception {
+		PartitionedRepositoryFeed feed = new PartitionedRepositoryFeed(rep, QUERY, partitions);
+		assertEquals(partitions > 1, feed.isPartitioned());
+		RowCollector collector = new RowCollector();
+		feed.feedTo(collector);
+		Collections.sort(collector.rows);
+		return collector.rows;
+	}
+
+	public void testPartitionsYieldTheRowsOfASingleFeed() throws Exception {
+		List<String> single = feed(1);
+		// labels, extra labels, and the second class of the even entities of Class2 with their labels
+		assertEquals(400 + 134 + 40 + 14, single.size());
+		for (int partitions : new int[] { 2, 3, 7, 62, 100 })
+			assertEquals("partitions: " + partitions, single, feed(partitions));
+	}
+
+	public void testPagedQueryIsNotPartitioned() throws Exception {
+		PartitionedRepositoryFeed feed = new PartitionedRepositoryFeed(rep, QUERY + " LIMIT 10", 4);
+		assertFalse(feed.isPartitioned());
+	}
+}
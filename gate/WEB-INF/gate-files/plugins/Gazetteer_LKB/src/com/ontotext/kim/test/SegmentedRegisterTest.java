@@ -0,0 +1,122 @@
+package com.ontotext.kim.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.ontotext.kim.client.KIMRuntimeException;
+import com.ontotext.kim.model.HashRegister;
+import com.ontotext.kim.model.HashedAlias;
+import com.ontotext.kim.model.SegmentedImage;
+import com.ontotext.kim.model.SegmentedRegister;
+
+public class SegmentedRegisterTest extends TestCase {
+
+	private static final int SEGMENTS = 4;
+	private static final int HASHES = 400;
+	/** The segment whose bytes are damaged */
+	private static final int CORRUPT = 2;
+	/** The size of an entry of the section table: offset, length, checksum and hash count */
+	private static final int TABLE_ENTRY = 8 + 8 + 8 + 4;
+
+	private File file;
+
+	@Override
+	protected void setUp() throws Exception {
+		file = File.createTempFile("segmented", ".image");
+		HashRegister register = new HashRegister();
+		for (int i = 0; i < HASHES; i++)
+			register.add(hash(i), new HashedAlias(i, 0, 0, i, 1));
+		SegmentedImage.write(file, register, "core", SEGMENTS);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		file.delete();
+		new File(file.getPath() + ".flag").delete();
+	}
+
+	private static int hash(int i) {
+		return i * 7919 + 13;
+	}
+
+	/** Flips a byte in the middle of a segment, found through the section table */
+	private void corruptSegment(int segment) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(raf.length() - 8);
+			raf.seek(raf.readLong() + (long) segment * TABLE_ENTRY);
+			long offset = raf.readLong();
+			long length = raf.readLong();
+			assertTrue(length > 0);
+			raf.seek(offset + length / 2);
+			int b = raf.read();
+			raf.seek(offset + length / 2);
+			raf.write(b ^ 0x40);
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	public void testIntactImage() throws IOException {
+		SegmentedImage image = SegmentedImage.open(file);
+		assertEquals("core", image.getCore());
+		SegmentedRegister register = new SegmentedRegister(image);
+		assertEquals(SEGMENTS, register.getSegmentCount());
+		for (int i = 0; i < HASHES; i++) {
+			Object[] found = register.get(hash(i));
+			assertEquals(1, found.length);
+			assertEquals(i, ((HashedAlias) found[0]).instID);
+		}
+		assertFalse(register.isCorrupt());
+		register.loadAll();
+		assertEquals(HASHES, register.getElementsCount());
+	}
+
+	public void testCorruptSegmentIsIsolated() throws IOException {
+		corruptSegment(CORRUPT);
+		SegmentedImage image = SegmentedImage.open(file);
+		SegmentedRegister register = new SegmentedRegister(image);
+		final AtomicInteger repairs = new AtomicInteger();
+		register.setRepair(new Runnable() {
+			public void run() {
+				repairs.incrementAndGet();
+			}
+		});
+
+		int corrupt = 0;
+		for (int round = 0; round < 2; round++) {
+			for (int i = 0; i < HASHES; i++) {
+				int hash = hash(i);
+				if (image.segmentOf(hash) == CORRUPT) {
+					corrupt++;
+					assertFalse(register.exists(hash));
+					assertNull(register.get(hash));
+				}
+				else {
+					assertTrue(register.exists(hash));
+					Object[] found = register.get(hash);
+					assertEquals(1, found.length);
+					assertEquals(i, ((HashedAlias) found[0]).instID);
+				}
+			}
+		}
+		assertTrue("no hash falls in the corrupt segment", corrupt > 0);
+		assertTrue(register.isCorrupt());
+		assertTrue(new File(file.getPath() + ".flag").exists());
+		assertEquals(1, repairs.get());
+
+		try {
+			register.loadAll();
+			fail("loaded a corrupt segment");
+		}
+		catch (KIMRuntimeException e) {
+			// expected
+		}
+		assertEquals(1, repairs.get());
+	}
+}
@@ -0,0 +1,180 @@
+package com.ontotext.kim.test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.openrdf.model.impl.LiteralImpl;
+import org.openrdf.model.impl.URIImpl;
+
+import com.ontotext.kim.client.KIMRuntimeException;
+import com.ontotext.kim.client.semanticrepository.QueryResultListener;
+import com.ontotext.kim.model.TrieDictionary;
+
+/**
+ * Generates a reproducible dictionary and texts which mention its aliases,
+ * to measure the lookup engines without a KB.<br>
+ * <br>
+ * The lexemes are distinct words of random syllables. The first lexeme of a longer
+ * alias is drawn with a skew towards the start of the vocabulary, so such
+ * aliases share their first lexemes as names of a real KB do. Every instance has one or
+ * more aliases, one class and a name-space. The same seed and settings
+ * always give the same dictionary.
+ */
+public class SyntheticDictionary implements QueryResultListener.Feed {
+
+	private static final String[] SYLLABLES = {
+		"ba", "ker", "lo", "mi", "san", "to", "ru", "vel", "di", "an",
+		"sto", "par", "ne", "gra", "is", "cor", "ta", "lin", "mo", "der",
+		"ha", "zu", "pel", "ri", "on", "ka", "ste", "bur", "fi", "el"
+	};
+	private static final String[] PUNCTUATION = { ",", ",", ".", ";", "." };
+
+	private final String[] vocabulary;
+	private final String[] aliases;
+	private final int[] instances;
+	private final int instanceCount;
+	private final int classCount;
+	private final int namespaceCount;
+
+	/**
+	 * @param seed - the seed of the generator
+	 * @param aliasCount - the number of aliases
+	 * @param lexemeWeights - the relative frequency of aliases of 1, 2, 3...
+	 * lexemes
+	 * @param classCount - the number of classes of the instances
+	 * @param namespaceCount - the number of name-spaces of the instance URIs
+	 */
+	public SyntheticDictionary(long seed, int aliasCount, int[] lexemeWeights,
+			int classCount, int namespaceCount) {
+		if (aliasCount < 1 || classCount < 1 || namespaceCount < 1)
+			throw new IllegalArgumentException("The alias, class and name-space counts must be positive.");
+		this.classCount = classCount;
+		this.namespaceCount = namespaceCount;
+		Random random = new Random(seed);
+		vocabulary = new String[aliasCount / 2 + 100];
+		Set<String> distinct = new HashSet<String>();
+		for (int i = 0; i < vocabulary.length; i++) {
+			String word = word(random, 4, true);
+			// Lengthen the word until it is new
+			while (!distinct.add(word))
+				word += SYLLABLES[random.nextInt(SYLLABLES.length)];
+			vocabulary[i] = word;
+		}
+
+		int totalWeight = 0;
+		for (int w : lexemeWeights)
+			totalWeight += w;
+		if (totalWeight <= 0)
+			throw new IllegalArgumentException("The lexeme weights must have a positive sum.");
+		instanceCount = Math.max(1, aliasCount * 2 / 3);
+		aliases = new String[aliasCount];
+		instances = new int[aliasCount];
+		for (int i = 0; i < aliasCount; i++) {
+			int w = random.nextInt(totalWeight);
+			int lexemes = 0;
+			while (w >= lexemeWeights[lexemes])
+				w -= lexemeWeights[lexemes++];
+			StringBuilder alias = new StringBuilder();
+			for (int k = 0; k <= lexemes; k++) {
+				if (k > 0)
+					alias.append(' ');
+				alias.append(lexeme(random, k == 0 && lexemes > 0));
+			}
+			aliases[i] = alias.toString();
+			// The first aliases give every instance a label, the rest add more
+			instances[i] = i < instanceCount ? i : random.nextInt(instanceCount);
+		}
+	}
+
+	public int getAliasCount() {
+		return aliases.length;
+	}
+
+	public int getInstanceCount() {
+		return instanceCount;
+	}
+
+	public String getAlias(int i) {
+		return aliases[i];
+	}
+
+	public String getInstanceURI(int i) {
+		int inst = instances[i];
+		return "http://synthetic.example.org/ns" + (inst % namespaceCount) + "#Entity_" + inst;
+	}
+
+	public String getClassURI(int i) {
+		return "http://synthetic.example.org/classes#Class" + (instances[i] % classCount);
+	}
+
+	/** Feeds the rows of alias, instance URI and class URI, as the query of a
+	 * dictionary would */
+	public void feedTo(QueryResultListener listener) {
+		try {
+			listener.startTableQueryResult();
+			for (int i = 0; i < aliases.length; i++) {
+				listener.startTuple();
+				listener.tupleValue(new LiteralImpl(aliases[i]));
+				listener.tupleValue(new URIImpl(getInstanceURI(i)));
+				listener.tupleValue(new URIImpl(getClassURI(i)));
+				listener.endTuple();
+			}
+			listener.endTableQueryResult();
+		}
+		catch (Exception e) {
+			throw new KIMRuntimeException("Could not feed the synthetic dictionary.", e);
+		}
+	}
+
+	/** Adds all aliases to a trie dictionary builder */
+	public void addTo(TrieDictionary.Builder builder) {
+		for (int i = 0; i < aliases.length; i++)
+			builder.addAlias(getInstanceURI(i), getClassURI(i), aliases[i]);
+	}
+
+	/**
+	 * Generates a text of words of the vocabulary, unknown words and aliases
+	 * of the dictionary, split in sentences.
+	 * @param random - the source of the text; pass a seeded one to repeat it
+	 * @param words - the approximate number of words of the text
+	 * @param aliasShare - the share of the words which start an alias, 0 to 1
+	 * @return the text
+	 */
+	public String generateText(Random random, int words, double aliasShare) {
+		StringBuilder text = new StringBuilder(words * 8);
+		int sentence = 0;
+		for (int n = 0; n < words; n++) {
+			if (n > 0)
+				text.append(' ');
+			double r = random.nextDouble();
+			if (r < aliasShare)
+				text.append(aliases[random.nextInt(aliases.length)]);
+			else if (r < aliasShare + (1 - aliasShare) / 2)
+				text.append(lexeme(random, false));
+			else
+				text.append(word(random, 3, sentence == 0));
+			if (++sentence > 5 + random.nextInt(20)) {
+				text.append(PUNCTUATION[random.nextInt(PUNCTUATION.length)]);
+				sentence = 0;
+			}
+		}
+		return text.append('.').toString();
+	}
+
+	/** A lexeme of the vocabulary; if skewed, the first ones more often */
+	private String lexeme(Random random, boolean skewed) {
+		double r = random.nextDouble();
+		return vocabulary[(int) ((skewed ? r * r : r) * vocabulary.length)];
+	}
+
+	private static String word(Random random, int maxSyllables, boolean capital) {
+		StringBuilder word = new StringBuilder();
+		int syllables = 1 + random.nextInt(maxSyllables);
+		for (int s = 0; s < syllables; s++)
+			word.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+		if (capital)
+			word.setCharAt(0, Character.toUpperCase(word.charAt(0)));
+		return word.toString();
+	}
+}
@@ -0,0 +1,66 @@
+package com.ontotext.kim.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.ontotext.kim.KIMConstants;
+import com.ontotext.kim.gate.KimLookupParser;
+import com.ontotext.kim.model.TrieDictionary;
+
+public class TrieDictionaryTest extends TestCase {
+
+	private static List<String> lookups(TrieDictionary dictionary, final String text) {
+		final List<String> found = new ArrayList<String>();
+		new KimLookupParser(dictionary).findLookups(text, new KimLookupParser.EntityOccuranceHandler() {
+			public void processEntityOccurance(int start, int end, String instURI, String classURI) {
+				found.add(text.substring(start, end) + "=" + instURI);
+			}
+		});
+		return found;
+	}
+
+	private static TrieDictionary build(String caseSensitivity) {
+		TrieDictionary.Builder builder = new TrieDictionary.Builder(caseSensitivity, null);
+		builder.addAlias("urn:NY", "urn:City", "New York");
+		builder.addAlias("urn:NYT", "urn:Org", "New York Times");
+		builder.addAlias("urn:York", "urn:City", "York");
+		builder.addAlias("urn:ATT", "urn:Org", "AT&T");
+		builder.addAlias("urn:Corp", "urn:Org", "Acme Corp.");
+		return builder.build();
+	}
+
+	public void testNestedAndOverlappingMatches() {
+		TrieDictionary dictionary = build(KIMConstants.CASE_SENSITIV);
+		assertEquals(6, dictionary.getAliasCount());
+		List<String> found = lookups(dictionary, "The New York Times reported from York.");
+		assertEquals(4, found.size());
+		assertTrue(found.contains("New York=urn:NY"));
+		assertTrue(found.contains("New York Times=urn:NYT"));
+		assertEquals(2, count(found, "York=urn:York"));
+	}
+
+	public void testPunctuationMustMatch() {
+		TrieDictionary dictionary = build(KIMConstants.CASE_SENSITIV);
+		assertTrue(lookups(dictionary, "Call AT&T now").contains("AT&T=urn:ATT"));
+		assertTrue(lookups(dictionary, "Call AT-T now").isEmpty());
+		// The alias without its trailing full stop is added by the enrichment
+		assertTrue(lookups(dictionary, "Acme Corp is").contains("Acme Corp=urn:Corp"));
+		assertTrue(lookups(dictionary, "at Acme Corp. today").contains("Acme Corp.=urn:Corp"));
+	}
+
+	public void testCaseSensitivity() {
+		assertTrue(lookups(build(KIMConstants.CASE_SENSITIV), "new york").isEmpty());
+		assertEquals(2, lookups(build(KIMConstants.CASE_INSENSITIV), "new york").size());
+	}
+
+	private static int count(List<String> list, String element) {
+		int n = 0;
+		for (String s : list) {
+			if (s.equals(element))
+				n++;
+		}
+		return n;
+	}
+}
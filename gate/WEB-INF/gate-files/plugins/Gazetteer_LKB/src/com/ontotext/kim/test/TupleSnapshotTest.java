@@ -0,0 +1,116 @@
+package com.ontotext.kim.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.openrdf.model.impl.LiteralImpl;
+import org.openrdf.model.impl.URIImpl;
+
+import com.ontotext.kim.semanticrepository.SimpleTableListener;
+import com.ontotext.kim.util.datastore.PrivateRepositoryFeed;
+import com.ontotext.kim.util.datastore.TupleSnapshot;
+
+public class TupleSnapshotTest extends TestCase {
+
+	private static class RowCollector extends SimpleTableListener {
+		final List<String> rows = new ArrayList<String>();
+		RowCollector() {
+			super(3);
+		}
+		public void endTuple() throws IOException {
+			rows.add(row[0] + "|" + row[1] + "|" + row[2]);
+		}
+	}
+
+	private File file;
+
+	@Override
+	protected void setUp() throws Exception {
+		file = File.createTempFile("tuples", ".snapshot");
+		file.delete();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		file.delete();
+	}
+
+	private void writeSample(TupleSnapshot snapshot, RowCollector collector) throws IOException {
+		TupleSnapshot.Recorder rec = snapshot.record(collector);
+		rec.startTableQueryResult();
+		rec.startTuple();
+		rec.tupleValue(new LiteralImpl("Sofia"));
+		rec.tupleValue(new URIImpl("http://www.ontotext.com/kim/2006/05/wkb#City_T.1"));
+		rec.tupleValue(new URIImpl("http://proton.semanticweb.org/2006/05/protonu#City"));
+		rec.endTuple();
+		rec.startTuple();
+		rec.tupleValue(new LiteralImpl("\u0421\u043e\u0444\u0438\u044f"));
+		rec.tupleValue(new URIImpl("http://www.ontotext.com/kim/2006/05/wkb#City_T.1"));
+		rec.tupleValue(null);
+		rec.endTuple();
+		rec.endTableQueryResult();
+		assertTrue(rec.commit());
+	}
+
+	public void testRecordAndReplay() throws IOException {
+		TupleSnapshot snapshot = new TupleSnapshot(file, 42);
+		RowCollector recorded = new RowCollector();
+		writeSample(snapshot, recorded);
+		assertTrue(snapshot.isValid());
+
+		RowCollector replayed = new RowCollector();
+		assertEquals(2, snapshot.replayTo(replayed));
+		assertEquals(recorded.rows, replayed.rows);
+	}
+
+	public void testOtherSettingsHashIsRejected() throws IOException {
+		writeSample(new TupleSnapshot(file, 42), new RowCollector());
+		assertFalse(new TupleSnapshot(file, 43).isValid());
+	}
+
+	public void testUnfinishedRecordingIsDiscarded() throws IOException {
+		TupleSnapshot snapshot = new TupleSnapshot(file, 42);
+		TupleSnapshot.Recorder rec = snapshot.record(new RowCollector());
+		rec.startTableQueryResult();
+		rec.startTuple();
+		rec.tupleValue(new LiteralImpl("Sofia"));
+		rec.endTuple();
+		assertFalse(rec.commit());
+		assertFalse(snapshot.isValid());
+	}
+
+	public void testTruncatedSnapshotIsRejected() throws IOException {
+		TupleSnapshot snapshot = new TupleSnapshot(file, 42);
+		writeSample(snapshot, new RowCollector());
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(raf.length() - 3);
+		raf.close();
+		assertFalse(snapshot.isValid());
+	}
+
+	public void testDataFilesHashFollowsTheImports() throws IOException {
+		File data = File.createTempFile("ontology", ".owl");
+		try {
+			FileUtils.writeStringToFile(data, "<rdf:RDF/>");
+			String config = "owlim:storage-folder \"owlim-storage\" ;\n"
+					+ "owlim:imports \"/no/such/file.owl;\n\t " + data.getAbsolutePath() + ";\" .";
+			int hash = PrivateRepositoryFeed.getDataFilesHash(new StringReader(config));
+			assertFalse(hash == 0);
+			assertEquals(hash, PrivateRepositoryFeed.getDataFilesHash(new StringReader(config)));
+			assertEquals(0, PrivateRepositoryFeed.getDataFilesHash(new StringReader("owlim:imports \"kb/a.owl\" .")));
+
+			FileUtils.writeStringToFile(data, "<rdf:RDF></rdf:RDF>");
+			assertFalse(hash == PrivateRepositoryFeed.getDataFilesHash(new StringReader(config)));
+		}
+		finally {
+			data.delete();
+		}
+	}
+}
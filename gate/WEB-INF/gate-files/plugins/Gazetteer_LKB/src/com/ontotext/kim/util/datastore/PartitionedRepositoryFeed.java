@@ -0,0 +1,304 @@
+package com.ontotext.kim.util.datastore;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+import org.openrdf.model.Value;
+import org.openrdf.model.impl.LiteralImpl;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryLanguage;
+import org.openrdf.query.TupleQuery;
+import org.openrdf.query.TupleQueryResultHandler;
+import org.openrdf.query.TupleQueryResultHandlerException;
+import org.openrdf.query.algebra.Bound;
+import org.openrdf.query.algebra.Filter;
+import org.openrdf.query.algebra.Not;
+import org.openrdf.query.algebra.Or;
+import org.openrdf.query.algebra.Projection;
+import org.openrdf.query.algebra.Regex;
+import org.openrdf.query.algebra.Str;
+import org.openrdf.query.algebra.TupleExpr;
+import org.openrdf.query.algebra.UnaryTupleOperator;
+import org.openrdf.query.algebra.ValueConstant;
+import org.openrdf.query.algebra.ValueExpr;
+import org.openrdf.query.algebra.Var;
+import org.openrdf.repository.Repository;
+import org.openrdf.repository.RepositoryConnection;
+import org.openrdf.repository.sail.SailQuery;
+
+import com.ontotext.kim.client.query.KIMQueryException;
+import com.ontotext.kim.client.semanticrepository.QueryResultListener;
+
+/**
+ * A feed which evaluates the dictionary query as several partitions at once,
+ * each on its own repository connection.<br>
+ * <br>
+ * The query result is split by the last character of the instance URI, the
+ * second column of the query. Every partition evaluates the parsed query
+ * with a filter on a set of final characters; the sets of the partitions
+ * cover all strings and do not overlap, so every tuple is read exactly once
+ * whatever the order in which the repository returns them. The query
+ * optimizer of the repository applies the filter as soon as the instance is
+ * bound, so each partition joins only its share of the instances. The
+ * tuples of all partitions are passed through a bounded queue to the calling
+ * thread, which feeds them to the listener. The listener therefore sees the
+ * usual single-threaded sequence of calls, while the repository evaluates
+ * the partitions concurrently with the dictionary build.<br>
+ * <br>
+ * The filter is added to the query algebra, so the partitions are only
+ * evaluated by in-process (Sail) repositories. Queries of other repositories,
+ * queries which already contain <code>LIMIT</code> or <code>OFFSET</code> and
+ * queries with less than two columns are evaluated as a single partition.
+ */
+public class PartitionedRepositoryFeed implements QueryResultListener.Feed {
+
+	private static final Logger log = Logger.getLogger(PartitionedRepositoryFeed.class);
+
+	/** Number of partitions evaluated at once. 1 disables partitioning. */
+	static final String PARTITIONS_PROPERTY = "lkb.gazetteer.feedPartitions";
+
+	private static final Pattern PAGED_QUERY_PAT =
+		Pattern.compile("\\b(limit|offset)\\b", Pattern.CASE_INSENSITIVE);
+	private static final int QUEUE_CAPACITY = 10000;
+	/** Marks the end of a partition in the tuple queue */
+	private static final Value[] END_OF_PARTITION = new Value[0];
+	/** The final characters of the instance URIs which are dealt to the
+	 * partitions; the last partition also takes all other characters. */
+	private static final String PARTITION_CHARS =
+		"0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+
+	private final Repository rep;
+	private final String query;
+	private final int partitions;
+
+	public PartitionedRepositoryFeed(Repository rep, String query, int partitions) {
+		this.rep = rep;
+		this.query = query;
+		this.partitions = Math.max(1, Math.min(PARTITION_CHARS.length(), partitions));
+	}
+
+	public static int getConfiguredPartitions() {
+		return Integer.getInteger(PARTITIONS_PROPERTY, 1);
+	}
+
+	public void feedTo(QueryResultListener listener) throws KIMQueryException {
+		if (!isPartitioned()) {
+			log.info("The dictionary query is evaluated as a single partition.");
+			RepositoryConnection conn = null;
+			try {
+				conn = rep.getConnection();
+				new RepositoryFeed(conn, null, query).feedTo(listener);
+			}
+			catch (KIMQueryException e) {
+				throw e;
+			}
+			catch (Exception e) {
+				throw new KIMQueryException(e, query);
+			}
+			finally {
+				close(conn);
+			}
+			return;
+		}
+
+		QueryLanguage lang;
+		try {
+			lang = RepositoryFeed.findLanguage(query);
+		}
+		catch (Exception e) {
+			throw new KIMQueryException(e, query);
+		}
+
+		log.info("The dictionary query is evaluated in " + partitions + " partitions.");
+		BlockingQueue<Value[]> queue = new ArrayBlockingQueue<Value[]>(QUEUE_CAPACITY);
+		AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		ExecutorService pool = Executors.newFixedThreadPool(partitions);
+		try {
+			for (int i = 0; i < partitions; i++)
+				pool.execute(new Partition(i, lang, queue, failure));
+
+			listener.startTableQueryResult();
+			int finished = 0;
+			while (finished < partitions) {
+				Value[] row = queue.take();
+				if (row == END_OF_PARTITION) {
+					++finished;
+					continue;
+				}
+				if (failure.get() != null)
+					continue;
+				listener.startTuple();
+				for (Value v : row)
+					listener.tupleValue(v);
+				listener.endTuple();
+			}
+			if (failure.get() != null)
+				throw new KIMQueryException(failure.get(), query);
+			listener.endTableQueryResult();
+		}
+		catch (KIMQueryException e) {
+			throw e;
+		}
+		catch (Exception e) {
+			throw new KIMQueryException(e, query);
+		}
+		finally {
+			pool.shutdownNow();
+			try {
+				pool.awaitTermination(1, TimeUnit.MINUTES);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * @return whether the query is evaluated in partitions: more than one
+	 * partition is configured, the repository is in-process and the query
+	 * has an instance column and no <code>LIMIT</code> or <code>OFFSET</code>
+	 */
+	public boolean isPartitioned() {
+		if (partitions == 1 || PAGED_QUERY_PAT.matcher(query).find())
+			return false;
+		RepositoryConnection conn = null;
+		try {
+			conn = rep.getConnection();
+			TupleQuery tq = conn.prepareTupleQuery(RepositoryFeed.findLanguage(query), query);
+			return tq instanceof SailQuery && findProjection(((SailQuery) tq).getParsedQuery().getTupleExpr()) != null;
+		}
+		catch (Exception e) {
+			log.debug("The dictionary query cannot be partitioned.", e);
+			return false;
+		}
+		finally {
+			close(conn);
+		}
+	}
+
+	/** @return the projection of a query with at least two columns, or <b>null</b> */
+	private static Projection findProjection(TupleExpr expr) {
+		while (!(expr instanceof Projection)) {
+			if (!(expr instanceof UnaryTupleOperator))
+				return null;
+			expr = ((UnaryTupleOperator) expr).getArg();
+		}
+		Projection projection = (Projection) expr;
+		return projection.getProjectionElemList().getElements().size() < 2 ? null : projection;
+	}
+
+	/**
+	 * Builds the condition of a partition: the instance URI ends with one of
+	 * the characters of the partition. The last partition takes the URIs
+	 * which end with none of the characters of the others, and the unbound
+	 * instances.
+	 * @param instVar - the name of the instance variable
+	 * @param index - the index of the partition
+	 * @param count - the number of partitions
+	 */
+	static ValueExpr partitionCondition(String instVar, int index, int count) {
+		boolean last = index == count - 1;
+		StringBuilder chars = new StringBuilder();
+		for (int i = 0; i < PARTITION_CHARS.length(); i++) {
+			if (last ? i % count != index : i % count == index)
+				chars.append(PARTITION_CHARS.charAt(i));
+		}
+		ValueExpr endsWith = new Regex(new Str(new Var(instVar)),
+				new ValueConstant(new LiteralImpl("[" + chars + "]$")), null);
+		if (!last)
+			return endsWith;
+		return new Or(new Not(new Bound(new Var(instVar))), new Not(endsWith));
+	}
+
+	/** Evaluates the query on a separate connection, filtered to one partition */
+	private class Partition implements Runnable {
+		private final int index;
+		private final QueryLanguage lang;
+		private final BlockingQueue<Value[]> queue;
+		private final AtomicReference<Exception> failure;
+
+		Partition(int index, QueryLanguage lang, BlockingQueue<Value[]> queue,
+				AtomicReference<Exception> failure) {
+			this.index = index;
+			this.lang = lang;
+			this.queue = queue;
+			this.failure = failure;
+		}
+
+		public void run() {
+			RepositoryConnection conn = null;
+			try {
+				conn = rep.getConnection();
+				TupleQuery tq = conn.prepareTupleQuery(lang, query);
+				Projection projection = findProjection(((SailQuery) tq).getParsedQuery().getTupleExpr());
+				String instVar = projection.getProjectionElemList().getElements().get(1).getSourceName();
+				projection.setArg(new Filter(projection.getArg(), partitionCondition(instVar, index, partitions)));
+				RowCollector collector = new RowCollector(queue);
+				tq.evaluate(collector);
+				log.debug("Partition " + index + ": " + collector.rows + " tuples.");
+			}
+			catch (Exception e) {
+				failure.compareAndSet(null, e);
+			}
+			finally {
+				close(conn);
+				try {
+					queue.put(END_OF_PARTITION);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+
+	private static void close(RepositoryConnection conn) {
+		if (conn != null) {
+			try {
+				conn.close();
+			}
+			catch (Exception e) {
+				log.debug("Could not close a repository connection.", e);
+			}
+		}
+	}
+
+	/** Copies the values of every solution in binding order to the queue */
+	private static class RowCollector implements TupleQueryResultHandler {
+		private final BlockingQueue<Value[]> queue;
+		private List<String> bindingNames;
+		int rows = 0;
+
+		RowCollector(BlockingQueue<Value[]> queue) {
+			this.queue = queue;
+		}
+
+		public void startQueryResult(List<String> bindingNames) {
+			this.bindingNames = bindingNames;
+		}
+
+		public void handleSolution(BindingSet bs) throws TupleQueryResultHandlerException {
+			Value[] row = new Value[bindingNames.size()];
+			for (int i = 0; i < row.length; i++)
+				row[i] = bs.getValue(bindingNames.get(i));
+			try {
+				queue.put(row);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new TupleQueryResultHandlerException(e);
+			}
+			++rows;
+		}
+
+		public void endQueryResult() {
+		}
+	}
+}
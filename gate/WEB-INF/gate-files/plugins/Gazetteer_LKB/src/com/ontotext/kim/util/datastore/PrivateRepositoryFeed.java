@@ -3,8 +3,11 @@ package com.ontotext.kim.util.datastore;
 import java.io.*;
 import java.net.URL;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import gate.util.Files;
 import org.apache.commons.io.FileUtils;
@@ -28,6 +31,9 @@ public class PrivateRepositoryFeed implements QueryResultListener.Feed {
 
 	private static final String SETTINGS_HASH_PROPERTY = "settingsHash";
 	private static final String SNAPSHOT_PROPERTIES_FILENAME = "snapshot.properties";
+	private static final String TUPLE_SNAPSHOT_FILENAME = "tuples.snapshot";
+	/** A string literal of the repository configuration */
+	private static final Pattern CONFIG_LITERAL = Pattern.compile("\"([^\"]*)\"");
 	private final URL configFile;
 	private final String query;
 	private final int settingsHash;
@@ -52,8 +58,29 @@ public class PrivateRepositoryFeed implements QueryResultListener.Feed {
 	}
 
 	public void feedTo(QueryResultListener listener) throws KIMQueryException {
+		TupleSnapshot snapshot;
+		try {
+			snapshot = new TupleSnapshot(new File(dictionaryPath, TUPLE_SNAPSHOT_FILENAME), getSnapshotKey());
+		}
+		catch (IOException e) {
+			throw new KIMQueryException(e);
+		}
+		if (snapshot.isValid()) {
+			feedFromSnapshot(snapshot, listener);
+			return;
+		}
+		
 		UnmanagedRepositoryFactory factory = new UnmanagedRepositoryFactory();
-		TimedListener timedListener = new TimedListener(true, listener, -1);
+		TupleSnapshot.Recorder recorder = null;
+		QueryResultListener target = listener;
+		try {
+			recorder = snapshot.record(listener);
+			target = recorder;
+		}
+		catch (IOException e) {
+			log.warn("Could not create tuple snapshot " + snapshot.getFile() + ": " + e.getMessage());
+		}
+		TimedListener timedListener = new TimedListener(true, target, -1);
 		
 		FileUtils.deleteQuietly(new File("owlim-storage"));
 		Reader configReader = null;
@@ -63,10 +90,21 @@ public class PrivateRepositoryFeed implements QueryResultListener.Feed {
 			rep.initialize();
 			log.info("Initialized Sesame repository: " + (rep instanceof SailRepository ? ((SailRepository)rep).getSail().toString() : rep.toString()));
 			try {				
-				RepositoryConnection conn = rep.getConnection();				
-				QueryResultListener.Feed dataFeed = new RepositoryFeed(conn, null, query);
+				QueryResultListener.Feed dataFeed;
+				int partitions = PartitionedRepositoryFeed.getConfiguredPartitions();
+				if (partitions > 1) {
+					dataFeed = new PartitionedRepositoryFeed(rep, query, partitions);
+				}
+				else {
+					RepositoryConnection conn = rep.getConnection();				
+					dataFeed = new RepositoryFeed(conn, null, query);
+				}
 				dataFeed.feedTo(timedListener);
 				saveSettings(timedListener.getTimeTakenMS(), timedListener.getTuplesCnt());
+				if (recorder != null) {
+					recorder.commit();
+					recorder = null;
+				}
 			}
 			finally {
 				rep.shutDown();
@@ -76,14 +114,104 @@ public class PrivateRepositoryFeed implements QueryResultListener.Feed {
 			throw new KIMQueryException(e);
 		}
 		finally {
+			if (recorder != null)
+				recorder.discard();
 			IOUtils.closeQuietly(configReader);
 		}
 		
 	}
 
+	/**
+	 * The key of the tuple snapshot: the settings hash combined with the
+	 * hash of the data files of the repository, so that the snapshot is not
+	 * replayed after the data are changed.
+	 */
+	private int getSnapshotKey() throws IOException {
+		Reader config = getConfigReader();
+		try {
+			return 31 * settingsHash + getDataFilesHash(config);
+		}
+		finally {
+			IOUtils.closeQuietly(config);
+		}
+	}
+
+	/**
+	 * Computes a hash of the paths, sizes and modification times of the
+	 * local files named in a repository configuration, e.g. the imports of
+	 * OWLIM. Every string literal of the configuration is split at ';' and
+	 * line breaks, and the parts which are absolute paths of existing files
+	 * or folders are taken; the files of a folder are taken recursively.
+	 * The data of a remote repository are not covered.
+	 * @param config - the resolved repository configuration
+	 * @return the hash, 0 if no data files are named
+	 * @throws IOException - if the configuration cannot be read
+	 */
+	public static int getDataFilesHash(Reader config) throws IOException {
+		Matcher m = CONFIG_LITERAL.matcher(IOUtils.toString(config));
+		int hash = 0;
+		while (m.find()) {
+			for (String part : m.group(1).split("[;\\r\\n]")) {
+				File file = new File(part.trim());
+				if (part.trim().length() > 0 && file.isAbsolute() && file.exists())
+					hash = hashFiles(file, hash);
+			}
+		}
+		return hash;
+	}
+
+	private static int hashFiles(File file, int hash) {
+		if (file.isDirectory()) {
+			File[] children = file.listFiles();
+			if (children == null)
+				return hash;
+			Arrays.sort(children);
+			for (File child : children)
+				hash = hashFiles(child, hash);
+			return hash;
+		}
+		hash = 31 * hash + file.getAbsolutePath().hashCode();
+		hash = 31 * hash + (int) (file.length() ^ (file.length() >>> 32));
+		return 31 * hash + (int) (file.lastModified() ^ (file.lastModified() >>> 32));
+	}
+
+	private void feedFromSnapshot(TupleSnapshot snapshot, QueryResultListener listener) throws KIMQueryException {
+		log.info("Loading dictionary tuples from " + snapshot.getFile());
+		long start = System.currentTimeMillis();
+		try {
+			long rows = snapshot.replayTo(listener);
+			log.info(rows + " tuples loaded from the snapshot in " + (System.currentTimeMillis() - start) + "ms.");
+		}
+		catch (IOException e) {
+			throw new KIMQueryException(e);
+		}
+	}
+
+	/**
+	 * Discards the tuples kept from the last evaluation of the dictionary
+	 * query, so that the next build queries the RDF database again.
+	 * @param dictionaryPath - the dictionary folder
+	 */
+	public static void discardTupleSnapshot(File dictionaryPath) {
+		FileUtils.deleteQuietly(new File(dictionaryPath, TUPLE_SNAPSHOT_FILENAME));
+	}
+
 	private Reader getConfigReader() throws IOException {
-		String configTemplate = FileUtils.readFileToString(Files.fileFromURL(configFile));
-		configTemplate = configTemplate.replace("%relpath%", dictionaryPath.getAbsolutePath().replace('\\', '/'));
+		return readConfig(configFile);
+	}
+
+	/**
+	 * Reads a repository configuration template, replacing <code>%relpath%</code>
+	 * with the directory of the configuration file.
+	 * @param configFile - the location of the configuration
+	 * @return a reader over the resolved configuration
+	 * @throws IOException - if the configuration cannot be read
+	 */
+	public static Reader readConfig(URL configFile) throws IOException {
+		File config = Files.fileFromURL(configFile);
+		String configTemplate = FileUtils.readFileToString(config);
+		String relPath = config.getAbsoluteFile().getParentFile().getAbsolutePath();
+		configTemplate = configTemplate.replace("%relpath%", relPath.replace('\\', '/'));
 		return new StringReader(configTemplate);
 	}
 
@@ -56,7 +56,7 @@ class RepositoryFeed implements QueryResultListener.Feed {
 		}
 	}
 
-	private final QueryLanguage findLanguage(String query) throws MalformedQueryException {
+	static QueryLanguage findLanguage(String query) throws MalformedQueryException {
 		String message = "";
 		for (QueryParserFactory qp : Arrays.asList(new SPARQLParserFactory(), new SeRQLParserFactory())) {
 			try {
@@ -0,0 +1,328 @@
+package com.ontotext.kim.util.datastore;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.openrdf.model.BNode;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.impl.BNodeImpl;
+import org.openrdf.model.impl.LiteralImpl;
+import org.openrdf.model.impl.URIImpl;
+
+import com.ontotext.kim.client.semanticrepository.QueryResultListener;
+
+/**
+ * A compact binary image of the tuples returned by the dictionary query.<br>
+ * <br>
+ * The snapshot is written while the query results stream from the RDF
+ * repository and is made visible only after the query completes. Later
+ * dictionary rebuilds with the same <code>settingsHash</code> replay the
+ * tuples from the file instead of initializing the repository and
+ * re-evaluating the query.<br>
+ * <br>
+ * File layout (all numbers big-endian):<br>
+ *  * header - magic, format version, settings hash;<br>
+ *  * rows - a short column count followed by the values of the row. Each
+ * value is a kind byte (null, URI, literal, blank node) and, unless null,
+ * an int length and the UTF-8 bytes of its string value;<br>
+ *  * trailer - a column count of -1, the long count of rows and the magic
+ * again. A file without a valid trailer is considered incomplete.<br>
+ * Literal language tags and datatypes are not preserved, because the
+ * dictionary listeners only use the string values.
+ */
+public class TupleSnapshot {
+
+	private static final Logger log = Logger.getLogger(TupleSnapshot.class);
+
+	private static final int MAGIC = 0x4C4B4254;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 12;
+	private static final int TRAILER_SIZE = 2 + 8 + 4;
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	private static final byte KIND_NULL = 0;
+	private static final byte KIND_URI = 1;
+	private static final byte KIND_LITERAL = 2;
+	private static final byte KIND_BNODE = 3;
+
+	private final File file;
+	private final int settingsHash;
+
+	public TupleSnapshot(File file, int settingsHash) {
+		this.file = file.getAbsoluteFile();
+		this.settingsHash = settingsHash;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Checks whether the snapshot file exists, was written for the same
+	 * settings hash and has a complete trailer.
+	 * @return <b>true</b> if the snapshot can be replayed
+	 */
+	public boolean isValid() {
+		if (!file.isFile() || file.length() < HEADER_SIZE + TRAILER_SIZE)
+			return false;
+		FileInputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			FileChannel ch = in.getChannel();
+			ByteBuffer buf = ByteBuffer.allocate(Math.max(HEADER_SIZE, TRAILER_SIZE));
+			buf.limit(HEADER_SIZE);
+			readFully(ch, buf, 0);
+			buf.flip();
+			if (buf.getInt() != MAGIC || buf.getInt() != VERSION || buf.getInt() != settingsHash)
+				return false;
+			buf.clear();
+			buf.limit(TRAILER_SIZE);
+			readFully(ch, buf, ch.size() - TRAILER_SIZE);
+			buf.flip();
+			return buf.getShort() == -1 && buf.getLong() >= 0 && buf.getInt() == MAGIC;
+		}
+		catch (IOException e) {
+			log.debug("Could not verify tuple snapshot " + file, e);
+			return false;
+		}
+		finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	/**
+	 * Streams the stored tuples to a listener, reproducing the sequence of
+	 * calls a repository query would make.
+	 * @param listener - the receiver of the tuples
+	 * @return the number of replayed tuples
+	 * @throws IOException - if the file is missing, truncated or corrupt
+	 */
+	public long replayTo(QueryResultListener listener) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			SnapshotReader reader = new SnapshotReader(in.getChannel());
+			if (reader.getInt() != MAGIC || reader.getInt() != VERSION
+					|| reader.getInt() != settingsHash)
+				throw new IOException("Tuple snapshot " + file + " does not match the current settings.");
+
+			listener.startTableQueryResult();
+			long rows = 0;
+			short columns;
+			while ((columns = reader.getShort()) >= 0) {
+				listener.startTuple();
+				for (int i = 0; i < columns; i++)
+					listener.tupleValue(reader.getValue());
+				listener.endTuple();
+				++rows;
+			}
+			if (reader.getLong() != rows || reader.getInt() != MAGIC)
+				throw new IOException("Tuple snapshot " + file + " is corrupt.");
+			listener.endTableQueryResult();
+			return rows;
+		}
+		finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	/**
+	 * Creates a listener that forwards all calls to <code>inner</code> and
+	 * records the tuples to a temporary file next to the snapshot. The
+	 * snapshot is replaced only when <code>commit</code> is called on the
+	 * returned recorder.
+	 * @param inner - the listener which consumes the query results
+	 * @return the recording listener
+	 * @throws IOException - if the temporary file cannot be created
+	 */
+	public Recorder record(QueryResultListener inner) throws IOException {
+		return new Recorder(inner);
+	}
+
+	/** A pass-through listener which writes the tuples to the snapshot */
+	public class Recorder implements QueryResultListener {
+		private final QueryResultListener inner;
+		private final File tmpFile;
+		private final DataOutputStream out;
+		private final List<Value> row = new ArrayList<Value>();
+		private long rows = 0;
+		private boolean finished = false;
+
+		private Recorder(QueryResultListener inner) throws IOException {
+			this.inner = inner;
+			this.tmpFile = new File(file.getPath() + ".tmp");
+			this.out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(tmpFile), READ_BUFFER_SIZE));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(settingsHash);
+		}
+
+		public void startTableQueryResult() throws IOException {
+			inner.startTableQueryResult();
+		}
+
+		public void startTableQueryResult(String[] columns) throws IOException {
+			inner.startTableQueryResult(columns);
+		}
+
+		public void startTuple() throws IOException {
+			row.clear();
+			inner.startTuple();
+		}
+
+		public void tupleValue(Value value) throws IOException {
+			row.add(value);
+			inner.tupleValue(value);
+		}
+
+		public void endTuple() throws IOException {
+			out.writeShort(row.size());
+			for (Value v : row)
+				writeValue(v);
+			++rows;
+			inner.endTuple();
+		}
+
+		public void endTableQueryResult() throws IOException {
+			out.writeShort(-1);
+			out.writeLong(rows);
+			out.writeInt(MAGIC);
+			finished = true;
+			inner.endTableQueryResult();
+		}
+
+		public void error(String message) throws IOException {
+			inner.error(message);
+		}
+
+		private void writeValue(Value v) throws IOException {
+			byte kind;
+			if (v == null)
+				kind = KIND_NULL;
+			else if (v instanceof URI)
+				kind = KIND_URI;
+			else if (v instanceof BNode)
+				kind = KIND_BNODE;
+			else
+				kind = KIND_LITERAL;
+			out.writeByte(kind);
+			if (kind != KIND_NULL) {
+				byte[] bytes = v.stringValue().getBytes("UTF-8");
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+		}
+
+		/**
+		 * Makes the recorded tuples the current snapshot. If the query did
+		 * not finish, the recording is discarded.
+		 * @return <b>true</b> if the snapshot was replaced
+		 */
+		public boolean commit() {
+			IOUtils.closeQuietly(out);
+			if (!finished) {
+				discard();
+				return false;
+			}
+			if (file.exists() && !file.delete()) {
+				log.warn("Could not replace the tuple snapshot " + file);
+				discard();
+				return false;
+			}
+			if (!tmpFile.renameTo(file)) {
+				log.warn("Could not rename " + tmpFile + " to " + file);
+				discard();
+				return false;
+			}
+			log.info(rows + " tuples saved to " + file);
+			return true;
+		}
+
+		/** Drops the recorded tuples */
+		public void discard() {
+			IOUtils.closeQuietly(out);
+			if (tmpFile.exists() && !tmpFile.delete())
+				log.debug("Could not delete " + tmpFile);
+		}
+	}
+
+	/** Sequential reader over the snapshot file channel. */
+	private static class SnapshotReader {
+		private final FileChannel ch;
+		private final ByteBuffer buf = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+		private byte[] strBuf = new byte[256];
+
+		SnapshotReader(FileChannel ch) {
+			this.ch = ch;
+			buf.flip();
+		}
+
+		private void ensure(int bytes) throws IOException {
+			if (buf.remaining() >= bytes)
+				return;
+			buf.compact();
+			while (buf.position() < bytes) {
+				if (ch.read(buf) < 0)
+					throw new EOFException("Unexpected end of tuple snapshot.");
+			}
+			buf.flip();
+		}
+
+		short getShort() throws IOException { ensure(2); return buf.getShort(); }
+		int getInt() throws IOException { ensure(4); return buf.getInt(); }
+		long getLong() throws IOException { ensure(8); return buf.getLong(); }
+
+		Value getValue() throws IOException {
+			ensure(1);
+			byte kind = buf.get();
+			if (kind == KIND_NULL)
+				return null;
+			String str = getString();
+			switch (kind) {
+			case KIND_URI:  return new URIImpl(str);
+			case KIND_BNODE:  return new BNodeImpl(str);
+			case KIND_LITERAL:  return new LiteralImpl(str);
+			default:
+				throw new IOException("Unknown value kind in tuple snapshot: " + kind);
+			}
+		}
+
+		private String getString() throws IOException {
+			int len = getInt();
+			if (len < 0)
+				throw new IOException("Negative string length in tuple snapshot.");
+			if (strBuf.length < len)
+				strBuf = new byte[Math.max(len, strBuf.length * 2)];
+			int done = 0;
+			while (done < len) {
+				if (!buf.hasRemaining())
+					ensure(1);
+				int chunk = Math.min(len - done, buf.remaining());
+				buf.get(strBuf, done, chunk);
+				done += chunk;
+			}
+			return new String(strBuf, 0, len, "UTF-8");
+		}
+	}
+
+	private static void readFully(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+		while (buf.hasRemaining()) {
+			int n = ch.read(buf, position);
+			if (n < 0)
+				throw new EOFException();
+			position += n;
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package ca.openlanguage.nlpgate;
+
+import java.io.IOException;
+import java.util.List;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.log4j.Logger;
+
+import com.ontotext.kim.model.AliasCacheImpl;
+import com.ontotext.kim.model.AliasIndex;
+
+/**
+ * HttpRequestHandler that completes a prefix to the aliases of a Large KB
+ * Gazetteer dictionary, for type-ahead entity search. It uses the same
+ * loaded dictionary as the gazetteers of the webapp, so the dictionary
+ * must be built with <code>-Dlkb.gazetteer.aliasIndex=true</code>.
+ *
+ * The prefix is taken from the <code>q</code> parameter and the number of
+ * completions from <code>limit</code> (10 by default). The response is a
+ * JSON object:
+ *
+ * <pre>
+ * {"prefix":"new y","completions":[{"alias":"New York","inst":"...","class":"..."}]}
+ * </pre>
+ */
+public class AutocompleteHandler extends DictionaryHandler {
+
+  private static final Logger log = Logger.getLogger(AutocompleteHandler.class);
+
+  private static final int DEFAULT_LIMIT = 10;
+
+  private static final int MAX_LIMIT = 100;
+
+  /**
+   * Handle a request.
+   */
+  public void handleRequest(HttpServletRequest request,
+          HttpServletResponse response) throws ServletException, IOException {
+    String prefix = request.getParameter("q");
+    if(prefix == null) {
+      JsonOutput.sendError(response, HttpServletResponse.SC_BAD_REQUEST,
+              "The prefix parameter q is missing");
+      return;
+    }
+    int limit = DEFAULT_LIMIT;
+    String limitParam = request.getParameter("limit");
+    if(limitParam != null) {
+      try {
+        limit = Math.max(1, Math.min(MAX_LIMIT, Integer.parseInt(limitParam)));
+      }
+      catch(NumberFormatException e) {
+        log.warn("Failed to parse limit value " + limitParam + ", ignored");
+      }
+    }
+
+    AliasCacheImpl dict = currentDictionary();
+    if(!dict.hasAliasIndex()) {
+      JsonOutput.sendError(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+              "The dictionary was built without an alias index");
+      return;
+    }
+    List<AliasIndex.Completion> completions = dict.complete(prefix, limit);
+
+    StringBuilder sb = new StringBuilder(64 + 128 * completions.size());
+    sb.append("{\"prefix\":");
+    JsonOutput.quote(sb, prefix).append(",\"completions\":[");
+    for(int i = 0; i < completions.size(); i++) {
+      AliasIndex.Completion c = completions.get(i);
+      if(i > 0) {
+        sb.append(',');
+      }
+      sb.append("{\"alias\":");
+      JsonOutput.quote(sb, c.alias).append(",\"inst\":");
+      JsonOutput.quote(sb, c.instURI).append(",\"class\":");
+      JsonOutput.quote(sb, c.classURI).append('}');
+    }
+    sb.append("]}");
+    JsonOutput.send(response, HttpServletResponse.SC_OK, sb);
+  }
+}
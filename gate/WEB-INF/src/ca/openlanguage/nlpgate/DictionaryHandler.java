@@ -0,0 +1,89 @@
+package ca.openlanguage.nlpgate;
+
+import gate.creole.ResourceInstantiationException;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.log4j.Logger;
+import org.springframework.core.io.Resource;
+import org.springframework.web.HttpRequestHandler;
+
+import com.ontotext.kim.KIMConstants;
+import com.ontotext.kim.gate.KimLookupParser.AliasLookupDictionary;
+import com.ontotext.kim.gate.KimLookupParser.VersionedDictionary;
+import com.ontotext.kim.model.AliasCacheImpl;
+
+/**
+ * Base class for the HttpRequestHandlers which search a Large KB Gazetteer
+ * dictionary directly, without GATE documents. The dictionary is acquired
+ * on behalf of the handler, so it is the same loaded dictionary as the one
+ * of the gazetteers of the webapp.
+ */
+public abstract class DictionaryHandler implements HttpRequestHandler {
+
+  private static final Logger log = Logger.getLogger(DictionaryHandler.class);
+
+  /**
+   * The dictionary folder.
+   */
+  private Resource dictionary;
+
+  private boolean caseSensitive = false;
+
+  private File dictionaryPath;
+
+  /**
+   * The shared dictionary, acquired on behalf of this handler.
+   */
+  private AliasLookupDictionary handle;
+
+  /**
+   * Set the folder of the dictionary to search.
+   */
+  public void setDictionary(Resource dictionary) {
+    this.dictionary = dictionary;
+  }
+
+  /**
+   * Set whether the dictionary is case sensitive, as the forceCaseSensitive
+   * parameter of the gazetteer. Only used if no gazetteer has loaded the
+   * dictionary yet.
+   */
+  public void setCaseSensitive(boolean caseSensitive) {
+    this.caseSensitive = caseSensitive;
+  }
+
+  /**
+   * Acquire the dictionary. It is loaded now unless a gazetteer already
+   * uses it.
+   */
+  @PostConstruct
+  public void init() throws IOException, ResourceInstantiationException {
+    dictionaryPath = dictionary.getFile().getAbsoluteFile();
+    log.info("init() for " + getClass().getSimpleName() + " over " + dictionaryPath);
+    handle = AliasCacheImpl.acquire(dictionaryPath,
+            caseSensitive ? KIMConstants.CASE_SENSITIV : KIMConstants.CASE_INSENSITIV, this);
+  }
+
+  /**
+   * Release the dictionary.
+   */
+  @PreDestroy
+  public void cleanup() {
+    log.info("cleanup() for " + getClass().getSimpleName() + " over " + dictionaryPath);
+    AliasCacheImpl.releaseCache(dictionaryPath, this);
+  }
+
+  /**
+   * The current version of the dictionary, which changes when the
+   * dictionary is reloaded. A request should use the same version
+   * throughout.
+   */
+  protected AliasCacheImpl currentDictionary() {
+    return (AliasCacheImpl)((VersionedDictionary)handle).currentVersion();
+  }
+}
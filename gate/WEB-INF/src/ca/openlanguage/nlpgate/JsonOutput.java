@@ -0,0 +1,75 @@
+package ca.openlanguage.nlpgate;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Minimal helpers for the JSON responses of the dictionary handlers.
+ */
+final class JsonOutput {
+
+  private JsonOutput() {
+  }
+
+  /**
+   * Append a string as a quoted JSON string, or null.
+   */
+  static StringBuilder quote(StringBuilder sb, String s) {
+    if(s == null) {
+      return sb.append("null");
+    }
+    sb.append('"');
+    for(int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      switch(c) {
+        case '"':
+          sb.append("\\\"");
+          break;
+        case '\\':
+          sb.append("\\\\");
+          break;
+        case '\n':
+          sb.append("\\n");
+          break;
+        case '\r':
+          sb.append("\\r");
+          break;
+        case '\t':
+          sb.append("\\t");
+          break;
+        default:
+          if(c < 0x20 || c == '\u2028' || c == '\u2029') {
+            sb.append(String.format("\\u%04x", (int)c));
+          }
+          else {
+            sb.append(c);
+          }
+      }
+    }
+    return sb.append('"');
+  }
+
+  /**
+   * Send a JSON document with the given status.
+   */
+  static void send(HttpServletResponse response, int status, CharSequence json)
+          throws IOException {
+    response.setStatus(status);
+    response.setContentType("application/json; charset=UTF-8");
+    PrintWriter w = response.getWriter();
+    w.print(json);
+    w.flush();
+  }
+
+  /**
+   * Send an error as a JSON object with a single "error" member.
+   */
+  static void sendError(HttpServletResponse response, int status, String message)
+          throws IOException {
+    StringBuilder sb = new StringBuilder("{\"error\":");
+    quote(sb, message).append('}');
+    send(response, status, sb);
+  }
+}
@@ -0,0 +1,138 @@
+package ca.openlanguage.nlpgate;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.log4j.Logger;
+
+import com.ontotext.kim.gate.KimLookupParser.AliasWrapper;
+import com.ontotext.kim.model.AliasCacheImpl;
+
+/**
+ * HttpRequestHandler that looks up a batch of strings in a Large KB
+ * Gazetteer dictionary, to find which entities they name. The strings are
+ * matched as whole aliases, as by <code>AliasCacheImpl.lookup</code>, without
+ * creating GATE documents or running a pipeline. It uses the same loaded
+ * dictionary as the gazetteers of the webapp.
+ *
+ * The strings are taken from the repeated <code>q</code> parameter, or from
+ * the body of a <code>text/plain</code> POST, one per line. The response is
+ * a JSON object with the matches of every string, in the order of the
+ * request:
+ *
+ * <pre>
+ * {"results":[{"q":"Paris","matches":[{"inst":"...","class":"..."}]}]}
+ * </pre>
+ */
+public class LookupHandler extends DictionaryHandler {
+
+  private static final Logger log = Logger.getLogger(LookupHandler.class);
+
+  /**
+   * The maximal number of strings of a request, by default.
+   */
+  private static final int DEFAULT_MAX_QUERIES = 1000;
+
+  private int maxQueries = DEFAULT_MAX_QUERIES;
+
+  /**
+   * Set the maximal number of strings of a request. Larger batches are
+   * refused.
+   */
+  public void setMaxQueries(int maxQueries) {
+    this.maxQueries = maxQueries;
+  }
+
+  /**
+   * Handle a request.
+   */
+  public void handleRequest(HttpServletRequest request,
+          HttpServletResponse response) throws ServletException, IOException {
+    List<String> queries = readQueries(request);
+    if(queries == null) {
+      JsonOutput.sendError(response, HttpServletResponse.SC_BAD_REQUEST,
+              "No strings to look up; use the q parameter or a text/plain body");
+      return;
+    }
+    if(queries.size() > maxQueries) {
+      JsonOutput.sendError(response, HttpServletResponse.SC_BAD_REQUEST,
+              "At most " + maxQueries + " strings can be looked up at once");
+      return;
+    }
+
+    long start = System.currentTimeMillis();
+    // the whole batch is looked up in the same version of the dictionary
+    AliasCacheImpl dict = currentDictionary();
+    StringBuilder sb = new StringBuilder(64 * queries.size() + 16);
+    sb.append("{\"results\":[");
+    Set<String> seen = new HashSet<String>();
+    for(int i = 0; i < queries.size(); i++) {
+      String q = queries.get(i);
+      if(i > 0) {
+        sb.append(',');
+      }
+      sb.append("{\"q\":");
+      JsonOutput.quote(sb, q).append(",\"matches\":[");
+      // the variants of an alias may give the same entity more than once
+      seen.clear();
+      boolean first = true;
+      for(AliasWrapper w : dict.lookup(q)) {
+        if(!seen.add(w.instURI + ' ' + w.classURI)) {
+          continue;
+        }
+        if(!first) {
+          sb.append(',');
+        }
+        first = false;
+        sb.append("{\"inst\":");
+        JsonOutput.quote(sb, w.instURI).append(",\"class\":");
+        JsonOutput.quote(sb, w.classURI).append('}');
+      }
+      sb.append("]}");
+    }
+    sb.append("]}");
+    if(log.isDebugEnabled()) {
+      log.debug("Looked up " + queries.size() + " strings in "
+              + (System.currentTimeMillis() - start) + "ms");
+    }
+    JsonOutput.send(response, HttpServletResponse.SC_OK, sb);
+  }
+
+  /**
+   * The strings of the request, or null if there are none.
+   */
+  private List<String> readQueries(HttpServletRequest request)
+          throws IOException {
+    String contentType = request.getContentType();
+    if("POST".equals(request.getMethod()) && contentType != null
+            && contentType.startsWith("text/plain")) {
+      String encoding = request.getCharacterEncoding();
+      BufferedReader r = new BufferedReader(new InputStreamReader(
+              request.getInputStream(), encoding == null ? "UTF-8" : encoding));
+      List<String> queries = new ArrayList<String>();
+      String line;
+      // stop reading a little past the limit, the batch is refused anyway
+      while((line = r.readLine()) != null && queries.size() <= maxQueries) {
+        if(line.trim().length() > 0) {
+          queries.add(line);
+        }
+      }
+      return queries.isEmpty() ? null : queries;
+    }
+    String[] values = request.getParameterValues("q");
+    if(values == null || values.length == 0) {
+      return null;
+    }
+    return Arrays.asList(values);
+  }
+}